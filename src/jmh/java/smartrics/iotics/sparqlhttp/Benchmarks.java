@@ -0,0 +1,38 @@
+package smartrics.iotics.sparqlhttp;
+
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Endpoint wiring for benchmarks that don't talk to a real IOTICS host.
+ */
+final class Benchmarks {
+
+    static final int PORT = 18080;
+
+    private Benchmarks() {
+    }
+
+    static ConfigManager config(int port) {
+        return new ConfigManager(Map.of(
+                ConfigManager.ConfigKey.HOST_DNS, "localhost",
+                ConfigManager.ConfigKey.AGENT_KEY, "agent", ConfigManager.ConfigKey.AGENT_SEED, "seed",
+                ConfigManager.ConfigKey.USER_KEY, "user", ConfigManager.ConfigKey.USER_SEED, "seed",
+                ConfigManager.ConfigKey.PORT, String.valueOf(port),
+                ConfigManager.ConfigKey.SECURE_PORT, String.valueOf(port + 1)));
+    }
+
+    /**
+     * @return services without identities, enough for routes that never reach the identity SDK
+     */
+    static SharedServices services() {
+        return services(config(PORT), null, new ChannelPool(1, Duration.ofMinutes(1)));
+    }
+
+    static SharedServices services(ConfigManager config, Identities identities, ChannelPool channelPool) {
+        return SharedServices.SharedServicesBuilder.newBuilder(config)
+                .withIdentities(identities)
+                .withChannelPool(channelPool)
+                .build();
+    }
+}
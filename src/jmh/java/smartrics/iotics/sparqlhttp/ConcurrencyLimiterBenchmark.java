@@ -0,0 +1,36 @@
+package smartrics.iotics.sparqlhttp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What admission control adds to every query: acquiring and releasing a permit that is granted at once, from several
+ * threads sharing the limiter as the endpoint instances do, each for one of a few users.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ConcurrencyLimiterBenchmark {
+    private static final String[] USERS = {"did:iotics:user1", "did:iotics:user2", "did:iotics:user3", "did:iotics:user4"};
+
+    private ConcurrencyLimiter limiter;
+
+    @Setup
+    public void setUp() {
+        limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.Limits(64, 4, 256), new ConcurrencyLimiter.Limits(16, 1, 32),
+                128, Duration.ofSeconds(1));
+    }
+
+    @Benchmark
+    public void acquireAndRelease() {
+        String user = USERS[ThreadLocalRandom.current().nextInt(USERS.length)];
+        limiter.acquire(user).join().release(true, false);
+    }
+}
@@ -0,0 +1,39 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.iotics.api.SparqlResultType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups between mime types and result types, in both directions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentTypesMapBenchmark {
+
+    @Param({"SPARQL_JSON", "SPARQL_CSV", "RDF_NTRIPLES"})
+    private SparqlResultType type;
+
+    private String mime;
+
+    @Setup
+    public void setUp() {
+        mime = ContentTypesMap.mimeFor(type);
+    }
+
+    @Benchmark
+    public String mimeFor() {
+        return ContentTypesMap.mimeFor(type);
+    }
+
+    @Benchmark
+    public Optional<SparqlResultType> get() {
+        return ContentTypesMap.get(mime);
+    }
+}
@@ -0,0 +1,64 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.PoolOptions;
+import io.vertx.core.http.HttpClientOptions;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests per second served by 1 to N deployed {@link SparqlEndpoint} instances sharing one set of services.
+ * Override the instance counts with {@code -p instances=1,2,4,8,16}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(1)
+public class EndpointThroughputBenchmark {
+
+    @Param({"1", "2", "4"})
+    private int instances;
+
+    private Vertx server;
+    private Vertx client;
+    private HttpClient httpClient;
+
+    @Setup
+    public void setUp() throws Exception {
+        Configurator.setRootLevel(Level.INFO);
+        // only the HTTP listener and the router are exercised: no identities or upstream calls are needed
+        SharedServices services = Benchmarks.services();
+        server = Vertx.vertx();
+        server.deployVerticle(() -> new SparqlEndpoint(services), new DeploymentOptions().setInstances(instances))
+                .toCompletionStage().toCompletableFuture().get();
+        // give the listeners a moment, they bind asynchronously after deployment
+        Thread.sleep(500);
+        client = Vertx.vertx();
+        httpClient = client.createHttpClient(new HttpClientOptions().setKeepAlive(true), new PoolOptions().setHttp1MaxSize(64));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        httpClient.close();
+        client.close().toCompletionStage().toCompletableFuture().get();
+        server.close().toCompletionStage().toCompletableFuture().get();
+    }
+
+    @Benchmark
+    public Buffer health() throws Exception {
+        return httpClient.request(HttpMethod.GET, Benchmarks.PORT, "localhost", "/health")
+                .compose(request -> request.send().compose(HttpClientResponse::body))
+                .toCompletionStage().toCompletableFuture().get();
+    }
+}
@@ -0,0 +1,98 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.*;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.*;
+import smartrics.iotics.identity.Identity;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Load test of many clients querying in parallel over HTTP/1.1 keep-alive connections, one query in flight per
+ * connection, against the same number of cleartext HTTP/2 connections multiplexing the queries as streams.
+ * Each query streams a chunked result from an in-process fake MetaAPI.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(1)
+public class HttpProtocolBenchmark {
+
+    private static final String QUERY = "SELECT ?s ?p ?o WHERE { ?s ?p ?o } LIMIT 100";
+
+    @Param({"HTTP_1_1", "HTTP_2"})
+    private HttpVersion protocol;
+
+    @Param({"1", "8"})
+    private int connections;
+
+    private Server metaAPI;
+    private Vertx server;
+    private Vertx client;
+    private HttpClient httpClient;
+
+    @Setup
+    public void setUp() throws Exception {
+        Configurator.setRootLevel(Level.INFO);
+        String name = InProcessServerBuilder.generateName();
+        metaAPI = InProcessServerBuilder.forName(name).directExecutor()
+                .addService(new RouterBenchmark.FakeMetaAPI(20, 1024)).build().start();
+
+        Identities identities = mock(Identities.class);
+        when(identities.agentIdentity()).thenReturn(new Identity("agentKey", "agent", "did:iotics:agent"));
+        when(identities.ready()).thenReturn(true);
+        ChannelPool channelPool = new ChannelPool(1, Duration.ofMinutes(1), host -> InProcessChannelBuilder.forName(name).build());
+        SharedServices services = Benchmarks.services(Benchmarks.config(Benchmarks.PORT), identities, channelPool);
+
+        server = Vertx.vertx();
+        server.deployVerticle(new SparqlEndpoint(services)).toCompletionStage().toCompletableFuture().get();
+        Thread.sleep(500);
+        client = Vertx.vertx();
+        HttpClientOptions options = new HttpClientOptions().setKeepAlive(true).setProtocolVersion(protocol);
+        if (protocol == HttpVersion.HTTP_2) {
+            // prior knowledge: talk HTTP/2 from the first byte instead of upgrading
+            options.setHttp2ClearTextUpgrade(false);
+        }
+        httpClient = client.createHttpClient(options, new PoolOptions().setHttp1MaxSize(connections).setHttp2MaxSize(connections));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        httpClient.close();
+        client.close().toCompletionStage().toCompletableFuture().get();
+        server.close().toCompletionStage().toCompletableFuture().get();
+        metaAPI.shutdownNow();
+    }
+
+    @Benchmark
+    public Buffer query() throws Exception {
+        return httpClient.request(new RequestOptions()
+                        .setMethod(HttpMethod.POST)
+                        .setHost("localhost")
+                        .setPort(Benchmarks.PORT)
+                        .setURI("/sparql/local")
+                        .putHeader("Content-Type", "application/sparql-query")
+                        .putHeader("Accept", "application/sparql-results+json")
+                        .putHeader("Authorization", "Bearer " + SimpleTokenBenchmark.TOKEN))
+                .compose(request -> request.send(QUERY).compose(response -> {
+                    if (response.statusCode() != 200 || response.version() != protocol) {
+                        throw new IllegalStateException("unexpected " + response.version() + " " + response.statusCode());
+                    }
+                    return response.body();
+                }))
+                .toCompletionStage().toCompletableFuture().get();
+    }
+}
@@ -0,0 +1,58 @@
+package smartrics.iotics.sparqlhttp;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of Accept header media ranges, alone and for a whole header, and negotiation of a header seen before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MediaTypeBenchmark {
+
+    @Param({"application/sparql-results+json",
+            "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",
+            "application/sparql-results+json;q=0.2, text/csv;q=0.9, application/sparql-results+xml;q=0.5, */*;q=0.1"})
+    private String accept;
+
+    private String firstRange;
+    private ContentNegotiator negotiator;
+
+    @Setup
+    public void setUp() {
+        firstRange = accept.split(",")[0];
+        negotiator = new ContentNegotiator(ContentNegotiator.DEFAULT_CACHE_SIZE);
+    }
+
+    @Benchmark
+    public MediaType parseRange() {
+        return new MediaType(firstRange);
+    }
+
+    @Benchmark
+    public void parseHeader(Blackhole bh) {
+        List<MediaType> mediaTypes = Arrays.stream(accept.split(","))
+                .map(String::trim)
+                .map(MediaType::new)
+                .sorted(Comparator.comparingDouble(MediaType::getQuality).reversed())
+                .toList();
+        for (MediaType mediaType : mediaTypes) {
+            bh.consume(ContentTypesMap.get(mediaType.getType()));
+        }
+    }
+
+    @Benchmark
+    public Optional<ContentNegotiator.Negotiated> negotiateCached() {
+        return negotiator.negotiate(accept);
+    }
+}
@@ -0,0 +1,64 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a form-encoded query from the chunks of a POST body: the former path buffering the whole body, copying it
+ * to a String and URL-decoding it, against the incremental {@link FormQueryDecoder}.
+ * Run with {@code -prof gc} (the profile default) to compare the allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PostBodyBenchmark {
+    private static final int CHUNK_SIZE = 8192;
+
+    @Param({"1024", "65536", "1048576"})
+    private int querySize;
+
+    private List<Buffer> chunks;
+
+    @Setup
+    public void setUp() {
+        StringBuilder query = new StringBuilder("SELECT ?s WHERE { ?s ?p ?o . FILTER(?o IN (");
+        while (query.length() < querySize) {
+            query.append("\"café ").append(query.length()).append("\", ");
+        }
+        query.append("\"\")) }");
+        byte[] body = ("query=" + URLEncoder.encode(query.toString(), StandardCharsets.UTF_8)).getBytes(StandardCharsets.US_ASCII);
+        chunks = new ArrayList<>();
+        for (int i = 0; i < body.length; i += CHUNK_SIZE) {
+            chunks.add(Buffer.buffer().appendBytes(body, i, Math.min(CHUNK_SIZE, body.length - i)));
+        }
+    }
+
+    @Benchmark
+    public String bufferAndUrlDecode() {
+        Buffer body = Buffer.buffer();
+        for (Buffer chunk : chunks) {
+            body.appendBuffer(chunk);
+        }
+        String form = body.toString(StandardCharsets.UTF_8);
+        return URLDecoder.decode(form.substring("query=".length()), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String decodeIncrementally() {
+        FormQueryDecoder decoder = new FormQueryDecoder(StandardCharsets.UTF_8, 0);
+        for (Buffer chunk : chunks) {
+            decoder.feed(chunk);
+        }
+        return decoder.finish();
+    }
+}
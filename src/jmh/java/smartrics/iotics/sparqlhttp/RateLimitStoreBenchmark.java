@@ -0,0 +1,41 @@
+package smartrics.iotics.sparqlhttp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Taking a token from the shared store from several threads, all on one hot key or spread over many clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RateLimitStoreBenchmark {
+    private static final RateLimitStore.Rate RATE = new RateLimitStore.Rate(1_000_000, 1_000_000);
+
+    @Param({"1", "100000"})
+    private int clients;
+
+    private InMemoryRateLimitStore store;
+    private String[] keys;
+
+    @Setup
+    public void setUp() {
+        store = new InMemoryRateLimitStore(Duration.ofSeconds(30));
+        keys = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            keys[i] = "global:bearer:" + Integer.toHexString(i * 0x9E3779B9);
+        }
+    }
+
+    @Benchmark
+    public RateLimitStore.Decision tryConsume() {
+        return store.tryConsume(keys[ThreadLocalRandom.current().nextInt(clients)], RATE, System.nanoTime());
+    }
+}
@@ -0,0 +1,78 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.protobuf.ByteString;
+import com.iotics.api.SparqlQueryResponse;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reorders the payloads of one query with {@link ReorderBuffer} and with the PriorityBlockingQueue loop it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReorderBufferBenchmark {
+
+    @Param({"1", "10", "1000"})
+    private int chunks;
+
+    @Param({"IN_ORDER", "SHUFFLED"})
+    private String arrival;
+
+    private SparqlQueryResponse.Payload[] payloads;
+
+    @Setup
+    public void setUp() {
+        List<SparqlQueryResponse.Payload> list = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            list.add(SparqlQueryResponse.Payload.newBuilder()
+                    .setSeqNum(i)
+                    .setLast(i == chunks - 1)
+                    .setResultChunk(ByteString.copyFromUtf8("chunk" + i))
+                    .build());
+        }
+        if ("SHUFFLED".equals(arrival)) {
+            Collections.shuffle(list, new Random(42));
+        }
+        payloads = list.toArray(new SparqlQueryResponse.Payload[0]);
+    }
+
+    @Benchmark
+    public void reorderBuffer(Blackhole bh) {
+        ReorderBuffer<SparqlQueryResponse.Payload> buffer = new ReorderBuffer<>(Math.max(chunks, SparqlRunner.DEFAULT_REORDER_WINDOW));
+        for (SparqlQueryResponse.Payload payload : payloads) {
+            buffer.offer(payload.getSeqNum(), payload);
+            SparqlQueryResponse.Payload head;
+            while ((head = buffer.poll()) != null) {
+                bh.consume(head.getResultChunk());
+            }
+        }
+    }
+
+    @Benchmark
+    public void priorityBlockingQueue(Blackhole bh) throws InterruptedException {
+        PriorityBlockingQueue<SparqlQueryResponse.Payload> queue =
+                new PriorityBlockingQueue<>(16, Comparator.comparingLong(SparqlQueryResponse.Payload::getSeqNum));
+        long expected = 0;
+        for (SparqlQueryResponse.Payload payload : payloads) {
+            queue.put(payload);
+            SparqlQueryResponse.Payload head;
+            while ((head = queue.peek()) != null && head.getSeqNum() == expected) {
+                queue.take();
+                bh.consume(head.getResultChunk());
+                expected++;
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.net.SocketAddress;
+import io.vertx.ext.web.RoutingContext;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * {@link SparqlEndpoint#logRequestAndResponse} for one request, with debug logging enabled and disabled.
+ * The request and response are Mockito mocks, whose dispatch cost is part of the score: compare runs of this
+ * benchmark with each other rather than with the others.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestLoggingBenchmark {
+
+    @Param({"INFO", "DEBUG"})
+    private String level;
+
+    private SparqlEndpoint endpoint;
+    private RoutingContext ctx;
+
+    @Setup
+    public void setUp() {
+        Configurator.setRootLevel(Level.INFO);
+        Configurator.setLevel(SparqlEndpoint.class.getName(), Level.valueOf(level));
+
+        endpoint = new SparqlEndpoint(Benchmarks.services());
+        HttpServerRequest request = mock(HttpServerRequest.class);
+        when(request.remoteAddress()).thenReturn(SocketAddress.inetSocketAddress(54321, "127.0.0.1"));
+        when(request.uri()).thenReturn("/sparql/local?query=SELECT%20*%20WHERE%20%7B%3Fs%20%3Fp%20%3Fo%7D");
+        when(request.absoluteURI()).thenReturn("http://localhost:8080/sparql/local?query=SELECT%20*%20WHERE%20%7B%3Fs%20%3Fp%20%3Fo%7D");
+        when(request.method()).thenReturn(HttpMethod.GET);
+        when(request.headers()).thenReturn(MultiMap.caseInsensitiveMultiMap()
+                .add("Host", "localhost:8080")
+                .add("Accept", "application/sparql-results+json")
+                .add("Authorization", "Bearer " + SimpleTokenBenchmark.TOKEN)
+                .add("User-Agent", "jmh"));
+        HttpServerResponse response = mock(HttpServerResponse.class);
+        ctx = mock(RoutingContext.class);
+        when(ctx.request()).thenReturn(request);
+        when(ctx.response()).thenReturn(response);
+    }
+
+    @Benchmark
+    public void logRequest() {
+        endpoint.logRequestAndResponse(ctx);
+    }
+}
@@ -0,0 +1,64 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.iotics.api.SparqlResultType;
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming compression of a 100 chunk N-Triples result at each compression level, flushing after every chunk as
+ * the response writer does. The compressed size is reported as a secondary {@code bytes} result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseCompressionBenchmark {
+
+    @Param({"1", "4", "6", "9"})
+    private int level;
+
+    @Param({"GZIP", "DEFLATE"})
+    private ResponseCompression.Encoding encoding;
+
+    private ResponseCompression compression;
+    private byte[][] chunks;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Sizes {
+        public long bytes;
+    }
+
+    @Setup
+    public void setUp() {
+        compression = new ResponseCompression(0, level, level);
+        chunks = new byte[100][];
+        for (int i = 0; i < chunks.length; i++) {
+            StringBuilder chunk = new StringBuilder();
+            for (int j = 0; j < 40; j++) {
+                chunk.append("<http://data.iotics.com/twin/").append(i * 40 + j)
+                        .append("> <http://www.w3.org/2000/01/rdf-schema#label> \"Twin ").append(i * 40 + j).append("\" .\n");
+            }
+            chunks[i] = chunk.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public void compress(Sizes sizes, Blackhole bh) {
+        ResponseCompression.Encoder encoder = compression.encoder(encoding, SparqlResultType.RDF_NTRIPLES);
+        long bytes = 0;
+        for (byte[] chunk : chunks) {
+            Buffer compressed = encoder.encode(chunk);
+            bytes += compressed.length();
+            bh.consume(compressed);
+        }
+        bytes += encoder.finish().length();
+        sizes.bytes = bytes;
+    }
+}
@@ -0,0 +1,124 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.protobuf.ByteString;
+import com.iotics.api.MetaAPIGrpc;
+import com.iotics.api.SparqlQueryRequest;
+import com.iotics.api.SparqlQueryResponse;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.*;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.*;
+import smartrics.iotics.identity.Identity;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * One SPARQL query through the whole endpoint: HTTP request, validation, routing, the gRPC call to an in-process fake
+ * MetaAPI answering with a fixed number of chunks, and the chunked response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouterBenchmark {
+
+    private static final String QUERY = "SELECT ?s ?p ?o WHERE { ?s ?p ?o } LIMIT 10";
+
+    @Param({"1", "100"})
+    private int chunks;
+
+    @Param({"64", "4096"})
+    private int chunkSize;
+
+    private Server metaAPI;
+    private Vertx server;
+    private Vertx client;
+    private HttpClient httpClient;
+
+    @Setup
+    public void setUp() throws Exception {
+        Configurator.setRootLevel(Level.INFO);
+        String name = InProcessServerBuilder.generateName();
+        metaAPI = InProcessServerBuilder.forName(name).directExecutor()
+                .addService(new FakeMetaAPI(chunks, chunkSize)).build().start();
+
+        Identities identities = mock(Identities.class);
+        when(identities.agentIdentity()).thenReturn(new Identity("agentKey", "agent", "did:iotics:agent"));
+        when(identities.ready()).thenReturn(true);
+        ChannelPool channelPool = new ChannelPool(1, Duration.ofMinutes(1), host -> InProcessChannelBuilder.forName(name).build());
+        SharedServices services = Benchmarks.services(Benchmarks.config(Benchmarks.PORT), identities, channelPool);
+
+        server = Vertx.vertx();
+        server.deployVerticle(new SparqlEndpoint(services)).toCompletionStage().toCompletableFuture().get();
+        Thread.sleep(500);
+        client = Vertx.vertx();
+        httpClient = client.createHttpClient(new HttpClientOptions().setKeepAlive(true));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        httpClient.close();
+        client.close().toCompletionStage().toCompletableFuture().get();
+        server.close().toCompletionStage().toCompletableFuture().get();
+        metaAPI.shutdownNow();
+    }
+
+    @Benchmark
+    public Buffer query() throws Exception {
+        return httpClient.request(new RequestOptions()
+                        .setMethod(HttpMethod.POST)
+                        .setHost("localhost")
+                        .setPort(Benchmarks.PORT)
+                        .setURI("/sparql/local")
+                        .putHeader("Content-Type", "application/sparql-query")
+                        .putHeader("Accept", "application/sparql-results+json")
+                        .putHeader("Authorization", "Bearer " + SimpleTokenBenchmark.TOKEN))
+                .compose(request -> request.send(QUERY).compose(response -> {
+                    if (response.statusCode() != 200) {
+                        throw new IllegalStateException("unexpected status " + response.statusCode() + " " + response.statusMessage());
+                    }
+                    return response.body();
+                }))
+                .toCompletionStage().toCompletableFuture().get();
+    }
+
+    /**
+     * Answers every query with the same chunks.
+     */
+    static final class FakeMetaAPI extends MetaAPIGrpc.MetaAPIImplBase {
+        private final SparqlQueryResponse[] responses;
+
+        FakeMetaAPI(int chunks, int chunkSize) {
+            ByteString chunk = ByteString.copyFromUtf8("x".repeat(chunkSize));
+            responses = new SparqlQueryResponse[chunks];
+            for (int i = 0; i < chunks; i++) {
+                responses[i] = SparqlQueryResponse.newBuilder()
+                        .setPayload(SparqlQueryResponse.Payload.newBuilder()
+                                .setSeqNum(i)
+                                .setLast(i == chunks - 1)
+                                .setResultChunk(chunk))
+                        .build();
+            }
+        }
+
+        @Override
+        public void sparqlQuery(SparqlQueryRequest request, StreamObserver<SparqlQueryResponse> responseObserver) {
+            for (SparqlQueryResponse response : responses) {
+                responseObserver.onNext(response);
+            }
+            responseObserver.onCompleted();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package smartrics.iotics.sparqlhttp;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting a result of about 1 MiB, in 8 KiB chunks, to each format IOTICS doesn't produce. Each operation is one
+ * whole result, and the source size is reported as a secondary {@code bytes} result, so throughput in bytes per
+ * second is {@code bytes / score}. N_QUADS passes chunks through: it measures the pipeline alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TranscodingBenchmark {
+    private static final int RESULT_SIZE = 1 << 20;
+    private static final int CHUNK_SIZE = 8192;
+
+    @Param({"TSV", "N_QUADS", "JSON_LD", "RDF_JSON"})
+    private Transcoding transcoding;
+
+    private List<String> chunks;
+    private int sourceBytes;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Sizes {
+        public long bytes;
+    }
+
+    @Setup
+    public void setUp() {
+        String source = switch (transcoding.source()) {
+            case SPARQL_JSON -> sparqlJson();
+            default -> nTriples();
+        };
+        sourceBytes = source.getBytes(StandardCharsets.UTF_8).length;
+        chunks = new ArrayList<>();
+        for (int i = 0; i < source.length(); i += CHUNK_SIZE) {
+            chunks.add(source.substring(i, Math.min(source.length(), i + CHUNK_SIZE)));
+        }
+    }
+
+    private static String sparqlJson() {
+        StringBuilder sb = new StringBuilder("{\"head\":{\"vars\":[\"s\",\"label\",\"n\"]},\"results\":{\"bindings\":[");
+        for (int i = 0; sb.length() < RESULT_SIZE; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"s\":{\"type\":\"uri\",\"value\":\"http://data.iotics.com/twin/").append(i)
+                    .append("\"},\"label\":{\"type\":\"literal\",\"value\":\"Twin ").append(i)
+                    .append("\",\"xml:lang\":\"en\"},\"n\":{\"type\":\"literal\",\"value\":\"").append(i)
+                    .append("\",\"datatype\":\"http://www.w3.org/2001/XMLSchema#integer\"}}");
+        }
+        return sb.append("]}}").toString();
+    }
+
+    private static String nTriples() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < RESULT_SIZE; i++) {
+            String subject = "<http://data.iotics.com/twin/" + i / 3 + ">";
+            switch (i % 3) {
+                case 0 -> sb.append(subject).append(" <http://www.w3.org/2000/01/rdf-schema#label> \"Twin ").append(i).append("\"@en .\n");
+                case 1 -> sb.append(subject).append(" <http://www.w3.org/1999/02/22-rdf-syntax-ns#type> <http://data.iotics.com/Sensor> .\n");
+                default -> sb.append(subject).append(" <http://data.iotics.com/reading> \"").append(i)
+                        .append("\"^^<http://www.w3.org/2001/XMLSchema#integer> .\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public void transcode(Sizes sizes, Blackhole bh) {
+        Transcoder transcoder = transcoding.newTranscoder();
+        for (String chunk : chunks) {
+            bh.consume(transcoder.next(chunk));
+        }
+        bh.consume(transcoder.finish());
+        sizes.bytes = sourceBytes;
+    }
+}
@@ -0,0 +1,65 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What balancing adds to every global query: picking a host, and ending the call on it, from several threads sharing
+ * the hosts as the endpoint instances do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class UpstreamHostsBenchmark {
+
+    @Param({"1", "4"})
+    public int hosts;
+
+    @Param({"LEAST_OUTSTANDING", "ROUND_ROBIN"})
+    public UpstreamHosts.Balancing balancing;
+
+    private UpstreamHosts upstreamHosts;
+    private StreamObserver<String> sink;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < hosts; i++) {
+            names.add("host" + i + ".iotics.space");
+        }
+        upstreamHosts = new UpstreamHosts(names, balancing, 5, Duration.ofSeconds(10), Duration.ofSeconds(30));
+        sink = new StreamObserver<>() {
+            @Override
+            public void onNext(String value) {
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+    }
+
+    @Benchmark
+    public String acquireAndComplete() {
+        UpstreamHosts.Lease lease = upstreamHosts.acquire();
+        StreamObserver<String> observer = lease.observing(sink);
+        observer.onNext("chunk");
+        observer.onCompleted();
+        return lease.host();
+    }
+}
@@ -0,0 +1,75 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import io.vertx.core.Handler;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+import io.vertx.ext.web.RoutingContext;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes one JSON line per sampled request to the {@code access} logger, configured in log4j2.xml with an
+ * asynchronous ring buffer so request threads never wait on the file. Requests not sampled cost a random draw.
+ * No headers are logged; the query is identified by a fingerprint of its normalised text rather than the text itself.
+ */
+class AccessLog implements Handler<RoutingContext> {
+    private static final Logger LOGGER = LoggerFactory.getLogger("access");
+    private static final Gson GSON = new Gson();
+
+    private final double sampleRate;
+
+    /**
+     * @param sampleRate fraction of requests logged, from 0 (none) to 1 (all)
+     */
+    AccessLog(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("access log sample rate must be between 0 and 1");
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public void handle(RoutingContext ctx) {
+        if (sampled()) {
+            long startNanos = System.nanoTime();
+            ctx.addEndHandler(ar -> LOGGER.info(GSON.toJson(Entry.of(ctx, ar.succeeded(), System.nanoTime() - startNanos))));
+        }
+        ctx.next();
+    }
+
+    private boolean sampled() {
+        if (sampleRate == 0 || !LOGGER.isInfoEnabled()) {
+            return false;
+        }
+        return sampleRate == 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * @return a short stable identifier of the query, equal for queries differing only in whitespace, or null
+     */
+    static String fingerprint(String query) {
+        if (query == null) {
+            return null;
+        }
+        return Hashing.murmur3_128().hashString(QueryKey.normalise(query), StandardCharsets.UTF_8).toString().substring(0, 16);
+    }
+
+    record Entry(String time, String method, String route, String path, String status, double latencyMs, long bytes, String query) {
+
+        static Entry of(RoutingContext ctx, boolean completed, long latencyNanos) {
+            String path = ctx.normalizedPath();
+            return new Entry(Instant.now().toString(),
+                    ctx.request().method().name(),
+                    SparqlEndpoint.routeOf(path),
+                    path,
+                    completed ? String.valueOf(ctx.response().getStatusCode()) : "reset",
+                    latencyNanos / 1_000_000.0,
+                    ctx.response().bytesWritten(),
+                    fingerprint(ctx.get("query")));
+        }
+    }
+}
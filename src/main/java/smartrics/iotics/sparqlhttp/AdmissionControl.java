@@ -0,0 +1,72 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Holds validated queries until the {@link ConcurrencyLimiter} lets them run, and answers 429 with a Retry-After
+ * header those it rejects. The permit is kept in the request's context and released when the response ends or the
+ * client goes away, adapting the limits to the latency its {@link ConcurrencyLimiter.Permit#observing observer} took
+ * if the query ran upstream. Requests without a query, for the service description, pass straight through.
+ */
+class AdmissionControl implements Handler<RoutingContext> {
+    /**
+     * The admitted request's permit, whose observer the handler that starts an upstream query wraps the results with;
+     * answers from the cache go without, and don't count as samples.
+     */
+    static final String PERMIT = "permit";
+
+    private final ConcurrencyLimiter limiter;
+
+    AdmissionControl(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    @Override
+    public void handle(RoutingContext ctx) {
+        if (ctx.get(SparqlBodyHandler.QUERY) == null && ctx.request().getParam("query") == null) {
+            ctx.next();
+            return;
+        }
+        CompletableFuture<ConcurrencyLimiter.Permit> permit = limiter.acquire(ctx.get("userDID"));
+        if (permit.isDone()) {
+            // admitted or rejected at once: no need to wait for the event loop's next turn
+            if (permit.isCompletedExceptionally()) {
+                reject(ctx);
+            } else {
+                admitted(ctx, permit.join());
+            }
+            return;
+        }
+        // a client leaving while queued gives up its place
+        ctx.addEndHandler(ar -> permit.cancel(false));
+        Future.fromCompletionStage(permit, ctx.vertx().getOrCreateContext()).onComplete(ar -> {
+            if (ar.succeeded()) {
+                admitted(ctx, ar.result());
+            } else if (!ctx.response().closed()) {
+                reject(ctx);
+            }
+        });
+    }
+
+    private void reject(RoutingContext ctx) {
+        ctx.response()
+                .putHeader("Retry-After", String.valueOf(limiter.retryAfterSeconds()))
+                .setStatusCode(429)
+                .setStatusMessage(ErrorMessage.toJson("Too Many Requests: too many concurrent queries"))
+                .end();
+    }
+
+    private void admitted(RoutingContext ctx, ConcurrencyLimiter.Permit permit) {
+        if (ctx.response().closed() || ctx.response().ended()) {
+            permit.release(false, false);
+            return;
+        }
+        ctx.put(PERMIT, permit);
+        ctx.addEndHandler(ar -> permit.release());
+        ctx.next();
+    }
+}
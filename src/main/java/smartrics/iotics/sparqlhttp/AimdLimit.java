@@ -0,0 +1,54 @@
+package smartrics.iotics.sparqlhttp;
+
+/**
+ * A concurrency limit adjusted from the latency of the work it admits: additive increase while latency stays close
+ * to its running baseline, multiplicative decrease once it grows past it or the work fails from overload. The
+ * increase adds about one per limit's worth of samples, and only while the limit is being used, so that a lightly
+ * loaded limit doesn't grow unchecked. Not thread safe.
+ */
+class AimdLimit {
+    static final double BACKOFF = 0.9;
+    static final double TOLERANCE = 2.0;
+    private static final double BASELINE_WEIGHT = 0.05;
+
+    private final int min;
+    private final int max;
+    private double limit;
+    private double baselineNanos;
+
+    AimdLimit(int initial, int min, int max) {
+        if (min < 1 || initial < min || max < initial) {
+            throw new IllegalArgumentException("concurrency limits must satisfy 1 <= min <= initial <= max");
+        }
+        this.min = min;
+        this.max = max;
+        this.limit = initial;
+    }
+
+    int limit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return the running average latency, 0 before the first sample
+     */
+    double baselineNanos() {
+        return baselineNanos;
+    }
+
+    /**
+     * @param latencyNanos how long the work took
+     * @param overloaded   whether it failed in a way that signals overload, such as a timeout
+     * @param inFlight     how much work was in flight when it was admitted, itself included
+     */
+    void onSample(long latencyNanos, boolean overloaded, int inFlight) {
+        boolean slow = baselineNanos > 0 && latencyNanos > TOLERANCE * baselineNanos;
+        // every sample moves the baseline, so that a lasting change of workload stops counting as slow
+        baselineNanos = baselineNanos == 0 ? latencyNanos : baselineNanos + BASELINE_WEIGHT * (latencyNanos - baselineNanos);
+        if (overloaded || slow) {
+            limit = Math.max(min, limit * BACKOFF);
+        } else if (inFlight * 2 >= limit) {
+            limit = Math.min(max, limit + 1 / limit);
+        }
+    }
+}
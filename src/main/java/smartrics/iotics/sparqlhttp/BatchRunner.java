@@ -0,0 +1,360 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.iotics.api.Scope;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.http.HttpServerResponse;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the queries of a {@code /sparql/batch} request a few at a time, and streams each one's result back as soon as
+ * it completes, in completion order: as NDJSON lines, or as the parts of a multipart/mixed body. An item's result is
+ * gathered whole before it's written, so that items don't interleave; a result over the maximum size fails its item
+ * with 413 instead. A failing item doesn't fail the batch: its line or part carries its own status. Each item takes
+ * a permit of the {@link ConcurrencyLimiter}, if any, like a query of its own. New items aren't started while the
+ * response's write queue is full.
+ * <p>
+ * All the state is kept on the request's context; the items' results may come from any thread.
+ */
+class BatchRunner {
+    private static final Gson GSON = new Gson();
+
+    enum Format {
+        NDJSON("application/x-ndjson"), MULTIPART("multipart/mixed");
+
+        private final String mime;
+
+        Format(String mime) {
+            this.mime = mime;
+        }
+
+        /**
+         * @return the format of the first media range of the Accept header a batch can be sent as, NDJSON if there's
+         * no header, or empty if none fits
+         */
+        static Optional<Format> negotiate(String accept) {
+            if (accept == null || accept.isBlank()) {
+                return Optional.of(NDJSON);
+            }
+            for (String range : accept.split(",")) {
+                MediaType mediaType = new MediaType(range);
+                if (mediaType.getQuality() <= 0) {
+                    continue;
+                }
+                String type = mediaType.getType().toLowerCase(Locale.ROOT);
+                if (type.equals(MULTIPART.mime) || type.equals("multipart/*")) {
+                    return Optional.of(MULTIPART);
+                }
+                if (type.equals(NDJSON.mime) || type.equals("application/*") || mediaType.isWildcard()) {
+                    return Optional.of(NDJSON);
+                }
+            }
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * One query of a batch, with the scope and Accept header it would be sent with on its own.
+     */
+    record Item(String query, String scope, String accept) {
+
+        /**
+         * @return the scope of the item, global if not given, or null if not one of {@code local} and {@code global}
+         */
+        Scope scopeOrNull() {
+            if (scope == null) {
+                return Scope.GLOBAL;
+            }
+            return switch (scope.trim().toLowerCase(Locale.ROOT)) {
+                case "local" -> Scope.LOCAL;
+                case "global" -> Scope.GLOBAL;
+                default -> null;
+            };
+        }
+    }
+
+    /**
+     * Starts an item: answers it through the output at once, or returns the runner that will once run.
+     */
+    interface Starter {
+        QueryRunner start(Item item, ItemOutput output);
+    }
+
+    /**
+     * @param body the JSON array of the items
+     * @return the items, in order
+     * @throws SparqlEndpoint.ValidationException if the body isn't a JSON array of objects or has too many of them
+     */
+    static List<Item> parse(String body, int maxItems) {
+        Item[] items;
+        try {
+            items = GSON.fromJson(body, Item[].class);
+        } catch (JsonParseException e) {
+            throw new SparqlEndpoint.ValidationException(400, ErrorMessage.toJson("invalid batch: " + e.getMessage()));
+        }
+        if (items == null || items.length == 0) {
+            throw new SparqlEndpoint.ValidationException(400, ErrorMessage.toJson("invalid batch: no queries"));
+        }
+        if (items.length > maxItems) {
+            throw new SparqlEndpoint.ValidationException(413, ErrorMessage.toJson("batch too large: more than " + maxItems + " queries"));
+        }
+        for (Item item : items) {
+            if (item == null) {
+                throw new SparqlEndpoint.ValidationException(400, ErrorMessage.toJson("invalid batch: null query"));
+            }
+        }
+        return List.of(items);
+    }
+
+    private final Context context;
+    private final HttpServerResponse response;
+    private final Format format;
+    private final String boundary;
+    private final List<Item> items;
+    private final int parallelism;
+    private final long maxResultSize;
+    private final Starter starter;
+    private final ConcurrencyLimiter limiter;
+    private final String user;
+    private final Map<Integer, QueryRunner> runners = new HashMap<>();
+    private final Map<Integer, ItemOutput> outputs = new HashMap<>();
+    private final Map<Integer, CompletableFuture<ConcurrencyLimiter.Permit>> queued = new HashMap<>();
+    private int next;
+    private int running;
+    private int done;
+    private boolean cancelled;
+
+    /**
+     * @param maxResultSize the largest result of an item, in characters
+     * @param limiter       the limiter items take a permit of, or null
+     * @param user          whose permits the items take
+     */
+    BatchRunner(Context context, HttpServerResponse response, Format format, List<Item> items, int parallelism,
+                long maxResultSize, Starter starter, ConcurrencyLimiter limiter, String user) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("batch parallelism must be at least 1");
+        }
+        this.context = context;
+        this.response = response;
+        this.format = format;
+        this.boundary = "batch-" + UUID.randomUUID();
+        this.items = items;
+        this.parallelism = parallelism;
+        this.maxResultSize = maxResultSize;
+        this.starter = starter;
+        this.limiter = limiter;
+        this.user = user;
+    }
+
+    /**
+     * Sends the head of the response and starts the first items. To be called on the request's context.
+     */
+    void start() {
+        response.setChunked(true);
+        response.putHeader("Content-Type", format == Format.MULTIPART ? format.mime + "; boundary=" + boundary : format.mime);
+        response.setStatusCode(200);
+        launch();
+    }
+
+    /**
+     * Stops starting items and cancels those running, for a client gone away. To be called on the request's context.
+     * The permits of the items running are released here: a cancelled runner may never report to its output, for
+     * example when it leaves a query others still share.
+     */
+    void cancel() {
+        cancelled = true;
+        queued.values().forEach(permit -> permit.cancel(false));
+        queued.clear();
+        new ArrayList<>(runners.values()).forEach(QueryRunner::cancel);
+        runners.clear();
+        for (ItemOutput output : outputs.values()) {
+            // those already finished release theirs once their finish runs
+            if (output.finished.compareAndSet(false, true) && output.permit != null) {
+                output.permit.release(false, false);
+            }
+        }
+        outputs.clear();
+    }
+
+    private void launch() {
+        while (!cancelled && running < parallelism && next < items.size()) {
+            if (response.writeQueueFull()) {
+                response.drainHandler(v -> launch());
+                return;
+            }
+            int index = next++;
+            running++;
+            admit(index);
+        }
+    }
+
+    private void admit(int index) {
+        if (limiter == null) {
+            run(index, null);
+            return;
+        }
+        CompletableFuture<ConcurrencyLimiter.Permit> permit = limiter.acquire(user);
+        if (permit.isDone()) {
+            admitted(index, permit);
+            return;
+        }
+        queued.put(index, permit);
+        Future.fromCompletionStage(permit, context).onComplete(ar -> {
+            if (queued.remove(index) != null) {
+                admitted(index, permit);
+            } else if (ar.succeeded()) {
+                // cancelled while the permit was granted
+                ar.result().release(false, false);
+            }
+        });
+    }
+
+    private void admitted(int index, CompletableFuture<ConcurrencyLimiter.Permit> permit) {
+        if (permit.isCompletedExceptionally()) {
+            new ItemOutput(index, null).fail(429, "Too Many Requests: too many concurrent queries");
+            return;
+        }
+        run(index, permit.join());
+    }
+
+    private void run(int index, ConcurrencyLimiter.Permit permit) {
+        Item item = items.get(index);
+        ItemOutput output = new ItemOutput(index, permit);
+        outputs.put(index, output);
+        QueryRunner runner;
+        try {
+            runner = starter.start(item, output);
+        } catch (RuntimeException e) {
+            output.onError(e);
+            return;
+        }
+        if (runner != null) {
+            output.upstream = true;
+            runners.put(index, runner);
+            runner.run(item.query());
+        }
+    }
+
+    private void finish(ItemOutput output, int status, String result, String error) {
+        QueryRunner runner = runners.remove(output.index);
+        outputs.remove(output.index);
+        if (status == 413 && runner != null) {
+            runner.cancel();
+        }
+        if (output.permit != null) {
+            output.permit.release(output.upstream, status == 503 || status == 504);
+        }
+        running--;
+        done++;
+        if (cancelled || response.closed()) {
+            return;
+        }
+        response.write(format == Format.MULTIPART
+                ? part(output.index, status, result != null ? output.contentType : "application/json", result != null ? result : ErrorMessage.toJson(error))
+                : GSON.toJson(new Line(output.index, status, result != null ? output.contentType : null, result, error)) + "\n");
+        if (done == items.size()) {
+            response.end(format == Format.MULTIPART ? "--" + boundary + "--\r\n" : "");
+        } else {
+            launch();
+        }
+    }
+
+    private String part(int index, int status, String contentType, String body) {
+        StringBuilder part = new StringBuilder(body.length() + 128).append("--").append(boundary).append("\r\n");
+        if (contentType != null) {
+            part.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        return part.append("X-Batch-Index: ").append(index).append("\r\n")
+                .append("X-Batch-Status: ").append(status).append("\r\n\r\n")
+                .append(body).append("\r\n").toString();
+    }
+
+    static int statusOf(Throwable e) {
+        if (e instanceof SparqlEndpoint.ValidationException validation) {
+            return validation.getCode();
+        }
+        return switch (Status.fromThrowable(e).getCode()) {
+            case DEADLINE_EXCEEDED -> 504;
+            case UNAVAILABLE -> 503;
+            default -> 400;
+        };
+    }
+
+    /**
+     * @param contentType null for failed items
+     * @param result      null for failed items
+     * @param error       null for items that succeeded
+     */
+    record Line(int index, int status, String contentType, String result, String error) {
+    }
+
+    /**
+     * Gathers the result of an item, and writes it once complete.
+     */
+    final class ItemOutput implements StreamObserver<String> {
+        private final int index;
+        private final ConcurrencyLimiter.Permit permit;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final StringBuilder result = new StringBuilder();
+        private volatile String contentType;
+        private boolean upstream;
+
+        private ItemOutput(int index, ConcurrencyLimiter.Permit permit) {
+            this.index = index;
+            this.permit = permit;
+        }
+
+        /**
+         * @param contentType of the item's result
+         */
+        void contentType(String contentType) {
+            this.contentType = contentType;
+        }
+
+        /**
+         * Fails the item with its own status, for example for an Accept of its own that can't be met.
+         */
+        void fail(int status, String message) {
+            if (finished.compareAndSet(false, true)) {
+                context.runOnContext(v -> finish(this, status, null, message));
+            }
+        }
+
+        @Override
+        public void onNext(String chunk) {
+            synchronized (result) {
+                if (finished.get()) {
+                    return;
+                }
+                if (result.length() + chunk.length() > maxResultSize) {
+                    fail(413, "result too large: more than " + maxResultSize + " characters");
+                    return;
+                }
+                result.append(chunk);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            fail(statusOf(throwable), throwable.getMessage());
+        }
+
+        @Override
+        public void onCompleted() {
+            String body;
+            synchronized (result) {
+                body = result.toString();
+            }
+            if (finished.compareAndSet(false, true)) {
+                context.runOnContext(v -> finish(this, 200, body, null));
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Fixed pool of worker threads for blocking work that must stay off the Vert.x event loops.
+ * The queue of waiting tasks is bounded: once full, submissions fail immediately with a
+ * {@link RejectedExecutionException} rather than queueing up behind a slow dependency.
+ */
+public class BoundedWorkerPool implements AutoCloseable {
+
+    private final ThreadPoolExecutor executor;
+    private final Duration timeout;
+
+    public BoundedWorkerPool(String name, int workers, int queueDepth, Duration timeout) {
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth),
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return a future completed with the result of the task, or exceptionally with a {@link RejectedExecutionException}
+     * if the queue is full or a {@link TimeoutException} if the result isn't available within the timeout. A task
+     * timed out is cancelled: dropped if still queued, interrupted if running, so that it gives its worker back.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> running;
+        try {
+            running = executor.submit(() -> {
+                try {
+                    result.complete(task.get());
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return result.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS).whenComplete((v, e) -> {
+            if (e instanceof TimeoutException) {
+                running.cancel(true);
+            }
+        });
+    }
+
+    public Executor executor() {
+        return executor;
+    }
+
+    public int queued() {
+        return executor.getQueue().size();
+    }
+
+    public int active() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
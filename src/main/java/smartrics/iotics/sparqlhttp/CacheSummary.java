@@ -0,0 +1,14 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * Printable summary of a Guava cache's statistics.
+ */
+public record CacheSummary(long size, long hits, long misses, double hitRate, long loads, long loadFailures, double averageLoadMillis) {
+
+    public static CacheSummary of(long size, CacheStats stats) {
+        return new CacheSummary(size, stats.hitCount(), stats.missCount(), stats.hitRate(), stats.loadCount(),
+                stats.loadExceptionCount(), stats.averageLoadPenalty() / 1_000_000d);
+    }
+}
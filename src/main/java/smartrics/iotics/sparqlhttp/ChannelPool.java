@@ -0,0 +1,286 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.grpc.MetricCollectingClientInterceptor;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Long-lived pool of gRPC channels, with a fixed number of channels per host handed out round-robin.
+ * Channels are created lazily and shut down gracefully once they have not been handed out for longer than the
+ * idle timeout. Each call leases its channel until it ends, and a leased channel is not shut down: a caller never
+ * gets a channel the evictor is closing.
+ */
+public final class ChannelPool implements AutoCloseable, MeterBinder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChannelPool.class);
+
+    private final int size;
+    private final long idleTimeoutNanos;
+    private final Function<String, ManagedChannel> channelFactory;
+    private final Map<String, HostChannels> hosts = new ConcurrentHashMap<>();
+    private final ExecutorService grpcExecutor;
+    private final ScheduledExecutorService evictor;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    public ChannelPool(int size, Duration idleTimeout) {
+        this(size, idleTimeout, Metrics.globalRegistry);
+    }
+
+    /**
+     * @param registry where the latency and outcome of every gRPC call on the pooled channels is recorded
+     */
+    public ChannelPool(int size, Duration idleTimeout, MeterRegistry registry) {
+        this(size, idleTimeout, null, registry);
+    }
+
+    ChannelPool(int size, Duration idleTimeout, Function<String, ManagedChannel> channelFactory) {
+        this(size, idleTimeout, channelFactory, Metrics.globalRegistry);
+    }
+
+    private ChannelPool(int size, Duration idleTimeout, Function<String, ManagedChannel> channelFactory, MeterRegistry registry) {
+        if (size < 1) {
+            throw new IllegalArgumentException("channel pool size must be at least 1");
+        }
+        this.size = size;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.grpcExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("iot-grpc-%d").setDaemon(true).build());
+        if (channelFactory == null) {
+            MetricCollectingClientInterceptor callMetrics = new MetricCollectingClientInterceptor(registry);
+            channelFactory = host -> new IOTICSConnection(host, grpcExecutor, callMetrics).newChannel();
+        }
+        this.channelFactory = channelFactory;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("iot-channel-evictor").setDaemon(true).build());
+        long period = Math.max(TimeUnit.SECONDS.toNanos(1), idleTimeoutNanos / 2);
+        this.evictor.scheduleAtFixedRate(() -> evictIdle(System.nanoTime()), period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return a lease of a channel to the host, to be released once the call on it ends
+     */
+    public Lease acquire(String host) {
+        acquired.increment();
+        return new Lease(hosts.computeIfAbsent(host, HostChannels::new).next(System.nanoTime()));
+    }
+
+    void evictIdle(long nowNanos) {
+        for (HostChannels hostChannels : hosts.values()) {
+            hostChannels.evictIdle(nowNanos);
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("grpc.channels.open", this, pool -> pool.hosts.values().stream().mapToInt(hostChannels -> hostChannels.stats().open()).sum())
+                .description("gRPC channels currently open to IOTICS hosts")
+                .register(registry);
+    }
+
+    public Stats stats() {
+        List<HostStats> hostStats = new ArrayList<>();
+        hosts.values().forEach(h -> hostStats.add(h.stats()));
+        return new Stats(size, Duration.ofNanos(idleTimeoutNanos).toString(), acquired.sum(), created.sum(), evicted.sum(), hostStats);
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        hosts.values().forEach(HostChannels::shutdown);
+        hosts.clear();
+        grpcExecutor.shutdown();
+    }
+
+    public record Stats(int poolSize, String idleTimeout, long acquired, long created, long evicted, List<HostStats> hosts) {
+    }
+
+    public record HostStats(String host, int open) {
+    }
+
+    private static final class PooledChannel {
+        private final ManagedChannel channel;
+        private final AtomicInteger leases = new AtomicInteger();
+        private volatile long lastUsedNanos;
+        private volatile boolean retired;
+
+        PooledChannel(ManagedChannel channel, long lastUsedNanos) {
+            this.channel = channel;
+            this.lastUsedNanos = lastUsedNanos;
+        }
+
+        void release() {
+            if (leases.decrementAndGet() == 0 && retired) {
+                channel.shutdown();
+            }
+        }
+
+        /**
+         * Shuts the channel down once no lease is left; called once it is out of its slot, so no lease is added.
+         */
+        void retire() {
+            retired = true;
+            if (leases.get() == 0) {
+                channel.shutdown();
+            }
+        }
+    }
+
+    private final class HostChannels {
+        private final String host;
+        private final AtomicReferenceArray<PooledChannel> slots = new AtomicReferenceArray<>(size);
+        private final AtomicInteger next = new AtomicInteger();
+
+        HostChannels(String host) {
+            this.host = host;
+        }
+
+        PooledChannel next(long nowNanos) {
+            int index = Math.floorMod(next.getAndIncrement(), size);
+            while (true) {
+                PooledChannel current = slots.get(index);
+                if (current != null && !current.channel.isShutdown()) {
+                    current.leases.incrementAndGet();
+                    // still in its slot once leased, so the evictor can't retire it before the lease is released
+                    if (slots.get(index) == current) {
+                        current.lastUsedNanos = nowNanos;
+                        return current;
+                    }
+                    current.release();
+                    continue;
+                }
+                PooledChannel fresh = new PooledChannel(channelFactory.apply(host), nowNanos);
+                fresh.leases.incrementAndGet();
+                if (slots.compareAndSet(index, current, fresh)) {
+                    created.increment();
+                    LOGGER.debug("opened channel " + index + " to " + host);
+                    return fresh;
+                }
+                // lost the race with another caller: discard ours and use theirs
+                fresh.channel.shutdown();
+            }
+        }
+
+        void evictIdle(long nowNanos) {
+            for (int i = 0; i < slots.length(); i++) {
+                PooledChannel current = slots.get(i);
+                if (current != null && nowNanos - current.lastUsedNanos > idleTimeoutNanos && current.leases.get() == 0
+                        && slots.compareAndSet(i, current, null)) {
+                    current.retire();
+                    evicted.increment();
+                    LOGGER.debug("evicted idle channel " + i + " to " + host);
+                }
+            }
+        }
+
+        HostStats stats() {
+            int open = 0;
+            for (int i = 0; i < slots.length(); i++) {
+                if (slots.get(i) != null) {
+                    open++;
+                }
+            }
+            return new HostStats(host, open);
+        }
+
+        void shutdown() {
+            for (int i = 0; i < slots.length(); i++) {
+                PooledChannel current = slots.getAndSet(i, null);
+                if (current != null) {
+                    current.channel.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * One call's hold on a pooled channel, released when the call's results end, fail or it's cancelled.
+     */
+    public static final class Lease {
+        private final PooledChannel pooled;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(PooledChannel pooled) {
+            this.pooled = pooled;
+        }
+
+        public ManagedChannel channel() {
+            return pooled.channel;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                pooled.release();
+            }
+        }
+
+        /**
+         * @return the runner of the call, which releases the lease if cancelled
+         */
+        public QueryRunner guarding(QueryRunner runner) {
+            return new QueryRunner() {
+                @Override
+                public void run(String query) {
+                    runner.run(query);
+                }
+
+                @Override
+                public void pause() {
+                    runner.pause();
+                }
+
+                @Override
+                public void resume() {
+                    runner.resume();
+                }
+
+                @Override
+                public void cancel() {
+                    runner.cancel();
+                    release();
+                }
+            };
+        }
+
+        /**
+         * @return an observer of the call's results that releases the lease once they end or fail
+         */
+        public StreamObserver<String> observing(StreamObserver<String> delegate) {
+            return new StreamObserver<>() {
+                @Override
+                public void onNext(String chunk) {
+                    delegate.onNext(chunk);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    release();
+                    delegate.onError(throwable);
+                }
+
+                @Override
+                public void onCompleted() {
+                    release();
+                    delegate.onCompleted();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the in-order result chunks produced by a {@link QueryRunner} to the HTTP response using chunked transfer
+ * encoding, or over HTTP/2 as DATA frames on the request's stream. Chunks are handed over from the gRPC threads to
+ * the response's event loop; upstream reads are paused while the response write queue is full, or while too many
+ * chunks are waiting to be written. Over HTTP/2 the write queue follows the stream's flow control window, so a slow
+ * stream pauses its own query only. With an encoder, chunks are compressed as they are written, once the response has
+ * proven long enough.
+ */
+class ChunkedResponseWriter implements StreamObserver<String> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkedResponseWriter.class);
+
+    static final int MAX_PENDING_CHUNKS = 4;
+
+    private final Context context;
+    private final HttpServerResponse response;
+    private final AtomicInteger pendingChunks = new AtomicInteger();
+    private final ResponseCompression.Encoder encoder;
+    private final int minCompressedBytes;
+    // the start of a compressible response, held back until it reaches the compression threshold
+    private ByteArrayOutputStream held;
+    private QueryRunner runner;
+
+    ChunkedResponseWriter(Context context, HttpServerResponse response) {
+        this(context, response, null, 0);
+    }
+
+    /**
+     * @param encoder            compresses the response if it reaches {@code minCompressedBytes}, or null
+     * @param minCompressedBytes shorter responses are sent uncompressed
+     */
+    ChunkedResponseWriter(Context context, HttpServerResponse response, ResponseCompression.Encoder encoder, int minCompressedBytes) {
+        this.context = context;
+        this.response = response;
+        this.encoder = encoder;
+        this.minCompressedBytes = minCompressedBytes;
+        if (encoder != null) {
+            held = new ByteArrayOutputStream();
+        }
+    }
+
+    void attach(QueryRunner runner) {
+        this.runner = runner;
+        response.drainHandler(v -> resumeIfWritable());
+    }
+
+    @Override
+    public void onNext(String chunk) {
+        if (pendingChunks.incrementAndGet() >= MAX_PENDING_CHUNKS) {
+            runner.pause();
+        }
+        context.runOnContext(v -> write(chunk));
+    }
+
+    @Override
+    public void onError(Throwable e) {
+        context.runOnContext(v -> {
+            if (encoder != null) {
+                encoder.close();
+            }
+            if (isGone()) {
+                return;
+            }
+            if (response.headWritten()) {
+                // too late for an error status: abort the stream so the client doesn't take a truncated body as complete
+                LOGGER.warn("query failed after the response was committed: " + e.getMessage());
+                response.reset();
+            } else if (Status.fromThrowable(e).getCode() == Status.Code.DEADLINE_EXCEEDED) {
+                response.setStatusCode(504).setStatusMessage(ErrorMessage.toJson("query timed out")).end();
+            } else if (Status.fromThrowable(e).getCode() == Status.Code.UNAVAILABLE) {
+                response.setStatusCode(503).setStatusMessage(ErrorMessage.toJson(e.getMessage())).end();
+            } else {
+                response.setStatusCode(400).setStatusMessage(ErrorMessage.toJson(e.getMessage())).end();
+            }
+        });
+    }
+
+    @Override
+    public void onCompleted() {
+        context.runOnContext(v -> {
+            if (isGone()) {
+                if (encoder != null) {
+                    encoder.close();
+                }
+                return;
+            }
+            if (!response.headWritten()) {
+                response.setStatusCode(200);
+            }
+            if (encoder == null) {
+                response.end();
+            } else if (held != null) {
+                // too short to be worth compressing
+                encoder.close();
+                response.end(Buffer.buffer(held.toByteArray()));
+            } else {
+                response.end(encoder.finish());
+            }
+        });
+    }
+
+    private void write(String chunk) {
+        pendingChunks.decrementAndGet();
+        if (isGone()) {
+            return;
+        }
+        if (!response.headWritten()) {
+            response.setStatusCode(200).setChunked(true);
+        }
+        if (encoder == null) {
+            response.write(chunk);
+        } else {
+            writeCompressed(chunk.getBytes(StandardCharsets.UTF_8));
+        }
+        if (response.writeQueueFull()) {
+            runner.pause();
+        } else {
+            resumeIfWritable();
+        }
+    }
+
+    private void writeCompressed(byte[] bytes) {
+        if (held != null) {
+            held.writeBytes(bytes);
+            if (held.size() < minCompressedBytes) {
+                return;
+            }
+            bytes = held.toByteArray();
+            held = null;
+            response.putHeader("Content-Encoding", encoder.encoding().token());
+        }
+        response.write(encoder.encode(bytes));
+    }
+
+    private void resumeIfWritable() {
+        if (!response.writeQueueFull() && pendingChunks.get() < MAX_PENDING_CHUNKS) {
+            runner.resume();
+        }
+    }
+
+    private boolean isGone() {
+        return response.ended() || response.closed();
+    }
+}
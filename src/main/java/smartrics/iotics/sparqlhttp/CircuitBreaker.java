@@ -0,0 +1,269 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops sending queries to a host that is failing or too slow, so that requests fail at once instead of piling up
+ * behind it. Closed, it keeps the outcomes of the last calls; once enough of them failed, or were slow to produce
+ * their first chunk, it opens and refuses calls. After a while it lets a few probe calls through, half open: it
+ * closes if they all succeed and opens again as soon as one doesn't. Cancelled calls and calls the host refused for
+ * the request's own sake, such as bad queries or credentials, don't count.
+ */
+public class CircuitBreaker implements MeterBinder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {CLOSED, HALF_OPEN, OPEN}
+
+    enum Outcome {SUCCESS, SLOW, FAILURE, IGNORED}
+
+    private final Settings settings;
+    private final LongSupplier nanoClock;
+    private final Outcome[] window;
+    private final AtomicLong rejected = new AtomicLong();
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int next;
+    private int recorded;
+    private int failures;
+    private int slow;
+    private int probes;
+    private int probesSucceeded;
+
+    public CircuitBreaker(Settings settings) {
+        this(settings, System::nanoTime);
+    }
+
+    CircuitBreaker(Settings settings, LongSupplier nanoClock) {
+        this.settings = settings;
+        this.nanoClock = nanoClock;
+        this.window = new Outcome[settings.window()];
+    }
+
+    /**
+     * @param failureRatePercent opens once this share of the calls in the window failed
+     * @param slowRatePercent    opens once this share of the calls in the window were slow
+     * @param slowDuration       a call is slow if its first chunk takes longer than this
+     * @param window             how many of the last calls are considered
+     * @param minCalls           the fewest calls the rates are worked out from
+     * @param openDuration       how long calls are refused before probing
+     * @param probes             how many probe calls must succeed to close again
+     */
+    public record Settings(int failureRatePercent, int slowRatePercent, Duration slowDuration, int window, int minCalls,
+                           Duration openDuration, int probes) {
+        public Settings {
+            if (window < 1 || minCalls < 1 || minCalls > window || probes < 1) {
+                throw new IllegalArgumentException("circuit breaker needs 1 <= minCalls <= window and at least one probe");
+            }
+        }
+    }
+
+    /**
+     * @return a call to make and report on, or null if the breaker refuses it
+     */
+    public synchronized Call tryCall() {
+        if (state == State.OPEN) {
+            if (nanoClock.getAsLong() - openedAt < settings.openDuration().toNanos()) {
+                rejected.incrementAndGet();
+                return null;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probes + probesSucceeded >= settings.probes()) {
+                rejected.incrementAndGet();
+                return null;
+            }
+            probes++;
+            return new Call(true);
+        }
+        return new Call(false);
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(state, recorded, failures, slow, rejected.get());
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("sparql.breaker.state", this, b -> b.state().ordinal())
+                .description("Upstream circuit breaker state: 0 closed, 1 half open, 2 open").register(registry);
+        FunctionCounter.builder("sparql.breaker.rejected", rejected, AtomicLong::get)
+                .description("Queries refused while the circuit breaker was open").register(registry);
+    }
+
+    public record Stats(State state, int calls, int failures, int slow, long rejected) {
+    }
+
+    private synchronized void record(Call call, Outcome outcome) {
+        if (call.probe) {
+            probes--;
+            if (state != State.HALF_OPEN) {
+                return;
+            }
+            switch (outcome) {
+                case FAILURE, SLOW -> transition(State.OPEN);
+                case SUCCESS -> {
+                    if (++probesSucceeded >= settings.probes()) {
+                        transition(State.CLOSED);
+                    }
+                }
+                case IGNORED -> {
+                }
+            }
+            return;
+        }
+        if (state != State.CLOSED || outcome == Outcome.IGNORED) {
+            return;
+        }
+        Outcome evicted = window[next];
+        window[next] = outcome;
+        next = (next + 1) % window.length;
+        if (evicted == null) {
+            recorded++;
+        } else {
+            count(evicted, -1);
+        }
+        count(outcome, 1);
+        if (recorded >= settings.minCalls()
+                && (failures * 100 >= settings.failureRatePercent() * recorded || slow * 100 >= settings.slowRatePercent() * recorded)) {
+            transition(State.OPEN);
+        }
+    }
+
+    private void count(Outcome outcome, int delta) {
+        if (outcome == Outcome.FAILURE) {
+            failures += delta;
+        } else if (outcome == Outcome.SLOW) {
+            slow += delta;
+        }
+    }
+
+    private void transition(State to) {
+        LOGGER.warn("upstream circuit breaker " + state + " -> " + to + " [calls=" + recorded + "][failures=" + failures + "][slow=" + slow + "]");
+        state = to;
+        probesSucceeded = 0;
+        if (to == State.OPEN) {
+            openedAt = nanoClock.getAsLong();
+        } else if (to == State.CLOSED) {
+            Arrays.fill(window, null);
+            next = recorded = failures = slow = 0;
+        }
+    }
+
+    Outcome classify(Throwable throwable, long elapsedNanos) {
+        return classify(throwable, elapsedNanos, settings.slowDuration().toNanos());
+    }
+
+    /**
+     * @param slowNanos how long a call may take before it counts as slow
+     * @return whether a failed call says anything about the health of the host it was sent to: only transport and
+     * availability failures count against it, not errors the query or its caller brought about
+     */
+    static Outcome classify(Throwable throwable, long elapsedNanos, long slowNanos) {
+        if (throwable instanceof QueryExecutionException) {
+            // an error status in the results, or results out of order: the host answered
+            return Outcome.IGNORED;
+        }
+        return switch (Status.fromThrowable(throwable).getCode()) {
+            // the request's own deadline may have been short
+            case DEADLINE_EXCEEDED -> elapsedNanos > slowNanos ? Outcome.SLOW : Outcome.IGNORED;
+            case UNAVAILABLE, INTERNAL, RESOURCE_EXHAUSTED, DATA_LOSS -> Outcome.FAILURE;
+            // cancelled, bad queries or credentials, and anything without a gRPC status of its own
+            default -> Outcome.IGNORED;
+        };
+    }
+
+    /**
+     * One upstream call let through. Its outcome is taken from the first of: its first chunk, its end, its failure.
+     */
+    public final class Call {
+        private final boolean probe;
+        private final long startNanos = nanoClock.getAsLong();
+        private final AtomicBoolean reported = new AtomicBoolean();
+
+        private Call(boolean probe) {
+            this.probe = probe;
+        }
+
+        void report(Outcome outcome) {
+            if (reported.compareAndSet(false, true)) {
+                record(this, outcome);
+            }
+        }
+
+        private Outcome timed() {
+            return nanoClock.getAsLong() - startNanos > settings.slowDuration().toNanos() ? Outcome.SLOW : Outcome.SUCCESS;
+        }
+
+        /**
+         * @return the runner of the call, which reports a call cancelled before any outcome as not counting: a probe
+         * that never starts must not hold its place
+         */
+        public QueryRunner guarding(QueryRunner runner) {
+            return new QueryRunner() {
+                @Override
+                public void run(String query) {
+                    runner.run(query);
+                }
+
+                @Override
+                public void pause() {
+                    runner.pause();
+                }
+
+                @Override
+                public void resume() {
+                    runner.resume();
+                }
+
+                @Override
+                public void cancel() {
+                    report(Outcome.IGNORED);
+                    runner.cancel();
+                }
+            };
+        }
+
+        /**
+         * @return an observer of the call's results that reports its outcome, passing everything on to the delegate
+         */
+        public StreamObserver<String> observing(StreamObserver<String> delegate) {
+            return new StreamObserver<>() {
+                @Override
+                public void onNext(String chunk) {
+                    report(timed());
+                    delegate.onNext(chunk);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    report(classify(throwable, nanoClock.getAsLong() - startNanos));
+                    delegate.onError(throwable);
+                }
+
+                @Override
+                public void onCompleted() {
+                    report(timed());
+                    delegate.onCompleted();
+                }
+            };
+        }
+    }
+}
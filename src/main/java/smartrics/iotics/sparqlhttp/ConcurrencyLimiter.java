@@ -0,0 +1,340 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Admission control for upstream queries: caps how many run at once, overall and per user, with limits that adapt to
+ * the latency the queries see (see {@link AimdLimit}). A query over either limit waits in a short FIFO queue for a
+ * permit; if the queue is full it's rejected at once, and if no permit frees up in time it's rejected then. Rejecting
+ * early keeps the host from being flooded and bounds the latency of the queries let through.
+ */
+public class ConcurrencyLimiter implements MeterBinder {
+    static final String ANONYMOUS = "";
+    private static final long USER_LIMIT_IDLE_EXPIRY_MINUTES = 10;
+    private static final long MAX_USERS = 10_000;
+
+    private final Limits userLimits;
+    private final AimdLimit limit;
+    private final Cache<String, UserState> idleUsers;
+    private final Map<String, UserState> busyUsers = new HashMap<>();
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private final int queueSize;
+    private final Duration queueTimeout;
+    private final AtomicLong rejected = new AtomicLong();
+    private final LongSupplier nanoClock;
+    private int inFlight;
+
+    /**
+     * @param limits       the limits on all queries together
+     * @param userLimits   the limits on the queries of each user
+     * @param queueSize    how many queries may wait for a permit
+     * @param queueTimeout how long a query may wait for a permit
+     */
+    public ConcurrencyLimiter(Limits limits, Limits userLimits, int queueSize, Duration queueTimeout) {
+        this(limits, userLimits, queueSize, queueTimeout, System::nanoTime);
+    }
+
+    ConcurrencyLimiter(Limits limits, Limits userLimits, int queueSize, Duration queueTimeout, LongSupplier nanoClock) {
+        this.limit = limits.newLimit();
+        this.userLimits = userLimits;
+        this.queueSize = queueSize;
+        this.queueTimeout = queueTimeout;
+        this.nanoClock = nanoClock;
+        // a user's limit is forgotten once idle for a while; a user with queries in flight or waiting is kept aside,
+        // out of reach of the expiry and the size bound, so that its count stays right
+        this.idleUsers = CacheBuilder.newBuilder()
+                .maximumSize(MAX_USERS)
+                .expireAfterAccess(USER_LIMIT_IDLE_EXPIRY_MINUTES, TimeUnit.MINUTES)
+                .build();
+    }
+
+    /**
+     * @param user the user's DID, or null for anonymous queries, which share one limit
+     * @return a future completed with a permit, or exceptionally with a {@link RejectedExecutionException} if the
+     * queue is full or a {@link TimeoutException} if no permit was available in time. Cancelling the future gives
+     * up waiting.
+     */
+    public CompletableFuture<Permit> acquire(String user) {
+        String id = user != null ? user : ANONYMOUS;
+        synchronized (this) {
+            UserState state = userState(id);
+            // waiters are let in as soon as they fit: any left while there's room overall are over their own limit
+            if (admits(state)) {
+                return CompletableFuture.completedFuture(admit(state));
+            }
+            if (queue.size() >= queueSize) {
+                rejected.incrementAndGet();
+                return CompletableFuture.failedFuture(new RejectedExecutionException("too many concurrent queries"));
+            }
+            Waiter waiter = new Waiter(state);
+            queue.add(waiter);
+            count(state, 0, 1);
+            waiter.future.orTimeout(queueTimeout.toMillis(), TimeUnit.MILLISECONDS).whenComplete((permit, e) -> {
+                if (e != null && dequeue(waiter) && e instanceof TimeoutException) {
+                    rejected.incrementAndGet();
+                }
+            });
+            return waiter.future;
+        }
+    }
+
+    /**
+     * @return a hint for rejected clients: about how long, in seconds, until a permit frees up
+     */
+    public synchronized long retryAfterSeconds() {
+        return Math.max(1, (long) Math.ceil(limit.baselineNanos() / 1e9));
+    }
+
+    public synchronized Stats stats() {
+        Map<String, UserStats> busy = new TreeMap<>();
+        busyUsers.forEach((user, state) -> {
+            if (state.inFlight > 0) {
+                busy.put(user, new UserStats(state.limit.limit(), state.inFlight));
+            }
+        });
+        return new Stats(limit.limit(), inFlight, queue.size(), rejected.get(), busy);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("sparql.concurrency.limit", this, ConcurrencyLimiter::limit)
+                .description("Queries allowed upstream at once").register(registry);
+        Gauge.builder("sparql.concurrency.inflight", this, ConcurrencyLimiter::inFlight)
+                .description("Queries upstream").register(registry);
+        Gauge.builder("sparql.concurrency.queued", this, ConcurrencyLimiter::queued)
+                .description("Queries waiting for a permit").register(registry);
+        FunctionCounter.builder("sparql.concurrency.rejected", rejected, AtomicLong::get)
+                .description("Queries rejected for being over the concurrency limits").register(registry);
+    }
+
+    private synchronized int limit() {
+        return limit.limit();
+    }
+
+    private synchronized int inFlight() {
+        return inFlight;
+    }
+
+    private synchronized int queued() {
+        return queue.size();
+    }
+
+    private UserState userState(String user) {
+        UserState state = busyUsers.get(user);
+        if (state == null) {
+            state = idleUsers.getIfPresent(user);
+        }
+        if (state == null) {
+            state = new UserState(user, userLimits.newLimit());
+            idleUsers.put(user, state);
+        }
+        return state;
+    }
+
+    /**
+     * Counts a user's queries, moving its state between the idle and busy users as it stops or starts having any.
+     */
+    private void count(UserState state, int inFlightDelta, int waitingDelta) {
+        boolean wasBusy = state.busy();
+        state.inFlight += inFlightDelta;
+        state.waiting += waitingDelta;
+        if (!wasBusy && state.busy()) {
+            idleUsers.invalidate(state.user);
+            busyUsers.put(state.user, state);
+        } else if (wasBusy && !state.busy()) {
+            busyUsers.remove(state.user);
+            idleUsers.put(state.user, state);
+        }
+    }
+
+    private boolean admits(UserState state) {
+        return inFlight < limit.limit() && state.inFlight < state.limit.limit();
+    }
+
+    private Permit admit(UserState state) {
+        inFlight++;
+        count(state, 1, 0);
+        return new Permit(state, inFlight, state.inFlight);
+    }
+
+    private synchronized boolean dequeue(Waiter waiter) {
+        if (queue.remove(waiter)) {
+            count(waiter.state, 0, -1);
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void release(Permit permit, long latencyNanos, boolean sample, boolean overloaded) {
+        inFlight--;
+        count(permit.state, -1, 0);
+        if (sample) {
+            limit.onSample(latencyNanos, overloaded, permit.inFlight);
+            permit.state.limit.onSample(latencyNanos, overloaded, permit.userInFlight);
+        }
+        // the first waiters that fit, in order: a user at its own limit doesn't hold up the others
+        Iterator<Waiter> waiters = queue.iterator();
+        while (waiters.hasNext() && inFlight < limit.limit()) {
+            Waiter waiter = waiters.next();
+            if (waiter.state.inFlight < waiter.state.limit.limit()) {
+                waiters.remove();
+                count(waiter.state, 0, -1);
+                Permit admitted = admit(waiter.state);
+                if (!waiter.future.complete(admitted)) {
+                    // timed out or cancelled meanwhile
+                    inFlight--;
+                    count(waiter.state, -1, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * The concurrency limit starts at {@code initial} and adapts between {@code min} and {@code max}.
+     */
+    public record Limits(int initial, int min, int max) {
+        public Limits {
+            if (min < 1 || initial < min || max < initial) {
+                throw new IllegalArgumentException("concurrency limits must satisfy 1 <= min <= initial <= max");
+            }
+        }
+
+        AimdLimit newLimit() {
+            return new AimdLimit(initial, min, max);
+        }
+    }
+
+    public record UserStats(int limit, int inFlight) {
+    }
+
+    /**
+     * @param users the limits of the users with queries in flight
+     */
+    public record Stats(int limit, int inFlight, int queued, long rejected, Map<String, UserStats> users) {
+    }
+
+    /**
+     * The right to run one query upstream, to be released once it's over.
+     */
+    public final class Permit {
+        private final UserState state;
+        private final int inFlight;
+        private final int userInFlight;
+        private final long startNanos = nanoClock.getAsLong();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final AtomicBoolean sampled = new AtomicBoolean();
+        private volatile long sampleNanos;
+        private volatile boolean sampleOverloaded;
+
+        private Permit(UserState state, int inFlight, int userInFlight) {
+            this.state = state;
+            this.inFlight = inFlight;
+            this.userInFlight = userInFlight;
+        }
+
+        /**
+         * Releases the permit, adapting the limits to how the query went. Only the first release counts.
+         *
+         * @param sample     whether the query ran upstream; if not, as when answered from the cache, its latency
+         *                   says nothing about the host
+         * @param overloaded whether it failed in a way that signals overload
+         */
+        public void release(boolean sample, boolean overloaded) {
+            if (released.compareAndSet(false, true)) {
+                ConcurrencyLimiter.this.release(this, nanoClock.getAsLong() - startNanos, sample, overloaded);
+            }
+        }
+
+        /**
+         * Releases the permit, adapting the limits to the latency taken by {@link #observing}, if the query ran
+         * upstream. Only the first release counts.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                boolean sample = sampled.get();
+                ConcurrencyLimiter.this.release(this, sampleNanos, sample, sample && sampleOverloaded);
+            }
+        }
+
+        private void sample(boolean overloaded) {
+            if (sampled.compareAndSet(false, true)) {
+                sampleOverloaded = overloaded;
+                sampleNanos = nanoClock.getAsLong() - startNanos;
+            }
+        }
+
+        /**
+         * @return an observer of the query's upstream results that takes the latency of the permit at the first
+         * chunk, or at the end or failure if there's none: the time the client then takes to download the results
+         * says nothing about the host
+         */
+        public StreamObserver<String> observing(StreamObserver<String> delegate) {
+            return new StreamObserver<>() {
+                @Override
+                public void onNext(String chunk) {
+                    sample(false);
+                    delegate.onNext(chunk);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    Status.Code code = Status.fromThrowable(throwable).getCode();
+                    sample(code == Status.Code.DEADLINE_EXCEEDED || code == Status.Code.UNAVAILABLE);
+                    delegate.onError(throwable);
+                }
+
+                @Override
+                public void onCompleted() {
+                    sample(false);
+                    delegate.onCompleted();
+                }
+            };
+        }
+    }
+
+    private static final class UserState {
+        private final String user;
+        private final AimdLimit limit;
+        private int inFlight;
+        private int waiting;
+
+        private UserState(String user, AimdLimit limit) {
+            this.user = user;
+            this.limit = limit;
+        }
+
+        boolean busy() {
+            return inFlight > 0 || waiting > 0;
+        }
+    }
+
+    private static final class Waiter {
+        private final UserState state;
+        private final CompletableFuture<Permit> future = new CompletableFuture<>();
+
+        private Waiter(UserState state) {
+            this.state = state;
+        }
+    }
+}
@@ -1,4 +1,5 @@
 package smartrics.iotics.sparqlhttp;
+import java.nio.file.Path;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
@@ -10,8 +11,78 @@ public class ConfigManager {
 
     private static final String DEFAULT_PORT = "8080";
     private static final String DEFAULT_SECURE_PORT = "8443";
-    private static final String DEFAULT_TOKEN_DURATION = "3600";
+    private static final String DEFAULT_TOKEN_DURATION = "PT1H";
+    private static final String DEFAULT_TOKEN_REFRESH_FRACTION = "0.5";
     private static final String DEFAULT_ENABLE_ANON = "false";
+    private static final String DEFAULT_ENABLE_ADMIN = "false";
+    private static final String DEFAULT_CHANNEL_POOL_SIZE = "2";
+    private static final String DEFAULT_CHANNEL_IDLE_TIMEOUT = "PT10M";
+    private static final String DEFAULT_REORDER_WINDOW = "256";
+    private static final String DEFAULT_IDENTITY_WORKERS = "4";
+    private static final String DEFAULT_IDENTITY_QUEUE_DEPTH = "64";
+    private static final String DEFAULT_IDENTITY_TIMEOUT = "PT10S";
+    private static final String DEFAULT_TOKEN_CACHE_SIZE = "10000";
+    private static final String DEFAULT_IDENTITY_CACHE_SIZE = "1000";
+    private static final String DEFAULT_IDENTITY_CACHE_TTL = "PT1H";
+    private static final String DEFAULT_DELEGATION_REFRESH = "PT30M";
+    private static final String DEFAULT_RESULT_CACHE_ENABLED = "false";
+    private static final String DEFAULT_RESULT_CACHE_TTL = "PT10S";
+    private static final String DEFAULT_RESULT_CACHE_MAX_BYTES = "67108864";
+    private static final String DEFAULT_RESULT_CACHE_MAX_ENTRY_BYTES = "4194304";
+    private static final String DEFAULT_RESULT_CACHE_OFF_HEAP = "false";
+    private static final String DEFAULT_COALESCE_QUERIES = "true";
+    private static final String DEFAULT_ENABLE_METRICS = "true";
+    private static final String DEFAULT_ACCESS_LOG_SAMPLE_RATE = "1.0";
+    private static final String DEFAULT_MAX_QUERY_BYTES = "1048576";
+    private static final String DEFAULT_ENABLE_HTTP2 = "true";
+    private static final String DEFAULT_ENABLE_H2C = "true";
+    private static final String DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS = "100";
+    private static final String DEFAULT_HTTP2_INITIAL_WINDOW_SIZE = "1048576";
+    private static final String DEFAULT_HTTP2_HEADER_TABLE_SIZE = "4096";
+    private static final String DEFAULT_ENABLE_COMPRESSION = "true";
+    private static final String DEFAULT_COMPRESSION_MIN_BYTES = "1024";
+    private static final String DEFAULT_COMPRESSION_LEVEL = "4";
+    private static final String DEFAULT_COMPRESSION_TEXT_LEVEL = "6";
+    private static final String DEFAULT_RESULT_CACHE_PRECOMPRESS = "false";
+    private static final String DEFAULT_QUERY_TIMEOUT = "PT5M";
+    private static final String DEFAULT_QUERY_TIMEOUT_MAX = "PT15M";
+    private static final String DEFAULT_ENABLE_CONCURRENCY_LIMIT = "true";
+    private static final String DEFAULT_CONCURRENCY_LIMIT_INITIAL = "32";
+    private static final String DEFAULT_CONCURRENCY_LIMIT_MIN = "4";
+    private static final String DEFAULT_CONCURRENCY_LIMIT_MAX = "256";
+    private static final String DEFAULT_CONCURRENCY_USER_LIMIT_INITIAL = "8";
+    private static final String DEFAULT_CONCURRENCY_USER_LIMIT_MAX = "32";
+    private static final String DEFAULT_CONCURRENCY_QUEUE_SIZE = "128";
+    private static final String DEFAULT_CONCURRENCY_QUEUE_TIMEOUT = "PT1S";
+    private static final String DEFAULT_ENABLE_RATE_LIMIT = "false";
+    private static final String DEFAULT_RATE_LIMIT_GLOBAL_RPS = "5";
+    private static final String DEFAULT_RATE_LIMIT_GLOBAL_BURST = "20";
+    private static final String DEFAULT_RATE_LIMIT_LOCAL_RPS = "20";
+    private static final String DEFAULT_RATE_LIMIT_LOCAL_BURST = "50";
+    private static final String DEFAULT_RATE_LIMIT_STORE = "shared";
+    private static final String DEFAULT_RATE_LIMIT_SWEEP_INTERVAL = "PT30S";
+    private static final String DEFAULT_ENABLE_CIRCUIT_BREAKER = "true";
+    private static final String DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE = "50";
+    private static final String DEFAULT_CIRCUIT_BREAKER_SLOW_RATE = "80";
+    private static final String DEFAULT_CIRCUIT_BREAKER_SLOW_DURATION = "PT10S";
+    private static final String DEFAULT_CIRCUIT_BREAKER_WINDOW = "50";
+    private static final String DEFAULT_CIRCUIT_BREAKER_MIN_CALLS = "20";
+    private static final String DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = "PT30S";
+    private static final String DEFAULT_CIRCUIT_BREAKER_PROBES = "3";
+    private static final String DEFAULT_ENABLE_HEDGING = "false";
+    private static final String DEFAULT_HEDGE_MIN_DELAY = "PT0.05S";
+    private static final String DEFAULT_HEDGE_MAX_RATIO = "0.1";
+    private static final String DEFAULT_UPSTREAM_BALANCING = "least-outstanding";
+    private static final String DEFAULT_UPSTREAM_EJECT_FAILURES = "5";
+    private static final String DEFAULT_UPSTREAM_SLOW_DURATION = "PT10S";
+    private static final String DEFAULT_UPSTREAM_EJECT_DURATION = "PT30S";
+    private static final String DEFAULT_BATCH_MAX_ITEMS = "500";
+    private static final String DEFAULT_BATCH_PARALLELISM = "8";
+    private static final String DEFAULT_BATCH_MAX_RESULT_SIZE = "4194304";
+    private static final String DEFAULT_RESOLVER_TIMEOUT = "PT5S";
+    private static final String DEFAULT_STARTUP_CACHE_FILE = Path.of(System.getProperty("user.home"), ".iotics-sparql-http", "startup.json").toString();
+    private static final String DEFAULT_STARTUP_RETRY_INTERVAL = "PT5S";
+    private static final String DEFAULT_VERTICLE_INSTANCES = String.valueOf(Runtime.getRuntime().availableProcessors());
 
     public enum ConfigKey {
         HOST_DNS("HOST_DNS"),
@@ -22,7 +93,77 @@ public class ConfigManager {
         ENABLE_ANON("ENABLE_ANON", DEFAULT_ENABLE_ANON),
         PORT("PORT", DEFAULT_PORT),
         SECURE_PORT("SECURE_PORT", DEFAULT_SECURE_PORT),
-        TOKEN_DURATION("TOKEN_DURATION", DEFAULT_TOKEN_DURATION);
+        TOKEN_DURATION("TOKEN_DURATION", DEFAULT_TOKEN_DURATION),
+        TOKEN_REFRESH_FRACTION("TOKEN_REFRESH_FRACTION", DEFAULT_TOKEN_REFRESH_FRACTION),
+        ENABLE_ADMIN("ENABLE_ADMIN", DEFAULT_ENABLE_ADMIN),
+        CHANNEL_POOL_SIZE("CHANNEL_POOL_SIZE", DEFAULT_CHANNEL_POOL_SIZE),
+        CHANNEL_IDLE_TIMEOUT("CHANNEL_IDLE_TIMEOUT", DEFAULT_CHANNEL_IDLE_TIMEOUT),
+        REORDER_WINDOW("REORDER_WINDOW", DEFAULT_REORDER_WINDOW),
+        IDENTITY_WORKERS("IDENTITY_WORKERS", DEFAULT_IDENTITY_WORKERS),
+        IDENTITY_QUEUE_DEPTH("IDENTITY_QUEUE_DEPTH", DEFAULT_IDENTITY_QUEUE_DEPTH),
+        IDENTITY_TIMEOUT("IDENTITY_TIMEOUT", DEFAULT_IDENTITY_TIMEOUT),
+        TOKEN_CACHE_SIZE("TOKEN_CACHE_SIZE", DEFAULT_TOKEN_CACHE_SIZE),
+        IDENTITY_CACHE_SIZE("IDENTITY_CACHE_SIZE", DEFAULT_IDENTITY_CACHE_SIZE),
+        IDENTITY_CACHE_TTL("IDENTITY_CACHE_TTL", DEFAULT_IDENTITY_CACHE_TTL),
+        DELEGATION_REFRESH("DELEGATION_REFRESH", DEFAULT_DELEGATION_REFRESH),
+        RESULT_CACHE_ENABLED("RESULT_CACHE_ENABLED", DEFAULT_RESULT_CACHE_ENABLED),
+        RESULT_CACHE_TTL("RESULT_CACHE_TTL", DEFAULT_RESULT_CACHE_TTL),
+        RESULT_CACHE_MAX_BYTES("RESULT_CACHE_MAX_BYTES", DEFAULT_RESULT_CACHE_MAX_BYTES),
+        RESULT_CACHE_MAX_ENTRY_BYTES("RESULT_CACHE_MAX_ENTRY_BYTES", DEFAULT_RESULT_CACHE_MAX_ENTRY_BYTES),
+        RESULT_CACHE_OFF_HEAP("RESULT_CACHE_OFF_HEAP", DEFAULT_RESULT_CACHE_OFF_HEAP),
+        COALESCE_QUERIES("COALESCE_QUERIES", DEFAULT_COALESCE_QUERIES),
+        VERTICLE_INSTANCES("VERTICLE_INSTANCES", DEFAULT_VERTICLE_INSTANCES),
+        ENABLE_METRICS("ENABLE_METRICS", DEFAULT_ENABLE_METRICS),
+        ACCESS_LOG_SAMPLE_RATE("ACCESS_LOG_SAMPLE_RATE", DEFAULT_ACCESS_LOG_SAMPLE_RATE),
+        MAX_QUERY_BYTES("MAX_QUERY_BYTES", DEFAULT_MAX_QUERY_BYTES),
+        ENABLE_HTTP2("ENABLE_HTTP2", DEFAULT_ENABLE_HTTP2),
+        ENABLE_H2C("ENABLE_H2C", DEFAULT_ENABLE_H2C),
+        HTTP2_MAX_CONCURRENT_STREAMS("HTTP2_MAX_CONCURRENT_STREAMS", DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS),
+        HTTP2_INITIAL_WINDOW_SIZE("HTTP2_INITIAL_WINDOW_SIZE", DEFAULT_HTTP2_INITIAL_WINDOW_SIZE),
+        HTTP2_HEADER_TABLE_SIZE("HTTP2_HEADER_TABLE_SIZE", DEFAULT_HTTP2_HEADER_TABLE_SIZE),
+        ENABLE_COMPRESSION("ENABLE_COMPRESSION", DEFAULT_ENABLE_COMPRESSION),
+        COMPRESSION_MIN_BYTES("COMPRESSION_MIN_BYTES", DEFAULT_COMPRESSION_MIN_BYTES),
+        COMPRESSION_LEVEL("COMPRESSION_LEVEL", DEFAULT_COMPRESSION_LEVEL),
+        COMPRESSION_TEXT_LEVEL("COMPRESSION_TEXT_LEVEL", DEFAULT_COMPRESSION_TEXT_LEVEL),
+        RESULT_CACHE_PRECOMPRESS("RESULT_CACHE_PRECOMPRESS", DEFAULT_RESULT_CACHE_PRECOMPRESS),
+        QUERY_TIMEOUT("QUERY_TIMEOUT", DEFAULT_QUERY_TIMEOUT),
+        QUERY_TIMEOUT_MAX("QUERY_TIMEOUT_MAX", DEFAULT_QUERY_TIMEOUT_MAX),
+        ENABLE_CONCURRENCY_LIMIT("ENABLE_CONCURRENCY_LIMIT", DEFAULT_ENABLE_CONCURRENCY_LIMIT),
+        CONCURRENCY_LIMIT_INITIAL("CONCURRENCY_LIMIT_INITIAL", DEFAULT_CONCURRENCY_LIMIT_INITIAL),
+        CONCURRENCY_LIMIT_MIN("CONCURRENCY_LIMIT_MIN", DEFAULT_CONCURRENCY_LIMIT_MIN),
+        CONCURRENCY_LIMIT_MAX("CONCURRENCY_LIMIT_MAX", DEFAULT_CONCURRENCY_LIMIT_MAX),
+        CONCURRENCY_USER_LIMIT_INITIAL("CONCURRENCY_USER_LIMIT_INITIAL", DEFAULT_CONCURRENCY_USER_LIMIT_INITIAL),
+        CONCURRENCY_USER_LIMIT_MAX("CONCURRENCY_USER_LIMIT_MAX", DEFAULT_CONCURRENCY_USER_LIMIT_MAX),
+        CONCURRENCY_QUEUE_SIZE("CONCURRENCY_QUEUE_SIZE", DEFAULT_CONCURRENCY_QUEUE_SIZE),
+        CONCURRENCY_QUEUE_TIMEOUT("CONCURRENCY_QUEUE_TIMEOUT", DEFAULT_CONCURRENCY_QUEUE_TIMEOUT),
+        ENABLE_RATE_LIMIT("ENABLE_RATE_LIMIT", DEFAULT_ENABLE_RATE_LIMIT),
+        RATE_LIMIT_GLOBAL_RPS("RATE_LIMIT_GLOBAL_RPS", DEFAULT_RATE_LIMIT_GLOBAL_RPS),
+        RATE_LIMIT_GLOBAL_BURST("RATE_LIMIT_GLOBAL_BURST", DEFAULT_RATE_LIMIT_GLOBAL_BURST),
+        RATE_LIMIT_LOCAL_RPS("RATE_LIMIT_LOCAL_RPS", DEFAULT_RATE_LIMIT_LOCAL_RPS),
+        RATE_LIMIT_LOCAL_BURST("RATE_LIMIT_LOCAL_BURST", DEFAULT_RATE_LIMIT_LOCAL_BURST),
+        RATE_LIMIT_STORE("RATE_LIMIT_STORE", DEFAULT_RATE_LIMIT_STORE),
+        RATE_LIMIT_SWEEP_INTERVAL("RATE_LIMIT_SWEEP_INTERVAL", DEFAULT_RATE_LIMIT_SWEEP_INTERVAL),
+        ENABLE_CIRCUIT_BREAKER("ENABLE_CIRCUIT_BREAKER", DEFAULT_ENABLE_CIRCUIT_BREAKER),
+        CIRCUIT_BREAKER_FAILURE_RATE("CIRCUIT_BREAKER_FAILURE_RATE", DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE),
+        CIRCUIT_BREAKER_SLOW_RATE("CIRCUIT_BREAKER_SLOW_RATE", DEFAULT_CIRCUIT_BREAKER_SLOW_RATE),
+        CIRCUIT_BREAKER_SLOW_DURATION("CIRCUIT_BREAKER_SLOW_DURATION", DEFAULT_CIRCUIT_BREAKER_SLOW_DURATION),
+        CIRCUIT_BREAKER_WINDOW("CIRCUIT_BREAKER_WINDOW", DEFAULT_CIRCUIT_BREAKER_WINDOW),
+        CIRCUIT_BREAKER_MIN_CALLS("CIRCUIT_BREAKER_MIN_CALLS", DEFAULT_CIRCUIT_BREAKER_MIN_CALLS),
+        CIRCUIT_BREAKER_OPEN_DURATION("CIRCUIT_BREAKER_OPEN_DURATION", DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION),
+        CIRCUIT_BREAKER_PROBES("CIRCUIT_BREAKER_PROBES", DEFAULT_CIRCUIT_BREAKER_PROBES),
+        ENABLE_HEDGING("ENABLE_HEDGING", DEFAULT_ENABLE_HEDGING),
+        HEDGE_MIN_DELAY("HEDGE_MIN_DELAY", DEFAULT_HEDGE_MIN_DELAY),
+        HEDGE_MAX_RATIO("HEDGE_MAX_RATIO", DEFAULT_HEDGE_MAX_RATIO),
+        UPSTREAM_BALANCING("UPSTREAM_BALANCING", DEFAULT_UPSTREAM_BALANCING),
+        UPSTREAM_EJECT_FAILURES("UPSTREAM_EJECT_FAILURES", DEFAULT_UPSTREAM_EJECT_FAILURES),
+        UPSTREAM_SLOW_DURATION("UPSTREAM_SLOW_DURATION", DEFAULT_UPSTREAM_SLOW_DURATION),
+        UPSTREAM_EJECT_DURATION("UPSTREAM_EJECT_DURATION", DEFAULT_UPSTREAM_EJECT_DURATION),
+        BATCH_MAX_ITEMS("BATCH_MAX_ITEMS", DEFAULT_BATCH_MAX_ITEMS),
+        BATCH_PARALLELISM("BATCH_PARALLELISM", DEFAULT_BATCH_PARALLELISM),
+        BATCH_MAX_RESULT_SIZE("BATCH_MAX_RESULT_SIZE", DEFAULT_BATCH_MAX_RESULT_SIZE),
+        RESOLVER_TIMEOUT("RESOLVER_TIMEOUT", DEFAULT_RESOLVER_TIMEOUT),
+        STARTUP_CACHE_FILE("STARTUP_CACHE_FILE", DEFAULT_STARTUP_CACHE_FILE),
+        STARTUP_RETRY_INTERVAL("STARTUP_RETRY_INTERVAL", DEFAULT_STARTUP_RETRY_INTERVAL);
 
         private final String key;
         private final String defaultValue;
@@ -0,0 +1,114 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.iotics.api.SparqlResultType;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Picks the result type for an Accept header. Clients send few distinct headers, so outcomes are remembered by raw
+ * header value: after the first request negotiation is a single lookup. A missing header and {@code *}{@code /*} get
+ * {@link SparqlResultType#SPARQL_JSON} without touching the cache. Formats IOTICS doesn't produce but that can be
+ * converted from one it does are negotiated with their {@link Transcoding}.
+ */
+public class ContentNegotiator {
+
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    /**
+     * @param type        the result type requested from the host
+     * @param mime        the media type of the response
+     * @param transcoding the conversion from {@code type} to {@code mime}, or null if the host produces it
+     */
+    public record Negotiated(SparqlResultType type, String mime, Transcoding transcoding) {
+
+        public Negotiated(SparqlResultType type, String mime) {
+            this(type, mime, null);
+        }
+    }
+
+    static final Negotiated DEFAULT = new Negotiated(SparqlResultType.SPARQL_JSON, ContentTypesMap.mimeFor(SparqlResultType.SPARQL_JSON));
+
+    private static final Optional<Negotiated> DEFAULT_RESULT = Optional.of(DEFAULT);
+
+    // candidates for a type/* range, most preferred first
+    private static final List<Negotiated> PREFERRED = List.of(
+            DEFAULT,
+            negotiated(SparqlResultType.SPARQL_XML),
+            negotiated(SparqlResultType.SPARQL_CSV),
+            negotiated(SparqlResultType.RDF_TURTLE),
+            negotiated(SparqlResultType.RDF_NTRIPLES),
+            negotiated(SparqlResultType.RDF_XML));
+
+    private final Cache<String, Optional<Negotiated>> cache;
+
+    public ContentNegotiator(long cacheSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    /**
+     * @return the negotiated result type, or empty if none of the acceptable media types is supported
+     */
+    public Optional<Negotiated> negotiate(String accept) {
+        if (accept == null || accept.isBlank() || "*/*".equals(accept)) {
+            return DEFAULT_RESULT;
+        }
+        Optional<Negotiated> known = cache.getIfPresent(accept);
+        if (known == null) {
+            known = parse(accept);
+            cache.put(accept, known);
+        }
+        return known;
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    static Optional<Negotiated> parse(String accept) {
+        List<MediaType> ranges = new ArrayList<>();
+        for (String range : accept.split(",")) {
+            if (!range.isBlank()) {
+                MediaType mediaType = new MediaType(range.trim());
+                if (mediaType.getQuality() > 0) {
+                    ranges.add(mediaType);
+                }
+            }
+        }
+        // stable: ranges of equal quality keep the client's order
+        ranges.sort(Comparator.comparingDouble(MediaType::getQuality).reversed());
+        for (MediaType range : ranges) {
+            String type = range.getType().toLowerCase(Locale.ROOT);
+            if (range.isWildcard()) {
+                return DEFAULT_RESULT;
+            }
+            if (type.endsWith("/*")) {
+                String prefix = type.substring(0, type.length() - 1);
+                for (Negotiated candidate : PREFERRED) {
+                    if (candidate.mime().startsWith(prefix)) {
+                        return Optional.of(candidate);
+                    }
+                }
+                continue;
+            }
+            SparqlResultType resultType = ContentTypesMap.get(type, SparqlResultType.UNRECOGNIZED);
+            if (resultType != SparqlResultType.UNRECOGNIZED) {
+                return Optional.of(negotiated(resultType));
+            }
+            Optional<Transcoding> transcoding = Transcoding.forMime(type);
+            if (transcoding.isPresent()) {
+                return transcoding.map(t -> new Negotiated(t.source(), t.mime(), t));
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static Negotiated negotiated(SparqlResultType type) {
+        return new Negotiated(type, ContentTypesMap.mimeFor(type));
+    }
+}
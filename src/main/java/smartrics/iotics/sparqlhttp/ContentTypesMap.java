@@ -2,46 +2,56 @@ package smartrics.iotics.sparqlhttp;
 
 import com.iotics.api.SparqlResultType;
 
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
 
 import static com.iotics.api.SparqlResultType.*;
 
 public class ContentTypesMap {
 
-    private static final Map<String, SparqlResultType> resultFormat = new ConcurrentHashMap<>(8);
+    private static final Map<String, SparqlResultType> resultFormat;
+    private static final Map<SparqlResultType, String> mimeByType = new EnumMap<>(SparqlResultType.class);
 
     private static final List<SparqlResultType> SPARQL_RESULT_TYPES = Arrays.asList(SPARQL_XML, SPARQL_JSON, SPARQL_CSV);
     private static final List<SparqlResultType> RDF_RESULT_TYPES = Arrays.asList(RDF_XML, RDF_TURTLE, RDF_NTRIPLES);
 
     static {
-        resultFormat.put("application/sparql-results+xml", SPARQL_XML);
-        resultFormat.put("application/xml", SPARQL_XML);
-        resultFormat.put("text/xml", SPARQL_XML);
-        resultFormat.put("application/sparql-results+json", SparqlResultType.SPARQL_JSON);
-        resultFormat.put("text/json", SparqlResultType.SPARQL_JSON);
-        resultFormat.put("application/json", SparqlResultType.SPARQL_JSON);
-        resultFormat.put("text/csv", SparqlResultType.SPARQL_CSV);
-        resultFormat.put("application/csv", SparqlResultType.SPARQL_CSV);
-        resultFormat.put("text/tab-separated-values", SparqlResultType.UNRECOGNIZED);
+        // the first mime type listed for a result type is the one used in responses
+        Map<String, SparqlResultType> formats = new LinkedHashMap<>();
+        formats.put("application/sparql-results+xml", SPARQL_XML);
+        formats.put("application/xml", SPARQL_XML);
+        formats.put("text/xml", SPARQL_XML);
+        formats.put("application/sparql-results+json", SparqlResultType.SPARQL_JSON);
+        formats.put("text/json", SparqlResultType.SPARQL_JSON);
+        formats.put("application/json", SparqlResultType.SPARQL_JSON);
+        formats.put("text/csv", SparqlResultType.SPARQL_CSV);
+        formats.put("application/csv", SparqlResultType.SPARQL_CSV);
+        formats.put("text/tab-separated-values", SparqlResultType.UNRECOGNIZED);
 
-        resultFormat.put("application/rdf+xml", SparqlResultType.RDF_XML);
-        resultFormat.put("text/turtle", SparqlResultType.RDF_TURTLE);
-        resultFormat.put("application/x-turtle", SparqlResultType.RDF_TURTLE); // Assuming the same enum value for Turtle
-        resultFormat.put("application/n-triples", SparqlResultType.RDF_NTRIPLES);
-        resultFormat.put("application/n-quads", SparqlResultType.UNRECOGNIZED);
-        resultFormat.put("application/ld+json", SparqlResultType.UNRECOGNIZED);
-        resultFormat.put("application/rdf+json", SparqlResultType.UNRECOGNIZED);
-        resultFormat.put("application/x-binary-rdf", SparqlResultType.UNRECOGNIZED);
+        formats.put("application/rdf+xml", SparqlResultType.RDF_XML);
+        formats.put("text/turtle", SparqlResultType.RDF_TURTLE);
+        formats.put("application/x-turtle", SparqlResultType.RDF_TURTLE); // Assuming the same enum value for Turtle
+        formats.put("application/n-triples", SparqlResultType.RDF_NTRIPLES);
+        formats.put("application/n-quads", SparqlResultType.UNRECOGNIZED);
+        formats.put("application/ld+json", SparqlResultType.UNRECOGNIZED);
+        formats.put("application/rdf+json", SparqlResultType.UNRECOGNIZED);
+        formats.put("application/x-binary-rdf", SparqlResultType.UNRECOGNIZED);
+        resultFormat = Collections.unmodifiableMap(formats);
+
+        formats.forEach((mime, type) -> {
+            if (type != SparqlResultType.UNRECOGNIZED) {
+                mimeByType.putIfAbsent(type, mime);
+            }
+        });
     }
 
+    /**
+     * @return the mime type sent in responses of the given type, or null if the type has none
+     */
     public static String mimeFor(SparqlResultType e) {
-        Optional<String> res = resultFormat.entrySet().stream()
-                .filter(entry -> entry.getValue().equals(e)).map(Map.Entry::getKey).findFirst();
-        return res.orElse(null);
+        if (e == null) {
+            return null;
+        }
+        return mimeByType.get(e);
     }
 
     public static boolean isSPARQLResultType(SparqlResultType in) {
@@ -0,0 +1,108 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Extracts the {@code query} field of an {@code application/x-www-form-urlencoded} body as it arrives, chunk by chunk.
+ * Only the bytes of that field are kept; the other fields are skipped. Percent escapes may be split across chunks.
+ * Not thread safe: chunks of one request are fed in order from its event loop.
+ */
+class FormQueryDecoder {
+    private static final byte[] QUERY = {'q', 'u', 'e', 'r', 'y'};
+
+    private final Charset charset;
+    private byte[] value;
+    private int length;
+    private boolean found;
+    private boolean inKey = true;
+    // while in a key: how many bytes of it matched "query" so far, or -1 once it can't be "query"
+    private int keyMatched;
+    private boolean capturing;
+    // pending percent escape: 0 none, 1 after '%', 2 after '%' and one hex digit
+    private int escape;
+    private int escaped;
+
+    FormQueryDecoder(Charset charset, int expectedSize) {
+        this.charset = charset;
+        this.value = new byte[Math.max(32, expectedSize)];
+    }
+
+    void feed(Buffer chunk) {
+        // reads the chunk's bytes in place
+        for (int i = 0, length = chunk.length(); i < length; i++) {
+            feed(chunk.getByte(i));
+        }
+    }
+
+    private void feed(byte b) {
+        if (escape > 0) {
+            int digit = Character.digit(b, 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("invalid percent escape in form body");
+            }
+            escaped = (escaped << 4) | digit;
+            if (++escape == 3) {
+                escape = 0;
+                decoded((byte) escaped);
+            }
+            return;
+        }
+        switch (b) {
+            case '&' -> {
+                endField();
+                inKey = true;
+                keyMatched = 0;
+            }
+            case '=' -> {
+                if (inKey) {
+                    inKey = false;
+                    capturing = keyMatched == QUERY.length && !found;
+                } else {
+                    decoded(b);
+                }
+            }
+            case '%' -> {
+                escape = 1;
+                escaped = 0;
+            }
+            case '+' -> decoded((byte) ' ');
+            default -> decoded(b);
+        }
+    }
+
+    private void decoded(byte b) {
+        if (inKey) {
+            if (keyMatched >= 0 && keyMatched < QUERY.length && QUERY[keyMatched] == b) {
+                keyMatched++;
+            } else {
+                keyMatched = -1;
+            }
+        } else if (capturing) {
+            if (length == value.length) {
+                value = Arrays.copyOf(value, length * 2);
+            }
+            value[length++] = b;
+        }
+    }
+
+    private void endField() {
+        if (capturing) {
+            found = true;
+            capturing = false;
+        }
+    }
+
+    /**
+     * @return the decoded query, or null if the body has no query field
+     */
+    String finish() {
+        if (escape > 0) {
+            throw new IllegalArgumentException("incomplete percent escape in form body");
+        }
+        endField();
+        return found ? new String(value, 0, length, charset) : null;
+    }
+}
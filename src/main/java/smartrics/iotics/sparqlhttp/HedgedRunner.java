@@ -0,0 +1,184 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.grpc.stub.StreamObserver;
+import io.vertx.core.Vertx;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Runs a query upstream and, if its first chunk hasn't arrived by the {@link Hedging} delay, runs it a second time.
+ * The copy that answers first, with a chunk or its end, is passed on to the output; the other is cancelled. A failure
+ * is passed on only once both copies failed, or if the first fails before any hedge is sent: hedges are for slow
+ * queries, failures aren't retried.
+ */
+class HedgedRunner implements QueryRunner {
+
+    private final Vertx vertx;
+    private final Hedging hedging;
+    private final Function<StreamObserver<String>, QueryRunner> upstream;
+    private final StreamObserver<String> output;
+    private Attempt primary;
+    private Attempt hedge;
+    private Attempt winner;
+    private String query;
+    private long timer = -1;
+    private boolean paused;
+    private boolean cancelled;
+
+    /**
+     * @param upstream creates a runner of one copy of the query, writing to the given output
+     */
+    HedgedRunner(Vertx vertx, Hedging hedging, Function<StreamObserver<String>, QueryRunner> upstream, StreamObserver<String> output) {
+        this.vertx = vertx;
+        this.hedging = hedging;
+        this.upstream = upstream;
+        this.output = output;
+    }
+
+    @Override
+    public void run(String query) {
+        Attempt attempt;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            this.query = query;
+            attempt = primary = new Attempt(false);
+            long delay = hedging.started();
+            if (delay > 0) {
+                timer = vertx.setTimer(Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay)), id -> hedge());
+            }
+        }
+        attempt.runner.run(query);
+    }
+
+    private void hedge() {
+        Attempt attempt;
+        synchronized (this) {
+            timer = -1;
+            if (winner != null || cancelled || primary.failed || !hedging.tryHedge()) {
+                return;
+            }
+            attempt = hedge = new Attempt(true);
+            if (paused) {
+                attempt.runner.pause();
+            }
+        }
+        attempt.runner.run(query);
+    }
+
+    @Override
+    public void pause() {
+        for (Attempt attempt : attempts(true)) {
+            attempt.runner.pause();
+        }
+    }
+
+    @Override
+    public void resume() {
+        for (Attempt attempt : attempts(false)) {
+            attempt.runner.resume();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        Attempt[] attempts;
+        synchronized (this) {
+            cancelled = true;
+            if (timer >= 0) {
+                vertx.cancelTimer(timer);
+            }
+            attempts = new Attempt[]{primary, hedge};
+        }
+        for (Attempt attempt : attempts) {
+            if (attempt != null) {
+                attempt.runner.cancel();
+            }
+        }
+    }
+
+    /**
+     * @return the attempts results may still come from, once marked paused or not
+     */
+    private synchronized Attempt[] attempts(boolean pause) {
+        paused = pause;
+        if (winner != null) {
+            return new Attempt[]{winner};
+        }
+        if (primary == null) {
+            return new Attempt[0];
+        }
+        return hedge != null ? new Attempt[]{primary, hedge} : new Attempt[]{primary};
+    }
+
+    private final class Attempt implements StreamObserver<String> {
+        private final boolean isHedge;
+        private final long startNanos = System.nanoTime();
+        private final QueryRunner runner;
+        private boolean failed;
+
+        private Attempt(boolean isHedge) {
+            this.isHedge = isHedge;
+            this.runner = upstream.apply(this);
+        }
+
+        /**
+         * @return whether this attempt's results are the ones passed on
+         */
+        private boolean wins() {
+            Attempt loser;
+            synchronized (HedgedRunner.this) {
+                if (winner != null) {
+                    return winner == this;
+                }
+                winner = this;
+                loser = isHedge ? primary : hedge;
+                if (timer >= 0) {
+                    vertx.cancelTimer(timer);
+                    timer = -1;
+                }
+            }
+            hedging.record(System.nanoTime() - primary.startNanos, isHedge);
+            if (loser != null) {
+                loser.runner.cancel();
+            }
+            return true;
+        }
+
+        @Override
+        public void onNext(String chunk) {
+            if (wins()) {
+                output.onNext(chunk);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            if (wins()) {
+                output.onCompleted();
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            synchronized (HedgedRunner.this) {
+                if (winner != null && winner != this) {
+                    return;
+                }
+                failed = true;
+                Attempt other = isHedge ? primary : hedge;
+                if (winner == null && other != null && !other.failed) {
+                    // the other copy may still answer
+                    return;
+                }
+                if (timer >= 0) {
+                    vertx.cancelTimer(timer);
+                    timer = -1;
+                }
+            }
+            output.onError(throwable);
+        }
+    }
+}
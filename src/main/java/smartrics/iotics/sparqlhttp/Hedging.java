@@ -0,0 +1,112 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When to send a second copy of a query whose first chunk is late, for {@link HedgedRunner}: once it's later than
+ * the 95th percentile of the recent first chunk latencies, but never sooner than a floor. Hedges are capped at a share
+ * of the queries run, so that a host slowing down as a whole isn't sent twice the load.
+ */
+public class Hedging implements MeterBinder {
+    static final int SAMPLES = 256;
+    static final int MIN_SAMPLES = 20;
+    private static final int RECOMPUTE_EVERY = 16;
+
+    private final long minDelayNanos;
+    private final double maxRatio;
+    private final long[] samples = new long[SAMPLES];
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private int next;
+    private int count;
+    private int sinceComputed;
+    private long p95Nanos = -1;
+
+    /**
+     * @param minDelay the shortest wait before hedging
+     * @param maxRatio the largest share of queries hedged, from 0 to 1
+     */
+    public Hedging(Duration minDelay, double maxRatio) {
+        if (maxRatio < 0 || maxRatio > 1) {
+            throw new IllegalArgumentException("hedged share of queries must be between 0 and 1");
+        }
+        this.minDelayNanos = minDelay.toNanos();
+        this.maxRatio = maxRatio;
+    }
+
+    /**
+     * Counts a query run, and returns how long to wait for its first chunk before hedging.
+     *
+     * @return the delay, or -1 if too few first chunks were seen to tell
+     */
+    synchronized long started() {
+        runs.incrementAndGet();
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+        if (p95Nanos < 0 || sinceComputed >= RECOMPUTE_EVERY) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            p95Nanos = sorted[(int) Math.ceil(0.95 * count) - 1];
+            sinceComputed = 0;
+        }
+        return Math.max(minDelayNanos, p95Nanos);
+    }
+
+    /**
+     * @return whether a hedge may be sent, counting it if so
+     */
+    boolean tryHedge() {
+        long sent = hedged.get();
+        while (sent + 1 <= maxRatio * runs.get()) {
+            if (hedged.compareAndSet(sent, sent + 1)) {
+                return true;
+            }
+            sent = hedged.get();
+        }
+        return false;
+    }
+
+    /**
+     * @param firstChunkNanos from sending the query to its first chunk, from whichever copy came first
+     * @param hedgeWon        whether the hedge came first
+     */
+    synchronized void record(long firstChunkNanos, boolean hedgeWon) {
+        samples[next] = firstChunkNanos;
+        next = (next + 1) % SAMPLES;
+        count = Math.min(count + 1, SAMPLES);
+        sinceComputed++;
+        if (hedgeWon) {
+            hedgesWon.incrementAndGet();
+        }
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(runs.get(), hedged.get(), hedgesWon.get(), p95Nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(Math.max(minDelayNanos, p95Nanos)));
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("sparql.hedge.sent", hedged, AtomicLong::get)
+                .description("Queries sent a second time for being slow to answer").register(registry);
+        FunctionCounter.builder("sparql.hedge.won", hedgesWon, AtomicLong::get)
+                .description("Hedged queries whose second copy answered first").register(registry);
+        Gauge.builder("sparql.hedge.delay", this, h -> h.stats().delayMillis() / 1000.0)
+                .description("Wait for a first chunk before hedging, in seconds").register(registry);
+    }
+
+    /**
+     * @param delayMillis the current wait before hedging, or -1 while there are too few samples
+     */
+    public record Stats(long runs, long hedged, long hedgesWon, long delayMillis) {
+    }
+}
@@ -1,51 +1,50 @@
 package smartrics.iotics.sparqlhttp;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import com.iotics.api.MetaAPIGrpc;
 import io.grpc.*;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
 
 public class IOTICSConnection {
 
+    private static final Metadata.Key<String> AUTHORIZATION_KEY = Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER);
+
     private final ManagedChannelBuilder<?> builder;
 
-    public IOTICSConnection(String hostDNS) {
+    /**
+     * @param interceptors applied to every call made on the channels, for example to collect metrics
+     */
+    public IOTICSConnection(String hostDNS, Executor executor, ClientInterceptor... interceptors) {
         ManagedChannelBuilder<?> builder = ManagedChannelBuilder.forTarget(hostDNS);
-        // TODO: see if this is enough or we need to externalise this config
-        builder.executor(Executors.newCachedThreadPool((new ThreadFactoryBuilder()).setNameFormat("iot-grpc-%d").build()));
+        builder.executor(executor);
+        builder.intercept(interceptors);
         builder.enableRetry();
         builder.keepAliveWithoutCalls(true);
         this.builder = builder;
     }
 
-    public ManagedChannel newChannel(String token) {
-        TokenInjector tokenInjector = new TokenInjector(token);
-        List<ClientInterceptor> interceptorList = new ArrayList<>();
-        interceptorList.add(tokenInjector);
-        builder.intercept(interceptorList);
+    /**
+     * Channels are not bound to any caller: the bearer token travels with each call via {@link #bearer(String)}.
+     */
+    public ManagedChannel newChannel() {
         return builder.build();
     }
 
-    public record TokenInjector(String token) implements ClientInterceptor {
-        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
-            return new TokenInjector.HeaderAttachingClientCall<>(next.newCall(method, callOptions));
+    public static CallCredentials bearer(String token) {
+        return new TokenCredentials(token);
+    }
+
+    static final class TokenCredentials extends CallCredentials {
+        private final String token;
+
+        TokenCredentials(String token) {
+            this.token = token;
         }
 
-        private final class HeaderAttachingClientCall<ReqT, RespT> extends ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT> {
-            HeaderAttachingClientCall(ClientCall<ReqT, RespT> call) {
-                super(call);
-            }
-
-            public void start(ClientCall.Listener<RespT> responseListener, Metadata headers) {
-                Metadata.Key<String> AUTHORIZATION_KEY = Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER);
-                Metadata metadata = new Metadata();
-                metadata.put(AUTHORIZATION_KEY, "bearer " + token);
-                headers.merge(metadata);
-                super.start(responseListener, headers);
-            }
+        @Override
+        public void applyRequestMetadata(RequestInfo requestInfo, Executor appExecutor, MetadataApplier applier) {
+            Metadata metadata = new Metadata();
+            metadata.put(AUTHORIZATION_KEY, "bearer " + token);
+            applier.apply(metadata);
         }
     }
 
@@ -1,90 +1,298 @@
 package smartrics.iotics.sparqlhttp;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import org.jetbrains.annotations.NotNull;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
 import smartrics.iotics.identity.Identity;
 import smartrics.iotics.identity.SimpleIdentityException;
 import smartrics.iotics.identity.SimpleIdentityImpl;
 import smartrics.iotics.identity.go.StringResult;
-import smartrics.iotics.identity.jna.JnaSdkApiInitialiser;
-import smartrics.iotics.identity.jna.OsLibraryPathResolver;
 import smartrics.iotics.identity.jna.SdkApi;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
 
 public class Identities {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Identities.class);
 
-    private final Identity agentIdentity;
-    private final Identity userIdentity;
-    private final SimpleIdentityImpl simpleIdentity;
-    private final LoadingCache<String, Identity> cache;
-    private final SdkApi api;
+    private final Cache<String, DelegatedUser> cache;
     private final String agentSeed;
+    private final CompletableFuture<Void> ready;
+    private volatile Setup setup;
+    private final TokenCache tokenCache;
+    private final BoundedWorkerPool workers;
+    private final long delegationRefreshNanos;
+    private final LongSupplier nanoClock;
+    private final LongAdder delegationRefreshes = new LongAdder();
+    private final Timer tokenMints;
+    private final Timer userCreations;
+    private final Timer delegations;
+    private final ExecutorService startup;
+    private final IdentityBootstrap bootstrap;
 
-    public Identities(String host, String userKey, String userSeed, String agentKey, String agentSeed) {
-        String resolver = ResolverFinder.findResolver(host);
-        api = new JnaSdkApiInitialiser(new OsLibraryPathResolver() {}).get();
-        simpleIdentity = new SimpleIdentityImpl(api, resolver, userSeed, agentSeed);
-        agentIdentity = simpleIdentity.CreateAgentIdentity(agentKey, "#app1");
-        userIdentity = simpleIdentity.CreateUserIdentity(userKey, "#app1");
-        simpleIdentity.UserDelegatesAuthenticationToAgent(agentIdentity, userIdentity, "#del1");
+    /**
+     * Returns at once: the identities are got ready in the background, see {@link #ready()}.
+     */
+    public Identities(String host, String userKey, String userSeed, String agentKey, String agentSeed,
+                      Duration tokenDuration, double tokenRefreshFraction, CacheSettings cacheSettings, StartupSettings startupSettings,
+                      BoundedWorkerPool workers, MeterRegistry meterRegistry) {
+        this(host, IdentityBootstrap.sdkSteps(startupSettings.resolverTimeout(), userKey, userSeed, agentKey, agentSeed),
+                userKey, userSeed, agentKey, agentSeed, tokenDuration, tokenRefreshFraction, cacheSettings, startupSettings,
+                workers, meterRegistry, System::nanoTime);
+    }
+
+    /**
+     * @param steps     how the agent and user identities are got ready
+     * @param nanoClock the clock delegations are timed with
+     */
+    Identities(String host, IdentityBootstrap.Steps steps, String userKey, String userSeed, String agentKey, String agentSeed,
+               Duration tokenDuration, double tokenRefreshFraction, CacheSettings cacheSettings, StartupSettings startupSettings,
+               BoundedWorkerPool workers, MeterRegistry meterRegistry, LongSupplier nanoClock) {
         this.agentSeed = agentSeed;
-        CacheLoader<String, Identity> loader = newCacheLoader();
-        cache = CacheBuilder.newBuilder().build(loader);
+        this.nanoClock = nanoClock;
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSettings.maximumSize())
+                .expireAfterAccess(cacheSettings.expireAfterAccess().toMillis(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        delegationRefreshNanos = cacheSettings.delegationRefresh().toNanos();
+        this.workers = workers;
+        tokenMints = Timer.builder("identity.token.mint").description("Minting an agent auth token for a user")
+                .publishPercentileHistogram().register(meterRegistry);
+        userCreations = Timer.builder("identity.user.create").description("Creating a user identity from a bearer")
+                .publishPercentileHistogram().register(meterRegistry);
+        delegations = Timer.builder("identity.delegation").description("Delegating a user's authentication to the agent")
+                .publishPercentileHistogram().register(meterRegistry);
+        tokenCache = new TokenCache(tokenDuration, tokenRefreshFraction,
+                userDID -> {
+                    Setup current = setup();
+                    return tokenMints.record(() -> current.simpleIdentity.CreateAgentAuthToken(current.agent, userDID, tokenDuration));
+                }, workers.executor());
+        GuavaCacheMetrics.monitor(meterRegistry, cache, "identity.users");
+        tokenCache.bindTo(meterRegistry);
+        FunctionCounter.builder("identity.delegation.refreshes", delegationRefreshes, LongAdder::sum)
+                .description("Delegations renewed in the background").register(meterRegistry);
+        startup = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("iot-startup-%d").setDaemon(true).build());
+        bootstrap = new IdentityBootstrap(host, steps, new StartupCache(startupSettings.cacheFile()), StartupCache.key(host, userKey, userSeed, agentKey, agentSeed), startup);
+        ready = bootstrap.start(startupSettings.retryInterval()).thenAccept(result -> setup = new Setup(result.api(),
+                new SimpleIdentityImpl(result.api(), result.resolver(), userSeed, agentSeed), result.agent(), result.user()));
+    }
+
+    /**
+     * Stops getting the identities ready, or refreshing them in the background, and releases the startup threads.
+     */
+    public void close() {
+        bootstrap.stop();
+        startup.shutdownNow();
+    }
+
+    /**
+     * @return whether the agent and user identities are ready: until then no token can be made
+     */
+    public boolean ready() {
+        return setup != null;
+    }
+
+    /**
+     * @return completed once the identities are ready
+     */
+    public CompletableFuture<Void> whenReady() {
+        return ready;
+    }
+
+    private Setup setup() {
+        Setup current = setup;
+        if (current == null) {
+            throw new IllegalStateException("identities not ready yet");
+        }
+        return current;
     }
 
     public Identity agentIdentity() {
-        return agentIdentity;
+        return setup().agent;
     }
 
     private Identity makeUserIdentity(String userKeyId, String userSeed) {
-        String resolverAddress = simpleIdentity.getResolverAddress().toExternalForm();
+        Setup setup = setup();
+        String resolverAddress = setup.simpleIdentity.getResolverAddress().toExternalForm();
         String keyName = "#user1";
-        StringResult res = api.CreateUserIdentity(resolverAddress, userKeyId, keyName, userSeed);
+        StringResult res = userCreations.record(() -> setup.api.CreateUserIdentity(resolverAddress, userKeyId, keyName, userSeed));
         if (res.err != null) {
             throw new SimpleIdentityException(res.err);
         }
         Identity ui = new Identity(userKeyId, keyName, res.value);
+        delegate(ui, userSeed);
+        return ui;
+    }
 
-        api.UserDelegatesAuthenticationToAgent(resolverAddress,
+    /**
+     * @throws SimpleIdentityException if the SDK reports the delegation failed
+     */
+    private void delegate(Identity ui, String userSeed) {
+        Setup setup = setup();
+        Identity agentIdentity = setup.agent;
+        String err = delegations.record(() -> setup.api.UserDelegatesAuthenticationToAgent(setup.simpleIdentity.getResolverAddress().toExternalForm(),
                 agentIdentity.did(), agentIdentity.keyName(), agentIdentity.name(), agentSeed,
-                ui.did(), ui.keyName(), ui.name(), userSeed, "#del1");
+                ui.did(), ui.keyName(), ui.name(), userSeed, "#del1"));
+        if (err != null) {
+            throw new SimpleIdentityException(err);
+        }
+    }
 
-        return ui;
+    /**
+     * @return a token for the configured user, reused until it is due for refresh
+     */
+    public String newToken() {
+        return tokenCache.get(setup().user.did());
     }
 
-    public String newToken(Duration duration) {
-        return simpleIdentity.CreateAgentAuthToken(agentIdentity, userIdentity.did(), duration);
+    /**
+     * @param bearer the user key and seed, as {@code key:seed}
+     * @return a token for the user identified by the bearer, reused until it is due for refresh
+     */
+    public String newToken(String bearer) {
+        return tokenCache.get(userIdentity(bearer).did());
+    }
+
+    /**
+     * Asynchronous variant of {@link #newToken()}: a token already minted is returned without leaving the caller's
+     * thread, otherwise it is minted on the identity worker pool.
+     * Callbacks run on the caller's Vert.x context, if any.
+     */
+    public Future<String> newTokenAsync() {
+        String token = tokenCache.getIfPresent(setup().user.did());
+        if (token != null) {
+            return Future.succeededFuture(token);
+        }
+        return toFuture(workers.submit(this::newToken));
+    }
+
+    /**
+     * Asynchronous variant of {@link #newToken(String)}: user identities not yet known, with the delegation to
+     * the agent they require, are created on the identity worker pool.
+     * Callbacks run on the caller's Vert.x context, if any.
+     */
+    public Future<String> newTokenAsync(String bearer) {
+        DelegatedUser known = cache.getIfPresent(cacheKey(bearer));
+        if (known != null) {
+            refreshDelegationIfDue(known, bearer);
+            String token = tokenCache.getIfPresent(known.identity.did());
+            if (token != null) {
+                return Future.succeededFuture(token);
+            }
+        }
+        return toFuture(workers.submit(() -> newToken(bearer)));
     }
 
-    public String newToken(String bearer, Duration duration) {
+    private Identity userIdentity(String bearer) {
+        String[] parts = bearer.split(":");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("invalid authString");
+        }
         try {
-            Identity userIdentity = cache.get(bearer);
-            return simpleIdentity.CreateAgentAuthToken(agentIdentity, userIdentity.did(), duration);
-        } catch (ExecutionException e) {
-            throw new IllegalArgumentException("invalid bearer or unable to get token", e);
+            // concurrent misses for the same bearer wait for a single load
+            DelegatedUser user = cache.get(cacheKey(bearer), () -> new DelegatedUser(makeUserIdentity(parts[0], parts[1]), nanoClock.getAsLong()));
+            refreshDelegationIfDue(user, bearer);
+            return user.identity;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalArgumentException("invalid bearer or unable to get token", e.getCause());
         }
     }
 
-    private @NotNull CacheLoader<String, Identity> newCacheLoader() {
-        CacheLoader<String, Identity> loader;
-        loader = new CacheLoader<>() {
-            @NotNull
-            @Override
-            public Identity load(@NotNull String authString) {
-                String[] parts = authString.split(":");
-                if(parts.length != 2) {
-                    throw new IllegalArgumentException("invalid authString");
-                }
-                String userKey = parts[0];
-                String seed = parts[1];
-                return makeUserIdentity(userKey, seed);
+    /**
+     * Renews the user's delegation to the agent on the worker pool once it is older than the refresh interval.
+     * The seed is taken from the request at hand so that it never needs to be kept in the cache.
+     */
+    private void refreshDelegationIfDue(DelegatedUser user, String bearer) {
+        if (nanoClock.getAsLong() - user.delegatedAtNanos < delegationRefreshNanos || !user.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        String userSeed = bearer.substring(bearer.indexOf(':') + 1);
+        workers.submit(() -> {
+            delegate(user.identity, userSeed);
+            return null;
+        }).whenComplete((v, e) -> {
+            if (e == null) {
+                user.delegatedAtNanos = nanoClock.getAsLong();
+                delegationRefreshes.increment();
+            } else {
+                LOGGER.warn("unable to refresh delegation for " + user.identity.did() + ": " + e.getMessage());
             }
-        };
-        return loader;
+            user.refreshing.set(false);
+        });
+    }
+
+    /**
+     * @return the key of the user of a bearer, which holds no trace of its seed
+     */
+    static String cacheKey(String bearer) {
+        return Hashing.sha256().hashString(bearer, StandardCharsets.UTF_8).toString();
+    }
+
+    private static <T> Future<T> toFuture(CompletableFuture<T> future) {
+        Context context = Vertx.currentContext();
+        return context != null ? Future.fromCompletionStage(future, context) : Future.fromCompletionStage(future);
+    }
+
+    public TokenCache tokenCache() {
+        return tokenCache;
+    }
+
+    public Stats stats() {
+        return new Stats(CacheSummary.of(cache.size(), cache.stats()), delegationRefreshes.sum(),
+                CacheSummary.of(tokenCache.size(), tokenCache.stats()));
     }
 
+    /**
+     * @param maximumSize       max number of user identities kept
+     * @param expireAfterAccess how long an identity is kept after it was last used
+     * @param delegationRefresh age after which a user's delegation to the agent is renewed in the background
+     */
+    public record CacheSettings(long maximumSize, Duration expireAfterAccess, Duration delegationRefresh) {
+    }
+
+    public record Stats(CacheSummary users, long delegationRefreshes, CacheSummary tokens) {
+    }
+
+    /**
+     * @param cacheFile       where what startup learned is kept for the next start, or null not to keep it
+     * @param resolverTimeout how long looking the resolver up may take
+     * @param retryInterval   the wait before retrying a failed startup, doubled each time up to a minute
+     */
+    public record StartupSettings(Path cacheFile, Duration resolverTimeout, Duration retryInterval) {
+    }
+
+    private record Setup(SdkApi api, SimpleIdentityImpl simpleIdentity, Identity agent, Identity user) {
+    }
+
+    private static final class DelegatedUser {
+        private final Identity identity;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private volatile long delegatedAtNanos;
+
+        DelegatedUser(Identity identity, long delegatedAtNanos) {
+            this.identity = identity;
+            this.delegatedAtNanos = delegatedAtNanos;
+        }
+    }
 }
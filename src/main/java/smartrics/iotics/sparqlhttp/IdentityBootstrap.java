@@ -0,0 +1,154 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+import smartrics.iotics.identity.Identity;
+import smartrics.iotics.identity.SimpleIdentityImpl;
+import smartrics.iotics.identity.jna.JnaSdkApiInitialiser;
+import smartrics.iotics.identity.jna.OsLibraryPathResolver;
+import smartrics.iotics.identity.jna.SdkApi;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Gets the agent and user identities ready, off the caller's thread. Cold, the resolver lookup and the loading of the
+ * identity SDK run side by side, then the agent and user identities are created side by side, then the user delegates
+ * to the agent. Warm, from a {@link StartupCache} entry, only the SDK is loaded before the identities are ready; the
+ * cold steps are then run again in the background, so that documents gone from the resolver are registered again.
+ * Failed attempts, and failed background refreshes, are retried, twice as late each time up to a minute.
+ */
+class IdentityBootstrap {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IdentityBootstrap.class);
+    private static final Duration MAX_RETRY_INTERVAL = Duration.ofMinutes(1);
+
+    /**
+     * The startup steps, each blocking but the resolver lookup.
+     */
+    interface Steps {
+        CompletableFuture<String> resolver(String host);
+
+        SdkApi sdk();
+
+        Identity agent(SdkApi api, String resolver);
+
+        Identity user(SdkApi api, String resolver);
+
+        void delegate(SdkApi api, String resolver, Identity agent, Identity user);
+    }
+
+    /**
+     * @param warm whether taken from the startup cache
+     */
+    record Result(SdkApi api, String resolver, Identity agent, Identity user, boolean warm) {
+    }
+
+    private final String host;
+    private final Steps steps;
+    private final StartupCache cache;
+    private final String cacheKey;
+    private final Executor executor;
+    private volatile boolean stopped;
+
+    IdentityBootstrap(String host, Steps steps, StartupCache cache, String cacheKey, Executor executor) {
+        this.host = host;
+        this.steps = steps;
+        this.cache = cache;
+        this.cacheKey = cacheKey;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the steps of the identity SDK, creating the identities with the given keys and seeds
+     */
+    static Steps sdkSteps(Duration resolverTimeout, String userKey, String userSeed, String agentKey, String agentSeed) {
+        return new Steps() {
+            @Override
+            public CompletableFuture<String> resolver(String host) {
+                return ResolverFinder.findResolverAsync(host, resolverTimeout);
+            }
+
+            @Override
+            public SdkApi sdk() {
+                return new JnaSdkApiInitialiser(new OsLibraryPathResolver() {}).get();
+            }
+
+            @Override
+            public Identity agent(SdkApi api, String resolver) {
+                return new SimpleIdentityImpl(api, resolver, userSeed, agentSeed).CreateAgentIdentity(agentKey, "#app1");
+            }
+
+            @Override
+            public Identity user(SdkApi api, String resolver) {
+                return new SimpleIdentityImpl(api, resolver, userSeed, agentSeed).CreateUserIdentity(userKey, "#app1");
+            }
+
+            @Override
+            public void delegate(SdkApi api, String resolver, Identity agent, Identity user) {
+                new SimpleIdentityImpl(api, resolver, userSeed, agentSeed).UserDelegatesAuthenticationToAgent(agent, user, "#del1");
+            }
+        };
+    }
+
+    /**
+     * @param retryInterval the wait before the first retry, of startup and of the background refresh of a warm start
+     * @return the identities, once an attempt succeeds
+     */
+    CompletableFuture<Result> start(Duration retryInterval) {
+        long startNanos = System.nanoTime();
+        return retrying(() -> attempt(retryInterval), retryInterval, "get identities ready").whenComplete((result, e) -> {
+            if (result != null) {
+                LOGGER.info("identities ready in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + "ms ("
+                        + (result.warm() ? "warm" : "cold") + " start)");
+            }
+        });
+    }
+
+    /**
+     * Stops retrying: attempts under way run to their end, but none is started any more.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    private <T> CompletableFuture<T> retrying(Supplier<CompletableFuture<T>> attempt, Duration retryInterval, String what) {
+        return attempt.get().exceptionallyCompose(e -> {
+            if (stopped) {
+                return CompletableFuture.failedFuture(e);
+            }
+            LOGGER.warn("unable to " + what + ", retrying in " + retryInterval + ": " + e.getMessage());
+            Duration next = retryInterval.multipliedBy(2).compareTo(MAX_RETRY_INTERVAL) > 0 ? MAX_RETRY_INTERVAL : retryInterval.multipliedBy(2);
+            return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(retryInterval.toMillis(), TimeUnit.MILLISECONDS, executor))
+                    .thenCompose(v -> retrying(attempt, next, what));
+        });
+    }
+
+    private CompletableFuture<Result> attempt(Duration retryInterval) {
+        CompletableFuture<SdkApi> sdk = CompletableFuture.supplyAsync(steps::sdk, executor);
+        Optional<StartupCache.Entry> cached = cache.load(cacheKey);
+        if (cached.isEmpty()) {
+            return cold(sdk);
+        }
+        StartupCache.Entry entry = cached.get();
+        return sdk.thenApply(api -> {
+            retrying(() -> cold(sdk), retryInterval, "refresh the cached identities");
+            return new Result(api, entry.resolver(), entry.agent(), entry.user(), true);
+        });
+    }
+
+    private CompletableFuture<Result> cold(CompletableFuture<SdkApi> sdk) {
+        CompletableFuture<String> resolver = steps.resolver(host);
+        CompletableFuture<Identity> agent = sdk.thenCombineAsync(resolver, steps::agent, executor);
+        CompletableFuture<Identity> user = sdk.thenCombineAsync(resolver, steps::user, executor);
+        return agent.thenCombine(user, (a, u) -> new Result(sdk.join(), resolver.join(), a, u, false))
+                .thenApplyAsync(result -> {
+                    steps.delegate(result.api(), result.resolver(), result.agent(), result.user());
+                    cache.store(new StartupCache.Entry(cacheKey, result.resolver(), result.agent(), result.user()));
+                    return result;
+                }, executor);
+    }
+}
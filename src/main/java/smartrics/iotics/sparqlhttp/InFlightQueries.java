@@ -0,0 +1,344 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Runs identical concurrent queries once. A request whose {@link QueryKey} matches a query that is in flight but
+ * hasn't produced its first chunk yet joins it instead of opening a new upstream call, and receives every chunk that
+ * query produces. Each subscriber gets its own {@link QueryRunner} and its own backpressure: the chunks a paused
+ * subscriber hasn't taken yet wait in a bounded queue of its own while the others carry on. The upstream call is
+ * paused only while every subscriber is paused, and cancelled once every subscriber has cancelled. A subscriber
+ * whose queue overflows has fallen too far behind the others: it is detached from the query and fails.
+ */
+public class InFlightQueries implements MeterBinder {
+    static final int DEFAULT_MAX_QUEUED_CHUNKS = 64;
+
+    private final ConcurrentHashMap<QueryKey, Flight> flights = new ConcurrentHashMap<>();
+    private final int maxQueuedChunks;
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+
+    public InFlightQueries() {
+        this(DEFAULT_MAX_QUEUED_CHUNKS);
+    }
+
+    /**
+     * @param maxQueuedChunks how many chunks a paused subscriber may fall behind a query it shares before it fails
+     */
+    InFlightQueries(int maxQueuedChunks) {
+        if (maxQueuedChunks < 1) {
+            throw new IllegalArgumentException("at least one chunk must be allowed to queue");
+        }
+        this.maxQueuedChunks = maxQueuedChunks;
+    }
+
+    /**
+     * @param upstream creates the runner for a new upstream call, writing to the given output
+     * @return the runner for this subscriber; running it starts the upstream call if no matching query was in flight
+     */
+    public QueryRunner join(QueryKey key, StreamObserver<String> subscriber, Function<StreamObserver<String>, QueryRunner> upstream) {
+        Subscription subscription = new Subscription(subscriber);
+        Flight flight = flights.compute(key, (k, existing) -> {
+            if (existing != null && existing.add(subscription)) {
+                joined.incrementAndGet();
+                return existing;
+            }
+            started.incrementAndGet();
+            Flight created = new Flight(k);
+            created.add(subscription);
+            created.runner = upstream.apply(created);
+            subscription.leader = true;
+            return created;
+        });
+        subscription.flight = flight;
+        return subscription;
+    }
+
+    public Stats stats() {
+        return new Stats(flights.size(), started.get(), joined.get(), overflowed.get());
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("sparql.inflight.started", started, AtomicLong::get)
+                .description("Queries that opened an upstream call").register(registry);
+        FunctionCounter.builder("sparql.inflight.joined", joined, AtomicLong::get)
+                .description("Queries that joined an identical query already in flight").register(registry);
+        FunctionCounter.builder("sparql.inflight.overflowed", overflowed, AtomicLong::get)
+                .description("Queries failed for falling too far behind the query they shared").register(registry);
+    }
+
+    /**
+     * @param overflowed subscribers failed for falling too far behind
+     */
+    public record Stats(int joinable, long started, long joined, long overflowed) {
+    }
+
+    /**
+     * The shared upstream call. Its lock guards the subscribers, the pause count and the upstream state; a
+     * subscription's own lock guards its queue. Neither is held while the other is taken.
+     */
+    private final class Flight implements StreamObserver<String> {
+        private final QueryKey key;
+        private final List<Subscription> subscribers = new CopyOnWriteArrayList<>();
+        private QueryRunner runner;
+        private boolean emitting;
+        private boolean cancelled;
+        private int paused;
+        private boolean upstreamPaused;
+
+        private Flight(QueryKey key) {
+            this.key = key;
+        }
+
+        private synchronized boolean add(Subscription subscription) {
+            if (emitting || cancelled) {
+                return false;
+            }
+            subscribers.add(subscription);
+            if (runner != null) {
+                steer();
+            }
+            return true;
+        }
+
+        /**
+         * Pauses the upstream call once every subscriber is paused, and resumes it once one isn't.
+         */
+        private void steer() {
+            boolean pause = !subscribers.isEmpty() && paused == subscribers.size();
+            if (pause != upstreamPaused) {
+                upstreamPaused = pause;
+                if (pause) {
+                    runner.pause();
+                } else {
+                    runner.resume();
+                }
+            }
+        }
+
+        private synchronized void pause(Subscription subscription) {
+            if (!subscription.counted && subscribers.contains(subscription)) {
+                subscription.counted = true;
+                paused++;
+                steer();
+            }
+        }
+
+        private synchronized void resume(Subscription subscription) {
+            if (subscription.counted) {
+                subscription.counted = false;
+                paused--;
+                steer();
+            }
+        }
+
+        /**
+         * @return whether the subscription was still subscribed
+         */
+        private boolean remove(Subscription subscription) {
+            boolean cancel;
+            synchronized (this) {
+                if (!subscribers.remove(subscription)) {
+                    return false;
+                }
+                if (subscription.counted) {
+                    subscription.counted = false;
+                    paused--;
+                }
+                cancel = subscribers.isEmpty() && !cancelled;
+                cancelled |= cancel;
+                if (!cancel) {
+                    steer();
+                }
+            }
+            if (cancel) {
+                flights.remove(key, this);
+                runner.cancel();
+            }
+            return true;
+        }
+
+        @Override
+        public void onNext(String chunk) {
+            if (!emitting) {
+                synchronized (this) {
+                    emitting = true;
+                }
+                // from here on late subscribers would miss chunks: they start their own call
+                flights.remove(key, this);
+            }
+            for (Subscription subscription : subscribers) {
+                if (!subscription.offer(chunk) && remove(subscription)) {
+                    overflowed.incrementAndGet();
+                    subscription.fail(Status.RESOURCE_EXHAUSTED
+                            .withDescription("too slow to keep up with a shared query").asRuntimeException());
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            flights.remove(key, this);
+            for (Subscription subscription : subscribers) {
+                subscription.end(() -> subscription.subscriber.onError(throwable));
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            flights.remove(key, this);
+            for (Subscription subscription : subscribers) {
+                subscription.end(subscription.subscriber::onCompleted);
+            }
+        }
+    }
+
+    /**
+     * One subscriber of a flight. Chunks are handed over through its queue by whichever thread finds nobody else
+     * doing it, so that they reach the subscriber in order, one at a time and without a lock held.
+     */
+    private final class Subscription implements QueryRunner {
+        private final StreamObserver<String> subscriber;
+        private Flight flight;
+        private boolean leader;
+        // guarded by the flight: whether the flight counts this subscriber as paused
+        private boolean counted;
+        // guarded by the subscription
+        private final Queue<String> queue = new ArrayDeque<>();
+        private boolean paused;
+        private boolean failed;
+        private boolean draining;
+        private boolean ended;
+        private Runnable end;
+
+        private Subscription(StreamObserver<String> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * @return false if the queue is full
+         */
+        private boolean offer(String chunk) {
+            synchronized (this) {
+                if (ended) {
+                    return true;
+                }
+                if (queue.size() >= maxQueuedChunks) {
+                    return false;
+                }
+                queue.add(chunk);
+            }
+            drain();
+            return true;
+        }
+
+        /**
+         * Ends the subscriber once it has taken the chunks queued before.
+         */
+        private void end(Runnable signal) {
+            synchronized (this) {
+                if (ended || end != null) {
+                    return;
+                }
+                end = signal;
+            }
+            drain();
+        }
+
+        /**
+         * Drops the queued chunks and fails the subscriber at once, paused or not.
+         */
+        private void fail(Throwable throwable) {
+            synchronized (this) {
+                if (ended) {
+                    return;
+                }
+                queue.clear();
+                failed = true;
+                end = () -> subscriber.onError(throwable);
+            }
+            drain();
+        }
+
+        private void drain() {
+            while (true) {
+                String chunk;
+                Runnable signal = null;
+                synchronized (this) {
+                    if (draining || ended || (paused && !failed)) {
+                        return;
+                    }
+                    chunk = queue.poll();
+                    if (chunk == null) {
+                        if (end == null) {
+                            return;
+                        }
+                        signal = end;
+                        end = null;
+                        ended = true;
+                    }
+                    draining = true;
+                }
+                try {
+                    if (chunk != null) {
+                        subscriber.onNext(chunk);
+                    } else {
+                        signal.run();
+                    }
+                } finally {
+                    synchronized (this) {
+                        draining = false;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run(String query) {
+            if (leader && !flight.cancelled) {
+                flight.runner.run(query);
+            }
+        }
+
+        @Override
+        public void pause() {
+            synchronized (this) {
+                paused = true;
+            }
+            flight.pause(this);
+        }
+
+        @Override
+        public void resume() {
+            synchronized (this) {
+                paused = false;
+            }
+            flight.resume(this);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            flight.remove(this);
+            synchronized (this) {
+                queue.clear();
+                end = null;
+                ended = true;
+            }
+        }
+    }
+}
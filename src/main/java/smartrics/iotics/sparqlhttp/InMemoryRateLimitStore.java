@@ -0,0 +1,64 @@
+package smartrics.iotics.sparqlhttp;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets in a concurrent map, one {@link AtomicLong} each, updated lock free. A bucket is kept as the time it
+ * will be full again, its theoretical arrival time (GCRA): taking a token pushes it one interval further, and a
+ * request is refused if that would put it more than a burst's worth of intervals ahead. Buckets found full when
+ * sweeping are removed, so memory follows the clients active within the last burst window, not all clients ever seen.
+ */
+public class InMemoryRateLimitStore implements RateLimitStore {
+
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final long sweepIntervalNanos;
+    private final AtomicLong lastSweep;
+
+    /**
+     * @param sweepInterval sweeps closer together than this are skipped, so that every instance sharing the store can
+     *                      ask for them
+     */
+    public InMemoryRateLimitStore(Duration sweepInterval) {
+        this.sweepIntervalNanos = sweepInterval.toNanos();
+        this.lastSweep = new AtomicLong(System.nanoTime());
+    }
+
+    @Override
+    public Decision tryConsume(String key, Rate rate, long nowNanos) {
+        long interval = rate.intervalNanos();
+        long capacity = interval * rate.burst();
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(nowNanos));
+        }
+        while (true) {
+            long full = bucket.get();
+            long next = Math.max(full, nowNanos) + interval;
+            long ahead = next - nowNanos;
+            if (ahead > capacity) {
+                long current = Math.max(full, nowNanos) - nowNanos;
+                return new Decision(false, rate.burst(), 0, current, ahead - capacity);
+            }
+            if (bucket.compareAndSet(full, next)) {
+                return new Decision(true, rate.burst(), (int) ((capacity - ahead) / interval), ahead, 0);
+            }
+        }
+    }
+
+    @Override
+    public void sweep(long nowNanos) {
+        long last = lastSweep.get();
+        if (nowNanos - last < sweepIntervalNanos || !lastSweep.compareAndSet(last, nowNanos)) {
+            return;
+        }
+        // a request racing the removal may take a token from the removed bucket: at worst it gets one more
+        buckets.values().removeIf(bucket -> bucket.get() - nowNanos <= 0);
+    }
+
+    @Override
+    public int size() {
+        return buckets.size();
+    }
+}
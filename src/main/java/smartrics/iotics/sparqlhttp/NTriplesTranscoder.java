@@ -0,0 +1,368 @@
+package smartrics.iotics.sparqlhttp;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * N-Triples to a JSON serialisation of the same graph, one line at a time. Only a line split by a chunk boundary is
+ * kept between chunks, but for RDF/JSON, which must see the whole graph first. Consecutive triples about the same subject are grouped, so results ordered by subject, as
+ * CONSTRUCT and DESCRIBE results usually are, come out as compact as if the whole graph had been read first.
+ */
+abstract class NTriplesTranscoder implements Transcoder {
+    static final String XSD_STRING = "http://www.w3.org/2001/XMLSchema#string";
+
+    enum Kind {IRI, BLANK, LITERAL}
+
+    /**
+     * @param value the IRI, the blank node label including its {@code _:} prefix, or the literal's lexical form
+     */
+    record Term(Kind kind, String value, String datatype, String language) {
+    }
+
+    private final StringBuilder pending = new StringBuilder();
+    private StringBuilder out = new StringBuilder();
+
+    @Override
+    public String next(String chunk) {
+        int start = 0;
+        int end;
+        while ((end = chunk.indexOf('\n', start)) >= 0) {
+            if (pending.isEmpty()) {
+                line(chunk, start, end);
+            } else {
+                pending.append(chunk, start, end);
+                line(pending, 0, pending.length());
+                pending.setLength(0);
+            }
+            start = end + 1;
+        }
+        pending.append(chunk, start, chunk.length());
+        return drain();
+    }
+
+    @Override
+    public String finish() {
+        if (!pending.isEmpty()) {
+            line(pending, 0, pending.length());
+            pending.setLength(0);
+        }
+        end(out);
+        return drain();
+    }
+
+    private String drain() {
+        String converted = out.toString();
+        out = new StringBuilder(Math.max(16, converted.length()));
+        return converted;
+    }
+
+    private void line(CharSequence text, int start, int end) {
+        Parser parser = new Parser(text, start, end);
+        parser.skipSpaces();
+        if (parser.atEnd() || parser.peek() == '#') {
+            return;
+        }
+        Term subject = parser.term();
+        Term predicate = parser.term();
+        Term object = parser.term();
+        parser.expect('.');
+        if (subject.kind() == Kind.LITERAL || predicate.kind() != Kind.IRI) {
+            throw new IllegalArgumentException("malformed N-Triples: invalid subject or predicate");
+        }
+        triple(subject, predicate.value(), object, out);
+    }
+
+    abstract void triple(Term subject, String predicate, Term object, StringBuilder out);
+
+    /**
+     * Writes what closes the output once every triple has been seen.
+     */
+    abstract void end(StringBuilder out);
+
+    static void appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Expanded JSON-LD: an array of node objects, one per run of triples about a subject. A predicate reappearing
+     * after others starts a new node object for the same subject, which JSON-LD processors merge.
+     */
+    static final class JsonLd extends NTriplesTranscoder {
+        private final Set<String> predicates = new HashSet<>();
+        private String subject;
+        private String predicate;
+
+        @Override
+        void triple(Term subject, String predicate, Term object, StringBuilder out) {
+            boolean sameSubject = subject.value().equals(this.subject);
+            if (sameSubject && predicate.equals(this.predicate)) {
+                out.append(',');
+            } else if (sameSubject && predicates.add(predicate)) {
+                out.append("],");
+                appendJsonString(out, predicate);
+                out.append(":[");
+            } else {
+                out.append(this.subject == null ? "[{\"@id\":" : "]},{\"@id\":");
+                appendJsonString(out, subject.value());
+                out.append(',');
+                appendJsonString(out, predicate);
+                out.append(":[");
+                this.subject = subject.value();
+                predicates.clear();
+                predicates.add(predicate);
+            }
+            this.predicate = predicate;
+            if (object.kind() == Kind.LITERAL) {
+                out.append("{\"@value\":");
+                appendJsonString(out, object.value());
+                if (object.language() != null) {
+                    out.append(",\"@language\":");
+                    appendJsonString(out, object.language());
+                } else if (object.datatype() != null && !XSD_STRING.equals(object.datatype())) {
+                    out.append(",\"@type\":");
+                    appendJsonString(out, object.datatype());
+                }
+            } else {
+                out.append("{\"@id\":");
+                appendJsonString(out, object.value());
+            }
+            out.append('}');
+        }
+
+        @Override
+        void end(StringBuilder out) {
+            out.append(subject == null ? "[]" : "]}]");
+        }
+    }
+
+    /**
+     * RDF/JSON: an object keyed by subject, then by predicate. Each key may appear only once, while the triples of a
+     * subject or predicate may come in any order: nothing is written until the whole graph has been read. Unlike the
+     * other formats, this one is not streamed, and the result is held in memory until it ends.
+     */
+    static final class RdfJson extends NTriplesTranscoder {
+        // the objects of each predicate of each subject, already written out, in the order first seen
+        private final Map<String, Map<String, StringBuilder>> graph = new LinkedHashMap<>();
+
+        @Override
+        void triple(Term subject, String predicate, Term object, StringBuilder out) {
+            StringBuilder objects = graph.computeIfAbsent(subject.value(), s -> new LinkedHashMap<>())
+                    .computeIfAbsent(predicate, p -> new StringBuilder());
+            if (!objects.isEmpty()) {
+                objects.append(',');
+            }
+            objects.append("{\"type\":");
+            switch (object.kind()) {
+                case IRI -> objects.append("\"uri\"");
+                case BLANK -> objects.append("\"bnode\"");
+                case LITERAL -> objects.append("\"literal\"");
+            }
+            objects.append(",\"value\":");
+            appendJsonString(objects, object.value());
+            if (object.language() != null) {
+                objects.append(",\"lang\":");
+                appendJsonString(objects, object.language());
+            } else if (object.datatype() != null) {
+                objects.append(",\"datatype\":");
+                appendJsonString(objects, object.datatype());
+            }
+            objects.append('}');
+        }
+
+        @Override
+        void end(StringBuilder out) {
+            out.append('{');
+            String separator = "";
+            for (Map.Entry<String, Map<String, StringBuilder>> subject : graph.entrySet()) {
+                out.append(separator);
+                appendJsonString(out, subject.getKey());
+                out.append(":{");
+                String predicateSeparator = "";
+                for (Map.Entry<String, StringBuilder> predicate : subject.getValue().entrySet()) {
+                    out.append(predicateSeparator);
+                    appendJsonString(out, predicate.getKey());
+                    out.append(":[").append(predicate.getValue()).append(']');
+                    predicateSeparator = ",";
+                }
+                out.append('}');
+                separator = ",";
+            }
+            out.append('}');
+            graph.clear();
+        }
+    }
+
+    private static final class Parser {
+        private final CharSequence text;
+        private final int start;
+        private final int end;
+        private int pos;
+
+        private Parser(CharSequence text, int start, int end) {
+            this.text = text;
+            this.start = start;
+            this.pos = start;
+            this.end = end;
+        }
+
+        boolean atEnd() {
+            return pos >= end;
+        }
+
+        char peek() {
+            return text.charAt(pos);
+        }
+
+        void skipSpaces() {
+            while (pos < end && (text.charAt(pos) == ' ' || text.charAt(pos) == '\t' || text.charAt(pos) == '\r')) {
+                pos++;
+            }
+        }
+
+        void expect(char c) {
+            skipSpaces();
+            if (atEnd() || text.charAt(pos) != c) {
+                throw malformed();
+            }
+            pos++;
+            skipSpaces();
+            if (!atEnd() && text.charAt(pos) != '#') {
+                throw malformed();
+            }
+        }
+
+        Term term() {
+            skipSpaces();
+            if (atEnd()) {
+                throw malformed();
+            }
+            return switch (text.charAt(pos)) {
+                case '<' -> new Term(Kind.IRI, iri(), null, null);
+                case '_' -> new Term(Kind.BLANK, blank(), null, null);
+                case '"' -> literal();
+                default -> throw malformed();
+            };
+        }
+
+        private String iri() {
+            pos++;
+            StringBuilder sb = new StringBuilder();
+            while (pos < end && text.charAt(pos) != '>') {
+                char c = text.charAt(pos++);
+                if (c == '\\') {
+                    unescape(sb);
+                } else {
+                    sb.append(c);
+                }
+            }
+            if (atEnd()) {
+                throw malformed();
+            }
+            pos++;
+            return sb.toString();
+        }
+
+        private String blank() {
+            int label = pos;
+            if (pos + 1 >= end || text.charAt(pos + 1) != ':') {
+                throw malformed();
+            }
+            pos += 2;
+            while (pos < end && text.charAt(pos) != ' ' && text.charAt(pos) != '\t') {
+                pos++;
+            }
+            // a label can't end with a dot: that's the end of the triple
+            if (text.charAt(pos - 1) == '.') {
+                pos--;
+            }
+            return text.subSequence(label, pos).toString();
+        }
+
+        private Term literal() {
+            pos++;
+            StringBuilder sb = new StringBuilder();
+            while (pos < end && text.charAt(pos) != '"') {
+                char c = text.charAt(pos++);
+                if (c == '\\') {
+                    unescape(sb);
+                } else {
+                    sb.append(c);
+                }
+            }
+            if (atEnd()) {
+                throw malformed();
+            }
+            pos++;
+            if (pos < end && text.charAt(pos) == '@') {
+                int tag = ++pos;
+                while (pos < end && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '-')) {
+                    pos++;
+                }
+                return new Term(Kind.LITERAL, sb.toString(), null, text.subSequence(tag, pos).toString());
+            }
+            if (pos + 1 < end && text.charAt(pos) == '^' && text.charAt(pos + 1) == '^') {
+                pos += 2;
+                if (atEnd() || text.charAt(pos) != '<') {
+                    throw malformed();
+                }
+                return new Term(Kind.LITERAL, sb.toString(), iri(), null);
+            }
+            return new Term(Kind.LITERAL, sb.toString(), null, null);
+        }
+
+        private void unescape(StringBuilder sb) {
+            if (atEnd()) {
+                throw malformed();
+            }
+            char c = text.charAt(pos++);
+            switch (c) {
+                case 't' -> sb.append('\t');
+                case 'b' -> sb.append('\b');
+                case 'n' -> sb.append('\n');
+                case 'r' -> sb.append('\r');
+                case 'f' -> sb.append('\f');
+                case '"', '\'', '\\' -> sb.append(c);
+                case 'u' -> sb.appendCodePoint(hex(4));
+                case 'U' -> sb.appendCodePoint(hex(8));
+                default -> throw malformed();
+            }
+        }
+
+        private int hex(int digits) {
+            if (pos + digits > end) {
+                throw malformed();
+            }
+            try {
+                int codePoint = Integer.parseInt(text.subSequence(pos, pos + digits).toString(), 16);
+                pos += digits;
+                return codePoint;
+            } catch (NumberFormatException e) {
+                throw malformed();
+            }
+        }
+
+        private IllegalArgumentException malformed() {
+            return new IllegalArgumentException("malformed N-Triples: " + text.subSequence(start, Math.min(end, start + 200)));
+        }
+    }
+}
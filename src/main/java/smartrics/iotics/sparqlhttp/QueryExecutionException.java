@@ -5,4 +5,8 @@ public class QueryExecutionException extends RuntimeException {
     public QueryExecutionException(Throwable cause) {
         super(cause);
     }
+
+    public QueryExecutionException(String message) {
+        super(message);
+    }
 }
@@ -0,0 +1,81 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.iotics.api.Scope;
+import com.iotics.api.SparqlResultType;
+
+/**
+ * Identifies the results of a query as seen by one user: queries differing only in insignificant whitespace map to
+ * the same key, queries from different users never do.
+ */
+public record QueryKey(Scope scope, String query, SparqlResultType resultType, String userDID) {
+
+    public static QueryKey of(Scope scope, String query, SparqlResultType resultType, String userDID) {
+        return new QueryKey(scope, normalise(query), resultType, userDID);
+    }
+
+    /**
+     * Trims the query, drops {@code #} comments and collapses runs of whitespace into a single space, except inside
+     * string literals and IRIs. A comment separates tokens like whitespace does, and ends at the end of its line.
+     */
+    static String normalise(String query) {
+        StringBuilder sb = new StringBuilder(query.length());
+        String close = null;
+        boolean pendingSpace = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (close != null) {
+                if (c == '\\' && !close.equals(">") && i + 1 < query.length()) {
+                    sb.append(c).append(query.charAt(++i));
+                } else if (query.startsWith(close, i)) {
+                    // a long literal may end with quotes of its own, right before its closing ones
+                    int end = i + close.length();
+                    while (close.length() == 3 && end < query.length() && query.charAt(end) == c) {
+                        end++;
+                    }
+                    sb.append(query, i, end);
+                    i = end - 1;
+                    close = null;
+                } else {
+                    sb.append(c);
+                }
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                pendingSpace = sb.length() > 0;
+                continue;
+            }
+            if (c == '#') {
+                while (i + 1 < query.length() && query.charAt(i + 1) != '\n' && query.charAt(i + 1) != '\r') {
+                    i++;
+                }
+                pendingSpace = sb.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                sb.append(' ');
+                pendingSpace = false;
+            }
+            if (c == '\\' && i + 1 < query.length()) {
+                // an escaped character of a prefixed name, such as ex:a\#b
+                sb.append(c).append(query.charAt(++i));
+                continue;
+            }
+            if (c == '"' || c == '\'') {
+                close = query.startsWith(String.valueOf(c).repeat(3), i) ? String.valueOf(c).repeat(3) : String.valueOf(c);
+                sb.append(close);
+                i += close.length() - 1;
+                continue;
+            }
+            if (c == '<' && i + 1 < query.length() && !Character.isWhitespace(query.charAt(i + 1)) && query.charAt(i + 1) != '=') {
+                // an IRI rather than a less-than comparison
+                close = ">";
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    int weight() {
+        return 64 + 2 * query.length() + (userDID != null ? 2 * userDID.length() : 0);
+    }
+}
@@ -1,5 +1,44 @@
 package smartrics.iotics.sparqlhttp;
 
+import io.grpc.stub.StreamObserver;
+
 public interface QueryRunner {
+
+    /**
+     * @return a runner that fails the output with the error as soon as it's run, without going upstream
+     */
+    static QueryRunner failing(StreamObserver<String> output, Throwable error) {
+        return new QueryRunner() {
+            @Override
+            public void run(String query) {
+                output.onError(error);
+            }
+
+            @Override
+            public void pause() {
+            }
+
+            @Override
+            public void resume() {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        };
+    }
+
     void run(String query);
+
+    /**
+     * Stops reading further results from upstream until {@link #resume()} is called.
+     */
+    void pause();
+
+    void resume();
+
+    /**
+     * Abandons the query: no further results are read from upstream.
+     */
+    void cancel();
 }
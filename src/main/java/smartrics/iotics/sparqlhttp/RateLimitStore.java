@@ -0,0 +1,49 @@
+package smartrics.iotics.sparqlhttp;
+
+/**
+ * Where the token buckets of the rate limiter live. A store used by one endpoint instance limits the requests on that
+ * instance's connections only; one shared by every instance limits them all together.
+ */
+public interface RateLimitStore {
+
+    /**
+     * Takes a token from the key's bucket, if it has one.
+     *
+     * @param nowNanos the current {@link System#nanoTime()}
+     */
+    Decision tryConsume(String key, Rate rate, long nowNanos);
+
+    /**
+     * Forgets the buckets that have filled up again: they hold nothing a new bucket wouldn't.
+     */
+    void sweep(long nowNanos);
+
+    /**
+     * @return how many buckets are held
+     */
+    int size();
+
+    /**
+     * @param perSecond the rate tokens are added at
+     * @param burst     the bucket's capacity: how many requests may come at once after a quiet spell
+     */
+    record Rate(double perSecond, int burst) {
+        public Rate {
+            if (perSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("rate limits must allow at least one request");
+            }
+        }
+
+        long intervalNanos() {
+            return (long) (1e9 / perSecond);
+        }
+    }
+
+    /**
+     * @param remaining        tokens left after this request
+     * @param resetNanos       until the bucket is full again
+     * @param retryAfterNanos  until a token is available, if the request was refused
+     */
+    record Decision(boolean allowed, int limit, int remaining, long resetNanos, long retryAfterNanos) {
+    }
+}
@@ -0,0 +1,81 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.net.SocketAddress;
+import io.vertx.ext.web.RoutingContext;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the steady rate of requests per bearer token, or per client IP for requests without one, before any identity
+ * or gRPC work is done for them. Each route has its own rate and burst. Every answer carries the RateLimit-Limit,
+ * RateLimit-Remaining and RateLimit-Reset headers of the IETF draft; refused requests get 429 and a Retry-After.
+ * Tokens are keyed by a hash, so that the store never holds credentials.
+ */
+class RateLimiter implements Handler<RoutingContext> {
+
+    private final RateLimitStore store;
+    private final RateLimitStore.Rate globalRate;
+    private final RateLimitStore.Rate localRate;
+    private final Counter globalRejected;
+    private final Counter localRejected;
+
+    /**
+     * @param globalRate the rate of the {@code /sparql} route
+     * @param localRate  the rate of the {@code /sparql/local} route
+     */
+    RateLimiter(RateLimitStore store, RateLimitStore.Rate globalRate, RateLimitStore.Rate localRate, MeterRegistry meterRegistry) {
+        this.store = store;
+        this.globalRate = globalRate;
+        this.localRate = localRate;
+        this.globalRejected = rejected("/sparql", meterRegistry);
+        this.localRejected = rejected("/sparql/local", meterRegistry);
+    }
+
+    private static Counter rejected(String route, MeterRegistry meterRegistry) {
+        return Counter.builder("http.ratelimit.rejected")
+                .description("Requests refused for going over the rate limit")
+                .tag("route", route)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void handle(RoutingContext ctx) {
+        boolean local = "/sparql/local".equals(ctx.normalizedPath());
+        String key = key(ctx.request(), local);
+        RateLimitStore.Decision decision = store.tryConsume(key, local ? localRate : globalRate, System.nanoTime());
+        HttpServerResponse response = ctx.response();
+        response.putHeader("RateLimit-Limit", String.valueOf(decision.limit()));
+        response.putHeader("RateLimit-Remaining", String.valueOf(decision.remaining()));
+        response.putHeader("RateLimit-Reset", String.valueOf(seconds(decision.resetNanos())));
+        if (decision.allowed()) {
+            ctx.next();
+            return;
+        }
+        (local ? localRejected : globalRejected).increment();
+        response.putHeader("Retry-After", String.valueOf(Math.max(1, seconds(decision.retryAfterNanos()))))
+                .setStatusCode(429)
+                .setStatusMessage(ErrorMessage.toJson("Too Many Requests: rate limit exceeded"))
+                .end();
+    }
+
+    static String key(HttpServerRequest request, boolean local) {
+        String route = local ? "local:" : "global:";
+        String authorization = request.getHeader("Authorization");
+        if (authorization != null) {
+            return route + "bearer:" + Hashing.murmur3_128().hashString(authorization, StandardCharsets.UTF_8);
+        }
+        SocketAddress address = request.remoteAddress();
+        return route + "ip:" + (address != null ? address.hostAddress() : "unknown");
+    }
+
+    private static long seconds(long nanos) {
+        return (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+    }
+}
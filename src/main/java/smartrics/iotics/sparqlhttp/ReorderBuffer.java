@@ -0,0 +1,79 @@
+package smartrics.iotics.sparqlhttp;
+
+/**
+ * Restores the order of sequence-numbered items using a ring buffer indexed by sequence number.
+ * Items may arrive out of order but never further ahead of the next expected sequence number than the window allows.
+ * <p>
+ * Not thread safe: it relies on the caller serialising {@link #offer} and {@link #poll}, as gRPC does for the
+ * callbacks of a single call's {@code StreamObserver}. No locks are taken and nothing is allocated per item.
+ */
+class ReorderBuffer<T> {
+
+    private final Object[] slots;
+    private final int mask;
+    private long expected;
+    private int buffered;
+
+    ReorderBuffer(int window) {
+        if (window < 1 || window > (1 << 30)) {
+            throw new IllegalArgumentException("reorder window must be between 1 and 2^30");
+        }
+        int capacity = Integer.highestOneBit(window);
+        if (capacity < window) {
+            capacity <<= 1;
+        }
+        this.slots = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @return false if the item was a duplicate of, or older than, an item already consumed
+     * @throws QueryExecutionException if the item is too far ahead of the next expected sequence number
+     */
+    boolean offer(long seqNum, T item) {
+        if (seqNum < expected) {
+            return false;
+        }
+        if (seqNum - expected >= slots.length) {
+            throw new QueryExecutionException("out of order result chunk " + seqNum + " is beyond the reorder window of "
+                    + slots.length + " chunks while still waiting for chunk " + expected);
+        }
+        int index = (int) (seqNum & mask);
+        if (slots[index] != null) {
+            return false;
+        }
+        slots[index] = item;
+        buffered++;
+        return true;
+    }
+
+    /**
+     * @return the item with the next expected sequence number, or null if it hasn't arrived yet
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        if (buffered == 0) {
+            return null;
+        }
+        int index = (int) (expected & mask);
+        T item = (T) slots[index];
+        if (item != null) {
+            slots[index] = null;
+            buffered--;
+            expected++;
+        }
+        return item;
+    }
+
+    long expected() {
+        return expected;
+    }
+
+    int buffered() {
+        return buffered;
+    }
+
+    int window() {
+        return slots.length;
+    }
+}
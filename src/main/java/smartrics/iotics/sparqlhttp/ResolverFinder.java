@@ -1,45 +1,87 @@
 package smartrics.iotics.sparqlhttp;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.URI;
-import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class ResolverFinder {
 
+    static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(10);
+
+    private static final Map<String, CompletableFuture<String>> RESOLVERS = new ConcurrentHashMap<>();
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .connectTimeout(DEFAULT_TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+
+    /**
+     * @return the resolver of the host, looked up once per host; failed lookups are retried on the next call
+     */
     public static String findResolver(String host) {
         try {
-            String resolver;
-            URL url = URI.create("https://" + host + "/index.json").toURL();
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setRequestProperty("Accept", "application/json");
-            int responseCode = conn.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) { // Success
-                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-                String inputLine;
-                StringBuilder content = new StringBuilder();
-                while ((inputLine = in.readLine()) != null) {
-                    content.append(inputLine);
-                }
-                in.close();
-                Gson gson = new Gson();
-                Map map = gson.fromJson(content.toString(), Map.class);
-                resolver = map.get("resolver").toString();
-            } else {
-                throw new IllegalArgumentException("Unable to access host " + host + ". Http response code: " + responseCode);
+            return findResolverAsync(host, DEFAULT_TIMEOUT).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IllegalArgumentException iae ? iae : new IllegalArgumentException("Unable to get resolver", e.getCause());
+        }
+    }
+
+    /**
+     * Looks the resolver of the host up in its {@code index.json}, without blocking the caller. Concurrent lookups
+     * of the same host share one request.
+     *
+     * @param timeout how long the whole lookup may take, connecting included
+     * @return the resolver, or a failure with an {@link IllegalArgumentException} if the host can't tell
+     */
+    public static CompletableFuture<String> findResolverAsync(String host, Duration timeout) {
+        CompletableFuture<String> resolver = RESOLVERS.computeIfAbsent(host, h -> lookupResolver(h, timeout));
+        resolver.whenComplete((r, e) -> {
+            if (e != null) {
+                RESOLVERS.remove(host, resolver);
             }
+        });
+        return resolver;
+    }
+
+    static CompletableFuture<String> lookupResolver(String host, Duration timeout) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("https://" + host + "/index.json"))
+                .timeout(timeout)
+                .header("Accept", "application/json")
+                .GET()
+                .build();
+        return CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .handle((response, e) -> {
+                    if (e != null) {
+                        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                        throw new IllegalArgumentException("Unable to get resolver of " + host + ": " + cause, cause);
+                    }
+                    if (response.statusCode() != 200) {
+                        throw new IllegalArgumentException("Unable to access host " + host + ". Http response code: " + response.statusCode());
+                    }
+                    return parse(host, response.body());
+                });
+    }
 
-            // Disconnect the connection
-            conn.disconnect();
-            return resolver;
-        } catch (IOException e) {
-            throw new IllegalArgumentException("Unable to get resolver", e);
+    static String parse(String host, String indexJson) {
+        try {
+            Map<?, ?> map = new Gson().fromJson(indexJson, Map.class);
+            Object resolver = map != null ? map.get("resolver") : null;
+            if (resolver == null) {
+                throw new IllegalArgumentException("No resolver in the index of host " + host);
+            }
+            return resolver.toString();
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("Invalid index of host " + host, e);
         }
     }
 }
@@ -0,0 +1,203 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.iotics.api.SparqlResultType;
+import io.vertx.core.buffer.Buffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content coding of query results. Picks the coding from the Accept-Encoding header and compresses results as a
+ * stream, flushing after every chunk so the client can decode each one as it arrives. Verbose formats, that compress
+ * best, get their own compression level. Responses smaller than a threshold are not worth compressing.
+ */
+public class ResponseCompression {
+
+    public enum Encoding {
+        GZIP("gzip"), DEFLATE("deflate");
+
+        private final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+
+        public String token() {
+            return token;
+        }
+    }
+
+    static final Set<SparqlResultType> TEXT_HEAVY = EnumSet.of(SparqlResultType.SPARQL_XML, SparqlResultType.RDF_XML,
+            SparqlResultType.RDF_NTRIPLES);
+
+    private final int minBytes;
+    private final int level;
+    private final int textLevel;
+
+    /**
+     * @param minBytes  responses shorter than this are sent as they are
+     * @param level     compression level, 1 (fastest) to 9 (smallest)
+     * @param textLevel compression level for the {@link #TEXT_HEAVY} formats
+     */
+    public ResponseCompression(int minBytes, int level, int textLevel) {
+        this.minBytes = minBytes;
+        this.level = checkLevel(level);
+        this.textLevel = checkLevel(textLevel);
+    }
+
+    private static int checkLevel(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("compression level must be between 1 and 9");
+        }
+        return level;
+    }
+
+    public int minBytes() {
+        return minBytes;
+    }
+
+    public int levelFor(SparqlResultType type) {
+        return TEXT_HEAVY.contains(type) ? textLevel : level;
+    }
+
+    /**
+     * @return the preferred coding the client accepts, gzip over deflate when equally acceptable, or empty for
+     * identity
+     */
+    public static Optional<Encoding> negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) {
+            return Optional.empty();
+        }
+        // codings named explicitly take their own quality, the others that of *, if present
+        double[] qualities = {-1, -1};
+        double any = 0;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            switch (name) {
+                case "gzip", "x-gzip" -> qualities[Encoding.GZIP.ordinal()] = quality(parts);
+                case "deflate" -> qualities[Encoding.DEFLATE.ordinal()] = quality(parts);
+                case "*" -> any = quality(parts);
+                default -> {
+                }
+            }
+        }
+        Encoding best = null;
+        double bestQuality = 0;
+        for (Encoding encoding : Encoding.values()) {
+            double quality = qualities[encoding.ordinal()] >= 0 ? qualities[encoding.ordinal()] : any;
+            if (quality > bestQuality) {
+                best = encoding;
+                bestQuality = quality;
+            }
+        }
+        return Optional.ofNullable(best);
+    }
+
+    private static double quality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String param = parts[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    public Encoder encoder(Encoding encoding, SparqlResultType type) {
+        return new Encoder(encoding, levelFor(type));
+    }
+
+    /**
+     * @return the whole body compressed in one go
+     */
+    public byte[] compress(Encoding encoding, SparqlResultType type, byte[] body) {
+        Encoder encoder = encoder(encoding, type);
+        Buffer compressed = encoder.encode(body).appendBuffer(encoder.finish());
+        return compressed.getBytes();
+    }
+
+    /**
+     * Compresses one response. Not thread safe: chunks are encoded in order on the response's event loop.
+     */
+    public static final class Encoder {
+        private final Encoding encoding;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final DeflaterOutputStream stream;
+
+        private Encoder(Encoding encoding, int level) {
+            this.encoding = encoding;
+            // the streams' own deflaters, so that closing a stream also frees its native memory
+            try {
+                stream = switch (encoding) {
+                    case GZIP -> new GZIPOutputStream(out, true) {
+                        {
+                            def.setLevel(level);
+                        }
+                    };
+                    case DEFLATE -> new DeflaterOutputStream(out, true) {
+                        {
+                            def.setLevel(level);
+                        }
+                    };
+                };
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public Encoding encoding() {
+            return encoding;
+        }
+
+        /**
+         * @return the compressed bytes, flushed so that they decode to everything encoded so far
+         */
+        public Buffer encode(byte[] bytes) {
+            try {
+                stream.write(bytes);
+                stream.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return drain();
+        }
+
+        /**
+         * @return the end of the compressed stream; the encoder can't be used afterwards
+         */
+        public Buffer finish() {
+            close();
+            return drain();
+        }
+
+        /**
+         * Releases the compressor without completing the stream.
+         */
+        public void close() {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private Buffer drain() {
+            Buffer buffer = Buffer.buffer(out.toByteArray());
+            out.reset();
+            return buffer;
+        }
+    }
+}
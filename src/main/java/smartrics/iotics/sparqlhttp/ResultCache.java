@@ -0,0 +1,166 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.buffer.impl.BufferImpl;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Complete query results by {@link QueryKey}, kept for a fixed time after they were stored.
+ * The cache is bounded by the total size in bytes of the stored bodies, evicting the least recently used results
+ * first. Bodies can be kept off-heap, in direct buffers. Bodies can also be gzipped once when stored, next to the
+ * plain copy, so that hits for clients accepting gzip cost no compression.
+ */
+public class ResultCache implements MeterBinder {
+
+    private final Cache<QueryKey, CachedResult> cache;
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final boolean offHeap;
+    private final Duration ttl;
+    private final ResponseCompression precompression;
+
+    public ResultCache(Duration ttl, long maxBytes, int maxEntryBytes, boolean offHeap) {
+        this(ttl, maxBytes, maxEntryBytes, offHeap, null);
+    }
+
+    /**
+     * @param precompression gzips the stored bodies long enough to be compressed, or null
+     */
+    public ResultCache(Duration ttl, long maxBytes, int maxEntryBytes, boolean offHeap, ResponseCompression precompression) {
+        this.cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl.toMillis(), TimeUnit.MILLISECONDS)
+                .maximumWeight(maxBytes)
+                .<QueryKey, CachedResult>weigher((key, value) -> key.weight() + value.size())
+                .recordStats()
+                .build();
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.offHeap = offHeap;
+        this.ttl = ttl;
+        this.precompression = precompression;
+    }
+
+    public CachedResult get(QueryKey key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * @return an observer forwarding everything to the delegate, that stores the result once it completes
+     * successfully unless it grew beyond the maximum entry size
+     */
+    public StreamObserver<String> recording(QueryKey key, StreamObserver<String> delegate) {
+        return new StreamObserver<>() {
+            private ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+            @Override
+            public void onNext(String chunk) {
+                if (body != null) {
+                    byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+                    if (body.size() + bytes.length > maxEntryBytes) {
+                        body = null;
+                    } else {
+                        body.writeBytes(bytes);
+                    }
+                }
+                delegate.onNext(chunk);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                body = null;
+                delegate.onError(throwable);
+            }
+
+            @Override
+            public void onCompleted() {
+                if (body != null) {
+                    put(key, body.toByteArray());
+                    body = null;
+                }
+                delegate.onCompleted();
+            }
+        };
+    }
+
+    void put(QueryKey key, byte[] body) {
+        ByteBuffer gzipped = null;
+        if (precompression != null && body.length >= precompression.minBytes()) {
+            gzipped = store(precompression.compress(ResponseCompression.Encoding.GZIP, key.resultType(), body));
+        }
+        cache.put(key, new CachedResult(store(body), gzipped));
+    }
+
+    private ByteBuffer store(byte[] bytes) {
+        ByteBuffer stored;
+        if (offHeap) {
+            stored = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        } else {
+            stored = ByteBuffer.wrap(bytes);
+        }
+        return stored.asReadOnlyBuffer();
+    }
+
+    public void purge() {
+        cache.invalidateAll();
+    }
+
+    public Stats stats() {
+        long bytes = cache.asMap().entrySet().stream().mapToLong(e -> e.getKey().weight() + e.getValue().size()).sum();
+        return new Stats(ttl.toString(), maxBytes, bytes, offHeap, CacheSummary.of(cache.size(), cache.stats()));
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        GuavaCacheMetrics.monitor(registry, cache, "result.cache");
+        Gauge.builder("result.cache.bytes", this, c -> c.stats().bytes())
+                .description("Total size of the cached results").baseUnit("bytes").register(registry);
+    }
+
+    public record Stats(String ttl, long maxBytes, long bytes, boolean offHeap, CacheSummary entries) {
+    }
+
+    /**
+     * @param gzipped the body gzipped when stored, or null
+     */
+    public record CachedResult(ByteBuffer body, ByteBuffer gzipped) {
+
+        public CachedResult(ByteBuffer body) {
+            this(body, null);
+        }
+
+        /**
+         * @return the size of the body, and of its gzipped copy if any
+         */
+        public int size() {
+            return body.remaining() + (gzipped != null ? gzipped.remaining() : 0);
+        }
+
+        /**
+         * @return a buffer over the stored bytes; nothing is copied. The buffer is made by the implementation
+         * {@link Buffer#buffer(io.netty.buffer.ByteBuf)} hands over to, which is not deprecated
+         */
+        public Buffer toBuffer() {
+            return BufferImpl.buffer(Unpooled.wrappedBuffer(body.duplicate()));
+        }
+
+        /**
+         * @return a buffer over the gzipped body, or null if it wasn't compressed; nothing is copied
+         */
+        public Buffer toGzippedBuffer() {
+            return gzipped != null ? BufferImpl.buffer(Unpooled.wrappedBuffer(gzipped.duplicate())) : null;
+        }
+    }
+}
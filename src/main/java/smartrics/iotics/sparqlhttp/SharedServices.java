@@ -0,0 +1,380 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.micrometer.core.instrument.binder.jvm.ClassLoaderMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
+import io.micrometer.core.instrument.binder.system.ProcessorMetrics;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The identities, caches and pools every {@link SparqlEndpoint} instance works with. One set is built per process and
+ * handed to each deployed instance, so that running an instance per event loop doesn't multiply connections, cached
+ * tokens or identity SDK work. Closed when the last instance using it stops.
+ */
+public class SharedServices {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedServices.class);
+
+    private final ConfigManager configManager;
+    private final PrometheusMeterRegistry meterRegistry;
+    private final SparqlRunner.Meters runnerMeters;
+    private final BoundedWorkerPool identityWorkers;
+    private final Identities identities;
+    private final ChannelPool channelPool;
+    private final TokenValidationCache tokenValidationCache;
+    private final ResultCache resultCache;
+    private final ResponseCompression compression;
+    private final InFlightQueries inFlightQueries;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final RateLimitStore rateLimitStore;
+    private final CircuitBreaker circuitBreaker;
+    private final Hedging hedging;
+    private final UpstreamHosts upstreamHosts;
+    private final AtomicInteger users = new AtomicInteger();
+
+    public SharedServices(ConfigManager configManager) {
+        this.configManager = configManager;
+        meterRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        new ClassLoaderMetrics().bindTo(meterRegistry);
+        new JvmMemoryMetrics().bindTo(meterRegistry);
+        new JvmGcMetrics().bindTo(meterRegistry);
+        new JvmThreadMetrics().bindTo(meterRegistry);
+        new ProcessorMetrics().bindTo(meterRegistry);
+        runnerMeters = new SparqlRunner.Meters(meterRegistry);
+        Duration tokenDuration = Duration.parse(configManager.getValue(ConfigManager.ConfigKey.TOKEN_DURATION));
+        identityWorkers = new BoundedWorkerPool("iot-identity",
+                Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.IDENTITY_WORKERS)),
+                Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.IDENTITY_QUEUE_DEPTH)),
+                Duration.parse(configManager.getValue(ConfigManager.ConfigKey.IDENTITY_TIMEOUT)));
+        upstreamHosts = upstreamHosts(configManager);
+        identities = new Identities(upstreamHosts.home(),
+                configManager.getValue(ConfigManager.ConfigKey.USER_KEY), configManager.getValue(ConfigManager.ConfigKey.USER_SEED),
+                configManager.getValue(ConfigManager.ConfigKey.AGENT_KEY), configManager.getValue(ConfigManager.ConfigKey.AGENT_SEED),
+                tokenDuration, Double.parseDouble(configManager.getValue(ConfigManager.ConfigKey.TOKEN_REFRESH_FRACTION)),
+                new Identities.CacheSettings(Long.parseLong(configManager.getValue(ConfigManager.ConfigKey.IDENTITY_CACHE_SIZE)),
+                        Duration.parse(configManager.getValue(ConfigManager.ConfigKey.IDENTITY_CACHE_TTL)),
+                        Duration.parse(configManager.getValue(ConfigManager.ConfigKey.DELEGATION_REFRESH))),
+                startupSettings(configManager), identityWorkers, meterRegistry);
+        channelPool = new ChannelPool(Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.CHANNEL_POOL_SIZE)),
+                Duration.parse(configManager.getValue(ConfigManager.ConfigKey.CHANNEL_IDLE_TIMEOUT)), meterRegistry);
+        tokenValidationCache = new TokenValidationCache(Long.parseLong(configManager.getValue(ConfigManager.ConfigKey.TOKEN_CACHE_SIZE)));
+        if (Boolean.parseBoolean(configManager.getValue(ConfigManager.ConfigKey.ENABLE_COMPRESSION))) {
+            compression = new ResponseCompression(Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.COMPRESSION_MIN_BYTES)),
+                    Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.COMPRESSION_LEVEL)),
+                    Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.COMPRESSION_TEXT_LEVEL)));
+        } else {
+            compression = null;
+        }
+        if (Boolean.parseBoolean(configManager.getValue(ConfigManager.ConfigKey.RESULT_CACHE_ENABLED))) {
+            boolean precompress = Boolean.parseBoolean(configManager.getValue(ConfigManager.ConfigKey.RESULT_CACHE_PRECOMPRESS));
+            resultCache = new ResultCache(Duration.parse(configManager.getValue(ConfigManager.ConfigKey.RESULT_CACHE_TTL)),
+                    Long.parseLong(configManager.getValue(ConfigManager.ConfigKey.RESULT_CACHE_MAX_BYTES)),
+                    Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.RESULT_CACHE_MAX_ENTRY_BYTES)),
+                    Boolean.parseBoolean(configManager.getValue(ConfigManager.ConfigKey.RESULT_CACHE_OFF_HEAP)),
+                    precompress ? compression : null);
+        } else {
+            resultCache = null;
+        }
+        if (Boolean.parseBoolean(configManager.getValue(ConfigManager.ConfigKey.COALESCE_QUERIES))) {
+            inFlightQueries = new InFlightQueries();
+        } else {
+            inFlightQueries = null;
+        }
+        if (Boolean.parseBoolean(configManager.getValue(ConfigManager.ConfigKey.ENABLE_CONCURRENCY_LIMIT))) {
+            concurrencyLimiter = new ConcurrencyLimiter(
+                    new ConcurrencyLimiter.Limits(Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.CONCURRENCY_LIMIT_INITIAL)),
+                            Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.CONCURRENCY_LIMIT_MIN)),
+                            Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.CONCURRENCY_LIMIT_MAX))),
+                    new ConcurrencyLimiter.Limits(Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.CONCURRENCY_USER_LIMIT_INITIAL)),
+                            1, Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.CONCURRENCY_USER_LIMIT_MAX))),
+                    Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.CONCURRENCY_QUEUE_SIZE)),
+                    Duration.parse(configManager.getValue(ConfigManager.ConfigKey.CONCURRENCY_QUEUE_TIMEOUT)));
+        } else {
+            concurrencyLimiter = null;
+        }
+        rateLimitStore = sharedRateLimitStore(configManager);
+        circuitBreaker = circuitBreaker(configManager);
+        hedging = hedging(configManager);
+        bindMetrics();
+
+        Map<String, String> printableConfig = configManager.getPrintableConfig();
+        LOGGER.info("Configuration: ");
+        printableConfig.forEach((key, value) -> LOGGER.info("  " + key + ": " + value));
+    }
+
+    private SharedServices(SharedServicesBuilder builder) {
+        this.configManager = builder.configManager;
+        this.meterRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        this.runnerMeters = new SparqlRunner.Meters(meterRegistry);
+        this.identityWorkers = builder.identityWorkers;
+        this.identities = builder.identities;
+        this.channelPool = builder.channelPool;
+        this.tokenValidationCache = builder.tokenValidationCache;
+        this.resultCache = builder.resultCache;
+        this.compression = builder.compression;
+        this.inFlightQueries = builder.inFlightQueries;
+        this.concurrencyLimiter = builder.concurrencyLimiter;
+        this.rateLimitStore = sharedRateLimitStore(configManager);
+        this.circuitBreaker = circuitBreaker(configManager);
+        this.hedging = hedging(configManager);
+        this.upstreamHosts = upstreamHosts(configManager);
+        bindMetrics();
+    }
+
+    private static RateLimitStore sharedRateLimitStore(ConfigManager configManager) {
+        if (Boolean.parseBoolean(configManager.getValue(ConfigManager.ConfigKey.ENABLE_RATE_LIMIT))
+                && "shared".equalsIgnoreCase(configManager.getValue(ConfigManager.ConfigKey.RATE_LIMIT_STORE))) {
+            return new InMemoryRateLimitStore(Duration.parse(configManager.getValue(ConfigManager.ConfigKey.RATE_LIMIT_SWEEP_INTERVAL)));
+        }
+        return null;
+    }
+
+    private static CircuitBreaker circuitBreaker(ConfigManager configManager) {
+        if (!Boolean.parseBoolean(configManager.getValue(ConfigManager.ConfigKey.ENABLE_CIRCUIT_BREAKER))) {
+            return null;
+        }
+        return new CircuitBreaker(new CircuitBreaker.Settings(
+                Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.CIRCUIT_BREAKER_FAILURE_RATE)),
+                Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.CIRCUIT_BREAKER_SLOW_RATE)),
+                Duration.parse(configManager.getValue(ConfigManager.ConfigKey.CIRCUIT_BREAKER_SLOW_DURATION)),
+                Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.CIRCUIT_BREAKER_WINDOW)),
+                Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.CIRCUIT_BREAKER_MIN_CALLS)),
+                Duration.parse(configManager.getValue(ConfigManager.ConfigKey.CIRCUIT_BREAKER_OPEN_DURATION)),
+                Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.CIRCUIT_BREAKER_PROBES))));
+    }
+
+    private static Identities.StartupSettings startupSettings(ConfigManager configManager) {
+        String cacheFile = configManager.getValue(ConfigManager.ConfigKey.STARTUP_CACHE_FILE);
+        return new Identities.StartupSettings(cacheFile == null || cacheFile.isBlank() ? null : Path.of(cacheFile),
+                Duration.parse(configManager.getValue(ConfigManager.ConfigKey.RESOLVER_TIMEOUT)),
+                Duration.parse(configManager.getValue(ConfigManager.ConfigKey.STARTUP_RETRY_INTERVAL)));
+    }
+
+    private static UpstreamHosts upstreamHosts(ConfigManager configManager) {
+        String hostDNS = configManager.getValue(ConfigManager.ConfigKey.HOST_DNS);
+        if (hostDNS == null) {
+            return null;
+        }
+        return new UpstreamHosts(UpstreamHosts.parse(hostDNS),
+                UpstreamHosts.balancing(configManager.getValue(ConfigManager.ConfigKey.UPSTREAM_BALANCING)),
+                Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.UPSTREAM_EJECT_FAILURES)),
+                Duration.parse(configManager.getValue(ConfigManager.ConfigKey.UPSTREAM_SLOW_DURATION)),
+                Duration.parse(configManager.getValue(ConfigManager.ConfigKey.UPSTREAM_EJECT_DURATION)));
+    }
+
+    private static Hedging hedging(ConfigManager configManager) {
+        if (!Boolean.parseBoolean(configManager.getValue(ConfigManager.ConfigKey.ENABLE_HEDGING))) {
+            return null;
+        }
+        return new Hedging(Duration.parse(configManager.getValue(ConfigManager.ConfigKey.HEDGE_MIN_DELAY)),
+                Double.parseDouble(configManager.getValue(ConfigManager.ConfigKey.HEDGE_MAX_RATIO)));
+    }
+
+    private void bindMetrics() {
+        tokenValidationCache.bindTo(meterRegistry);
+        if (channelPool != null) {
+            channelPool.bindTo(meterRegistry);
+        }
+        if (resultCache != null) {
+            resultCache.bindTo(meterRegistry);
+        }
+        if (inFlightQueries != null) {
+            inFlightQueries.bindTo(meterRegistry);
+        }
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.bindTo(meterRegistry);
+        }
+        if (circuitBreaker != null) {
+            circuitBreaker.bindTo(meterRegistry);
+        }
+        if (hedging != null) {
+            hedging.bindTo(meterRegistry);
+        }
+        if (upstreamHosts != null) {
+            upstreamHosts.bindTo(meterRegistry);
+        }
+    }
+
+    public ConfigManager configManager() {
+        return configManager;
+    }
+
+    public PrometheusMeterRegistry meterRegistry() {
+        return meterRegistry;
+    }
+
+    public SparqlRunner.Meters runnerMeters() {
+        return runnerMeters;
+    }
+
+    public BoundedWorkerPool identityWorkers() {
+        return identityWorkers;
+    }
+
+    public Identities identities() {
+        return identities;
+    }
+
+    public ChannelPool channelPool() {
+        return channelPool;
+    }
+
+    public TokenValidationCache tokenValidationCache() {
+        return tokenValidationCache;
+    }
+
+    /**
+     * @return the result cache, or null if disabled
+     */
+    public ResultCache resultCache() {
+        return resultCache;
+    }
+
+    /**
+     * @return the response compression, or null if disabled
+     */
+    public ResponseCompression compression() {
+        return compression;
+    }
+
+    /**
+     * @return the in-flight queries, or null if coalescing is disabled
+     */
+    public InFlightQueries inFlightQueries() {
+        return inFlightQueries;
+    }
+
+    /**
+     * @return the concurrency limiter, or null if queries aren't limited
+     */
+    public ConcurrencyLimiter concurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * @return the rate limit buckets shared by every endpoint instance, or null if rate limits are off or each
+     * instance keeps its own
+     */
+    public RateLimitStore rateLimitStore() {
+        return rateLimitStore;
+    }
+
+    /**
+     * @return the circuit breaker of the upstream calls, or null if disabled
+     */
+    public CircuitBreaker circuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return the hedging policy of {@code /sparql/local} queries, or null if disabled
+     */
+    public Hedging hedging() {
+        return hedging;
+    }
+
+    /**
+     * @return the IOTICS hosts queries are sent to
+     */
+    public UpstreamHosts upstreamHosts() {
+        return upstreamHosts;
+    }
+
+    void retain() {
+        users.incrementAndGet();
+    }
+
+    void release() {
+        if (users.decrementAndGet() == 0) {
+            channelPool.close();
+            if (identities != null) {
+                identities.close();
+            }
+            identityWorkers.close();
+            meterRegistry.close();
+        }
+    }
+
+    /**
+     * Services made of parts given rather than built from the configuration, for tests and benchmarks. Those not
+     * given are disabled, but for a small token validation cache and worker pool; the rest still follow the
+     * configuration.
+     */
+    static final class SharedServicesBuilder {
+        private final ConfigManager configManager;
+        private BoundedWorkerPool identityWorkers;
+        private Identities identities;
+        private ChannelPool channelPool;
+        private TokenValidationCache tokenValidationCache;
+        private ResultCache resultCache;
+        private ResponseCompression compression;
+        private InFlightQueries inFlightQueries;
+        private ConcurrencyLimiter concurrencyLimiter;
+
+        private SharedServicesBuilder(ConfigManager configManager) {
+            this.configManager = configManager;
+        }
+
+        static SharedServicesBuilder newBuilder(ConfigManager configManager) {
+            return new SharedServicesBuilder(configManager);
+        }
+
+        SharedServicesBuilder withIdentityWorkers(BoundedWorkerPool identityWorkers) {
+            this.identityWorkers = identityWorkers;
+            return this;
+        }
+
+        SharedServicesBuilder withIdentities(Identities identities) {
+            this.identities = identities;
+            return this;
+        }
+
+        SharedServicesBuilder withChannelPool(ChannelPool channelPool) {
+            this.channelPool = channelPool;
+            return this;
+        }
+
+        SharedServicesBuilder withTokenValidationCache(TokenValidationCache tokenValidationCache) {
+            this.tokenValidationCache = tokenValidationCache;
+            return this;
+        }
+
+        SharedServicesBuilder withResultCache(ResultCache resultCache) {
+            this.resultCache = resultCache;
+            return this;
+        }
+
+        SharedServicesBuilder withCompression(ResponseCompression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        SharedServicesBuilder withInFlightQueries(InFlightQueries inFlightQueries) {
+            this.inFlightQueries = inFlightQueries;
+            return this;
+        }
+
+        SharedServicesBuilder withConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+            this.concurrencyLimiter = concurrencyLimiter;
+            return this;
+        }
+
+        SharedServices build() {
+            if (identityWorkers == null) {
+                identityWorkers = new BoundedWorkerPool("iot-identity", 1, 1, Duration.ofSeconds(1));
+            }
+            if (tokenValidationCache == null) {
+                tokenValidationCache = new TokenValidationCache(16);
+            }
+            return new SharedServices(this);
+        }
+    }
+}
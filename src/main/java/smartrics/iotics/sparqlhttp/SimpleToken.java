@@ -11,11 +11,12 @@ import java.util.Locale;
 
 public record SimpleToken(Payload payload) {
 
+    private static final Gson GSON = new Gson();
+
     public static SimpleToken parse(String token) {
         JWT jwt = JWT.parse(token);
-        Gson gson = new Gson();
         String string = jwt.toNiceString();
-        return gson.fromJson(string, SimpleToken.class);
+        return GSON.fromJson(string, SimpleToken.class);
     }
 
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MMM-dd HH:mm:ss", Locale.ENGLISH);
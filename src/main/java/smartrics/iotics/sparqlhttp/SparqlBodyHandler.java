@@ -0,0 +1,173 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.ext.web.RoutingContext;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Locale;
+
+/**
+ * Reads the query out of a POST body while it streams in, in place of a generic body handler.
+ * Bodies larger than the configured maximum are rejected with 413, up front when the Content-Length says so and
+ * otherwise as soon as the limit is crossed, without buffering the rest. A form body is decoded chunk by chunk keeping
+ * only its {@code query} field; a {@code application/sparql-query} body is accumulated and decoded once.
+ * Both honour the charset parameter of the content type, UTF-8 if absent.
+ * The decoded query is stored in the routing context under {@link #QUERY}. A {@code application/json} body, the
+ * queries of a batch, is accumulated the same way and stored under {@link #BATCH}. Requests of other methods or
+ * content types are passed on untouched, for validation to deal with.
+ */
+class SparqlBodyHandler implements Handler<RoutingContext> {
+    static final String QUERY = "postedQuery";
+    static final String BATCH = "postedBatch";
+
+    private static final String FORM = "application/x-www-form-urlencoded";
+    private static final String SPARQL_QUERY = "application/sparql-query";
+    private static final String JSON = "application/json";
+
+    private final long maxBytes;
+
+    SparqlBodyHandler(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void handle(RoutingContext ctx) {
+        HttpServerRequest request = ctx.request();
+        String contentType = request.getHeader("Content-Type");
+        String mime = contentType == null ? "" : contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+        boolean form = FORM.equals(mime);
+        boolean batch = JSON.equals(mime);
+        if (request.method() != HttpMethod.POST || !form && !batch && !SPARQL_QUERY.equals(mime)) {
+            // nothing to read: drop whatever body there is
+            request.resume();
+            ctx.next();
+            return;
+        }
+        Charset charset;
+        try {
+            charset = charsetOf(contentType);
+        } catch (IllegalArgumentException e) {
+            reject(ctx, 415, "unsupported charset");
+            return;
+        }
+        long length = contentLength(request);
+        if (length > maxBytes) {
+            reject(ctx, 413, "query too large");
+            return;
+        }
+        int expected = length > 0 ? (int) length : 0;
+        Body body = form ? new FormBody(new FormQueryDecoder(charset, expected)) : new QueryBody(charset, expected);
+        long[] received = {0};
+        request.handler(chunk -> {
+            if (ctx.response().ended()) {
+                return;
+            }
+            received[0] += chunk.length();
+            if (received[0] > maxBytes) {
+                reject(ctx, 413, "query too large");
+                return;
+            }
+            try {
+                body.feed(chunk);
+            } catch (IllegalArgumentException e) {
+                reject(ctx, 400, e.getMessage());
+            }
+        });
+        request.endHandler(v -> {
+            if (ctx.response().ended()) {
+                return;
+            }
+            try {
+                ctx.put(batch ? BATCH : QUERY, body.finish());
+            } catch (IllegalArgumentException e) {
+                reject(ctx, 400, e.getMessage());
+                return;
+            }
+            ctx.next();
+        });
+        // the router pauses the request until a handler is ready for its body
+        request.resume();
+    }
+
+    static Charset charsetOf(String contentType) {
+        for (String param : contentType.split(";")) {
+            String p = param.trim();
+            if (p.regionMatches(true, 0, "charset=", 0, "charset=".length())) {
+                String name = p.substring("charset=".length()).trim().replace("\"", "");
+                try {
+                    return Charset.forName(name);
+                } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                    throw new IllegalArgumentException("unsupported charset " + name, e);
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private static long contentLength(HttpServerRequest request) {
+        String header = request.getHeader("Content-Length");
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void reject(RoutingContext ctx, int status, String message) {
+        HttpServerResponse response = ctx.response();
+        if (status == 413 && ctx.request().version() != HttpVersion.HTTP_2) {
+            // the rest of the body is not read: the connection can't be reused. HTTP/2 just drops the stream's frames
+            response.putHeader("Connection", "close");
+        }
+        response.setStatusCode(status).setStatusMessage(ErrorMessage.toJson(message)).end();
+    }
+
+    private interface Body {
+        void feed(Buffer chunk);
+
+        String finish();
+    }
+
+    private record FormBody(FormQueryDecoder decoder) implements Body {
+        @Override
+        public void feed(Buffer chunk) {
+            decoder.feed(chunk);
+        }
+
+        @Override
+        public String finish() {
+            return decoder.finish();
+        }
+    }
+
+    private static final class QueryBody implements Body {
+        private final Charset charset;
+        private final Buffer buffer;
+
+        private QueryBody(Charset charset, int expectedSize) {
+            this.charset = charset;
+            this.buffer = Buffer.buffer(Math.max(32, expectedSize));
+        }
+
+        @Override
+        public void feed(Buffer chunk) {
+            buffer.appendBuffer(chunk);
+        }
+
+        @Override
+        public String finish() {
+            return buffer.toString(charset);
+        }
+    }
+}
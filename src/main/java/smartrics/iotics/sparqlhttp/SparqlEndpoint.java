@@ -3,20 +3,28 @@ package smartrics.iotics.sparqlhttp;
 import com.iotics.api.MetaAPIGrpc;
 import com.iotics.api.Scope;
 import com.iotics.api.SparqlResultType;
-import io.grpc.ManagedChannel;
+import com.google.gson.Gson;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
 import io.vertx.core.AbstractVerticle;
-import io.vertx.core.Launcher;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
 import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.Http2Settings;
 import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
 import io.vertx.core.impl.logging.Logger;
 import io.vertx.core.impl.logging.LoggerFactory;
 import io.vertx.core.net.PemKeyCertOptions;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
-import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.StaticHandler;
 import org.apache.logging.log4j.util.Strings;
 import org.jetbrains.annotations.NotNull;
@@ -26,38 +34,110 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static smartrics.iotics.sparqlhttp.ContentTypesMap.mimeFor;
 
 public class SparqlEndpoint extends AbstractVerticle {
     private static final Logger LOGGER = LoggerFactory.getLogger(SparqlEndpoint.class);
-
+    static final String QUERY_TIMEOUT_HEADER = "X-Query-Timeout";
+    static final String BATCH_PATH = "/sparql/batch";
+    private static final long LAG_PROBE_INTERVAL_MS = 1000;
+    private static final long TOKEN_SWEEP_INTERVAL_MS = 60_000;
+    private static final Set<String> REDACTED_HEADERS = Set.of("authorization", "proxy-authorization");
+    private static final ContentNegotiator CONTENT_NEGOTIATOR = new ContentNegotiator(ContentNegotiator.DEFAULT_CACHE_SIZE);
+
+    private final SharedServices services;
     private final Identities identities;
-    private final Duration defaultTokenDuration;
     private final Boolean enableAnonymous;
     private final ConfigManager configManager;
+    private final ChannelPool channelPool;
+    private final int reorderWindow;
+    private final TokenValidationCache tokenValidationCache;
+    private final ResultCache resultCache;
+    private final ResponseCompression compression;
+    private final InFlightQueries inFlightQueries;
+    private final PrometheusMeterRegistry meterRegistry;
+    private final SparqlRunner.Meters runnerMeters;
+    private final AccessLog accessLog;
+    private final SparqlBodyHandler sparqlBodyHandler;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final RateLimitStore rateLimitStore;
+    private final CircuitBreaker circuitBreaker;
+    private final Hedging hedging;
+    private final UpstreamHosts upstreamHosts;
+    private final Duration queryTimeout;
+    private final Duration maxQueryTimeout;
+    private final int batchMaxItems;
+    private final int batchParallelism;
+    private final long batchMaxResultSize;
+    private long lagProbe = -1;
+    private long rateLimitSweeper = -1;
+    private long tokenSweeper = -1;
 
     public SparqlEndpoint() {
         this(HashMap.newHashMap(0));
     }
 
     public SparqlEndpoint(Map<ConfigManager.ConfigKey, String> configOverrides) {
-        configManager = new ConfigManager(configOverrides);
-        identities = new Identities(configManager.getValue(ConfigManager.ConfigKey.HOST_DNS),
-                configManager.getValue(ConfigManager.ConfigKey.USER_KEY), configManager.getValue(ConfigManager.ConfigKey.USER_SEED),
-                configManager.getValue(ConfigManager.ConfigKey.AGENT_KEY), configManager.getValue(ConfigManager.ConfigKey.AGENT_SEED));
-        defaultTokenDuration = Duration.parse(configManager.getValue(ConfigManager.ConfigKey.TOKEN_DURATION));
-        enableAnonymous = Boolean.valueOf(configManager.getValue(ConfigManager.ConfigKey.ENABLE_ANON));
-
-        Map<String, String> printableConfig = configManager.getPrintableConfig();
-        LOGGER.info("Configuration: ");
-        printableConfig.forEach((key, value) -> LOGGER.info("  " + key + ": " + value));
+        this(new SharedServices(new ConfigManager(configOverrides)));
     }
 
+    public SparqlEndpoint(SharedServices services) {
+        this.services = services;
+        services.retain();
+        configManager = services.configManager();
+        identities = services.identities();
+        channelPool = services.channelPool();
+        tokenValidationCache = services.tokenValidationCache();
+        resultCache = services.resultCache();
+        compression = services.compression();
+        inFlightQueries = services.inFlightQueries();
+        concurrencyLimiter = services.concurrencyLimiter();
+        rateLimitStore = rateLimitStore(services);
+        circuitBreaker = services.circuitBreaker();
+        hedging = services.hedging();
+        upstreamHosts = services.upstreamHosts();
+        meterRegistry = services.meterRegistry();
+        runnerMeters = services.runnerMeters();
+        accessLog = new AccessLog(Double.parseDouble(configManager.getValue(ConfigManager.ConfigKey.ACCESS_LOG_SAMPLE_RATE)));
+        sparqlBodyHandler = new SparqlBodyHandler(Long.parseLong(configManager.getValue(ConfigManager.ConfigKey.MAX_QUERY_BYTES)));
+        enableAnonymous = Boolean.valueOf(configManager.getValue(ConfigManager.ConfigKey.ENABLE_ANON));
+        reorderWindow = Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.REORDER_WINDOW));
+        queryTimeout = Duration.parse(configManager.getValue(ConfigManager.ConfigKey.QUERY_TIMEOUT));
+        maxQueryTimeout = Duration.parse(configManager.getValue(ConfigManager.ConfigKey.QUERY_TIMEOUT_MAX));
+        batchMaxItems = Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.BATCH_MAX_ITEMS));
+        batchParallelism = Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.BATCH_PARALLELISM));
+        batchMaxResultSize = Long.parseLong(configManager.getValue(ConfigManager.ConfigKey.BATCH_MAX_RESULT_SIZE));
+    }
 
     public static void main(String[] args) {
-        Launcher.executeCommand("run", SparqlEndpoint.class.getName());
+        SharedServices services = new SharedServices(new ConfigManager());
+        int instances = Integer.parseInt(services.configManager().getValue(ConfigManager.ConfigKey.VERTICLE_INSTANCES));
+        Vertx vertx = Vertx.vertx();
+        // the identities are got ready in the background: the listeners bind at once, /ready tells when they can serve
+        // every instance listens on the same ports: Vert.x round-robins the accepted connections between them
+        vertx.deployVerticle(() -> new SparqlEndpoint(services), new DeploymentOptions().setInstances(instances))
+                .onSuccess(id -> LOGGER.info("Deployed " + instances + " endpoint instances"))
+                .onFailure(e -> {
+                    LOGGER.error("Deployment failed", e);
+                    vertx.close();
+                });
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> vertx.close().toCompletionStage().toCompletableFuture().join()));
+    }
+
+    private static RateLimitStore rateLimitStore(SharedServices services) {
+        ConfigManager config = services.configManager();
+        if (!Boolean.parseBoolean(config.getValue(ConfigManager.ConfigKey.ENABLE_RATE_LIMIT))) {
+            return null;
+        }
+        if (services.rateLimitStore() != null) {
+            return services.rateLimitStore();
+        }
+        return new InMemoryRateLimitStore(Duration.parse(config.getValue(ConfigManager.ConfigKey.RATE_LIMIT_SWEEP_INTERVAL)));
     }
 
     private static String generateShortUUID() {
@@ -68,6 +148,31 @@ public class SparqlEndpoint extends AbstractVerticle {
         return Base64.getUrlEncoder().withoutPadding().encodeToString(byteBuffer.array());
     }
 
+    /**
+     * @return the timeout asked for in milliseconds by the X-Query-Timeout header or the timeout parameter, capped at
+     * the maximum, or the default if neither is present
+     */
+    static Duration getValidQueryTimeout(HttpServerRequest request, Duration defaultTimeout, Duration maxTimeout) throws ValidationException {
+        String value = request.getHeader(QUERY_TIMEOUT_HEADER);
+        if (value == null) {
+            value = request.getParam("timeout");
+        }
+        if (value == null) {
+            return defaultTimeout;
+        }
+        long millis;
+        try {
+            millis = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            millis = -1;
+        }
+        if (millis <= 0) {
+            throw new ValidationException(400, ErrorMessage.toJson("invalid query timeout: " + value));
+        }
+        Duration timeout = Duration.ofMillis(millis);
+        return timeout.compareTo(maxTimeout) > 0 ? maxTimeout : timeout;
+    }
+
     private static void getValidQuery(HttpServerRequest request) {
         String query = request.getParam("query");
         if ("get".equalsIgnoreCase(request.method().name())) {
@@ -93,6 +198,19 @@ public class SparqlEndpoint extends AbstractVerticle {
         }
     }
 
+    private static BatchRunner.Format getValidBatch(HttpServerRequest request) {
+        if (!"post".equalsIgnoreCase(request.method().name())) {
+            throw new ValidationException(405, ErrorMessage.toJson("batches must be posted"));
+        }
+        String ct = request.getHeader("Content-Type");
+        if (Strings.isBlank(ct) || !"application/json".equals(ct.split(";")[0].trim())) {
+            throw new ValidationException(400, ErrorMessage.toJson("invalid content type"));
+        }
+        String acceptHeader = request.getHeader("Accept");
+        return BatchRunner.Format.negotiate(acceptHeader)
+                .orElseThrow(() -> new ValidationException(400, ErrorMessage.toJson("Unsupported response mime type: " + acceptHeader)));
+    }
+
     private static void validateGraphName(RoutingContext ctx) {
         // SPARQL-1.1 Par 2.1.4
         List<String> def = ctx.queryParam("default-graph-uri");
@@ -102,25 +220,10 @@ public class SparqlEndpoint extends AbstractVerticle {
         }
     }
 
-    private static @NotNull SparqlResultType getValidAcceptedResultType(HttpServerRequest request) {
+    private static @NotNull ContentNegotiator.Negotiated getValidAcceptedResultType(HttpServerRequest request) {
         String acceptHeader = request.getHeader("Accept");
-        String[] mediaRanges = acceptHeader.split(",");
-
-        List<MediaType> mediaTypes = Arrays.stream(mediaRanges)
-                .map(String::trim)
-                .map(MediaType::new)
-                .sorted(Comparator.comparingDouble(MediaType::getQuality).reversed())
-                .toList();
-
-        for (MediaType mediaType : mediaTypes) {
-            String type = mediaType.getType();
-            Optional<SparqlResultType> fileFormat = ContentTypesMap.get(type);
-            if (fileFormat.isPresent()) {
-                return fileFormat.get();
-            }
-        }
-
-        throw new ValidationException(400, ErrorMessage.toJson("Unsupported response mime type: " + acceptHeader));
+        return CONTENT_NEGOTIATOR.negotiate(acceptHeader)
+                .orElseThrow(() -> new ValidationException(400, ErrorMessage.toJson("Unsupported response mime type: " + acceptHeader)));
     }
 
     public static String tokenValidMessage(SimpleToken token) {
@@ -139,45 +242,161 @@ public class SparqlEndpoint extends AbstractVerticle {
         Router router = Router.router(vertx);
 
         router.route().handler(this::logRequestAndResponse);
+        router.route().handler(accessLog);
+        router.route().handler(this::recordRequestMetrics);
 
         // Handle /health route separately
         router.get("/*").handler(StaticHandler.create("webroot"));
         router.get("/health").handler(this::handleHealth);
+        router.get("/ready").handler(this::handleReady);
+        if (Boolean.parseBoolean(configManager.getValue(ConfigManager.ConfigKey.ENABLE_METRICS))) {
+            router.get("/metrics").handler(ctx -> ctx.response()
+                    .putHeader("Content-Type", TextFormat.CONTENT_TYPE_004)
+                    .end(meterRegistry.scrape()));
+        }
 
-        // Apply the BodyHandler and validateRequest handler to the /sparql routes
-        router.route("/sparql*").handler(BodyHandler.create()).handler(this::validateRequest);
+        // Hold the /sparql routes until the identities are ready, refuse clients over their rate, read the posted
+        // query, then validate the /sparql routes and wait for a slot to run the query
+        router.route("/sparql*").handler(this::awaitReadiness);
+        if (rateLimitStore != null) {
+            router.route("/sparql*").handler(new RateLimiter(rateLimitStore,
+                    new RateLimitStore.Rate(Double.parseDouble(configManager.getValue(ConfigManager.ConfigKey.RATE_LIMIT_GLOBAL_RPS)),
+                            Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.RATE_LIMIT_GLOBAL_BURST))),
+                    new RateLimitStore.Rate(Double.parseDouble(configManager.getValue(ConfigManager.ConfigKey.RATE_LIMIT_LOCAL_RPS)),
+                            Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.RATE_LIMIT_LOCAL_BURST))),
+                    meterRegistry));
+        }
+        router.route("/sparql*").handler(sparqlBodyHandler).handler(this::validateRequest);
+        if (concurrencyLimiter != null) {
+            router.route("/sparql*").handler(new AdmissionControl(concurrencyLimiter));
+        }
 
         // Define the /sparql routes
         router.get("/sparql/local").handler(ctx -> this.handleGet(ctx, Scope.LOCAL));
         router.get("/sparql").handler(ctx -> this.handleGet(ctx, Scope.GLOBAL));
         router.post("/sparql/local").handler(ctx -> this.handlePost(ctx, Scope.LOCAL));
         router.post("/sparql").handler(ctx -> this.handlePost(ctx, Scope.GLOBAL));
+        router.post(BATCH_PATH).handler(this::handleBatch);
+
+        if (Boolean.parseBoolean(configManager.getValue(ConfigManager.ConfigKey.ENABLE_ADMIN))) {
+            router.get("/admin/channels").handler(ctx -> sendJson(ctx, channelPool.stats()));
+            router.get("/admin/identities").handler(ctx -> sendJson(ctx, identities.stats()));
+            if (inFlightQueries != null) {
+                router.get("/admin/inflight").handler(ctx -> sendJson(ctx, inFlightQueries.stats()));
+            }
+            if (concurrencyLimiter != null) {
+                router.get("/admin/concurrency").handler(ctx -> sendJson(ctx, concurrencyLimiter.stats()));
+            }
+            if (circuitBreaker != null) {
+                router.get("/admin/breaker").handler(ctx -> sendJson(ctx, circuitBreaker.stats()));
+            }
+            if (hedging != null) {
+                router.get("/admin/hedging").handler(ctx -> sendJson(ctx, hedging.stats()));
+            }
+            if (upstreamHosts != null) {
+                router.get("/admin/upstreams").handler(ctx -> sendJson(ctx, upstreamHosts.stats()));
+            }
+            if (resultCache != null) {
+                router.get("/admin/cache").handler(ctx -> sendJson(ctx, resultCache.stats()));
+                router.delete("/admin/cache").handler(ctx -> {
+                    resultCache.purge();
+                    ctx.response().setStatusCode(204).end();
+                });
+            }
+        }
         return router;
     }
 
-    private void logRequestAndResponse(RoutingContext ctx) {
-        String remoteAddress = ctx.request().remoteAddress().toString();
-        String uri = ctx.request().uri();
-        String absoluteUri = ctx.request().absoluteURI();
-        String method = ctx.request().method().toString();
-        String headers = ctx.request().headers().entries().stream().map(e -> e.getKey() + ":" + e.getValue()).collect(Collectors.joining(", "));
-        String id = generateShortUUID();
-
-        LOGGER.debug("Request [id=" + id + "][URI=" + uri + "][method=" + method + "][from=" + remoteAddress + "][absoluteURI=" + absoluteUri + "][headers=" + headers + "]");
-        ctx.addBodyEndHandler(v -> {
-            int statusCode = ctx.response().getStatusCode();
-            String statusMessage = ctx.response().getStatusMessage();
-            String respHeaders = ctx.response().headers().entries().stream().map(e -> e.getKey() + ":" + e.getValue()).collect(Collectors.joining(", "));
-            LOGGER.debug("Response [id=" + id + "][statusCode=" + statusCode + "][statusMessage=" + statusMessage + "][headers=" + respHeaders + "]");
+    void logRequestAndResponse(RoutingContext ctx) {
+        if (LOGGER.isDebugEnabled()) {
+            String id = generateShortUUID();
+            HttpServerRequest request = ctx.request();
+            LOGGER.debug("Request [id=" + id + "][URI=" + request.uri() + "][method=" + request.method() + "][from=" + request.remoteAddress()
+                    + "][absoluteURI=" + request.absoluteURI() + "][headers=" + formatHeaders(request.headers()) + "]");
+            ctx.addBodyEndHandler(v -> {
+                HttpServerResponse response = ctx.response();
+                LOGGER.debug("Response [id=" + id + "][statusCode=" + response.getStatusCode() + "][statusMessage=" + response.getStatusMessage()
+                        + "][headers=" + formatHeaders(response.headers()) + "]");
+            });
+        }
+        ctx.next();
+    }
+
+    static String formatHeaders(MultiMap headers) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> header : headers) {
+            if (!sb.isEmpty()) {
+                sb.append(", ");
+            }
+            sb.append(header.getKey()).append(':');
+            if (REDACTED_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+                sb.append("<redacted>");
+            } else {
+                sb.append(header.getValue());
+            }
+        }
+        return sb.toString();
+    }
+
+    void recordRequestMetrics(RoutingContext ctx) {
+        long startNanos = System.nanoTime();
+        ctx.addEndHandler(ar -> {
+            String path = ctx.normalizedPath();
+            SparqlResultType type = ctx.get("acceptedResponseType");
+            Timer.builder("http.server.requests")
+                    .description("HTTP requests, from routing to the end of the response")
+                    .tag("route", routeOf(path))
+                    .tag("scope", "/sparql/local".equals(path) ? Scope.LOCAL.name() : "/sparql".equals(path) ? Scope.GLOBAL.name() : "none")
+                    .tag("type", type != null ? type.name() : "none")
+                    .tag("status", ar.succeeded() ? String.valueOf(ctx.response().getStatusCode()) : "reset")
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
         });
         ctx.next();
     }
 
+    // keeps the route tag's cardinality bounded whatever paths clients request
+    static String routeOf(String path) {
+        if (path == null) {
+            return "other";
+        }
+        return switch (path) {
+            case "/sparql", "/sparql/local", BATCH_PATH, "/health", "/ready", "/metrics" -> path;
+            default -> path.startsWith("/admin/") ? "/admin" : "other";
+        };
+    }
+
+    /**
+     * Records how late this instance's event loop runs a periodic timer: a busy or blocked loop delays it.
+     */
+    private void startLagProbe() {
+        Timer lag = Timer.builder("vertx.eventloop.lag")
+                .description("Delay of a periodic timer on the event loop beyond its interval")
+                .tag("loop", Thread.currentThread().getName())
+                .register(meterRegistry);
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(LAG_PROBE_INTERVAL_MS);
+        long[] expected = {System.nanoTime() + intervalNanos};
+        lagProbe = vertx.setPeriodic(LAG_PROBE_INTERVAL_MS, id -> {
+            long now = System.nanoTime();
+            lag.record(Math.max(0, now - expected[0]), TimeUnit.NANOSECONDS);
+            expected[0] = now + intervalNanos;
+        });
+    }
+
     public void start() {
-        String port = Optional.ofNullable(System.getenv("PORT")).orElse("8080");
+        startLagProbe();
+        // expired tokens nobody sends again would otherwise stay until pushed out by the size bound
+        tokenSweeper = vertx.setPeriodic(TOKEN_SWEEP_INTERVAL_MS, id -> tokenValidationCache.sweep());
+        if (rateLimitStore != null) {
+            // a shared store skips the sweeps asked for too soon after another instance's
+            long interval = Duration.parse(configManager.getValue(ConfigManager.ConfigKey.RATE_LIMIT_SWEEP_INTERVAL)).toMillis();
+            rateLimitSweeper = vertx.setPeriodic(interval, id -> rateLimitStore.sweep(System.nanoTime()));
+        }
+        String port = configManager.getValue(ConfigManager.ConfigKey.PORT);
         Router router = createRouter();
         LOGGER.info("Starting on port " + port);
-        vertx.createHttpServer()
+        vertx.createHttpServer(httpOptions(configManager))
                 .requestHandler(router)
                 .listen(Integer.parseInt(port), http -> {
                     if (http.succeeded()) {
@@ -188,16 +407,9 @@ public class SparqlEndpoint extends AbstractVerticle {
                 });
 
         // HTTPS server
-        String httpsPort = Optional.ofNullable(System.getenv("SECURE_PORT")).orElse("8443");
-        HttpServerOptions options = new HttpServerOptions()
-                .setSsl(true)
-                .setKeyCertOptions(new PemKeyCertOptions()
-                        .setCertPath("./ssl/server.crt")
-                        .setKeyPath("./ssl/server.key")
-                );
-
+        String httpsPort = configManager.getValue(ConfigManager.ConfigKey.SECURE_PORT);
         LOGGER.info("Starting on secure port " + httpsPort);
-        vertx.createHttpServer(options)
+        vertx.createHttpServer(httpsOptions(configManager))
                 .requestHandler(router)
                 .listen(Integer.parseInt(httpsPort), http -> {
                     if (http.succeeded()) {
@@ -209,11 +421,75 @@ public class SparqlEndpoint extends AbstractVerticle {
                 });
     }
 
+    static HttpServerOptions httpOptions(ConfigManager configManager) {
+        // h2c: clients upgrade from HTTP/1.1 or start with HTTP/2 straight away (prior knowledge)
+        return new HttpServerOptions()
+                .setHttp2ClearTextEnabled(Boolean.parseBoolean(configManager.getValue(ConfigManager.ConfigKey.ENABLE_H2C)))
+                .setInitialSettings(http2Settings(configManager));
+    }
+
+    static HttpServerOptions httpsOptions(ConfigManager configManager) {
+        HttpServerOptions options = new HttpServerOptions()
+                .setSsl(true)
+                .setKeyCertOptions(new PemKeyCertOptions()
+                        .setCertPath("./ssl/server.crt")
+                        .setKeyPath("./ssl/server.key")
+                )
+                .setInitialSettings(http2Settings(configManager));
+        if (Boolean.parseBoolean(configManager.getValue(ConfigManager.ConfigKey.ENABLE_HTTP2))) {
+            // HTTP/2 is preferred; clients without ALPN or HTTP/2 support get HTTP/1.1
+            options.setUseAlpn(true).setAlpnVersions(List.of(HttpVersion.HTTP_2, HttpVersion.HTTP_1_1));
+        }
+        return options;
+    }
+
+    static Http2Settings http2Settings(ConfigManager configManager) {
+        return new Http2Settings()
+                .setMaxConcurrentStreams(Long.parseLong(configManager.getValue(ConfigManager.ConfigKey.HTTP2_MAX_CONCURRENT_STREAMS)))
+                .setInitialWindowSize(Integer.parseInt(configManager.getValue(ConfigManager.ConfigKey.HTTP2_INITIAL_WINDOW_SIZE)))
+                .setHeaderTableSize(Long.parseLong(configManager.getValue(ConfigManager.ConfigKey.HTTP2_HEADER_TABLE_SIZE)));
+    }
+
+    @Override
+    public void stop() {
+        if (lagProbe >= 0) {
+            vertx.cancelTimer(lagProbe);
+        }
+        if (rateLimitSweeper >= 0) {
+            vertx.cancelTimer(rateLimitSweeper);
+        }
+        if (tokenSweeper >= 0) {
+            vertx.cancelTimer(tokenSweeper);
+        }
+        services.release();
+    }
+
     private void handleHealth(RoutingContext ctx) {
         ctx.response().setStatusCode(200);
         ctx.response().end("{ \"status\" : \"OK\" }");
     }
 
+    /**
+     * Readiness, unlike health, waits for the identities: the listeners are up long before them.
+     */
+    private void handleReady(RoutingContext ctx) {
+        boolean ready = identities.ready();
+        ctx.response().setStatusCode(ready ? 200 : 503);
+        ctx.response().end(ready ? "{ \"status\" : \"READY\" }" : "{ \"status\" : \"STARTING\" }");
+    }
+
+    void awaitReadiness(RoutingContext ctx) {
+        if (identities.ready()) {
+            ctx.next();
+            return;
+        }
+        ctx.response()
+                .putHeader("Retry-After", "1")
+                .setStatusCode(503)
+                .setStatusMessage(ErrorMessage.toJson("Service Unavailable: starting up"))
+                .end();
+    }
+
     private void handleGet(RoutingContext ctx, Scope scope) {
         try {
             String encodedQuery = ctx.request().getParam("query");
@@ -255,7 +531,11 @@ public class SparqlEndpoint extends AbstractVerticle {
                     { "sd:contentType": "application/rdf+xml" },
                     { "sd:contentType": "text/turtle" },
                     { "sd:contentType": "application/x-turtle" },
-                    { "sd:contentType": "application/n-triples" }
+                    { "sd:contentType": "application/n-triples" },
+                    { "sd:contentType": "text/tab-separated-values" },
+                    { "sd:contentType": "application/n-quads" },
+                    { "sd:contentType": "application/ld+json" },
+                    { "sd:contentType": "application/rdf+json" }
                   ],
                   "void:triplestore": "IOTICSpace"
                 }
@@ -264,15 +544,8 @@ public class SparqlEndpoint extends AbstractVerticle {
 
     private void handlePost(RoutingContext ctx, Scope scope) {
         try {
-            String query = ctx.body().asString();
+            String query = ctx.get(SparqlBodyHandler.QUERY);
             String token = ctx.get("token");
-            String ct = ctx.request().getHeader("Content-Type");
-            ct = ct.split(";")[0].trim();
-            if ("application/x-www-form-urlencoded".equals(ct)) {
-                MultiMap formAttributes = ctx.request().formAttributes();
-                // TODO: we should check the charset in the content type if available
-                query = URLDecoder.decode(query, StandardCharsets.UTF_8);
-            }
             if (query != null) {
                 handle(scope, ctx, token, query);
             } else {
@@ -284,45 +557,69 @@ public class SparqlEndpoint extends AbstractVerticle {
         }
     }
 
+    private void sendJson(RoutingContext ctx, Object value) {
+        ctx.response().putHeader("Content-Type", "application/json");
+        ctx.response().end(new Gson().toJson(value));
+    }
+
     private void handle(Scope scope, RoutingContext ctx, String token, String query) {
-        ManagedChannel channel = null;
+        ctx.put("query", query);
+        if (ctx.response().closed()) {
+            // the client gave up while the request was validated
+            return;
+        }
         try {
-            String host = configManager.getValue(ConfigManager.ConfigKey.HOST_DNS);
-            IOTICSConnection connection = new IOTICSConnection(host);
-            channel = connection.newChannel(token);
-            MetaAPIGrpc.MetaAPIStub api = MetaAPIGrpc.newStub(channel);
             SparqlResultType type = ctx.get("acceptedResponseType");
-            String mime = mimeFor(type);
+            Transcoding transcoding = ctx.get("transcoding");
+            String mime = transcoding != null ? transcoding.mime() : mimeFor(type);
             if (mime != null) {
                 ctx.response().headers().set("Content-Type", mime);
             }
             ctx.response().headers().add("Access-Control-Allow-Origin", "*");
-            //StreamObserverToStringAdapter outputStream = new StreamObserverToStringAdapter();
-
-            QueryRunner runner = SparqlRunner.SparqlRunnerBuilder.newBuilder()
-                    .withScope(scope)
-                    .withSparqlResultType(type)
-                    .withMetaAPIStub(api)
-                    .withOutputStream(new StreamObserver<>() {
-
-                        @Override
-                        public void onNext(String s) {
-                            ctx.response().setStatusCode(200);
-                            ctx.response().send(s);
-                        }
-
-                        @Override
-                        public void onError(Throwable e) {
-                            sendError(400, ErrorMessage.toJson(e.getMessage()), ctx.response());
-                        }
+            Optional<ResponseCompression.Encoding> encoding = Optional.empty();
+            if (compression != null) {
+                ctx.response().headers().add("Vary", "Accept-Encoding");
+                encoding = ResponseCompression.negotiate(ctx.request().getHeader("Accept-Encoding"));
+            }
 
-                        @Override
-                        public void onCompleted() {
+            QueryKey key = QueryKey.of(scope, query, type, ctx.get("userDID"));
+            if (resultCache != null) {
+                ResultCache.CachedResult cached = resultCache.get(key);
+                if (cached != null) {
+                    sendCached(ctx, cached, type, transcoding, encoding);
+                    return;
+                }
+            }
 
-                        }
-                    })
-                    .withAgentIdentity(identities.agentIdentity())
-                    .build();
+            ChunkedResponseWriter writer;
+            if (encoding.isPresent()) {
+                writer = new ChunkedResponseWriter(vertx.getOrCreateContext(), ctx.response(),
+                        compression.encoder(encoding.get(), type), compression.minBytes());
+            } else {
+                writer = new ChunkedResponseWriter(vertx.getOrCreateContext(), ctx.response());
+            }
+            // the host's results are shared and cached as they come: each response converts its own copy
+            StreamObserver<String> output = transcoding != null ? transcoding.transcoding(writer) : writer;
+            Duration timeout = ctx.get("queryTimeout");
+            ConcurrencyLimiter.Permit permit = ctx.get(AdmissionControl.PERMIT);
+            if (permit != null) {
+                output = permit.observing(output);
+            }
+            QueryRunner runner;
+            if (inFlightQueries != null) {
+                // a joining request shares the deadline of the query it joins
+                runner = inFlightQueries.join(key, output, upstream -> newRunner(scope, type, token, key, timeout, upstream));
+            } else {
+                runner = newRunner(scope, type, token, key, timeout, output);
+            }
+            // a closed connection or reset stream cancels the upstream call, or leaves the shared one. Through an end
+            // handler: setting the response's close handler would replace the one the route's end handlers rely on
+            ctx.addEndHandler(ar -> {
+                if (ar.failed()) {
+                    runner.cancel();
+                }
+            });
+            writer.attach(runner);
             runner.run(query);
         } catch (Exception e) {
             LOGGER.warn("exception when handling request", e);
@@ -331,11 +628,134 @@ public class SparqlEndpoint extends AbstractVerticle {
                 message = message + ": " + e.getCause().getMessage();
             }
             sendError(500, ErrorMessage.toJson(message), ctx.response());
-        } finally {
-            if (channel != null) {
-                channel.shutdown();
+        }
+    }
+
+    private void sendCached(RoutingContext ctx, ResultCache.CachedResult cached, SparqlResultType type, Transcoding transcoding,
+                            Optional<ResponseCompression.Encoding> encoding) {
+        Buffer body = cached.toBuffer();
+        if (transcoding != null) {
+            try {
+                body = Buffer.buffer(transcoding.transcode(body.toString(StandardCharsets.UTF_8)));
+            } catch (IllegalArgumentException e) {
+                sendError(400, ErrorMessage.toJson(e.getMessage()), ctx.response());
+                return;
+            }
+        }
+        if (encoding.isPresent() && body.length() >= compression.minBytes()) {
+            // the gzipped copy is of the host's format
+            Buffer gzipped = encoding.get() == ResponseCompression.Encoding.GZIP && transcoding == null ? cached.toGzippedBuffer() : null;
+            body = gzipped != null ? gzipped : Buffer.buffer(compression.compress(encoding.get(), type, body.getBytes()));
+            ctx.response().putHeader("Content-Encoding", encoding.get().token());
+        }
+        ctx.response().setStatusCode(200).end(body);
+    }
+
+    private void handleBatch(RoutingContext ctx) {
+        if (ctx.response().closed()) {
+            return;
+        }
+        try {
+            List<BatchRunner.Item> items = BatchRunner.parse(ctx.get(SparqlBodyHandler.BATCH), batchMaxItems);
+            String token = ctx.get("token");
+            String userDID = ctx.get("userDID");
+            Duration timeout = ctx.get("queryTimeout");
+            // the items share the caller's token; each takes a pooled channel of its own, like a query on its own would
+            BatchRunner batch = new BatchRunner(vertx.getOrCreateContext(), ctx.response(), ctx.get("batchFormat"), items,
+                    batchParallelism, batchMaxResultSize,
+                    (item, output) -> startBatchItem(item, output, token, userDID, timeout),
+                    concurrencyLimiter, userDID);
+            ctx.response().headers().add("Access-Control-Allow-Origin", "*");
+            ctx.addEndHandler(ar -> {
+                if (ar.failed()) {
+                    batch.cancel();
+                }
+            });
+            batch.start();
+        } catch (ValidationException e) {
+            sendError(e.getCode(), e.getMessage(), ctx.response());
+        }
+    }
+
+    private QueryRunner startBatchItem(BatchRunner.Item item, BatchRunner.ItemOutput output, String token, String userDID,
+                                       Duration timeout) {
+        Scope scope = item.scopeOrNull();
+        if (item.query() == null || item.query().isBlank()) {
+            output.fail(400, "missing query");
+            return null;
+        }
+        if (scope == null) {
+            output.fail(400, "invalid scope: " + item.scope());
+            return null;
+        }
+        Optional<ContentNegotiator.Negotiated> negotiated = CONTENT_NEGOTIATOR.negotiate(item.accept());
+        if (negotiated.isEmpty()) {
+            output.fail(400, "Unsupported response mime type: " + item.accept());
+            return null;
+        }
+        SparqlResultType type = negotiated.get().type();
+        Transcoding transcoding = negotiated.get().transcoding();
+        output.contentType(transcoding != null ? transcoding.mime() : mimeFor(type));
+        QueryKey key = QueryKey.of(scope, item.query(), type, userDID);
+        if (resultCache != null) {
+            ResultCache.CachedResult cached = resultCache.get(key);
+            if (cached != null) {
+                String result = cached.toBuffer().toString(StandardCharsets.UTF_8);
+                try {
+                    output.onNext(transcoding != null ? transcoding.transcode(result) : result);
+                    output.onCompleted();
+                } catch (IllegalArgumentException e) {
+                    output.fail(400, e.getMessage());
+                }
+                return null;
+            }
+        }
+        StreamObserver<String> results = transcoding != null ? transcoding.transcoding(output) : output;
+        if (inFlightQueries != null) {
+            return inFlightQueries.join(key, results, upstream -> newRunner(scope, type, token, key, timeout, upstream));
+        }
+        return newRunner(scope, type, token, key, timeout, results);
+    }
+
+    private QueryRunner newRunner(Scope scope, SparqlResultType type, String token, QueryKey key, Duration timeout,
+                                  StreamObserver<String> output) {
+        StreamObserver<String> results = resultCache != null ? resultCache.recording(key, output) : output;
+        if (hedging != null && scope == Scope.LOCAL) {
+            return new HedgedRunner(vertx, hedging, copy -> newUpstreamRunner(scope, type, token, timeout, copy), results);
+        }
+        return newUpstreamRunner(scope, type, token, timeout, results);
+    }
+
+    private QueryRunner newUpstreamRunner(Scope scope, SparqlResultType type, String token, Duration timeout,
+                                          StreamObserver<String> output) {
+        CircuitBreaker.Call call = null;
+        if (circuitBreaker != null) {
+            call = circuitBreaker.tryCall();
+            if (call == null) {
+                return QueryRunner.failing(output, Status.UNAVAILABLE
+                        .withDescription("Service Unavailable: the IOTICS host is failing, queries are paused").asRuntimeException());
             }
+            output = call.observing(output);
         }
+        // local queries are about the home host's own twins
+        UpstreamHosts.Lease lease = scope == Scope.LOCAL ? upstreamHosts.acquireHome() : upstreamHosts.acquire();
+        output = lease.observing(output);
+        ChannelPool.Lease channel = channelPool.acquire(lease.host());
+        output = channel.observing(output);
+        MetaAPIGrpc.MetaAPIStub api = MetaAPIGrpc.newStub(channel.channel())
+                .withCallCredentials(IOTICSConnection.bearer(token));
+        SparqlRunner runner = SparqlRunner.SparqlRunnerBuilder.newBuilder()
+                .withScope(scope)
+                .withSparqlResultType(type)
+                .withMetaAPIStub(api)
+                .withOutputStream(output)
+                .withReorderWindow(reorderWindow)
+                .withMeters(runnerMeters)
+                .withTimeout(timeout)
+                .withAgentIdentity(identities.agentIdentity())
+                .build();
+        QueryRunner leased = lease.guarding(channel.guarding(runner));
+        return call != null ? call.guarding(leased) : leased;
     }
 
     private void sendError(int statusCode, String message, HttpServerResponse response) {
@@ -346,55 +766,83 @@ public class SparqlEndpoint extends AbstractVerticle {
         try {
             HttpServerRequest request = ctx.request();
             validateGraphName(ctx);
-            getValidQuery(request);
-            TokenPair tokenPair = makeOrGetValidToken(request);
-            SparqlResultType mappedAccepted = getValidAcceptedResultType(request);
+            boolean batch = BATCH_PATH.equals(ctx.normalizedPath());
+            if (batch) {
+                ctx.put("batchFormat", getValidBatch(request));
+            } else {
+                getValidQuery(request);
+            }
+            ctx.put("queryTimeout", getValidQueryTimeout(request, queryTimeout, maxQueryTimeout));
+            makeOrGetValidToken(request).onComplete(ar -> {
+                try {
+                    if (ar.failed()) {
+                        throw toValidationException(ar.cause());
+                    }
+                    TokenPair tokenPair = ar.result();
+                    // each query of a batch has an Accept of its own
+                    if (!batch) {
+                        ContentNegotiator.Negotiated negotiated = getValidAcceptedResultType(request);
+                        ctx.put("acceptedResponseType", negotiated.type());
+                        if (negotiated.transcoding() != null) {
+                            ctx.put("transcoding", negotiated.transcoding());
+                        }
+                    }
 
-            ctx.put("token", tokenPair.tokenString);
-            ctx.put("acceptedResponseType", mappedAccepted);
-            ctx.put("agentDID", tokenPair.simpleToken.agentDID());
-            ctx.put("agentId", tokenPair.simpleToken.agentId());
-            ctx.put("userDID", tokenPair.simpleToken.userDID());
+                    ctx.put("token", tokenPair.tokenString);
+                    ctx.put("agentDID", tokenPair.validatedToken.agentDID());
+                    ctx.put("agentId", tokenPair.validatedToken.agentId());
+                    ctx.put("userDID", tokenPair.validatedToken.userDID());
 
-            ctx.next();
+                    ctx.next();
+                } catch (ValidationException e) {
+                    sendError(e.getCode(), e.getMessage(), ctx.response());
+                }
+            });
         } catch (ValidationException e) {
             sendError(e.getCode(), e.getMessage(), ctx.response());
         }
         return true;
     }
 
-    private @NotNull TokenPair makeOrGetValidToken(HttpServerRequest request) {
+    private static ValidationException toValidationException(Throwable cause) {
+        if (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof ValidationException e) {
+            return e;
+        }
+        if (cause instanceof RejectedExecutionException || cause instanceof TimeoutException) {
+            return new ValidationException(503, ErrorMessage.toJson("Service Unavailable: unable to process Bearer token in time"));
+        }
+        LOGGER.warn("unable to process Bearer token", cause);
+        return new ValidationException(401, ErrorMessage.toJson("Access Denied: unable to process Bearer token provided"));
+    }
+
+    private Future<TokenPair> makeOrGetValidToken(HttpServerRequest request) {
         String authHeader = request.getHeader("Authorization");
-        String token;
+        Future<String> token;
         if (authHeader == null && enableAnonymous) {
-            token = identities.newToken(defaultTokenDuration);
+            token = identities.newTokenAsync();
         } else {
             if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-                throw new ValidationException(401, ErrorMessage.toJson("Access Denied: no Bearer token provided"));
+                return Future.failedFuture(new ValidationException(401, ErrorMessage.toJson("Access Denied: no Bearer token provided")));
             }
             String bearer = authHeader.substring("Bearer ".length());
             if (bearer.indexOf(":") > 0) {
-                try {
-                    token = identities.newToken(bearer, defaultTokenDuration);
-                } catch (RuntimeException e) {
-                    e.printStackTrace();
-                    throw new ValidationException(401, ErrorMessage.toJson("Access Denied: unable to process Bearer token provided"));
-                }
+                token = identities.newTokenAsync(bearer);
             } else {
-                token = bearer;
+                token = Future.succeededFuture(bearer);
             }
         }
-        SimpleToken simpleToken;
+        return token.map(this::validToken);
+    }
+
+    private @NotNull TokenPair validToken(String token) {
         try {
-            simpleToken = SimpleToken.parse(token);
-            String message = tokenValidMessage(simpleToken);
-            if (message != null) {
-                throw new ValidationException(401, ErrorMessage.toJson("Access Denied: " + message));
-            }
+            return new TokenPair(token, tokenValidationCache.validate(token));
         } catch (IllegalArgumentException e) {
             throw new ValidationException(401, ErrorMessage.toJson("Access Denied: " + e.getMessage()));
         }
-        return new TokenPair(token, simpleToken);
     }
 
     public static class ValidationException extends RuntimeException {
@@ -410,6 +858,6 @@ public class SparqlEndpoint extends AbstractVerticle {
         }
     }
 
-    record TokenPair(String tokenString, SimpleToken simpleToken) {
+    record TokenPair(String tokenString, ValidatedToken validatedToken) {
     }
 }
@@ -3,29 +3,46 @@ package smartrics.iotics.sparqlhttp;
 import com.google.protobuf.ByteString;
 import com.iotics.api.*;
 import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.*;
 import io.vertx.core.impl.logging.Logger;
 import io.vertx.core.impl.logging.LoggerFactory;
 import org.jetbrains.annotations.NotNull;
 import smartrics.iotics.host.Builders;
 import smartrics.iotics.identity.Identity;
 
-import java.util.Comparator;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class SparqlRunner implements QueryRunner {
     private static final Logger LOGGER = LoggerFactory.getLogger(SparqlRunner.class);
 
+    public static final int DEFAULT_REORDER_WINDOW = 256;
+
     private final MetaAPIGrpc.MetaAPIStub metaAPIStub;
     private final Identity agentIdentity;
     private final Scope scope;
     private final StreamObserver<String> outputStream;
     private final SparqlResultType resultContentType;
+    private final int reorderWindow;
+    private final Meters.QueryMeters meters;
+    private final Duration timeout;
+
+    private volatile boolean cancelled;
+    private final AtomicBoolean paused = new AtomicBoolean(false);
+    private final AtomicBoolean demandPending = new AtomicBoolean(false);
+    private volatile ClientCallStreamObserver<SparqlQueryRequest> requestStream;
 
-    private SparqlRunner(MetaAPIGrpc.MetaAPIStub apiStub, Identity agentIdentity, Scope scope, SparqlResultType resultContentType, StreamObserver<String> output) {
+    private SparqlRunner(MetaAPIGrpc.MetaAPIStub apiStub, Identity agentIdentity, Scope scope, SparqlResultType resultContentType, StreamObserver<String> output, int reorderWindow, Meters meters, Duration timeout) {
         this.metaAPIStub = apiStub;
+        this.timeout = timeout;
+        this.meters = meters.of(scope, resultContentType);
+        this.reorderWindow = reorderWindow;
         this.agentIdentity = agentIdentity;
         this.scope = scope;
         this.outputStream = output;
@@ -33,6 +50,9 @@ public class SparqlRunner implements QueryRunner {
     }
 
     public void run(String query) {
+        if (cancelled) {
+            return;
+        }
         StreamObserver<SparqlQueryResponse> responseObserver = newResponseObserver();
         ByteString value = ByteString.copyFromUtf8(query);
         SparqlQueryRequest sparqlQueryRequest = SparqlQueryRequest.newBuilder()
@@ -44,84 +64,210 @@ public class SparqlRunner implements QueryRunner {
                         .build())
                 .build();
         LOGGER.debug("SPARQL query: " + sparqlQueryRequest);
-        metaAPIStub.sparqlQuery(sparqlQueryRequest, responseObserver);
+        MetaAPIGrpc.MetaAPIStub stub = metaAPIStub;
+        if (timeout != null) {
+            // the deadline travels with the call, so the host gives up too
+            stub = stub.withDeadlineAfter(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        stub.sparqlQuery(sparqlQueryRequest, responseObserver);
+    }
+
+    @Override
+    public void pause() {
+        paused.set(true);
+    }
+
+    @Override
+    public void resume() {
+        paused.set(false);
+        requestNextIfDemandPending();
+    }
+
+    /**
+     * Cancels the upstream call, if started, and drops whatever it still delivers. A runner cancelled before it runs
+     * never starts the call.
+     */
+    @Override
+    public void cancel() {
+        cancelled = true;
+        ClientCallStreamObserver<SparqlQueryRequest> stream = requestStream;
+        if (stream != null) {
+            stream.cancel("query cancelled", null);
+        }
+    }
+
+    private void requestNext() {
+        demandPending.set(true);
+        if (!paused.get()) {
+            requestNextIfDemandPending();
+        }
+    }
+
+    private void requestNextIfDemandPending() {
+        ClientCallStreamObserver<SparqlQueryRequest> stream = requestStream;
+        if (stream != null && demandPending.compareAndSet(true, false)) {
+            stream.request(1);
+        }
     }
 
     @NotNull
     private StreamObserver<SparqlQueryResponse> newResponseObserver() {
-        PriorityBlockingQueue<SparqlQueryResponse.Payload> queue =
-                new PriorityBlockingQueue<>(16, Comparator.comparingLong(SparqlQueryResponse.Payload::getSeqNum));
-        AtomicInteger expectedSeqNum = new AtomicInteger(0);
-        AtomicBoolean onCompletedCalled = new AtomicBoolean(false);
-        return new StreamObserver<>() {
+        ReorderBuffer<SparqlQueryResponse.Payload> reorderBuffer = new ReorderBuffer<>(reorderWindow);
+        AtomicBoolean terminated = new AtomicBoolean(false);
+        long startNanos = System.nanoTime();
+        return new ClientResponseObserver<SparqlQueryRequest, SparqlQueryResponse>() {
+            // only touched by gRPC's serialized callbacks
+            private long chunks;
+            private long bytes;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<SparqlQueryRequest> stream) {
+                // responses are pulled one at a time so that a slow HTTP client throttles the upstream call
+                stream.disableAutoRequestWithInitial(1);
+                requestStream = stream;
+            }
+
             public void onNext(SparqlQueryResponse sparqlQueryResponse) {
+                if (terminated.get() || cancelled) {
+                    return;
+                }
                 SparqlQueryResponse.Payload payload = sparqlQueryResponse.getPayload();
-                queue.put(payload); // Automatically ordered by sequence number
-                // Attempt to process queue elements in sequence
+                try {
+                    if (!reorderBuffer.offer(payload.getSeqNum(), payload)) {
+                        LOGGER.debug("dropping duplicate result chunk " + payload.getSeqNum());
+                    }
+                } catch (QueryExecutionException e) {
+                    abort(e);
+                    return;
+                }
                 processQueue();
+                meters.reorderDepth.record(reorderBuffer.buffered());
+                if (!terminated.get()) {
+                    requestNext();
+                }
             }
 
             private void processQueue() {
-                while (!Thread.currentThread().isInterrupted()) {
-                    SparqlQueryResponse.Payload head;
-                    try {
-                        // Example of a non-blocking peek operation
-                        head = queue.peek(); // Check the head without removing
-                        if (head != null && head.getSeqNum() == expectedSeqNum.get()) {
-                            queue.take(); // Safe to remove
-                            if (head.getStatus().getCode() == Status.Code.OK.value()) {
-                                String chunk = head.getResultChunk().toStringUtf8();
-                                outputStream.onNext(chunk);
-                                expectedSeqNum.incrementAndGet();
-                            } else {
-                                onError(new RuntimeException(head.getStatus().getMessage()));
-                                break;
-                            }
-                            if (head.getLast()) {
-                                callOnCompletedOnce();
-                                break;
-                            }
-                        } else {
-                            break; // Head is not what we expect next, or queue is empty
-                        }
-                    } catch (Exception e) {
-                        if (e instanceof InterruptedException) {
-                            // Restore the interrupted status
-                            Thread.currentThread().interrupt();
-                        }
-                        outputStream.onError(e);
-                        // TODO: should I call onCompleted? or will the gRPC call the #onCompleted api?
-                        //delegateStream.onCompleted();
-                        break;
+                SparqlQueryResponse.Payload head;
+                while ((head = reorderBuffer.poll()) != null) {
+                    if (head.getStatus().getCode() != Status.Code.OK.value()) {
+                        abort(new QueryExecutionException(head.getStatus().getMessage()));
+                        return;
+                    }
+                    if (chunks++ == 0) {
+                        meters.firstChunk.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                    }
+                    bytes += head.getResultChunk().size();
+                    outputStream.onNext(head.getResultChunk().toStringUtf8());
+                    if (head.getLast()) {
+                        onCompleted();
+                        return;
                     }
                 }
             }
 
-            private void callOnCompletedOnce() {
-                boolean canCall = onCompletedCalled.compareAndSet(false, true);
-                if (canCall) {
-                    outputStream.onCompleted();
+            private void abort(Throwable throwable) {
+                onError(throwable);
+                ClientCallStreamObserver<SparqlQueryRequest> stream = requestStream;
+                if (stream != null) {
+                    stream.cancel(throwable.getMessage(), throwable);
                 }
             }
 
             @Override
             public void onError(Throwable throwable) {
-                outputStream.onError(throwable);
+                if (terminated.compareAndSet(false, true)) {
+                    if (cancelled) {
+                        record("cancelled");
+                    } else if (Status.fromThrowable(throwable).getCode() == Status.Code.DEADLINE_EXCEEDED) {
+                        record("timeout");
+                    } else {
+                        record("error");
+                    }
+                    outputStream.onError(throwable);
+                }
             }
 
             @Override
             public void onCompleted() {
-                callOnCompletedOnce();
+                if (terminated.compareAndSet(false, true)) {
+                    record("success");
+                    outputStream.onCompleted();
+                }
+            }
+
+            private void record(String outcome) {
+                meters.duration(outcome).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                meters.chunks.record(chunks);
+                meters.bytes.record(bytes);
             }
         };
     }
 
+    /**
+     * The meters of the queries run against one registry, registered once per scope and result type and shared by
+     * every runner rather than looked up again for each query.
+     */
+    public static final class Meters {
+        private static final Meters GLOBAL = new Meters(Metrics.globalRegistry);
+
+        private final MeterRegistry registry;
+        private final Map<Key, QueryMeters> byKey = new ConcurrentHashMap<>();
+
+        public Meters(MeterRegistry registry) {
+            this.registry = registry;
+        }
+
+        private QueryMeters of(Scope scope, SparqlResultType type) {
+            return byKey.computeIfAbsent(new Key(scope, type), key -> new QueryMeters(registry, Tags.of("scope", scope.name(), "type", type.name())));
+        }
+
+        private record Key(Scope scope, SparqlResultType type) {
+        }
+
+        private static final class QueryMeters {
+            private final MeterRegistry registry;
+            private final Tags tags;
+            private final DistributionSummary reorderDepth;
+            private final Timer firstChunk;
+            private final DistributionSummary chunks;
+            private final DistributionSummary bytes;
+            private final Map<String, Timer> durations = new ConcurrentHashMap<>();
+
+            QueryMeters(MeterRegistry registry, Tags tags) {
+                this.registry = registry;
+                this.tags = tags;
+                reorderDepth = DistributionSummary.builder("sparql.query.reorder.buffered")
+                        .description("Result chunks waiting for an earlier one, after each chunk received")
+                        .tags(tags).register(registry);
+                firstChunk = Timer.builder("sparql.query.first.chunk")
+                        .description("Time from sending a query upstream to its first result chunk")
+                        .tags(tags).publishPercentileHistogram().register(registry);
+                chunks = DistributionSummary.builder("sparql.query.chunks")
+                        .description("Result chunks per query")
+                        .tags(tags).register(registry);
+                bytes = DistributionSummary.builder("sparql.query.bytes")
+                        .description("Result bytes per query")
+                        .baseUnit("bytes").tags(tags).register(registry);
+            }
+
+            Timer duration(String outcome) {
+                return durations.computeIfAbsent(outcome, o -> Timer.builder("sparql.query.duration")
+                        .description("Time from sending a query upstream to its last result chunk or failure")
+                        .tags(tags).tag("outcome", o).publishPercentileHistogram().register(registry));
+            }
+        }
+    }
+
     public static final class SparqlRunnerBuilder {
         private MetaAPIGrpc.MetaAPIStub metaAPIStub;
         private Identity agentIdentity;
         private SparqlResultType resultContentType;
         private Scope scope;
         private StreamObserver<String> outputStream;
+        private int reorderWindow = DEFAULT_REORDER_WINDOW;
+        private Meters meters = Meters.GLOBAL;
+        private Duration timeout;
 
         private SparqlRunnerBuilder() {
         }
@@ -155,8 +301,37 @@ public class SparqlRunner implements QueryRunner {
             return this;
         }
 
+        /**
+         * @param reorderWindow how many chunks ahead of the next expected one may be buffered before the query fails
+         */
+        public SparqlRunnerBuilder withReorderWindow(int reorderWindow) {
+            this.reorderWindow = reorderWindow;
+            return this;
+        }
+
+        public SparqlRunnerBuilder withMeterRegistry(MeterRegistry meterRegistry) {
+            this.meters = new Meters(meterRegistry);
+            return this;
+        }
+
+        /**
+         * @param meters shared by the runners of the same registry, so that their meters are registered only once
+         */
+        public SparqlRunnerBuilder withMeters(Meters meters) {
+            this.meters = meters;
+            return this;
+        }
+
+        /**
+         * @param timeout how long the upstream call may take before it fails with DEADLINE_EXCEEDED; none if null
+         */
+        public SparqlRunnerBuilder withTimeout(Duration timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
         public SparqlRunner build() {
-            return new SparqlRunner(metaAPIStub, agentIdentity, scope, resultContentType, outputStream);
+            return new SparqlRunner(metaAPIStub, agentIdentity, scope, resultContentType, outputStream, reorderWindow, meters, timeout);
         }
     }
 }
@@ -0,0 +1,74 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+import smartrics.iotics.identity.Identity;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+/**
+ * What startup learned from the network, kept in a local file for the next start: the resolver of the home host and
+ * the agent and user identities registered with it. Only DIDs and key names are kept, never seeds. An entry is only
+ * used by a process configured with the same host, keys and seeds, matched by a hash of them. A missing, unreadable
+ * or unwritable file just means a cold start.
+ */
+class StartupCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StartupCache.class);
+    private static final Gson GSON = new Gson();
+
+    private final Path file;
+
+    /**
+     * @param file where entries are kept, or null not to keep any
+     */
+    StartupCache(Path file) {
+        this.file = file;
+    }
+
+    record Entry(String key, String resolver, Identity agent, Identity user) {
+    }
+
+    static String key(String host, String userKey, String userSeed, String agentKey, String agentSeed) {
+        return Hashing.sha256().hashString(String.join("\n", host, userKey, userSeed, agentKey, agentSeed), StandardCharsets.UTF_8).toString();
+    }
+
+    Optional<Entry> load(String key) {
+        if (file == null || !Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+        try {
+            Entry entry = GSON.fromJson(Files.readString(file), Entry.class);
+            if (entry == null || !key.equals(entry.key()) || entry.resolver() == null || entry.agent() == null || entry.user() == null) {
+                return Optional.empty();
+            }
+            return Optional.of(entry);
+        } catch (IOException | JsonParseException e) {
+            LOGGER.warn("ignoring unreadable startup cache " + file + ": " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    void store(Entry entry) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            // replaced whole, so that a crash mid write leaves the previous entry
+            Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            Files.writeString(tmp, GSON.toJson(entry));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warn("unable to write startup cache " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Agent auth tokens by user DID, so that a token is minted once and then reused by every request on behalf of that
+ * user. Once a token has lived for the configured fraction of its duration the next lookup triggers a re-mint on the
+ * refresh executor and keeps returning the current token meanwhile. Tokens nobody asked for after their refresh point
+ * are dropped halfway between that point and their actual expiry, so an expired token is never handed out.
+ */
+public class TokenCache implements MeterBinder {
+
+    private final LoadingCache<String, String> tokens;
+
+    public TokenCache(Duration tokenDuration, double refreshFraction, Function<String, String> minter, Executor refreshExecutor) {
+        this(tokenDuration, refreshFraction, minter, refreshExecutor, Ticker.systemTicker());
+    }
+
+    TokenCache(Duration tokenDuration, double refreshFraction, Function<String, String> minter, Executor refreshExecutor, Ticker ticker) {
+        if (refreshFraction <= 0 || refreshFraction >= 1) {
+            throw new IllegalArgumentException("token refresh fraction must be between 0 and 1 (exclusive)");
+        }
+        long durationMillis = tokenDuration.toMillis();
+        tokens = CacheBuilder.newBuilder()
+                .refreshAfterWrite((long) (durationMillis * refreshFraction), TimeUnit.MILLISECONDS)
+                .expireAfterWrite((long) (durationMillis * (1 + refreshFraction) / 2), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .ticker(ticker)
+                .build(CacheLoader.asyncReloading(CacheLoader.from(minter::apply), refreshExecutor));
+    }
+
+    public String get(String userDID) {
+        try {
+            return tokens.get(userDID);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalArgumentException("unable to create token", e.getCause());
+        }
+    }
+
+    /**
+     * Never mints on the calling thread: a token past its refresh point is still returned while the re-mint runs on
+     * the refresh executor, and one past its safe lifetime is reported missing.
+     *
+     * @return the current token for the user, or null if one would have to be minted first
+     */
+    public String getIfPresent(String userDID) {
+        return tokens.getIfPresent(userDID);
+    }
+
+    public long size() {
+        return tokens.size();
+    }
+
+    public CacheStats stats() {
+        return tokens.stats();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        GuavaCacheMetrics.monitor(registry, tokens, "identity.tokens");
+    }
+}
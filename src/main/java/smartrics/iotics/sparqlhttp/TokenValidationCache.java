@@ -0,0 +1,75 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+
+import java.time.Clock;
+
+/**
+ * Remembers which token strings already passed validation, so that a token sent again is validated with a single
+ * lookup and an expiry comparison instead of being parsed again. Bounded in size; an entry is dropped as soon as it's
+ * found to be expired, or by the next {@link #sweep()} after its token expires if it isn't looked up again.
+ */
+public class TokenValidationCache implements MeterBinder {
+
+    private final Cache<String, ValidatedToken> cache;
+    private final Clock clock;
+
+    public TokenValidationCache(long maximumSize) {
+        this(maximumSize, Clock.systemUTC());
+    }
+
+    TokenValidationCache(long maximumSize, Clock clock) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+        this.clock = clock;
+    }
+
+    /**
+     * @return the validated claims of the token
+     * @throws IllegalArgumentException if the token can't be parsed or isn't valid, with the reason as message
+     */
+    public ValidatedToken validate(String token) {
+        long now = clock.millis();
+        ValidatedToken known = cache.getIfPresent(token);
+        if (known != null) {
+            if (!known.isExpiredAt(now)) {
+                return known;
+            }
+            cache.invalidate(token);
+            throw new IllegalArgumentException("invalid token: already expired");
+        }
+        SimpleToken simpleToken = SimpleToken.parse(token);
+        String message = SparqlEndpoint.tokenValidMessage(simpleToken);
+        if (message != null) {
+            throw new IllegalArgumentException(message);
+        }
+        ValidatedToken validated = ValidatedToken.of(simpleToken);
+        cache.put(token, validated);
+        return validated;
+    }
+
+    /**
+     * Drops the entries of the tokens expired by now.
+     */
+    public void sweep() {
+        long now = clock.millis();
+        cache.asMap().values().removeIf(token -> token.isExpiredAt(now));
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        GuavaCacheMetrics.monitor(registry, cache, "token.validation");
+    }
+}
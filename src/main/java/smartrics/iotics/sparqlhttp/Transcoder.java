@@ -0,0 +1,21 @@
+package smartrics.iotics.sparqlhttp;
+
+/**
+ * Converts a result from one format to another as it streams, one chunk at a time. Chunks may split the input
+ * anywhere; only the little input that can't be converted yet is kept between chunks.
+ * Not thread safe: the chunks of a result are converted in order.
+ */
+interface Transcoder {
+
+    /**
+     * @return the output for the input converted so far, possibly empty
+     * @throws IllegalArgumentException if the input is malformed
+     */
+    String next(String chunk);
+
+    /**
+     * @return the rest of the output, once the whole input has been seen
+     * @throws IllegalArgumentException if the input is malformed or truncated
+     */
+    String finish();
+}
@@ -0,0 +1,123 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.iotics.api.SparqlResultType;
+import io.grpc.stub.StreamObserver;
+
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Result formats IOTICS doesn't produce, converted on the fly from one it does. The host is asked for the
+ * {@link #source()} format; its chunks are converted as they arrive and never held as a whole, but for RDF/JSON's,
+ * which can only be written once the whole graph has been read.
+ */
+public enum Transcoding {
+    TSV("text/tab-separated-values", SparqlResultType.SPARQL_JSON, TsvTranscoder::new),
+    // N-Triples is N-Quads with every triple in the default graph
+    N_QUADS("application/n-quads", SparqlResultType.RDF_NTRIPLES, () -> new Transcoder() {
+        @Override
+        public String next(String chunk) {
+            return chunk;
+        }
+
+        @Override
+        public String finish() {
+            return "";
+        }
+    }),
+    JSON_LD("application/ld+json", SparqlResultType.RDF_NTRIPLES, NTriplesTranscoder.JsonLd::new),
+    RDF_JSON("application/rdf+json", SparqlResultType.RDF_NTRIPLES, NTriplesTranscoder.RdfJson::new);
+
+    private final String mime;
+    private final SparqlResultType source;
+    private final Supplier<Transcoder> transcoders;
+
+    Transcoding(String mime, SparqlResultType source, Supplier<Transcoder> transcoders) {
+        this.mime = mime;
+        this.source = source;
+        this.transcoders = transcoders;
+    }
+
+    public String mime() {
+        return mime;
+    }
+
+    /**
+     * @return the format requested from the host
+     */
+    public SparqlResultType source() {
+        return source;
+    }
+
+    public static Optional<Transcoding> forMime(String mime) {
+        for (Transcoding transcoding : values()) {
+            if (transcoding.mime.equals(mime)) {
+                return Optional.of(transcoding);
+            }
+        }
+        return Optional.empty();
+    }
+
+    Transcoder newTranscoder() {
+        return transcoders.get();
+    }
+
+    /**
+     * @return an observer of source chunks passing their conversion on to the delegate. Malformed input fails the
+     * delegate and drops the rest of the result.
+     */
+    public StreamObserver<String> transcoding(StreamObserver<String> delegate) {
+        Transcoder transcoder = newTranscoder();
+        return new StreamObserver<>() {
+            private boolean failed;
+
+            @Override
+            public void onNext(String chunk) {
+                if (failed) {
+                    return;
+                }
+                try {
+                    String converted = transcoder.next(chunk);
+                    if (!converted.isEmpty()) {
+                        delegate.onNext(converted);
+                    }
+                } catch (IllegalArgumentException e) {
+                    onError(e);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                if (!failed) {
+                    failed = true;
+                    delegate.onError(throwable);
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                if (failed) {
+                    return;
+                }
+                try {
+                    String rest = transcoder.finish();
+                    if (!rest.isEmpty()) {
+                        delegate.onNext(rest);
+                    }
+                } catch (IllegalArgumentException e) {
+                    onError(e);
+                    return;
+                }
+                delegate.onCompleted();
+            }
+        };
+    }
+
+    /**
+     * @return the whole of a complete source result, converted
+     */
+    public String transcode(String result) {
+        Transcoder transcoder = newTranscoder();
+        return transcoder.next(result) + transcoder.finish();
+    }
+}
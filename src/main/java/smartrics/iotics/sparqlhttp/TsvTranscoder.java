@@ -0,0 +1,181 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.parsetools.JsonEvent;
+import io.vertx.core.parsetools.JsonEventType;
+import io.vertx.core.parsetools.JsonParser;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SPARQL JSON results to SPARQL TSV, through a push parser fed with each chunk. The variables in {@code head} make
+ * the header line; each binding is written as one line as soon as it has been read, with its terms in Turtle syntax.
+ * An ASK result becomes a single {@code true} or {@code false} line.
+ */
+class TsvTranscoder implements Transcoder {
+    private final JsonParser parser = JsonParser.newParser();
+    private final Map<String, Integer> vars = new LinkedHashMap<>();
+    private StringBuilder out = new StringBuilder();
+    private boolean inVars;
+    private boolean inBindings;
+    private boolean inBinding;
+    // the terms of the binding being read, by variable position, and the term being read
+    private String[] row;
+    private int term = -1;
+    private String type;
+    private String value;
+    private String lang;
+    private String datatype;
+    private RuntimeException failure;
+
+    TsvTranscoder() {
+        parser.exceptionHandler(e -> failure = new IllegalArgumentException("malformed SPARQL JSON results: " + e.getMessage(), e));
+        parser.handler(this::event);
+    }
+
+    private void event(JsonEvent event) {
+        JsonEventType eventType = event.type();
+        if (inBindings) {
+            binding(event, eventType);
+        } else if (eventType == JsonEventType.START_ARRAY && "vars".equals(event.fieldName())) {
+            inVars = true;
+        } else if (inVars && eventType == JsonEventType.VALUE) {
+            vars.putIfAbsent(event.stringValue(), vars.size());
+        } else if (inVars && eventType == JsonEventType.END_ARRAY) {
+            inVars = false;
+            writeHeader();
+        } else if (eventType == JsonEventType.START_ARRAY && "bindings".equals(event.fieldName())) {
+            if (row == null) {
+                failure = new IllegalArgumentException("SPARQL JSON results without head variables before the bindings");
+            }
+            inBindings = failure == null;
+        } else if (eventType == JsonEventType.VALUE && "boolean".equals(event.fieldName())) {
+            out.append(event.booleanValue()).append('\n');
+        }
+    }
+
+    private void binding(JsonEvent event, JsonEventType eventType) {
+        switch (eventType) {
+            case START_OBJECT -> {
+                if (!inBinding) {
+                    inBinding = true;
+                    Arrays.fill(row, null);
+                } else {
+                    Integer position = vars.get(event.fieldName());
+                    term = position != null ? position : -2;
+                    type = value = lang = datatype = null;
+                }
+            }
+            case VALUE -> {
+                if (term != -1) {
+                    switch (event.fieldName()) {
+                        case "type" -> type = event.stringValue();
+                        case "value" -> value = event.stringValue();
+                        case "xml:lang" -> lang = event.stringValue();
+                        case "datatype" -> datatype = event.stringValue();
+                        default -> {
+                        }
+                    }
+                }
+            }
+            case END_OBJECT -> {
+                if (term >= 0) {
+                    row[term] = formatTerm();
+                    term = -1;
+                } else if (term == -2) {
+                    term = -1;
+                } else {
+                    inBinding = false;
+                    writeRow();
+                }
+            }
+            case END_ARRAY -> inBindings = inBinding;
+            default -> {
+            }
+        }
+    }
+
+    @Override
+    public String next(String chunk) {
+        parser.handle(Buffer.buffer(chunk));
+        return drain();
+    }
+
+    @Override
+    public String finish() {
+        parser.end();
+        return drain();
+    }
+
+    private String drain() {
+        if (failure != null) {
+            throw failure;
+        }
+        String converted = out.toString();
+        out = new StringBuilder(Math.max(16, converted.length()));
+        return converted;
+    }
+
+    private void writeHeader() {
+        boolean first = true;
+        for (String var : vars.keySet()) {
+            if (!first) {
+                out.append('\t');
+            }
+            out.append('?').append(var);
+            first = false;
+        }
+        out.append('\n');
+        row = new String[vars.size()];
+    }
+
+    private void writeRow() {
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) {
+                out.append('\t');
+            }
+            if (row[i] != null) {
+                out.append(row[i]);
+            }
+        }
+        out.append('\n');
+    }
+
+    private String formatTerm() {
+        String v = value != null ? value : "";
+        if (type == null) {
+            type = "";
+        }
+        return switch (type) {
+            case "uri" -> "<" + v + ">";
+            case "bnode" -> "_:" + v;
+            default -> {
+                StringBuilder sb = new StringBuilder(v.length() + 16).append('"');
+                appendEscaped(sb, v);
+                sb.append('"');
+                if (lang != null) {
+                    sb.append('@').append(lang);
+                } else if (datatype != null) {
+                    sb.append("^^<").append(datatype).append('>');
+                }
+                yield sb.toString();
+            }
+        };
+    }
+
+    private static void appendEscaped(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\t' -> sb.append("\\t");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                default -> sb.append(c);
+            }
+        }
+    }
+}
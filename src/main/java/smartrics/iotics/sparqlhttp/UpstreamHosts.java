@@ -0,0 +1,291 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.vertx.core.impl.logging.Logger;
+import io.vertx.core.impl.logging.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * The IOTICS hosts of {@code HOST_DNS} queries are sent to. The first one is the home host: the agent identity is
+ * resolved through it and local queries only go there, since local means its own twins. Global queries go to any
+ * host, picked round-robin or by the fewest outstanding calls. Hosts are health checked passively, from the calls sent
+ * to them: one whose calls fail or are slow to send their first chunk several times in a row is ejected for a while,
+ * longer each time it is ejected again. If every host is ejected they are used all the same, so that a federation
+ * wide outage is left to the circuit breaker.
+ */
+public class UpstreamHosts implements MeterBinder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UpstreamHosts.class);
+    private static final int MAX_EJECTION_MULTIPLIER = 10;
+
+    public enum Balancing {ROUND_ROBIN, LEAST_OUTSTANDING}
+
+    private final Host[] hosts;
+    private final Balancing balancing;
+    private final int ejectAfterFailures;
+    private final long slowNanos;
+    private final long ejectNanos;
+    private final LongSupplier nanoClock;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param ejectAfterFailures how many failed or slow calls in a row get a host ejected
+     * @param slowDuration       a call is slow if its first chunk takes longer than this
+     * @param ejectDuration      how long a host is first ejected for
+     */
+    public UpstreamHosts(List<String> hosts, Balancing balancing, int ejectAfterFailures, Duration slowDuration, Duration ejectDuration) {
+        this(hosts, balancing, ejectAfterFailures, slowDuration, ejectDuration, System::nanoTime);
+    }
+
+    UpstreamHosts(List<String> hosts, Balancing balancing, int ejectAfterFailures, Duration slowDuration, Duration ejectDuration,
+                  LongSupplier nanoClock) {
+        if (hosts.isEmpty()) {
+            throw new IllegalArgumentException("at least one upstream host is needed");
+        }
+        if (ejectAfterFailures < 1) {
+            throw new IllegalArgumentException("hosts must fail at least once to be ejected");
+        }
+        this.hosts = hosts.stream().map(Host::new).toArray(Host[]::new);
+        this.balancing = balancing;
+        this.ejectAfterFailures = ejectAfterFailures;
+        this.slowNanos = slowDuration.toNanos();
+        this.ejectNanos = ejectDuration.toNanos();
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * @param hostDNS host names, separated by commas
+     * @return the host names, in order and without blanks
+     */
+    public static List<String> parse(String hostDNS) {
+        List<String> hosts = Arrays.stream(hostDNS.split(",")).map(String::trim).filter(h -> !h.isEmpty()).toList();
+        if (hosts.isEmpty()) {
+            throw new IllegalArgumentException("no host in HOST_DNS: " + hostDNS);
+        }
+        return hosts;
+    }
+
+    /**
+     * @param balancing {@code round-robin} or {@code least-outstanding}
+     */
+    public static Balancing balancing(String balancing) {
+        return Balancing.valueOf(balancing.trim().toUpperCase().replace('-', '_'));
+    }
+
+    /**
+     * @return the host of identities and local queries
+     */
+    public String home() {
+        return hosts[0].name;
+    }
+
+    /**
+     * @return a call to the home host
+     */
+    public Lease acquireHome() {
+        return new Lease(hosts[0]);
+    }
+
+    /**
+     * @return a call to the host picked by the balancing policy among those not ejected
+     */
+    public Lease acquire() {
+        return new Lease(pick(nanoClock.getAsLong()));
+    }
+
+    private Host pick(long nowNanos) {
+        int start = Math.floorMod(next.getAndIncrement(), hosts.length);
+        Host best = null;
+        for (int i = 0; i < hosts.length; i++) {
+            Host host = hosts[(start + i) % hosts.length];
+            if (host.ejected(nowNanos)) {
+                continue;
+            }
+            if (balancing == Balancing.ROUND_ROBIN) {
+                return host;
+            }
+            // starting from the next host round-robin spreads the ties
+            if (best == null || host.outstanding.get() < best.outstanding.get()) {
+                best = host;
+            }
+        }
+        return best != null ? best : hosts[start];
+    }
+
+    public Stats stats() {
+        long now = nanoClock.getAsLong();
+        List<HostStats> hostStats = new ArrayList<>(hosts.length);
+        for (Host host : hosts) {
+            hostStats.add(host.stats(now));
+        }
+        return new Stats(balancing, hostStats);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (Host host : hosts) {
+            Gauge.builder("sparql.upstream.outstanding", host.outstanding, AtomicInteger::get)
+                    .description("Queries in flight to an IOTICS host").tag("host", host.name).register(registry);
+            Gauge.builder("sparql.upstream.ejected", host, h -> h.ejected(nanoClock.getAsLong()) ? 1 : 0)
+                    .description("Whether an IOTICS host is ejected for failing or being slow").tag("host", host.name).register(registry);
+            FunctionCounter.builder("sparql.upstream.ejections", host.ejections, AtomicLong::get)
+                    .description("Times an IOTICS host was ejected").tag("host", host.name).register(registry);
+        }
+    }
+
+    public record Stats(Balancing balancing, List<HostStats> hosts) {
+    }
+
+    public record HostStats(String host, int outstanding, long calls, long ejections, boolean ejected) {
+    }
+
+    private final class Host {
+        private final String name;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong ejections = new AtomicLong();
+        private volatile long ejectedUntilNanos;
+        private volatile boolean ejected;
+        private int failures;
+        private int multiplier;
+
+        private Host(String name) {
+            this.name = name;
+        }
+
+        boolean ejected(long nowNanos) {
+            return ejected && nowNanos - ejectedUntilNanos < 0;
+        }
+
+        synchronized void report(CircuitBreaker.Outcome outcome) {
+            switch (outcome) {
+                case SUCCESS -> {
+                    failures = 0;
+                    multiplier = 0;
+                }
+                case FAILURE, SLOW -> {
+                    long now = nanoClock.getAsLong();
+                    if (++failures >= ejectAfterFailures && !ejected(now)) {
+                        multiplier = Math.min(multiplier + 1, MAX_EJECTION_MULTIPLIER);
+                        ejectedUntilNanos = now + ejectNanos * multiplier;
+                        ejected = true;
+                        failures = 0;
+                        ejections.incrementAndGet();
+                        LOGGER.warn("ejected upstream host " + name + " for " + Duration.ofNanos(ejectNanos * multiplier) + " after " + ejectAfterFailures + " failed or slow calls");
+                    }
+                }
+                case IGNORED -> {
+                }
+            }
+        }
+
+        HostStats stats(long nowNanos) {
+            return new HostStats(name, outstanding.get(), calls.get(), ejections.get(), ejected(nowNanos));
+        }
+    }
+
+    /**
+     * One call sent to a host, counted as outstanding until its results end, fail or it's cancelled. Its first chunk,
+     * or its end or failure if there's no chunk, says whether the host is healthy.
+     */
+    public final class Lease {
+        private final Host host;
+        private final long startNanos = nanoClock.getAsLong();
+        private final AtomicBoolean reported = new AtomicBoolean();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(Host host) {
+            this.host = host;
+            host.outstanding.incrementAndGet();
+            host.calls.incrementAndGet();
+        }
+
+        public String host() {
+            return host.name;
+        }
+
+        private void report(CircuitBreaker.Outcome outcome) {
+            if (reported.compareAndSet(false, true)) {
+                host.report(outcome);
+            }
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                host.outstanding.decrementAndGet();
+            }
+        }
+
+        private CircuitBreaker.Outcome timed() {
+            return nanoClock.getAsLong() - startNanos > slowNanos ? CircuitBreaker.Outcome.SLOW : CircuitBreaker.Outcome.SUCCESS;
+        }
+
+        /**
+         * @return the runner of the call, which ends it if cancelled
+         */
+        public QueryRunner guarding(QueryRunner runner) {
+            return new QueryRunner() {
+                @Override
+                public void run(String query) {
+                    runner.run(query);
+                }
+
+                @Override
+                public void pause() {
+                    runner.pause();
+                }
+
+                @Override
+                public void resume() {
+                    runner.resume();
+                }
+
+                @Override
+                public void cancel() {
+                    report(CircuitBreaker.Outcome.IGNORED);
+                    release();
+                    runner.cancel();
+                }
+            };
+        }
+
+        /**
+         * @return an observer of the call's results that reports on the host and ends the call, passing everything
+         * on to the delegate
+         */
+        public StreamObserver<String> observing(StreamObserver<String> delegate) {
+            return new StreamObserver<>() {
+                @Override
+                public void onNext(String chunk) {
+                    report(timed());
+                    delegate.onNext(chunk);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    report(CircuitBreaker.classify(throwable, nanoClock.getAsLong() - startNanos, slowNanos));
+                    release();
+                    delegate.onError(throwable);
+                }
+
+                @Override
+                public void onCompleted() {
+                    report(timed());
+                    release();
+                    delegate.onCompleted();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package smartrics.iotics.sparqlhttp;
+
+/**
+ * The claims of a token that passed validation, with the expiry pre-computed as epoch millis.
+ */
+public record ValidatedToken(String userDID, String agentDID, String agentId, long expiresAtEpochMillis) {
+
+    static ValidatedToken of(SimpleToken token) {
+        return new ValidatedToken(token.userDID(), token.agentDID(), token.agentId(), token.expiryTimestampUTC().toInstant().toEpochMilli());
+    }
+
+    public boolean isExpiredAt(long epochMillis) {
+        return expiresAtEpochMillis <= epochMillis;
+    }
+}
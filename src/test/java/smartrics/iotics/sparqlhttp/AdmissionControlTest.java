@@ -0,0 +1,92 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@ExtendWith(VertxExtension.class)
+class AdmissionControlTest {
+
+    private final List<RoutingContext> running = new ArrayList<>();
+    private ConcurrencyLimiter limiter;
+    private HttpServer server;
+    private HttpClient client;
+
+    @BeforeEach
+    void setUp(Vertx vertx, VertxTestContext testContext) {
+        limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.Limits(1, 1, 1), new ConcurrencyLimiter.Limits(1, 1, 1),
+                1, Duration.ofMinutes(1));
+        Router router = Router.router(vertx);
+        router.route("/sparql").handler(ctx -> {
+            ctx.put("userDID", "did:iotics:user");
+            ctx.next();
+        }).handler(new AdmissionControl(limiter)).handler(ctx -> {
+            if (ctx.request().getParam("query") == null) {
+                ctx.response().end("description");
+            } else {
+                running.add(ctx);
+            }
+        });
+        client = vertx.createHttpClient();
+        vertx.createHttpServer().requestHandler(router).listen(0)
+                .onComplete(testContext.succeeding(s -> {
+                    server = s;
+                    testContext.completeNow();
+                }));
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    private io.vertx.core.Future<HttpClientResponse> get(String uri) {
+        return client.request(HttpMethod.GET, server.actualPort(), "localhost", uri).compose(req -> req.send());
+    }
+
+    @Test
+    void queuesThenRejectsWithRetryAfterOnceTheQueueIsFull(Vertx vertx, VertxTestContext testContext) {
+        get("/sparql?query=ASK%7B%7D");
+        get("/sparql?query=ASK%7B%7D").onComplete(testContext.succeeding(resp -> testContext.verify(() -> {
+            // admitted once the first one ended
+            assertEquals(200, resp.statusCode());
+            assertEquals(0, limiter.stats().queued());
+            testContext.completeNow();
+        })));
+        vertx.setTimer(100, t -> get("/sparql?query=ASK%7B%7D").onComplete(testContext.succeeding(resp -> testContext.verify(() -> {
+            assertEquals(429, resp.statusCode());
+            assertEquals("1", resp.getHeader("Retry-After"));
+            assertEquals(1, limiter.stats().queued());
+            running.get(0).response().end();
+            vertx.setTimer(100, t2 -> running.get(1).response().end());
+        }))));
+    }
+
+    @Test
+    void letsServiceDescriptionRequestsThrough(VertxTestContext testContext) {
+        // one running and one waiting: the limiter is full
+        limiter.acquire("did:iotics:user");
+        limiter.acquire("did:iotics:user");
+        get("/sparql").onComplete(testContext.succeeding(resp -> testContext.verify(() -> {
+            assertEquals(200, resp.statusCode());
+            testContext.completeNow();
+        })));
+    }
+}
@@ -0,0 +1,223 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.grpc.Status;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpServerResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class BatchRunnerTest {
+
+    @Mock
+    private Context context;
+
+    @Mock
+    private HttpServerResponse response;
+
+    private final List<Handler<Void>> scheduled = new ArrayList<>();
+    private final List<BatchRunner.ItemOutput> outputs = new ArrayList<>();
+    private final List<QueryRunner> runners = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        doAnswer(invocation -> scheduled.add(invocation.getArgument(0))).when(context).runOnContext(any());
+        when(response.setStatusCode(anyInt())).thenReturn(response);
+        when(response.setChunked(anyBoolean())).thenReturn(response);
+        when(response.putHeader(anyString(), anyString())).thenReturn(response);
+    }
+
+    private void runScheduled() {
+        while (!scheduled.isEmpty()) {
+            scheduled.remove(0).handle(null);
+        }
+    }
+
+    private BatchRunner batch(BatchRunner.Format format, int items, int parallelism, ConcurrencyLimiter limiter) {
+        List<BatchRunner.Item> list = new ArrayList<>();
+        for (int i = 0; i < items; i++) {
+            list.add(new BatchRunner.Item("SELECT " + i, null, null));
+        }
+        return new BatchRunner(context, response, format, list, parallelism, 10, (item, output) -> {
+            output.contentType("text/csv");
+            outputs.add(output);
+            QueryRunner runner = mock(QueryRunner.class);
+            runners.add(runner);
+            return runner;
+        }, limiter, "did:user1");
+    }
+
+    private List<String> written() {
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(response, atLeast(0)).write(captor.capture());
+        return captor.getAllValues();
+    }
+
+    @Test
+    void parsesAJsonArrayOfItems() {
+        List<BatchRunner.Item> items = BatchRunner.parse("""
+                [{"query": "SELECT 1", "scope": "local", "accept": "text/csv"}, {"query": "SELECT 2"}]""", 10);
+
+        assertThat(items.size(), equalTo(2));
+        assertThat(items.get(0), equalTo(new BatchRunner.Item("SELECT 1", "local", "text/csv")));
+        assertThat(items.get(0).scopeOrNull(), equalTo(com.iotics.api.Scope.LOCAL));
+        assertThat(items.get(1).scopeOrNull(), equalTo(com.iotics.api.Scope.GLOBAL));
+        assertThat(new BatchRunner.Item("q", "nowhere", null).scopeOrNull(), is(nullValue()));
+    }
+
+    @Test
+    void rejectsInvalidEmptyOrTooLargeBatches() {
+        assertEquals(400, assertThrows(SparqlEndpoint.ValidationException.class, () -> BatchRunner.parse("{", 10)).getCode());
+        assertEquals(400, assertThrows(SparqlEndpoint.ValidationException.class, () -> BatchRunner.parse("[]", 10)).getCode());
+        assertEquals(400, assertThrows(SparqlEndpoint.ValidationException.class, () -> BatchRunner.parse("[null]", 10)).getCode());
+        assertEquals(413, assertThrows(SparqlEndpoint.ValidationException.class,
+                () -> BatchRunner.parse("[{\"query\":\"a\"},{\"query\":\"b\"}]", 1)).getCode());
+    }
+
+    @Test
+    void negotiatesTheFormatOfTheBatch() {
+        assertThat(BatchRunner.Format.negotiate(null), equalTo(Optional.of(BatchRunner.Format.NDJSON)));
+        assertThat(BatchRunner.Format.negotiate("*/*"), equalTo(Optional.of(BatchRunner.Format.NDJSON)));
+        assertThat(BatchRunner.Format.negotiate("multipart/mixed, application/x-ndjson"), equalTo(Optional.of(BatchRunner.Format.MULTIPART)));
+        assertThat(BatchRunner.Format.negotiate("multipart/mixed;q=0, application/x-ndjson"), equalTo(Optional.of(BatchRunner.Format.NDJSON)));
+        assertThat(BatchRunner.Format.negotiate("text/csv"), equalTo(Optional.empty()));
+    }
+
+    @Test
+    void runsUpToTheParallelismAndWritesResultsAsTheyComplete() {
+        batch(BatchRunner.Format.NDJSON, 3, 2, null).start();
+        assertThat(runners.size(), equalTo(2));
+        verify(runners.get(1)).run("SELECT 1");
+
+        outputs.get(1).onNext("a,b");
+        outputs.get(1).onCompleted();
+        runScheduled();
+
+        assertThat(written(), equalTo(List.of("{\"index\":1,\"status\":200,\"contentType\":\"text/csv\",\"result\":\"a,b\"}\n")));
+        assertThat(runners.size(), equalTo(3));
+
+        outputs.get(0).onCompleted();
+        outputs.get(2).onCompleted();
+        runScheduled();
+
+        verify(response).setStatusCode(200);
+        verify(response).putHeader("Content-Type", "application/x-ndjson");
+        assertThat(written().size(), equalTo(3));
+        verify(response).end("");
+    }
+
+    @Test
+    void aFailingItemHasItsOwnStatus() {
+        batch(BatchRunner.Format.NDJSON, 2, 2, null).start();
+
+        outputs.get(0).onError(Status.DEADLINE_EXCEEDED.withDescription("late").asRuntimeException());
+        outputs.get(1).fail(400, "missing query");
+        runScheduled();
+
+        assertThat(written(), equalTo(List.of(
+                "{\"index\":0,\"status\":504,\"error\":\"DEADLINE_EXCEEDED: late\"}\n",
+                "{\"index\":1,\"status\":400,\"error\":\"missing query\"}\n")));
+        verify(response).end("");
+    }
+
+    @Test
+    void failsAnItemWhoseResultIsTooLarge() {
+        batch(BatchRunner.Format.NDJSON, 1, 1, null).start();
+
+        outputs.get(0).onNext("0123456789");
+        outputs.get(0).onNext("x");
+        outputs.get(0).onCompleted();
+        runScheduled();
+
+        verify(runners.get(0)).cancel();
+        assertThat(written().get(0), containsString("\"status\":413"));
+    }
+
+    @Test
+    void writesMultipartParts() {
+        batch(BatchRunner.Format.MULTIPART, 1, 1, null).start();
+        ArgumentCaptor<String> contentType = ArgumentCaptor.forClass(String.class);
+        verify(response).putHeader(eq("Content-Type"), contentType.capture());
+        String boundary = contentType.getValue().substring("multipart/mixed; boundary=".length());
+
+        outputs.get(0).onNext("a,b");
+        outputs.get(0).onCompleted();
+        runScheduled();
+
+        assertThat(written(), equalTo(List.of("--" + boundary + "\r\nContent-Type: text/csv\r\nX-Batch-Index: 0\r\n"
+                + "X-Batch-Status: 200\r\n\r\na,b\r\n")));
+        verify(response).end("--" + boundary + "--\r\n");
+    }
+
+    @Test
+    void cancelStopsTheBatch() {
+        BatchRunner batch = batch(BatchRunner.Format.NDJSON, 3, 2, null);
+        batch.start();
+
+        batch.cancel();
+        outputs.get(0).onCompleted();
+        runScheduled();
+
+        verify(runners.get(0)).cancel();
+        verify(runners.get(1)).cancel();
+        assertThat(runners.size(), equalTo(2));
+        verify(response, never()).write(anyString());
+    }
+
+    @Test
+    void eachItemTakesAConcurrencyPermit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.Limits(4, 1, 8),
+                new ConcurrencyLimiter.Limits(4, 1, 8), 4, Duration.ofSeconds(1));
+        batch(BatchRunner.Format.NDJSON, 2, 2, limiter).start();
+        assertThat(limiter.stats().inFlight(), equalTo(2));
+
+        outputs.get(0).onCompleted();
+        runScheduled();
+
+        assertThat(limiter.stats().inFlight(), equalTo(1));
+    }
+
+    @Test
+    void cancelReleasesThePermitsOfItemsSharingAQuery() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.Limits(4, 1, 8),
+                new ConcurrencyLimiter.Limits(4, 1, 8), 4, Duration.ofSeconds(1));
+        InFlightQueries inFlightQueries = new InFlightQueries();
+        QueryRunner upstream = mock(QueryRunner.class);
+        List<BatchRunner.Item> items = List.of(new BatchRunner.Item("SELECT 1", null, null), new BatchRunner.Item("SELECT 1", null, null));
+        BatchRunner batch = new BatchRunner(context, response, BatchRunner.Format.NDJSON, items, 2, 10,
+                (item, output) -> inFlightQueries.join(QueryKey.of(com.iotics.api.Scope.GLOBAL, item.query(), null, "did:user1"),
+                        output, shared -> upstream), limiter, "did:user1");
+        batch.start();
+        assertThat(limiter.stats().inFlight(), equalTo(2));
+
+        // leaving the shared query reports nothing to the items' outputs
+        batch.cancel();
+        runScheduled();
+
+        verify(upstream).cancel();
+        assertThat(limiter.stats().inFlight(), equalTo(0));
+        // only users with queries in flight are listed
+        assertThat(limiter.stats().users().containsKey("did:user1"), is(false));
+        verify(response, never()).write(anyString());
+    }
+}
@@ -0,0 +1,104 @@
+package smartrics.iotics.sparqlhttp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoundedWorkerPoolTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private BoundedWorkerPool pool;
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        pool.close();
+    }
+
+    @Test
+    void runsTasksOffTheCallerThread() throws Exception {
+        pool = new BoundedWorkerPool("test", 1, 1, Duration.ofSeconds(5));
+        String thread = pool.submit(() -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS);
+        assertTrue(thread.startsWith("test-"));
+    }
+
+    @Test
+    void rejectsWhenQueueIsFull() {
+        pool = new BoundedWorkerPool("test", 1, 1, Duration.ofSeconds(5));
+        pool.submit(this::block);
+        pool.submit(this::block);
+
+        CompletableFuture<String> rejected = pool.submit(this::block);
+
+        ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+        assertInstanceOf(RejectedExecutionException.class, e.getCause());
+    }
+
+    @Test
+    void timesOutSlowTasks() {
+        pool = new BoundedWorkerPool("test", 1, 1, Duration.ofMillis(50));
+
+        CompletableFuture<String> slow = pool.submit(this::block);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> slow.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(TimeoutException.class, e.getCause());
+    }
+
+    @Test
+    void interruptsATimedOutTaskAndFreesItsWorker() throws Exception {
+        pool = new BoundedWorkerPool("test", 1, 1, Duration.ofMillis(50));
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        CompletableFuture<String> slow = pool.submit(() -> {
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return "interrupted";
+        });
+
+        assertThrows(ExecutionException.class, () -> slow.get(5, TimeUnit.SECONDS));
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertEquals("next", pool.submit(() -> "next").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void dropsATaskTimedOutInTheQueue() throws Exception {
+        pool = new BoundedWorkerPool("test", 1, 1, Duration.ofMillis(50));
+        CountDownLatch ran = new CountDownLatch(1);
+        // holds its worker past its own timeout, interrupted or not
+        pool.submit(() -> {
+            while (true) {
+                try {
+                    release.await();
+                    return "done";
+                } catch (InterruptedException e) {
+                    // keep holding
+                }
+            }
+        });
+
+        CompletableFuture<String> queued = pool.submit(() -> {
+            ran.countDown();
+            return "ran";
+        });
+
+        assertThrows(ExecutionException.class, () -> queued.get(5, TimeUnit.SECONDS));
+        release.countDown();
+        assertFalse(ran.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    private String block() {
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "done";
+    }
+}
@@ -0,0 +1,173 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ChannelPoolTest {
+
+    private final List<ManagedChannel> opened = Collections.synchronizedList(new ArrayList<>());
+    private ChannelPool pool;
+
+    @AfterEach
+    void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    void reusesChannelsRoundRobinPerHost() {
+        pool = newPool(2, Duration.ofMinutes(10));
+
+        ManagedChannel first = pool.acquire("host1").channel();
+        ManagedChannel second = pool.acquire("host1").channel();
+        ManagedChannel third = pool.acquire("host1").channel();
+        ManagedChannel otherHost = pool.acquire("host2").channel();
+
+        assertNotSame(first, second);
+        assertSame(first, third);
+        assertNotSame(first, otherHost);
+        assertEquals(3, opened.size());
+        assertEquals(4, pool.stats().acquired());
+        assertEquals(3, pool.stats().created());
+    }
+
+    @Test
+    void evictsIdleChannels() {
+        pool = newPool(1, Duration.ofSeconds(1));
+
+        ChannelPool.Lease lease = pool.acquire("host1");
+        ManagedChannel channel = lease.channel();
+        lease.release();
+        pool.evictIdle(System.nanoTime() + Duration.ofSeconds(2).toNanos());
+
+        assertTrue(channel.isShutdown());
+        assertEquals(1, pool.stats().evicted());
+        assertEquals(0, pool.stats().hosts().getFirst().open());
+
+        ManagedChannel replacement = pool.acquire("host1").channel();
+        assertNotSame(channel, replacement);
+        assertFalse(replacement.isShutdown());
+    }
+
+    @Test
+    void keepsRecentlyUsedChannels() {
+        pool = newPool(1, Duration.ofMinutes(1));
+
+        ManagedChannel channel = pool.acquire("host1").channel();
+        pool.evictIdle(System.nanoTime());
+
+        assertFalse(channel.isShutdown());
+        assertSame(channel, pool.acquire("host1").channel());
+    }
+
+    @Test
+    void keepsLeasedChannelsUntilReleased() {
+        pool = newPool(1, Duration.ofSeconds(1));
+        ChannelPool.Lease lease = pool.acquire("host1");
+
+        pool.evictIdle(System.nanoTime() + Duration.ofSeconds(2).toNanos());
+        assertFalse(lease.channel().isShutdown());
+        assertEquals(0, pool.stats().evicted());
+
+        lease.release();
+        lease.release();
+        pool.evictIdle(System.nanoTime() + Duration.ofSeconds(2).toNanos());
+        assertTrue(lease.channel().isShutdown());
+        assertEquals(1, pool.stats().evicted());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void releasesTheLeaseWhenTheCallEnds() {
+        pool = newPool(1, Duration.ofSeconds(1));
+        ChannelPool.Lease completed = pool.acquire("host1");
+        ChannelPool.Lease failed = pool.acquire("host1");
+        QueryRunner runner = mock(QueryRunner.class);
+        ChannelPool.Lease cancelled = pool.acquire("host1");
+
+        completed.observing(mock(StreamObserver.class)).onCompleted();
+        failed.observing(mock(StreamObserver.class)).onError(new RuntimeException("boom"));
+        pool.evictIdle(System.nanoTime() + Duration.ofSeconds(2).toNanos());
+        assertFalse(cancelled.channel().isShutdown());
+
+        cancelled.guarding(runner).cancel();
+        verify(runner).cancel();
+        pool.evictIdle(System.nanoTime() + Duration.ofSeconds(2).toNanos());
+        assertTrue(cancelled.channel().isShutdown());
+    }
+
+    @Test
+    void neverHandsOutAChannelBeingEvicted() throws Exception {
+        pool = newPool(2, Duration.ofNanos(1));
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger shutdownOnLease = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> acquirers = new ArrayList<>();
+            for (int t = 0; t < 3; t++) {
+                acquirers.add(executor.submit(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        ChannelPool.Lease lease = pool.acquire("host1");
+                        if (lease.channel().isShutdown()) {
+                            shutdownOnLease.incrementAndGet();
+                        }
+                        lease.release();
+                    }
+                }));
+            }
+            Future<?> evictor = executor.submit(() -> {
+                while (!done.get()) {
+                    pool.evictIdle(Long.MAX_VALUE / 2);
+                }
+            });
+            for (Future<?> acquirer : acquirers) {
+                acquirer.get(30, TimeUnit.SECONDS);
+            }
+            done.set(true);
+            evictor.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(0, shutdownOnLease.get());
+        assertTrue(pool.stats().evicted() > 0);
+        pool.evictIdle(Long.MAX_VALUE / 2);
+        opened.forEach(c -> assertTrue(c.isShutdown(), "released channels are all shut down once evicted"));
+    }
+
+    @Test
+    void closeShutsDownAllChannels() {
+        pool = newPool(2, Duration.ofMinutes(1));
+        pool.acquire("host1");
+        pool.acquire("host1");
+
+        pool.close();
+
+        opened.forEach(c -> assertTrue(c.isShutdown()));
+    }
+
+    private ChannelPool newPool(int size, Duration idleTimeout) {
+        return new ChannelPool(size, idleTimeout, host -> {
+            // channels connect lazily, so nothing is dialled here
+            ManagedChannel channel = ManagedChannelBuilder.forTarget(host + ":443").build();
+            opened.add(channel);
+            return channel;
+        });
+    }
+}
@@ -0,0 +1,194 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.iotics.api.SparqlResultType;
+import io.grpc.Status;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class ChunkedResponseWriterTest {
+
+    @Mock
+    private Context context;
+
+    @Mock
+    private HttpServerResponse response;
+
+    @Mock
+    private QueryRunner runner;
+
+    private final List<Handler<Void>> scheduled = new ArrayList<>();
+    private ChunkedResponseWriter writer;
+
+    @BeforeEach
+    void setUp() {
+        doAnswer(invocation -> scheduled.add(invocation.getArgument(0))).when(context).runOnContext(any());
+        when(response.setStatusCode(anyInt())).thenReturn(response);
+        when(response.setStatusMessage(anyString())).thenReturn(response);
+        when(response.setChunked(anyBoolean())).thenReturn(response);
+        writer = new ChunkedResponseWriter(context, response);
+        writer.attach(runner);
+    }
+
+    @Test
+    void writesEveryChunkAndEndsOnCompletion() {
+        writer.onNext("a");
+        writer.onNext("b");
+        writer.onCompleted();
+        runScheduled();
+
+        InOrder inOrder = inOrder(response);
+        inOrder.verify(response).setStatusCode(200);
+        inOrder.verify(response).setChunked(true);
+        inOrder.verify(response).write("a");
+        inOrder.verify(response).write("b");
+        inOrder.verify(response).end();
+    }
+
+    @Test
+    void pausesUpstreamWhileWriteQueueIsFullAndResumesOnDrain() {
+        ArgumentCaptor<Handler<Void>> drainHandler = ArgumentCaptor.captor();
+        verify(response).drainHandler(drainHandler.capture());
+        when(response.writeQueueFull()).thenReturn(true);
+
+        writer.onNext("a");
+        runScheduled();
+        verify(runner).pause();
+        verify(runner, never()).resume();
+
+        when(response.writeQueueFull()).thenReturn(false);
+        drainHandler.getValue().handle(null);
+        verify(runner).resume();
+    }
+
+    @Test
+    void pausesUpstreamWhenTooManyChunksAreWaitingForTheEventLoop() {
+        for (int i = 0; i < ChunkedResponseWriter.MAX_PENDING_CHUNKS; i++) {
+            writer.onNext("c" + i);
+        }
+        verify(runner).pause();
+
+        runScheduled();
+        verify(runner, atLeastOnce()).resume();
+    }
+
+    @Test
+    void sendsErrorStatusWhenNothingWasWritten() {
+        writer.onError(new RuntimeException("boom"));
+        runScheduled();
+
+        verify(response).setStatusCode(400);
+        verify(response).setStatusMessage(contains("boom"));
+        verify(response).end();
+    }
+
+    @Test
+    void sendsGatewayTimeoutWhenTheDeadlineExpiresBeforeAnythingWasWritten() {
+        writer.onError(Status.DEADLINE_EXCEEDED.asRuntimeException());
+        runScheduled();
+
+        verify(response).setStatusCode(504);
+        verify(response).setStatusMessage(contains("timed out"));
+        verify(response).end();
+    }
+
+    @Test
+    void sendsServiceUnavailableWhenTheHostIsUnavailable() {
+        writer.onError(Status.UNAVAILABLE.withDescription("circuit open").asRuntimeException());
+        runScheduled();
+
+        verify(response).setStatusCode(503);
+        verify(response).setStatusMessage(contains("circuit open"));
+        verify(response).end();
+    }
+
+    @Test
+    void resetsStreamWhenFailingAfterFirstChunk() {
+        when(response.headWritten()).thenReturn(true);
+        writer.onError(new RuntimeException("boom"));
+        runScheduled();
+
+        verify(response).reset();
+        verify(response, never()).setStatusCode(anyInt());
+    }
+
+    @Test
+    void dropsChunksOnceClientIsGone() {
+        when(response.closed()).thenReturn(true);
+        writer.onNext("a");
+        writer.onCompleted();
+        runScheduled();
+
+        verify(response, never()).write(anyString());
+        verify(response, never()).end();
+    }
+
+    @Test
+    void compressesOnceTheResponseIsLongEnough() throws Exception {
+        ResponseCompression compression = new ResponseCompression(8, 6, 6);
+        writer = new ChunkedResponseWriter(context, response, compression.encoder(ResponseCompression.Encoding.GZIP,
+                SparqlResultType.SPARQL_JSON), 8);
+        writer.attach(runner);
+        Buffer sent = Buffer.buffer();
+        when(response.write(any(Buffer.class))).thenAnswer(invocation -> {
+            sent.appendBuffer(invocation.getArgument(0));
+            return null;
+        });
+        when(response.end(any(Buffer.class))).thenAnswer(invocation -> {
+            sent.appendBuffer(invocation.getArgument(0));
+            return null;
+        });
+
+        writer.onNext("abc");
+        runScheduled();
+        verify(response, never()).write(any(Buffer.class));
+
+        writer.onNext("defgh");
+        writer.onNext("ijk");
+        writer.onCompleted();
+        runScheduled();
+
+        verify(response).putHeader("Content-Encoding", "gzip");
+        assertEquals("abcdefghijk", ResponseCompressionTest.decompress(ResponseCompression.Encoding.GZIP, sent.getBytes()));
+    }
+
+    @Test
+    void sendsShortResponsesUncompressed() {
+        ResponseCompression compression = new ResponseCompression(1024, 6, 6);
+        writer = new ChunkedResponseWriter(context, response, compression.encoder(ResponseCompression.Encoding.GZIP,
+                SparqlResultType.SPARQL_JSON), 1024);
+        writer.attach(runner);
+
+        writer.onNext("short");
+        writer.onCompleted();
+        runScheduled();
+
+        verify(response, never()).putHeader(eq("Content-Encoding"), anyString());
+        verify(response).end(Buffer.buffer("short"));
+    }
+
+    private void runScheduled() {
+        List<Handler<Void>> handlers = new ArrayList<>(scheduled);
+        scheduled.clear();
+        handlers.forEach(h -> h.handle(null));
+    }
+}
@@ -0,0 +1,167 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class CircuitBreakerTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private CircuitBreaker breaker;
+
+    @BeforeEach
+    void setUp() {
+        breaker = new CircuitBreaker(new CircuitBreaker.Settings(50, 80, Duration.ofSeconds(1), 10, 4,
+                Duration.ofSeconds(30), 2), clock::get);
+    }
+
+    private void calls(int n, CircuitBreaker.Outcome outcome) {
+        for (int i = 0; i < n; i++) {
+            breaker.tryCall().report(outcome);
+        }
+    }
+
+    @Test
+    void opensOnceEnoughCallsFailed() {
+        calls(2, CircuitBreaker.Outcome.SUCCESS);
+        calls(1, CircuitBreaker.Outcome.FAILURE);
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.CLOSED));
+
+        calls(1, CircuitBreaker.Outcome.FAILURE);
+
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.OPEN));
+        assertNull(breaker.tryCall());
+        assertThat(breaker.stats().rejected(), equalTo(1L));
+    }
+
+    @Test
+    void opensOnceEnoughCallsWereSlow() {
+        calls(1, CircuitBreaker.Outcome.SUCCESS);
+        calls(3, CircuitBreaker.Outcome.SLOW);
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.CLOSED));
+
+        calls(1, CircuitBreaker.Outcome.SLOW);
+
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    void ignoredCallsDoNotCount() {
+        calls(10, CircuitBreaker.Outcome.IGNORED);
+        calls(3, CircuitBreaker.Outcome.FAILURE);
+
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.CLOSED));
+        assertThat(breaker.stats().calls(), equalTo(3));
+    }
+
+    @Test
+    void oldOutcomesLeaveTheWindow() {
+        calls(6, CircuitBreaker.Outcome.SUCCESS);
+        calls(3, CircuitBreaker.Outcome.FAILURE);
+        calls(10, CircuitBreaker.Outcome.SUCCESS);
+
+        CircuitBreaker.Stats stats = breaker.stats();
+        assertThat(stats.calls(), equalTo(10));
+        assertThat(stats.failures(), equalTo(0));
+    }
+
+    @Test
+    void probesAfterTheOpenDurationAndClosesWhenTheyAllSucceed() {
+        calls(4, CircuitBreaker.Outcome.FAILURE);
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(30));
+
+        CircuitBreaker.Call first = breaker.tryCall();
+        CircuitBreaker.Call second = breaker.tryCall();
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.HALF_OPEN));
+        assertNull(breaker.tryCall());
+
+        first.report(CircuitBreaker.Outcome.SUCCESS);
+        second.report(CircuitBreaker.Outcome.SUCCESS);
+
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.CLOSED));
+        assertThat(breaker.stats().calls(), equalTo(0));
+    }
+
+    @Test
+    void opensAgainWhenAProbeFails() {
+        calls(4, CircuitBreaker.Outcome.FAILURE);
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(30));
+
+        breaker.tryCall().report(CircuitBreaker.Outcome.SLOW);
+
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.OPEN));
+        assertNull(breaker.tryCall());
+    }
+
+    @Test
+    void aCancelledProbeFreesItsPlace() {
+        calls(4, CircuitBreaker.Outcome.FAILURE);
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        breaker.tryCall();
+        CircuitBreaker.Call cancelled = breaker.tryCall();
+        QueryRunner runner = mock(QueryRunner.class);
+
+        cancelled.guarding(runner).cancel();
+
+        verify(runner).cancel();
+        assertNotNull(breaker.tryCall());
+    }
+
+    @Test
+    void observingReportsTheFirstChunkByItsLatency() {
+        calls(3, CircuitBreaker.Outcome.SUCCESS);
+        StreamObserver<String> delegate = mock(StreamObserver.class);
+        StreamObserver<String> observer = breaker.tryCall().observing(delegate);
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        observer.onNext("a");
+        observer.onNext("b");
+        observer.onCompleted();
+
+        verify(delegate).onNext("a");
+        verify(delegate).onNext("b");
+        verify(delegate).onCompleted();
+        assertThat(breaker.stats().calls(), equalTo(4));
+        assertThat(breaker.stats().slow(), equalTo(1));
+    }
+
+    @Test
+    void classifiesErrorsByStatus() {
+        long fast = TimeUnit.MILLISECONDS.toNanos(10);
+        long slow = TimeUnit.SECONDS.toNanos(5);
+
+        assertThat(breaker.classify(Status.UNAVAILABLE.asRuntimeException(), fast), equalTo(CircuitBreaker.Outcome.FAILURE));
+        assertThat(breaker.classify(Status.INTERNAL.asRuntimeException(), fast), equalTo(CircuitBreaker.Outcome.FAILURE));
+        assertThat(breaker.classify(new RuntimeException("boom"), fast), equalTo(CircuitBreaker.Outcome.IGNORED));
+        assertThat(breaker.classify(Status.UNKNOWN.asRuntimeException(), fast), equalTo(CircuitBreaker.Outcome.IGNORED));
+        assertThat(breaker.classify(new QueryExecutionException("syntax error"), fast), equalTo(CircuitBreaker.Outcome.IGNORED));
+        assertThat(breaker.classify(Status.CANCELLED.asRuntimeException(), fast), equalTo(CircuitBreaker.Outcome.IGNORED));
+        assertThat(breaker.classify(Status.DEADLINE_EXCEEDED.asRuntimeException(), fast), equalTo(CircuitBreaker.Outcome.IGNORED));
+        assertThat(breaker.classify(Status.DEADLINE_EXCEEDED.asRuntimeException(), slow), equalTo(CircuitBreaker.Outcome.SLOW));
+        assertThat(breaker.classify(Status.INVALID_ARGUMENT.asRuntimeException(), fast), equalTo(CircuitBreaker.Outcome.IGNORED));
+        assertThat(breaker.classify(Status.UNAUTHENTICATED.asRuntimeException(), fast), equalTo(CircuitBreaker.Outcome.IGNORED));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void badQueriesDoNotOpenTheBreaker() {
+        for (int i = 0; i < 20; i++) {
+            breaker.tryCall().observing(mock(StreamObserver.class)).onError(new QueryExecutionException("syntax error at line 1"));
+            breaker.tryCall().observing(mock(StreamObserver.class)).onError(Status.INVALID_ARGUMENT.asRuntimeException());
+        }
+
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.CLOSED));
+        assertThat(breaker.stats().calls(), equalTo(0));
+        assertNotNull(breaker.tryCall());
+    }
+}
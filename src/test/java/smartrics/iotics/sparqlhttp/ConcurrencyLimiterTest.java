@@ -0,0 +1,206 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class ConcurrencyLimiterTest {
+
+    private static ConcurrencyLimiter limiter(int limit, int userLimit, int queueSize, Duration queueTimeout) {
+        return new ConcurrencyLimiter(new ConcurrencyLimiter.Limits(limit, 1, limit * 2),
+                new ConcurrencyLimiter.Limits(userLimit, 1, userLimit * 2), queueSize, queueTimeout);
+    }
+
+    @Test
+    void queuesOverTheUserLimitUntilAPermitIsReleased() {
+        ConcurrencyLimiter limiter = limiter(10, 1, 10, Duration.ofMinutes(1));
+        CompletableFuture<ConcurrencyLimiter.Permit> first = limiter.acquire("did:user1");
+        CompletableFuture<ConcurrencyLimiter.Permit> second = limiter.acquire("did:user1");
+
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+        assertThat(limiter.stats().queued(), equalTo(1));
+
+        first.join().release(false, false);
+
+        assertTrue(second.isDone());
+        assertThat(limiter.stats().inFlight(), equalTo(1));
+        assertThat(limiter.stats().users().get("did:user1"), equalTo(new ConcurrencyLimiter.UserStats(1, 1)));
+    }
+
+    @Test
+    void aUserAtItsLimitDoesNotHoldUpOthers() {
+        ConcurrencyLimiter limiter = limiter(10, 1, 10, Duration.ofMinutes(1));
+        limiter.acquire("did:user1");
+        CompletableFuture<ConcurrencyLimiter.Permit> queued = limiter.acquire("did:user1");
+
+        assertTrue(limiter.acquire("did:user2").isDone());
+        assertTrue(limiter.acquire(null).isDone());
+        assertFalse(queued.isDone());
+    }
+
+    @Test
+    void rejectsAtOnceWhenTheQueueIsFull() {
+        ConcurrencyLimiter limiter = limiter(1, 1, 1, Duration.ofMinutes(1));
+        limiter.acquire("did:user1");
+        limiter.acquire("did:user2");
+        CompletableFuture<ConcurrencyLimiter.Permit> rejected = limiter.acquire("did:user3");
+
+        ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+        assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+        assertThat(limiter.stats().rejected(), equalTo(1L));
+    }
+
+    @Test
+    void rejectsWhenNoPermitFreesUpInTime() throws InterruptedException {
+        ConcurrencyLimiter limiter = limiter(1, 1, 10, Duration.ofMillis(20));
+        limiter.acquire("did:user1");
+        CompletableFuture<ConcurrencyLimiter.Permit> waiting = limiter.acquire("did:user2");
+
+        ExecutionException e = assertThrows(ExecutionException.class, waiting::get);
+        assertThat(e.getCause(), instanceOf(TimeoutException.class));
+        // the waiter leaves the queue on the timer's thread, right after the future fails
+        for (int i = 0; i < 100 && limiter.stats().rejected() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(limiter.stats().queued(), equalTo(0));
+        assertThat(limiter.stats().rejected(), equalTo(1L));
+    }
+
+    @Test
+    void aCancelledWaiterTakesNoPermit() {
+        ConcurrencyLimiter limiter = limiter(1, 1, 10, Duration.ofMinutes(1));
+        CompletableFuture<ConcurrencyLimiter.Permit> first = limiter.acquire("did:user1");
+        limiter.acquire("did:user2").cancel(false);
+
+        first.join().release(false, false);
+
+        assertThat(limiter.stats().inFlight(), equalTo(0));
+        assertThat(limiter.stats().queued(), equalTo(0));
+    }
+
+    @Test
+    void releasingTwiceCountsOnce() {
+        ConcurrencyLimiter limiter = limiter(2, 2, 10, Duration.ofMinutes(1));
+        limiter.acquire("did:user1");
+        ConcurrencyLimiter.Permit permit = limiter.acquire("did:user1").join();
+
+        permit.release(false, false);
+        permit.release(false, false);
+
+        assertThat(limiter.stats().inFlight(), equalTo(1));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void takesTheLatencyAtTheFirstChunkNotWhenTheClientIsDone() {
+        AtomicLong clock = new AtomicLong();
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.Limits(4, 1, 8),
+                new ConcurrencyLimiter.Limits(4, 1, 8), 10, Duration.ofMinutes(1), clock::get);
+        for (long download : new long[]{10, 60}) {
+            ConcurrencyLimiter.Permit permit = limiter.acquire("did:user1").join();
+            StreamObserver<String> observer = permit.observing(mock(StreamObserver.class));
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+            observer.onNext("chunk");
+            // a slow client takes its time to read the results
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(download));
+            observer.onCompleted();
+            permit.release();
+        }
+
+        assertThat(limiter.stats().limit(), equalTo(4));
+        assertThat(limiter.retryAfterSeconds(), equalTo(1L));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void overloadSeenUpstreamShrinksTheLimit() {
+        ConcurrencyLimiter limiter = limiter(10, 10, 10, Duration.ofMinutes(1));
+        ConcurrencyLimiter.Permit permit = limiter.acquire("did:user1").join();
+
+        permit.observing(mock(StreamObserver.class)).onError(Status.DEADLINE_EXCEEDED.asRuntimeException());
+        permit.release();
+
+        assertThat(limiter.stats().limit(), equalTo(9));
+    }
+
+    @Test
+    void permitsNeverObservedUpstreamAreNotSamples() {
+        ConcurrencyLimiter limiter = limiter(10, 10, 10, Duration.ofMinutes(1));
+
+        limiter.acquire("did:user1").join().release();
+
+        assertThat(limiter.stats().limit(), equalTo(10));
+        assertThat(limiter.stats().inFlight(), equalTo(0));
+    }
+
+    @Test
+    void keepsTheStateOfUsersWithQueriesInFlight() {
+        ConcurrencyLimiter limiter = limiter(10, 1, 10, Duration.ofMinutes(1));
+        ConcurrencyLimiter.Permit running = limiter.acquire("did:user1").join();
+        // more idle users than are remembered
+        for (int i = 0; i < 10_001; i++) {
+            limiter.acquire("did:other" + i).join().release(false, false);
+        }
+
+        assertThat(limiter.stats().users().get("did:user1"), equalTo(new ConcurrencyLimiter.UserStats(1, 1)));
+        CompletableFuture<ConcurrencyLimiter.Permit> next = limiter.acquire("did:user1");
+        assertFalse(next.isDone(), "still at its limit");
+
+        running.release(false, false);
+        assertTrue(next.isDone());
+        next.join().release(false, false);
+        assertThat(limiter.stats().inFlight(), equalTo(0));
+        assertTrue(limiter.stats().users().isEmpty());
+    }
+
+    @Test
+    void limitGrowsWhileBusyAndLatencyIsSteady() {
+        AimdLimit limit = new AimdLimit(4, 1, 10);
+        for (int i = 0; i < 8; i++) {
+            limit.onSample(1_000_000, false, 4);
+        }
+        assertThat(limit.limit(), equalTo(5));
+    }
+
+    @Test
+    void limitDoesNotGrowWhileMostlyIdle() {
+        AimdLimit limit = new AimdLimit(4, 1, 10);
+        for (int i = 0; i < 8; i++) {
+            limit.onSample(1_000_000, false, 1);
+        }
+        assertThat(limit.limit(), equalTo(4));
+    }
+
+    @Test
+    void limitShrinksOnOverloadOrLatencyWellAboveTheBaseline() {
+        AimdLimit limit = new AimdLimit(10, 1, 10);
+        limit.onSample(1_000_000, false, 10);
+        limit.onSample(1_000_000, true, 10);
+        assertThat(limit.limit(), equalTo(9));
+
+        limit.onSample(10_000_000, false, 10);
+        assertThat(limit.limit(), equalTo(8));
+    }
+
+    @Test
+    void limitsMustBeConsistent() {
+        assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimiter.Limits(5, 6, 10));
+        assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimiter.Limits(5, 0, 10));
+        assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimiter.Limits(5, 1, 4));
+    }
+}
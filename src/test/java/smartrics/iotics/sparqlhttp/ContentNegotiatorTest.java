@@ -0,0 +1,82 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.iotics.api.SparqlResultType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.NullSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentNegotiatorTest {
+
+    private final ContentNegotiator negotiator = new ContentNegotiator(16);
+
+    @ParameterizedTest
+    @NullSource
+    @ValueSource(strings = {"", "*/*"})
+    void defaultsToSparqlJsonWithoutCaching(String accept) {
+        Optional<ContentNegotiator.Negotiated> negotiated = negotiator.negotiate(accept);
+
+        assertSame(ContentNegotiator.DEFAULT, negotiated.orElseThrow());
+        assertEquals("application/sparql-results+json", negotiated.get().mime());
+        assertEquals(0, negotiator.size());
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "text/csv | SPARQL_CSV | text/csv",
+            "application/json | SPARQL_JSON | application/sparql-results+json",
+            "Text/Turtle | RDF_TURTLE | text/turtle",
+            "application/n-triples; charset=utf-8 | RDF_NTRIPLES | application/n-triples",
+            "text/csv;q=0.5, application/sparql-results+xml | SPARQL_XML | application/sparql-results+xml",
+            "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8 | SPARQL_XML | application/sparql-results+xml",
+            "text/html, */*;q=0.1 | SPARQL_JSON | application/sparql-results+json",
+            "text/tab-separated-values;q=0.2, text/csv | SPARQL_CSV | text/csv",
+            "text/* | SPARQL_CSV | text/csv",
+            "application/* | SPARQL_JSON | application/sparql-results+json",
+    })
+    void picksTheMostPreferredSupportedType(String accept, SparqlResultType type, String mime) {
+        assertEquals(new ContentNegotiator.Negotiated(type, mime), negotiator.negotiate(accept).orElseThrow());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"text/unknown", "application/x-binary-rdf", "text/csv;q=0", "image/*"})
+    void rejectsUnsupportedTypes(String accept) {
+        assertTrue(negotiator.negotiate(accept).isEmpty());
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "text/tab-separated-values, text/csv;q=0.2 | TSV | SPARQL_JSON",
+            "application/n-quads | N_QUADS | RDF_NTRIPLES",
+            "application/ld+json | JSON_LD | RDF_NTRIPLES",
+            "application/rdf+json;q=0.9, text/plain | RDF_JSON | RDF_NTRIPLES",
+    })
+    void negotiatesFormatsConvertedFromNativeOnes(String accept, Transcoding transcoding, SparqlResultType type) {
+        assertEquals(new ContentNegotiator.Negotiated(type, transcoding.mime(), transcoding), negotiator.negotiate(accept).orElseThrow());
+    }
+
+    @Test
+    void remembersOutcomesByHeader() {
+        String accept = "application/sparql-results+json;q=0.2, text/csv;q=0.9";
+        Optional<ContentNegotiator.Negotiated> first = negotiator.negotiate(accept);
+
+        assertSame(first, negotiator.negotiate(accept));
+        assertEquals(1, negotiator.size());
+    }
+
+    @Test
+    void mapsEveryTypeToItsCanonicalMime() {
+        assertEquals("application/sparql-results+xml", ContentTypesMap.mimeFor(SparqlResultType.SPARQL_XML));
+        assertEquals("application/sparql-results+json", ContentTypesMap.mimeFor(SparqlResultType.SPARQL_JSON));
+        assertEquals("text/csv", ContentTypesMap.mimeFor(SparqlResultType.SPARQL_CSV));
+        assertEquals("application/rdf+xml", ContentTypesMap.mimeFor(SparqlResultType.RDF_XML));
+        assertEquals("text/turtle", ContentTypesMap.mimeFor(SparqlResultType.RDF_TURTLE));
+        assertEquals("application/n-triples", ContentTypesMap.mimeFor(SparqlResultType.RDF_NTRIPLES));
+        assertNull(ContentTypesMap.mimeFor(SparqlResultType.UNRECOGNIZED));
+    }
+}
@@ -0,0 +1,69 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.Test;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FormQueryDecoderTest {
+
+    private static String decode(String body, Charset charset, int chunkSize) {
+        FormQueryDecoder decoder = new FormQueryDecoder(charset, body.length());
+        byte[] bytes = body.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            decoder.feed(Buffer.buffer().appendBytes(bytes, i, Math.min(chunkSize, bytes.length - i)));
+        }
+        return decoder.finish();
+    }
+
+    @Test
+    void decodesTheQueryFieldOnly() {
+        String query = "SELECT * WHERE { ?s ?p \"café & co = 100%\" }";
+        String body = "format=json&query=" + URLEncoder.encode(query, StandardCharsets.UTF_8) + "&timeout=10";
+
+        assertEquals(query, decode(body, StandardCharsets.UTF_8, body.length()));
+    }
+
+    @Test
+    void escapesMaySpanChunks() {
+        String query = "SELECT ?é WHERE { ?s <http://x/ü> ?o }";
+        String body = "query=" + URLEncoder.encode(query, StandardCharsets.UTF_8);
+
+        for (int chunk = 1; chunk < 5; chunk++) {
+            assertEquals(query, decode(body, StandardCharsets.UTF_8, chunk));
+        }
+    }
+
+    @Test
+    void matchesUrlDecoder() {
+        String body = "query=a+b%2Bc%3D%26d=e";
+
+        assertEquals(URLDecoder.decode("a+b%2Bc%3D%26d=e", StandardCharsets.UTF_8), decode(body, StandardCharsets.UTF_8, 3));
+    }
+
+    @Test
+    void honoursTheCharset() {
+        String body = "query=" + URLEncoder.encode("café", StandardCharsets.ISO_8859_1);
+
+        assertEquals("café", decode(body, StandardCharsets.ISO_8859_1, 2));
+    }
+
+    @Test
+    void keysOnlyMatchExactly() {
+        assertNull(decode("queryx=1&xquery=2&quer=3", StandardCharsets.UTF_8, 4));
+        assertEquals("2", decode("q%75ery=2", StandardCharsets.UTF_8, 1));
+        assertEquals("", decode("query=", StandardCharsets.UTF_8, 1));
+        assertEquals("first", decode("query=first&query=second", StandardCharsets.UTF_8, 5));
+    }
+
+    @Test
+    void rejectsBrokenEscapes() {
+        assertThrows(IllegalArgumentException.class, () -> decode("query=%zz", StandardCharsets.UTF_8, 1));
+        assertThrows(IllegalArgumentException.class, () -> decode("query=%4", StandardCharsets.UTF_8, 1));
+    }
+}
@@ -0,0 +1,129 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class HedgedRunnerTest {
+
+    private final List<StreamObserver<String>> copies = new ArrayList<>();
+    private final List<QueryRunner> runners = new ArrayList<>();
+    private Vertx vertx;
+    private Hedging hedging;
+    private StreamObserver<String> output;
+    private HedgedRunner runner;
+
+    @BeforeEach
+    void setUp() {
+        vertx = mock(Vertx.class);
+        when(vertx.setTimer(anyLong(), any())).thenReturn(1L);
+        hedging = new Hedging(Duration.ofMillis(1), 1.0);
+        for (int i = 0; i < Hedging.MIN_SAMPLES; i++) {
+            hedging.record(Duration.ofMillis(5).toNanos(), false);
+        }
+        output = mock(StreamObserver.class);
+        runner = new HedgedRunner(vertx, hedging, copy -> {
+            copies.add(copy);
+            QueryRunner r = mock(QueryRunner.class);
+            runners.add(r);
+            return r;
+        }, output);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void fireTimer() {
+        ArgumentCaptor<Handler<Long>> handler = ArgumentCaptor.forClass(Handler.class);
+        verify(vertx).setTimer(anyLong(), handler.capture());
+        handler.getValue().handle(1L);
+    }
+
+    @Test
+    void doesNotHedgeWhenThePrimaryAnswersInTime() {
+        runner.run("q");
+        copies.get(0).onNext("a");
+        copies.get(0).onCompleted();
+
+        verify(vertx).cancelTimer(1L);
+        verify(output).onNext("a");
+        verify(output).onCompleted();
+        assertThat(runners.size(), equalTo(1));
+        assertThat(hedging.stats().hedged(), equalTo(0L));
+    }
+
+    @Test
+    void theHedgeAnsweringFirstWinsAndThePrimaryIsCancelled() {
+        runner.run("q");
+        fireTimer();
+        verify(runners.get(1)).run("q");
+
+        copies.get(1).onNext("b");
+        copies.get(0).onNext("a");
+        copies.get(1).onCompleted();
+
+        verify(runners.get(0)).cancel();
+        verify(output).onNext("b");
+        verify(output, never()).onNext("a");
+        verify(output).onCompleted();
+        assertThat(hedging.stats().hedgesWon(), equalTo(1L));
+    }
+
+    @Test
+    void aFailureIsPassedOnOnlyOnceBothCopiesFailed() {
+        runner.run("q");
+        fireTimer();
+
+        copies.get(0).onError(Status.UNAVAILABLE.asRuntimeException());
+        verify(output, never()).onError(any());
+
+        copies.get(1).onError(Status.UNAVAILABLE.asRuntimeException());
+        verify(output).onError(any());
+    }
+
+    @Test
+    void aHedgeStillAnswersAfterThePrimaryFailed() {
+        runner.run("q");
+        fireTimer();
+
+        copies.get(0).onError(Status.UNAVAILABLE.asRuntimeException());
+        copies.get(1).onNext("b");
+
+        verify(output).onNext("b");
+        verify(output, never()).onError(any());
+    }
+
+    @Test
+    void doesNotHedgeWithoutEnoughSamples() {
+        HedgedRunner cold = new HedgedRunner(vertx, new Hedging(Duration.ofMillis(1), 1.0), copy -> mock(QueryRunner.class), output);
+
+        cold.run("q");
+
+        verify(vertx, never()).setTimer(anyLong(), any());
+    }
+
+    @Test
+    void cancelCancelsBothCopiesAndTheTimer() {
+        runner.run("q");
+        fireTimer();
+        runner.pause();
+
+        runner.cancel();
+
+        verify(runners.get(0)).pause();
+        verify(runners.get(1)).pause();
+        verify(runners.get(0)).cancel();
+        verify(runners.get(1)).cancel();
+    }
+}
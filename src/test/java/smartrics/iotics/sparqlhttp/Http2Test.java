@@ -0,0 +1,89 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.*;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+@ExtendWith(VertxExtension.class)
+class Http2Test {
+
+    private static ConfigManager config(Map<ConfigManager.ConfigKey, String> overrides) {
+        Map<ConfigManager.ConfigKey, String> values = new EnumMap<>(Map.of(
+                ConfigManager.ConfigKey.HOST_DNS, "localhost",
+                ConfigManager.ConfigKey.AGENT_KEY, "agent", ConfigManager.ConfigKey.AGENT_SEED, "seed",
+                ConfigManager.ConfigKey.USER_KEY, "user", ConfigManager.ConfigKey.USER_SEED, "seed"));
+        values.putAll(overrides);
+        return new ConfigManager(values);
+    }
+
+    @Test
+    void configuresTheListeners() {
+        ConfigManager configManager = config(Map.of(
+                ConfigManager.ConfigKey.HTTP2_MAX_CONCURRENT_STREAMS, "32",
+                ConfigManager.ConfigKey.HTTP2_INITIAL_WINDOW_SIZE, "262144",
+                ConfigManager.ConfigKey.HTTP2_HEADER_TABLE_SIZE, "8192"));
+
+        HttpServerOptions https = SparqlEndpoint.httpsOptions(configManager);
+        HttpServerOptions http = SparqlEndpoint.httpOptions(configManager);
+
+        assertTrue(https.isUseAlpn());
+        assertEquals(List.of(HttpVersion.HTTP_2, HttpVersion.HTTP_1_1), https.getAlpnVersions());
+        assertTrue(http.isHttp2ClearTextEnabled());
+        for (HttpServerOptions options : List.of(http, https)) {
+            assertEquals(32, options.getInitialSettings().getMaxConcurrentStreams());
+            assertEquals(262144, options.getInitialSettings().getInitialWindowSize());
+            assertEquals(8192, options.getInitialSettings().getHeaderTableSize());
+        }
+    }
+
+    @Test
+    void canBeTurnedOff() {
+        ConfigManager configManager = config(Map.of(
+                ConfigManager.ConfigKey.ENABLE_HTTP2, "false",
+                ConfigManager.ConfigKey.ENABLE_H2C, "false"));
+
+        assertFalse(SparqlEndpoint.httpsOptions(configManager).isUseAlpn());
+        assertFalse(SparqlEndpoint.httpOptions(configManager).isHttp2ClearTextEnabled());
+    }
+
+    @Test
+    void streamsChunksOverH2c(Vertx vertx, VertxTestContext testContext) {
+        HttpServer server = vertx.createHttpServer(SparqlEndpoint.httpOptions(config(Map.of())))
+                .requestHandler(request -> {
+                    ChunkedResponseWriter writer = new ChunkedResponseWriter(vertx.getOrCreateContext(), request.response());
+                    writer.attach(mock(QueryRunner.class));
+                    writer.onNext("a,");
+                    writer.onNext("b,");
+                    writer.onNext("c");
+                    writer.onCompleted();
+                });
+        HttpClient client = vertx.createHttpClient(new HttpClientOptions()
+                .setProtocolVersion(HttpVersion.HTTP_2)
+                .setHttp2ClearTextUpgrade(false));
+        server.listen(0)
+                .compose(s -> client.request(HttpMethod.GET, s.actualPort(), "localhost", "/"))
+                .compose(request -> request.send().compose(response -> {
+                    testContext.verify(() -> {
+                        assertEquals(HttpVersion.HTTP_2, response.version());
+                        assertEquals(200, response.statusCode());
+                        // HTTP/2 has no chunked transfer encoding: each chunk travels in DATA frames
+                        assertNull(response.getHeader("Transfer-Encoding"));
+                    });
+                    return response.body();
+                }))
+                .onComplete(testContext.succeeding(body -> {
+                    testContext.verify(() -> assertEquals("a,b,c", body.toString()));
+                    testContext.completeNow();
+                }));
+    }
+}
@@ -0,0 +1,184 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import smartrics.iotics.identity.Identity;
+import smartrics.iotics.identity.go.StringResult;
+import smartrics.iotics.identity.jna.SdkApi;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class IdentitiesTest {
+    private static final Identity AGENT = new Identity("agentKey", "#app1", "did:iotics:agent");
+    private static final Identity USER = new Identity("userKey", "#app1", "did:iotics:user");
+
+    private final SdkApi api = mock(SdkApi.class);
+    private final AtomicLong clock = new AtomicLong();
+    private final BoundedWorkerPool workers = new BoundedWorkerPool("identity-test", 2, 16, Duration.ofSeconds(5));
+    private Identities identities;
+
+    @AfterEach
+    void tearDown() {
+        if (identities != null) {
+            identities.close();
+        }
+        workers.close();
+    }
+
+    private Identities identities(long maximumSize, Duration delegationRefresh) throws Exception {
+        when(api.CreateUserIdentity(any(), any(), any(), any()))
+                .thenAnswer(invocation -> new StringResult("did:iotics:" + invocation.getArgument(1), null));
+        when(api.CreateAgentAuthToken(any(), any(), any(), any(), any(), any(), anyLong()))
+                .thenAnswer(invocation -> new StringResult("token-for-" + invocation.getArgument(4), null));
+        IdentityBootstrap.Steps steps = new IdentityBootstrap.Steps() {
+            @Override
+            public CompletableFuture<String> resolver(String host) {
+                return CompletableFuture.completedFuture("https://resolver.iotics.space");
+            }
+
+            @Override
+            public SdkApi sdk() {
+                return api;
+            }
+
+            @Override
+            public Identity agent(SdkApi api, String resolver) {
+                return AGENT;
+            }
+
+            @Override
+            public Identity user(SdkApi api, String resolver) {
+                return USER;
+            }
+
+            @Override
+            public void delegate(SdkApi api, String resolver, Identity agent, Identity user) {
+            }
+        };
+        identities = new Identities("host.iotics.space", steps, "userKey", "userSeed", "agentKey", "agentSeed",
+                Duration.ofMinutes(10), 0.5, new Identities.CacheSettings(maximumSize, Duration.ofHours(1), delegationRefresh),
+                new Identities.StartupSettings(null, Duration.ofSeconds(1), Duration.ofMillis(10)), workers, new SimpleMeterRegistry(), clock::get);
+        identities.whenReady().get(5, TimeUnit.SECONDS);
+        return identities;
+    }
+
+    private void delegationsAnswer(String... errors) {
+        when(api.UserDelegatesAuthenticationToAgent(any(), any(), any(), any(), any(), any(), any(), any(), any(), any()))
+                .thenReturn(null, errors);
+    }
+
+    private void verifyDelegations(int times) {
+        verify(api, timeout(5000).times(times)).UserDelegatesAuthenticationToAgent(any(), any(), any(), any(), any(), any(), any(), any(), any(), any());
+    }
+
+    private long delegationCalls() {
+        return mockingDetails(api).getInvocations().stream()
+                .filter(i -> i.getMethod().getName().equals("UserDelegatesAuthenticationToAgent")).count();
+    }
+
+    @Test
+    void createsAndDelegatesEachBearerOnce() throws Exception {
+        Identities identities = identities(10, Duration.ofHours(1));
+        delegationsAnswer();
+
+        String token = identities.newToken("alice:aliceSeed");
+
+        assertEquals("token-for-did:iotics:alice", token);
+        assertEquals(token, identities.newTokenAsync("alice:aliceSeed").toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS));
+        verify(api, times(1)).CreateUserIdentity(any(), eq("alice"), any(), eq("aliceSeed"));
+        verifyDelegations(1);
+    }
+
+    @Test
+    void evictsTheLeastRecentBearerOnceFull() throws Exception {
+        Identities identities = identities(1, Duration.ofHours(1));
+        delegationsAnswer();
+
+        identities.newToken("alice:aliceSeed");
+        identities.newToken("bob:bobSeed");
+        identities.newToken("alice:aliceSeed");
+
+        verify(api, times(2)).CreateUserIdentity(any(), eq("alice"), any(), eq("aliceSeed"));
+        assertEquals(1, identities.stats().users().size());
+    }
+
+    @Test
+    void keysUsersByAHashOfTheBearer() throws Exception {
+        Identities identities = identities(10, Duration.ofHours(1));
+        delegationsAnswer();
+
+        String key = Identities.cacheKey("alice:aliceSeed");
+        assertEquals(64, key.length());
+        assertFalse(key.contains("alice"));
+        assertNotEquals(key, Identities.cacheKey("alice:otherSeed"));
+
+        // same key, other seed: another bearer
+        identities.newToken("alice:aliceSeed");
+        identities.newToken("alice:otherSeed");
+        verify(api).CreateUserIdentity(any(), eq("alice"), any(), eq("aliceSeed"));
+        verify(api).CreateUserIdentity(any(), eq("alice"), any(), eq("otherSeed"));
+        assertEquals(2, identities.stats().users().size());
+    }
+
+    @Test
+    void rejectsABearerWhoseDelegationFails() throws Exception {
+        Identities identities = identities(10, Duration.ofHours(1));
+        when(api.UserDelegatesAuthenticationToAgent(any(), any(), any(), any(), any(), any(), any(), any(), any(), any()))
+                .thenReturn("delegation refused", (String) null);
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> identities.newToken("alice:aliceSeed"));
+        assertTrue(e.getCause().getMessage().contains("delegation refused"));
+        assertEquals(0, identities.stats().users().size());
+
+        identities.newToken("alice:aliceSeed");
+        assertEquals(1, identities.stats().users().size());
+    }
+
+    @Test
+    void refreshesDueDelegationsInTheBackground() throws Exception {
+        Identities identities = identities(10, Duration.ofMinutes(30));
+        delegationsAnswer();
+        identities.newToken("alice:aliceSeed");
+        identities.newTokenAsync("alice:aliceSeed");
+        verifyDelegations(1);
+
+        clock.addAndGet(Duration.ofMinutes(31).toNanos());
+        identities.newTokenAsync("alice:aliceSeed");
+
+        verifyDelegations(2);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (identities.stats().delegationRefreshes() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, identities.stats().delegationRefreshes());
+    }
+
+    @Test
+    void aFailedRefreshIsNotCountedAndIsTriedAgain() throws Exception {
+        Identities identities = identities(10, Duration.ofMinutes(30));
+        delegationsAnswer("delegation refused", "delegation refused");
+        identities.newToken("alice:aliceSeed");
+
+        clock.addAndGet(Duration.ofMinutes(31).toNanos());
+        identities.newTokenAsync("alice:aliceSeed");
+        verifyDelegations(2);
+
+        // a failed refresh leaves the delegation due: the next request tries again
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        // counted before asking: a refresh is only let through once the previous one has been recorded
+        while (delegationCalls() < 3 && System.nanoTime() < deadline) {
+            identities.newTokenAsync("alice:aliceSeed");
+            Thread.sleep(10);
+        }
+        verifyDelegations(3);
+        assertEquals(0, identities.stats().delegationRefreshes());
+    }
+}
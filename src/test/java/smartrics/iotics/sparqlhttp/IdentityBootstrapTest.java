@@ -0,0 +1,223 @@
+package smartrics.iotics.sparqlhttp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import smartrics.iotics.identity.Identity;
+import smartrics.iotics.identity.jna.SdkApi;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class IdentityBootstrapTest {
+    private static final String RESOLVER = "https://resolver.iotics.space";
+    private static final Identity AGENT = new Identity("agentKey", "#app1", "did:iotics:agent");
+    private static final Identity USER = new Identity("userKey", "#app1", "did:iotics:user");
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Steps that wait for the ones meant to run beside them: run one after another instead, they fail.
+     */
+    private static final class Steps implements IdentityBootstrap.Steps {
+        private final AtomicInteger resolverLookups = new AtomicInteger();
+        private final AtomicInteger failures;
+        private final CountDownLatch resolving = new CountDownLatch(1);
+        private final CountDownLatch loadingSdk = new CountDownLatch(1);
+        private final CountDownLatch creating = new CountDownLatch(2);
+        private final CountDownLatch delegated = new CountDownLatch(1);
+        private final SdkApi api = mock(SdkApi.class);
+        // completed to let the resolver answer
+        private final CompletableFuture<String> resolverAnswer = new CompletableFuture<>();
+        private boolean sdkBesideResolver;
+
+        Steps(int failures) {
+            this.failures = new AtomicInteger(failures);
+            resolverAnswer.complete(RESOLVER);
+        }
+
+        Steps(CompletableFuture<String> resolverAnswer) {
+            this.failures = new AtomicInteger();
+            resolverAnswer.thenAccept(this.resolverAnswer::complete);
+        }
+
+        private static void await(CountDownLatch latch, String what) {
+            try {
+                if (!latch.await(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException(what + " not run side by side");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public CompletableFuture<String> resolver(String host) {
+            resolverLookups.incrementAndGet();
+            if (failures.getAndDecrement() > 0) {
+                return CompletableFuture.failedFuture(new IllegalArgumentException("Unable to access host " + host));
+            }
+            resolving.countDown();
+            if (!sdkBesideResolver) {
+                return resolverAnswer.copy();
+            }
+            return resolverAnswer.thenApplyAsync(resolver -> {
+                await(loadingSdk, "resolver and SDK");
+                return resolver;
+            });
+        }
+
+        @Override
+        public SdkApi sdk() {
+            loadingSdk.countDown();
+            if (sdkBesideResolver) {
+                await(resolving, "resolver and SDK");
+            }
+            return api;
+        }
+
+        @Override
+        public Identity agent(SdkApi api, String resolver) {
+            creating.countDown();
+            await(creating, "agent and user");
+            return AGENT;
+        }
+
+        @Override
+        public Identity user(SdkApi api, String resolver) {
+            creating.countDown();
+            await(creating, "agent and user");
+            return USER;
+        }
+
+        @Override
+        public void delegate(SdkApi api, String resolver, Identity agent, Identity user) {
+            delegated.countDown();
+        }
+    }
+
+    private IdentityBootstrap bootstrap(Steps steps, Path cacheFile, String key) {
+        return new IdentityBootstrap("host.iotics.space", steps, new StartupCache(cacheFile), key, executor);
+    }
+
+    private static IdentityBootstrap.Result start(IdentityBootstrap bootstrap, boolean warm) throws Exception {
+        IdentityBootstrap.Result result = bootstrap.start(Duration.ofMillis(10)).get(10, TimeUnit.SECONDS);
+        assertThat(result.warm(), equalTo(warm));
+        assertThat(result.resolver(), equalTo(RESOLVER));
+        assertThat(result.agent(), equalTo(AGENT));
+        assertThat(result.user(), equalTo(USER));
+        return result;
+    }
+
+    /**
+     * Waits for the background refresh to store what it learned, so that the cache file isn't written as it is
+     * deleted.
+     */
+    private void awaitBackgroundRefresh(Steps steps) throws InterruptedException {
+        assertTrue(steps.delegated.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void coldStartRunsIndependentStepsSideBySide() throws Exception {
+        Path cacheFile = dir.resolve("cache/startup.json");
+        Steps steps = new Steps(0);
+        steps.sdkBesideResolver = true;
+
+        start(bootstrap(steps, cacheFile, "key"), false);
+
+        assertThat(steps.delegated.getCount(), equalTo(0L));
+        assertTrue(Files.isRegularFile(cacheFile));
+    }
+
+    @Test
+    void warmStartIsReadyBeforeTheResolverAnswersAndThenRefreshes() throws Exception {
+        Path cacheFile = dir.resolve("startup.json");
+        start(bootstrap(new Steps(0), cacheFile, "key"), false);
+
+        CompletableFuture<String> resolverAnswer = new CompletableFuture<>();
+        Steps warm = new Steps(resolverAnswer);
+        start(bootstrap(warm, cacheFile, "key"), true);
+
+        // ready with the network held back: no identity was created nor delegated
+        assertThat(warm.creating.getCount(), equalTo(2L));
+        assertThat(warm.delegated.getCount(), equalTo(1L));
+        resolverAnswer.complete(RESOLVER);
+        awaitBackgroundRefresh(warm);
+    }
+
+    @Test
+    void retriesAFailedBackgroundRefresh() throws Exception {
+        Path cacheFile = dir.resolve("startup.json");
+        start(bootstrap(new Steps(0), cacheFile, "key"), false);
+
+        Steps warm = new Steps(2);
+        start(bootstrap(warm, cacheFile, "key"), true);
+
+        awaitBackgroundRefresh(warm);
+        assertThat(warm.resolverLookups.get(), equalTo(3));
+    }
+
+    @Test
+    void ignoresTheCacheOfAnotherConfiguration() throws Exception {
+        Path cacheFile = dir.resolve("startup.json");
+        start(bootstrap(new Steps(0), cacheFile, "key"), false);
+
+        start(bootstrap(new Steps(0), cacheFile, "other"), false);
+    }
+
+    @Test
+    void ignoresAnUnreadableCache() throws Exception {
+        Path cacheFile = dir.resolve("startup.json");
+        Files.writeString(cacheFile, "{not json");
+
+        start(bootstrap(new Steps(0), cacheFile, "key"), false);
+    }
+
+    @Test
+    void retriesUntilTheResolverAnswers() throws Exception {
+        Steps steps = new Steps(2);
+
+        start(bootstrap(steps, null, "key"), false);
+
+        assertThat(steps.resolverLookups.get(), equalTo(3));
+    }
+
+    @Test
+    void storesNoSeeds() throws Exception {
+        Path cacheFile = dir.resolve("startup.json");
+        String key = StartupCache.key("host.iotics.space", "userKey", "userSeed", "agentKey", "agentSeed");
+        start(bootstrap(new Steps(0), cacheFile, key), false);
+
+        String stored = Files.readString(cacheFile);
+        assertFalse(stored.contains("userSeed"));
+        assertFalse(stored.contains("agentSeed"));
+        assertTrue(new StartupCache(cacheFile).load(key).isPresent());
+        assertNotEquals(key, StartupCache.key("host.iotics.space", "userKey", "otherSeed", "agentKey", "agentSeed"));
+    }
+
+    @Test
+    void parsesTheResolverOfTheHostIndex() {
+        assertThat(ResolverFinder.parse("host", "{\"resolver\": \"https://resolver.iotics.space\"}"), equalTo("https://resolver.iotics.space"));
+        assertThrows(IllegalArgumentException.class, () -> ResolverFinder.parse("host", "{}"));
+        assertThrows(IllegalArgumentException.class, () -> ResolverFinder.parse("host", "<html>"));
+    }
+}
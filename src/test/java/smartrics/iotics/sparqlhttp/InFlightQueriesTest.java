@@ -0,0 +1,219 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.iotics.api.Scope;
+import com.iotics.api.SparqlResultType;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class InFlightQueriesTest {
+
+    private final QueryKey key = QueryKey.of(Scope.LOCAL, "SELECT * WHERE { ?s ?p ?o }", SparqlResultType.SPARQL_JSON, "did:user1");
+
+    private InFlightQueries inFlightQueries;
+    private QueryRunner upstream;
+    private AtomicReference<StreamObserver<String>> upstreamOutput;
+    private int upstreamCalls;
+
+    @BeforeEach
+    void setUp() {
+        inFlightQueries = new InFlightQueries();
+        upstream = mock(QueryRunner.class);
+        upstreamOutput = new AtomicReference<>();
+        upstreamCalls = 0;
+    }
+
+    private QueryRunner join(StreamObserver<String> subscriber) {
+        return inFlightQueries.join(key, subscriber, output -> {
+            upstreamCalls++;
+            upstreamOutput.set(output);
+            return upstream;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static StreamObserver<String> subscriber() {
+        return mock(StreamObserver.class);
+    }
+
+    @Test
+    void identicalQueriesShareOneUpstreamCall() {
+        StreamObserver<String> first = subscriber();
+        StreamObserver<String> second = subscriber();
+
+        join(first).run("q");
+        join(second).run("q");
+        upstreamOutput.get().onNext("chunk");
+        upstreamOutput.get().onCompleted();
+
+        assertEquals(1, upstreamCalls);
+        verify(upstream, times(1)).run("q");
+        for (StreamObserver<String> s : new StreamObserver[]{first, second}) {
+            verify(s).onNext("chunk");
+            verify(s).onCompleted();
+        }
+        assertEquals(new InFlightQueries.Stats(0, 1, 1, 0), inFlightQueries.stats());
+    }
+
+    @Test
+    void queriesAfterTheFirstChunkStartTheirOwnCall() {
+        join(subscriber()).run("q");
+        upstreamOutput.get().onNext("chunk");
+
+        StreamObserver<String> late = subscriber();
+        join(late).run("q");
+
+        assertEquals(2, upstreamCalls);
+        verify(late, never()).onNext("chunk");
+    }
+
+    @Test
+    void differentUsersDoNotShare() {
+        join(subscriber()).run("q");
+        inFlightQueries.join(QueryKey.of(Scope.LOCAL, "SELECT * WHERE { ?s ?p ?o }", SparqlResultType.SPARQL_JSON, "did:user2"),
+                subscriber(), output -> {
+                    upstreamCalls++;
+                    return upstream;
+                });
+
+        assertEquals(2, upstreamCalls);
+    }
+
+    @Test
+    void queriesDifferingByACommentedOutClauseDoNotShare() {
+        QueryKey limited = QueryKey.of(Scope.LOCAL, "SELECT * WHERE { ?s ?p ?o } #\nLIMIT 1", SparqlResultType.SPARQL_JSON, "did:user1");
+        QueryKey commented = QueryKey.of(Scope.LOCAL, "SELECT * WHERE { ?s ?p ?o } # LIMIT 1", SparqlResultType.SPARQL_JSON, "did:user1");
+        StreamObserver<String> late = subscriber();
+        inFlightQueries.join(limited, subscriber(), output -> {
+            upstreamCalls++;
+            upstreamOutput.set(output);
+            return upstream;
+        });
+        inFlightQueries.join(commented, late, output -> {
+            upstreamCalls++;
+            return mock(QueryRunner.class);
+        });
+
+        upstreamOutput.get().onNext("chunk");
+
+        assertEquals(2, upstreamCalls);
+        verify(late, never()).onNext(any());
+    }
+
+    @Test
+    void upstreamIsPausedOnlyWhileEverySubscriberIsPaused() {
+        QueryRunner first = join(subscriber());
+        QueryRunner second = join(subscriber());
+
+        first.pause();
+        first.pause();
+        verify(upstream, never()).pause();
+        second.pause();
+        verify(upstream, times(1)).pause();
+
+        first.resume();
+        verify(upstream, times(1)).resume();
+        second.resume();
+        verify(upstream, times(1)).resume();
+    }
+
+    @Test
+    void aPausedSubscriberQueuesChunksWhileTheOthersCarryOn() {
+        StreamObserver<String> slow = subscriber();
+        StreamObserver<String> fast = subscriber();
+        QueryRunner slowRunner = join(slow);
+        join(fast);
+
+        slowRunner.pause();
+        upstreamOutput.get().onNext("a");
+        upstreamOutput.get().onNext("b");
+        upstreamOutput.get().onCompleted();
+
+        verify(fast).onNext("a");
+        verify(fast).onNext("b");
+        verify(fast).onCompleted();
+        verifyNoInteractions(slow);
+
+        slowRunner.resume();
+        InOrder inOrder = inOrder(slow);
+        inOrder.verify(slow).onNext("a");
+        inOrder.verify(slow).onNext("b");
+        inOrder.verify(slow).onCompleted();
+    }
+
+    @Test
+    void aSubscriberFallingTooFarBehindFailsAlone() {
+        inFlightQueries = new InFlightQueries(2);
+        StreamObserver<String> slow = subscriber();
+        StreamObserver<String> fast = subscriber();
+        QueryRunner slowRunner = join(slow);
+        join(fast);
+
+        slowRunner.pause();
+        for (String chunk : new String[]{"a", "b", "c"}) {
+            upstreamOutput.get().onNext(chunk);
+        }
+
+        ArgumentCaptor<Throwable> error = ArgumentCaptor.forClass(Throwable.class);
+        verify(slow).onError(error.capture());
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, Status.fromThrowable(error.getValue()).getCode());
+        verify(slow, never()).onNext(any());
+        verify(fast, times(3)).onNext(anyString());
+        verify(upstream, never()).cancel();
+        assertEquals(1, inFlightQueries.stats().overflowed());
+    }
+
+    @Test
+    void cancellingOneSubscriberLeavesTheOthersRunning() {
+        StreamObserver<String> first = subscriber();
+        StreamObserver<String> second = subscriber();
+        QueryRunner firstRunner = join(first);
+        join(second);
+
+        firstRunner.pause();
+        firstRunner.cancel();
+        upstreamOutput.get().onNext("chunk");
+
+        verify(upstream, never()).pause();
+        verify(upstream, never()).cancel();
+        verify(first, never()).onNext(any());
+        verify(second).onNext("chunk");
+    }
+
+    @Test
+    void upstreamIsCancelledWhenEverySubscriberHasCancelled() {
+        QueryRunner first = join(subscriber());
+        QueryRunner second = join(subscriber());
+
+        first.cancel();
+        second.cancel();
+        second.cancel();
+
+        verify(upstream, times(1)).cancel();
+        join(subscriber());
+        assertEquals(2, upstreamCalls, "a cancelled query can't be joined");
+    }
+
+    @Test
+    void errorsReachEverySubscriber() {
+        StreamObserver<String> first = subscriber();
+        StreamObserver<String> second = subscriber();
+        join(first);
+        join(second);
+
+        RuntimeException error = new RuntimeException("boom");
+        upstreamOutput.get().onError(error);
+
+        verify(first).onError(error);
+        verify(second).onError(error);
+        assertEquals(0, inFlightQueries.stats().joinable());
+    }
+}
@@ -0,0 +1,75 @@
+package smartrics.iotics.sparqlhttp;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+class InMemoryRateLimitStoreTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final RateLimitStore.Rate TWO_PER_SECOND_BURST_3 = new RateLimitStore.Rate(2, 3);
+
+    private final InMemoryRateLimitStore store = new InMemoryRateLimitStore(Duration.ZERO);
+
+    @Test
+    void allowsABurstThenRefusesUntilATokenIsAdded() {
+        long now = 1000 * SECOND;
+        for (int remaining = 2; remaining >= 0; remaining--) {
+            RateLimitStore.Decision decision = store.tryConsume("k", TWO_PER_SECOND_BURST_3, now);
+            assertTrue(decision.allowed());
+            assertThat(decision.remaining(), equalTo(remaining));
+        }
+        RateLimitStore.Decision refused = store.tryConsume("k", TWO_PER_SECOND_BURST_3, now);
+        assertFalse(refused.allowed());
+        assertThat(refused.limit(), equalTo(3));
+        assertThat(refused.retryAfterNanos(), equalTo(SECOND / 2));
+        assertThat(refused.resetNanos(), equalTo(3 * SECOND / 2));
+
+        assertTrue(store.tryConsume("k", TWO_PER_SECOND_BURST_3, now + SECOND / 2).allowed());
+        assertFalse(store.tryConsume("k", TWO_PER_SECOND_BURST_3, now + SECOND / 2).allowed());
+    }
+
+    @Test
+    void keysHaveTheirOwnBuckets() {
+        long now = 1000 * SECOND;
+        for (int i = 0; i < 3; i++) {
+            store.tryConsume("a", TWO_PER_SECOND_BURST_3, now);
+        }
+        assertFalse(store.tryConsume("a", TWO_PER_SECOND_BURST_3, now).allowed());
+        assertTrue(store.tryConsume("b", TWO_PER_SECOND_BURST_3, now).allowed());
+    }
+
+    @Test
+    void sweepingDropsOnlyTheBucketsThatFilledUpAgain() {
+        long now = System.nanoTime();
+        store.tryConsume("idle", TWO_PER_SECOND_BURST_3, now);
+        store.tryConsume("busy", TWO_PER_SECOND_BURST_3, now + SECOND);
+
+        store.sweep(now + SECOND);
+
+        assertThat(store.size(), equalTo(1));
+        // a dropped bucket comes back full
+        assertThat(store.tryConsume("idle", TWO_PER_SECOND_BURST_3, now + SECOND).remaining(), equalTo(2));
+    }
+
+    @Test
+    void skipsSweepsAskedForTooSoon() {
+        InMemoryRateLimitStore store = new InMemoryRateLimitStore(Duration.ofHours(1));
+        long now = System.nanoTime();
+        store.tryConsume("idle", TWO_PER_SECOND_BURST_3, now - 10 * SECOND);
+
+        store.sweep(now);
+
+        assertThat(store.size(), equalTo(1));
+    }
+
+    @Test
+    void ratesMustAllowRequests() {
+        assertThrows(IllegalArgumentException.class, () -> new RateLimitStore.Rate(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimitStore.Rate(1, 0));
+    }
+}
@@ -0,0 +1,71 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.prometheus.client.exporter.common.TextFormat;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(VertxExtension.class)
+class MetricsEndpointTest {
+
+    private static SparqlEndpoint endpoint(Vertx vertx, String enableMetrics) {
+        Map<ConfigManager.ConfigKey, String> values = new EnumMap<>(Map.of(
+                ConfigManager.ConfigKey.HOST_DNS, "localhost",
+                ConfigManager.ConfigKey.AGENT_KEY, "agent", ConfigManager.ConfigKey.AGENT_SEED, "seed",
+                ConfigManager.ConfigKey.USER_KEY, "user", ConfigManager.ConfigKey.USER_SEED, "seed",
+                ConfigManager.ConfigKey.ENABLE_METRICS, enableMetrics));
+        SharedServices services = SharedServices.SharedServicesBuilder.newBuilder(new ConfigManager(values))
+                .withChannelPool(new ChannelPool(1, Duration.ofMinutes(1)))
+                .build();
+        SparqlEndpoint endpoint = new SparqlEndpoint(services);
+        endpoint.init(vertx, vertx.getOrCreateContext());
+        return endpoint;
+    }
+
+    private static Future<HttpClientResponse> getMetrics(Vertx vertx, SparqlEndpoint endpoint) {
+        HttpClient client = vertx.createHttpClient();
+        return vertx.createHttpServer()
+                .requestHandler(endpoint.createRouter())
+                .listen(0)
+                .compose(server -> client.request(HttpMethod.GET, server.actualPort(), "localhost", "/metrics"))
+                .compose(request -> request.send());
+    }
+
+    @Test
+    void servesPrometheusText(Vertx vertx, VertxTestContext testContext) {
+        SparqlEndpoint endpoint = endpoint(vertx, "true");
+        getMetrics(vertx, endpoint)
+                .compose(response -> response.body().map(body -> {
+                    testContext.verify(() -> {
+                        assertEquals(200, response.statusCode());
+                        assertEquals(TextFormat.CONTENT_TYPE_004, response.getHeader("Content-Type"));
+                        assertTrue(body.toString().contains("# TYPE cache_size gauge"));
+                        assertTrue(body.toString().contains("cache_size{cache=\"token.validation\",}"));
+                    });
+                    return body;
+                }))
+                .onComplete(testContext.succeedingThenComplete());
+    }
+
+    @Test
+    void isNotMountedWhenMetricsAreDisabled(Vertx vertx, VertxTestContext testContext) {
+        SparqlEndpoint endpoint = endpoint(vertx, "false");
+        getMetrics(vertx, endpoint)
+                .onComplete(testContext.succeeding(response -> testContext.verify(() -> {
+                    assertEquals(404, response.statusCode());
+                    testContext.completeNow();
+                })));
+    }
+}
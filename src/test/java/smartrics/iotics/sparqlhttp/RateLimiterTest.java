@@ -0,0 +1,103 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.ext.web.Router;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@ExtendWith(VertxExtension.class)
+class RateLimiterTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private HttpServer server;
+    private HttpClient client;
+
+    @BeforeEach
+    void setUp(Vertx vertx, VertxTestContext testContext) {
+        Router router = Router.router(vertx);
+        // a request every hour: only the burst gets through
+        router.route("/sparql*").handler(new RateLimiter(new InMemoryRateLimitStore(Duration.ofMinutes(1)),
+                new RateLimitStore.Rate(1.0 / 3600, 1), new RateLimitStore.Rate(1.0 / 3600, 2), registry));
+        router.route("/sparql*").handler(ctx -> ctx.response().end());
+        client = vertx.createHttpClient();
+        vertx.createHttpServer().requestHandler(router).listen(0)
+                .onComplete(testContext.succeeding(s -> {
+                    server = s;
+                    testContext.completeNow();
+                }));
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    private Future<HttpClientResponse> get(String uri, String bearer) {
+        RequestOptions options = new RequestOptions().setMethod(HttpMethod.GET).setPort(server.actualPort()).setHost("localhost").setURI(uri);
+        if (bearer != null) {
+            options.putHeader("Authorization", "Bearer " + bearer);
+        }
+        return client.request(options).compose(req -> req.send());
+    }
+
+    @Test
+    void refusesTheRequestsOverTheBurstOfEachRoute(VertxTestContext testContext) {
+        get("/sparql", "token1")
+                .compose(first -> {
+                    testContext.verify(() -> {
+                        assertEquals(200, first.statusCode());
+                        assertEquals("1", first.getHeader("RateLimit-Limit"));
+                        assertEquals("0", first.getHeader("RateLimit-Remaining"));
+                        assertEquals("3600", first.getHeader("RateLimit-Reset"));
+                    });
+                    return get("/sparql", "token1");
+                })
+                .compose(second -> {
+                    testContext.verify(() -> {
+                        assertEquals(429, second.statusCode());
+                        assertEquals("3600", second.getHeader("Retry-After"));
+                    });
+                    return get("/sparql/local", "token1");
+                })
+                .onComplete(testContext.succeeding(local -> testContext.verify(() -> {
+                    assertEquals(200, local.statusCode());
+                    assertEquals("2", local.getHeader("RateLimit-Limit"));
+                    assertEquals(1.0, registry.get("http.ratelimit.rejected").tag("route", "/sparql").counter().count());
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    void limitsBearersAndAnonymousClientsApart(VertxTestContext testContext) {
+        get("/sparql", "token1")
+                .compose(first -> get("/sparql", "token2"))
+                .compose(other -> {
+                    testContext.verify(() -> assertEquals(200, other.statusCode()));
+                    return get("/sparql", null);
+                })
+                .compose(anonymous -> {
+                    testContext.verify(() -> assertEquals(200, anonymous.statusCode()));
+                    return get("/sparql", null);
+                })
+                .onComplete(testContext.succeeding(again -> testContext.verify(() -> {
+                    assertEquals(429, again.statusCode());
+                    testContext.completeNow();
+                })));
+    }
+}
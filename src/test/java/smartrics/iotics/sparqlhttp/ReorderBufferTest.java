@@ -0,0 +1,60 @@
+package smartrics.iotics.sparqlhttp;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReorderBufferTest {
+
+    @Test
+    void passesThroughInOrderItems() {
+        ReorderBuffer<String> buffer = new ReorderBuffer<>(4);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(buffer.offer(i, "c" + i));
+            assertEquals("c" + i, buffer.poll());
+            assertNull(buffer.poll());
+        }
+        assertEquals(10, buffer.expected());
+    }
+
+    @Test
+    void releasesItemsOnlyWhenTheGapIsFilled() {
+        ReorderBuffer<String> buffer = new ReorderBuffer<>(4);
+        buffer.offer(2, "c2");
+        buffer.offer(1, "c1");
+        assertNull(buffer.poll());
+        assertEquals(2, buffer.buffered());
+
+        buffer.offer(0, "c0");
+        assertEquals("c0", buffer.poll());
+        assertEquals("c1", buffer.poll());
+        assertEquals("c2", buffer.poll());
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.buffered());
+    }
+
+    @Test
+    void ignoresDuplicatesAndStaleItems() {
+        ReorderBuffer<String> buffer = new ReorderBuffer<>(4);
+        buffer.offer(0, "c0");
+        buffer.poll();
+        assertFalse(buffer.offer(0, "again"));
+        assertTrue(buffer.offer(2, "c2"));
+        assertFalse(buffer.offer(2, "again"));
+        assertEquals(1, buffer.buffered());
+    }
+
+    @Test
+    void roundsWindowUpToPowerOfTwo() {
+        assertEquals(8, new ReorderBuffer<>(5).window());
+        assertEquals(1, new ReorderBuffer<>(1).window());
+    }
+
+    @Test
+    void failsWhenItemIsBeyondTheWindow() {
+        ReorderBuffer<String> buffer = new ReorderBuffer<>(4);
+        buffer.offer(3, "c3");
+        QueryExecutionException e = assertThrows(QueryExecutionException.class, () -> buffer.offer(4, "c4"));
+        assertTrue(e.getMessage().contains("waiting for chunk 0"));
+    }
+}
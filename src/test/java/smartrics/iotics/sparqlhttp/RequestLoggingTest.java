@@ -0,0 +1,73 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.RoutingContext;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class RequestLoggingTest {
+
+    @Test
+    void redactsCredentialsInDebugHeaders() {
+        MultiMap headers = MultiMap.caseInsensitiveMultiMap()
+                .add("Accept", "text/csv")
+                .add("authorization", "Bearer secret-token")
+                .add("Proxy-Authorization", "Basic c2VjcmV0");
+
+        String formatted = SparqlEndpoint.formatHeaders(headers);
+
+        assertEquals("Accept:text/csv, authorization:<redacted>, Proxy-Authorization:<redacted>", formatted);
+        assertThat(formatted, not(containsString("secret")));
+    }
+
+    @Test
+    void fingerprintsIgnoreInsignificantWhitespace() {
+        String fingerprint = AccessLog.fingerprint("SELECT * WHERE { ?s ?p ?o }");
+
+        assertEquals(16, fingerprint.length());
+        assertEquals(fingerprint, AccessLog.fingerprint("  SELECT *\n WHERE {\t?s ?p ?o }"));
+        assertNotEquals(fingerprint, AccessLog.fingerprint("SELECT * WHERE { ?s ?p \"o\" }"));
+        assertNull(AccessLog.fingerprint(null));
+    }
+
+    @Test
+    void describesTheRequest() {
+        RoutingContext ctx = mock(RoutingContext.class, RETURNS_DEEP_STUBS);
+        when(ctx.normalizedPath()).thenReturn("/sparql/local");
+        when(ctx.request().method()).thenReturn(HttpMethod.POST);
+        when(ctx.response().getStatusCode()).thenReturn(200);
+        when(ctx.response().bytesWritten()).thenReturn(1234L);
+        when(ctx.get("query")).thenReturn("SELECT * WHERE { ?s ?p ?o }");
+
+        AccessLog.Entry entry = AccessLog.Entry.of(ctx, true, 2_500_000);
+
+        assertEquals("POST", entry.method());
+        assertEquals("/sparql/local", entry.route());
+        assertEquals("200", entry.status());
+        assertEquals(2.5, entry.latencyMs());
+        assertEquals(1234, entry.bytes());
+        assertEquals(AccessLog.fingerprint("SELECT * WHERE { ?s ?p ?o }"), entry.query());
+        assertEquals("reset", AccessLog.Entry.of(ctx, false, 0).status());
+    }
+
+    @Test
+    void unsampledRequestsAreOnlyPassedOn() {
+        RoutingContext ctx = mock(RoutingContext.class);
+
+        new AccessLog(0).handle(ctx);
+
+        verify(ctx).next();
+        verifyNoMoreInteractions(ctx);
+    }
+
+    @Test
+    void rejectsInvalidSampleRates() {
+        assertThrows(IllegalArgumentException.class, () -> new AccessLog(1.5));
+    }
+}
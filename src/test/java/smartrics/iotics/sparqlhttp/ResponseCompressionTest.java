@@ -0,0 +1,96 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.iotics.api.SparqlResultType;
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCompressionTest {
+
+    private final ResponseCompression compression = new ResponseCompression(16, 1, 9);
+
+    static String decompress(ResponseCompression.Encoding encoding, byte[] bytes) throws IOException {
+        InputStream in = encoding == ResponseCompression.Encoding.GZIP
+                ? new GZIPInputStream(new ByteArrayInputStream(bytes))
+                : new InflaterInputStream(new ByteArrayInputStream(bytes));
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource(value = {
+            "gzip, deflate, br|GZIP",
+            "deflate|DEFLATE",
+            "deflate;q=1.0, gzip;q=0.5|DEFLATE",
+            "*|GZIP",
+            "gzip;q=0, *|DEFLATE",
+            "x-gzip|GZIP",
+            "br, zstd|",
+            "identity|",
+            "gzip;q=0|"}, delimiter = '|')
+    void negotiatesTheEncoding(String acceptEncoding, ResponseCompression.Encoding expected) {
+        assertEquals(Optional.ofNullable(expected), ResponseCompression.negotiate(acceptEncoding));
+    }
+
+    @Test
+    void noHeaderMeansIdentity() {
+        assertEquals(Optional.empty(), ResponseCompression.negotiate(null));
+    }
+
+    @Test
+    void textHeavyFormatsHaveTheirOwnLevel() {
+        assertEquals(9, compression.levelFor(SparqlResultType.RDF_XML));
+        assertEquals(1, compression.levelFor(SparqlResultType.SPARQL_JSON));
+        assertThrows(IllegalArgumentException.class, () -> new ResponseCompression(0, 0, 6));
+    }
+
+    @ParameterizedTest
+    @CsvSource({"GZIP", "DEFLATE"})
+    void everyChunkDecodesAsSoonAsItIsEncoded(ResponseCompression.Encoding encoding) throws IOException {
+        ResponseCompression.Encoder encoder = compression.encoder(encoding, SparqlResultType.SPARQL_XML);
+        Buffer sent = Buffer.buffer();
+        String expected = "";
+        for (int i = 0; i < 3; i++) {
+            String chunk = "<result><binding name=\"s\">" + i + "</binding></result>";
+            sent.appendBuffer(encoder.encode(chunk.getBytes(StandardCharsets.UTF_8)));
+            expected += chunk;
+            // a sync flushed stream without its end: inflate what has arrived so far
+            InputStream partial = new InflaterInputStream(new ByteArrayInputStream(
+                    encoding == ResponseCompression.Encoding.GZIP ? sent.getBytes(10, sent.length()) : sent.getBytes()),
+                    new Inflater(encoding == ResponseCompression.Encoding.GZIP));
+            byte[] decoded = new byte[expected.length()];
+            int read = 0;
+            while (read < decoded.length) {
+                read += partial.read(decoded, read, decoded.length - read);
+            }
+            assertEquals(expected, new String(decoded, StandardCharsets.UTF_8));
+        }
+        sent.appendBuffer(encoder.finish());
+
+        assertEquals(expected, decompress(encoding, sent.getBytes()));
+    }
+
+    @Test
+    void compressesWholeBodies() throws IOException {
+        String body = "<s> <p> \"o\" .\n".repeat(100);
+
+        byte[] compressed = compression.compress(ResponseCompression.Encoding.GZIP, SparqlResultType.RDF_NTRIPLES,
+                body.getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(compressed.length < body.length() / 10);
+        assertEquals(body, decompress(ResponseCompression.Encoding.GZIP, compressed));
+    }
+}
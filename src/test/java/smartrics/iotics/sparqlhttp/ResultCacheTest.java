@@ -0,0 +1,142 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.iotics.api.Scope;
+import com.iotics.api.SparqlResultType;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ResultCacheTest {
+
+    private final QueryKey key = QueryKey.of(Scope.LOCAL, "SELECT * WHERE { ?s ?p ?o }", SparqlResultType.SPARQL_JSON, "did:user1");
+
+    @SuppressWarnings("unchecked")
+    private final StreamObserver<String> delegate = mock(StreamObserver.class);
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void storesCompletedResults(boolean offHeap) {
+        ResultCache cache = new ResultCache(Duration.ofMinutes(1), 1024 * 1024, 1024, offHeap);
+        StreamObserver<String> recording = cache.recording(key, delegate);
+
+        recording.onNext("chunk1,");
+        recording.onNext("chunk2");
+        assertNull(cache.get(key), "should not be visible before completion");
+        recording.onCompleted();
+
+        verify(delegate).onNext("chunk1,");
+        verify(delegate).onNext("chunk2");
+        verify(delegate).onCompleted();
+        assertEquals("chunk1,chunk2", cache.get(key).toBuffer().toString());
+        assertEquals("chunk1,chunk2", cache.get(key).toBuffer().toString(), "reading should not consume the body");
+    }
+
+    @Test
+    void doesNotStoreFailedResults() {
+        ResultCache cache = new ResultCache(Duration.ofMinutes(1), 1024 * 1024, 1024, false);
+        StreamObserver<String> recording = cache.recording(key, delegate);
+
+        recording.onNext("partial");
+        recording.onError(new RuntimeException("boom"));
+        recording.onCompleted();
+
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    void doesNotStoreResultsLargerThanTheEntryLimit() {
+        ResultCache cache = new ResultCache(Duration.ofMinutes(1), 1024 * 1024, 8, false);
+        StreamObserver<String> recording = cache.recording(key, delegate);
+
+        recording.onNext("123456");
+        recording.onNext("789");
+        recording.onCompleted();
+
+        verify(delegate).onNext("789");
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    void keysAreScopedToTheUser() {
+        ResultCache cache = new ResultCache(Duration.ofMinutes(1), 1024 * 1024, 1024, false);
+        cache.put(key, "result".getBytes());
+
+        QueryKey sameQueryOtherUser = QueryKey.of(Scope.LOCAL, "SELECT * WHERE { ?s ?p ?o }", SparqlResultType.SPARQL_JSON, "did:user2");
+        QueryKey sameQueryReformatted = QueryKey.of(Scope.LOCAL, "  SELECT *\n WHERE {\t?s ?p ?o }", SparqlResultType.SPARQL_JSON, "did:user1");
+
+        assertNull(cache.get(sameQueryOtherUser));
+        assertNotNull(cache.get(sameQueryReformatted));
+    }
+
+    @Test
+    void evictsToStayWithinByteBudget() {
+        ResultCache cache = new ResultCache(Duration.ofMinutes(1), 100_000, 10_000, false);
+        for (int i = 0; i < 50; i++) {
+            cache.put(QueryKey.of(Scope.LOCAL, "q" + i, SparqlResultType.SPARQL_JSON, "u"), new byte[5_000]);
+        }
+        assertTrue(cache.stats().bytes() <= 100_000);
+        assertNotNull(cache.get(QueryKey.of(Scope.LOCAL, "q49", SparqlResultType.SPARQL_JSON, "u")));
+    }
+
+    @Test
+    void precompressesLongEnoughResults() throws Exception {
+        ResultCache cache = new ResultCache(Duration.ofMinutes(1), 1024 * 1024, 64 * 1024, false, new ResponseCompression(64, 6, 6));
+        String body = "{\"s\": \"http://example.com/thing\"},".repeat(50);
+        QueryKey small = QueryKey.of(Scope.LOCAL, "ASK {}", SparqlResultType.SPARQL_JSON, "did:user1");
+
+        cache.put(key, body.getBytes());
+        cache.put(small, "{}".getBytes());
+
+        ResultCache.CachedResult cached = cache.get(key);
+        assertEquals(body, cached.toBuffer().toString());
+        assertEquals(body, ResponseCompressionTest.decompress(ResponseCompression.Encoding.GZIP, cached.toGzippedBuffer().getBytes()));
+        assertEquals(body.length() + cached.gzipped().remaining(), cached.size());
+        assertNull(cache.get(small).toGzippedBuffer());
+    }
+
+    @Test
+    void purgesEverything() {
+        ResultCache cache = new ResultCache(Duration.ofMinutes(1), 1024 * 1024, 1024, false);
+        cache.put(key, "result".getBytes());
+
+        cache.purge();
+
+        assertNull(cache.get(key));
+        assertEquals(0, cache.stats().entries().size());
+    }
+
+    @Test
+    void normalisesWhitespaceOutsideLiteralsAndIris() {
+        assertEquals("SELECT * WHERE { ?s ?p \"a  b\" }", QueryKey.normalise(" SELECT *\n\tWHERE {  ?s ?p \"a  b\" } "));
+        assertEquals("SELECT * WHERE { <http://x/a b> ?p ?o }", QueryKey.normalise("SELECT  * WHERE { <http://x/a b>  ?p ?o }"));
+        assertEquals("FILTER(?a < 3)", QueryKey.normalise("FILTER(?a  <  3)"));
+    }
+
+    @Test
+    void dropsCommentsWithoutJoiningTheLinesAroundThem() {
+        assertEquals("SELECT * WHERE { ?s ?p ?o } LIMIT 1", QueryKey.normalise("SELECT * WHERE { ?s ?p ?o } #\nLIMIT 1"));
+        assertEquals("SELECT * WHERE { ?s ?p ?o }", QueryKey.normalise("SELECT * WHERE { ?s ?p ?o } # LIMIT 1"));
+        assertEquals("SELECT * WHERE { ?s ?p ?o } LIMIT 1", QueryKey.normalise("SELECT * WHERE { ?s ?p ?o } # it's\r\nLIMIT 1"));
+        assertEquals("SELECT * WHERE { <http://x/a#b> ?p \"#1  2\" }", QueryKey.normalise("SELECT * WHERE { <http://x/a#b> ?p \"#1  2\" }"));
+        assertEquals("SELECT * WHERE { ?s ?p \"\"\"a \"  b\"\"\"\" }", QueryKey.normalise("SELECT * WHERE { ?s ?p \"\"\"a \"  b\"\"\"\" }"));
+        assertEquals("SELECT * WHERE { ?s ex:a\\#b ?o }", QueryKey.normalise("SELECT * WHERE { ?s ex:a\\#b ?o }"));
+    }
+
+    @Test
+    void queriesDifferingByACommentedOutClauseDoNotShareResults() {
+        ResultCache cache = new ResultCache(Duration.ofMinutes(1), 1024 * 1024, 1024, false);
+        QueryKey limited = QueryKey.of(Scope.LOCAL, "SELECT * WHERE { ?s ?p ?o } #\nLIMIT 1", SparqlResultType.SPARQL_JSON, "did:user1");
+        QueryKey unlimited = QueryKey.of(Scope.LOCAL, "SELECT * WHERE { ?s ?p ?o } # LIMIT 1", SparqlResultType.SPARQL_JSON, "did:user1");
+        cache.put(limited, "one".getBytes());
+
+        assertNotEquals(limited, unlimited);
+        assertNull(cache.get(unlimited));
+        assertEquals(unlimited, QueryKey.of(Scope.LOCAL, "SELECT * WHERE { ?s ?p ?o }", SparqlResultType.SPARQL_JSON, "did:user1"));
+    }
+}
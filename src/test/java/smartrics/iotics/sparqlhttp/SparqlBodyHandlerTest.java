@@ -0,0 +1,119 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.ext.web.Router;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(VertxExtension.class)
+class SparqlBodyHandlerTest {
+    private static final int MAX_BYTES = 64;
+
+    private HttpServer server;
+    private HttpClient client;
+
+    @BeforeEach
+    void setUp(Vertx vertx, VertxTestContext testContext) {
+        Router router = Router.router(vertx);
+        router.route("/sparql").handler(new SparqlBodyHandler(MAX_BYTES)).handler(ctx -> {
+            String query = ctx.get(SparqlBodyHandler.QUERY);
+            ctx.response().end(query == null ? "<none>" : query);
+        });
+        client = vertx.createHttpClient();
+        vertx.createHttpServer().requestHandler(router).listen(0)
+                .onComplete(testContext.succeeding(s -> {
+                    server = s;
+                    testContext.completeNow();
+                }));
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    private RequestOptions post(String contentType) {
+        return new RequestOptions().setMethod(HttpMethod.POST).setPort(server.actualPort()).setHost("localhost")
+                .setURI("/sparql").putHeader("Content-Type", contentType);
+    }
+
+    private void send(VertxTestContext testContext, RequestOptions options, Buffer body, int status, String expected) {
+        client.request(options)
+                .compose(req -> req.send(body))
+                .compose(resp -> {
+                    testContext.verify(() -> assertEquals(status, resp.statusCode()));
+                    return resp.body();
+                })
+                .onComplete(testContext.succeeding(b -> {
+                    testContext.verify(() -> {
+                        if (expected != null) {
+                            assertEquals(expected, b.toString(StandardCharsets.UTF_8));
+                        }
+                    });
+                    testContext.completeNow();
+                }));
+    }
+
+    @Test
+    void decodesFormBodies(VertxTestContext testContext) {
+        send(testContext, post("application/x-www-form-urlencoded"), Buffer.buffer("query=SELECT+%3Fs+WHERE+%7B%7D&x=1"),
+                200, "SELECT ?s WHERE {}");
+    }
+
+    @Test
+    void decodesSparqlQueryBodiesWithTheirCharset(VertxTestContext testContext) {
+        byte[] latin1 = "SELECT ?café WHERE {}".getBytes(StandardCharsets.ISO_8859_1);
+        send(testContext, post("application/sparql-query; charset=ISO-8859-1"), Buffer.buffer(latin1),
+                200, "SELECT ?café WHERE {}");
+    }
+
+    @Test
+    void rejectsUnknownCharsets(VertxTestContext testContext) {
+        send(testContext, post("application/sparql-query; charset=klingon"), Buffer.buffer("SELECT"), 415, null);
+    }
+
+    @Test
+    void rejectsOversizedBodiesByLength(VertxTestContext testContext) {
+        send(testContext, post("application/sparql-query"), Buffer.buffer("x".repeat(MAX_BYTES + 1)), 413, null);
+    }
+
+    @Test
+    void rejectsOversizedChunkedBodies(VertxTestContext testContext) {
+        client.request(post("application/sparql-query"))
+                .compose(req -> {
+                    req.setChunked(true);
+                    for (int i = 0; i < 10; i++) {
+                        req.write("x".repeat(MAX_BYTES / 4));
+                    }
+                    req.end();
+                    return req.response();
+                })
+                .onComplete(testContext.succeeding((HttpClientResponse resp) -> {
+                    testContext.verify(() -> {
+                        assertEquals(413, resp.statusCode());
+                        assertEquals("close", resp.getHeader("Connection"));
+                    });
+                    testContext.completeNow();
+                }));
+    }
+
+    @Test
+    void passesOtherContentTypesOn(VertxTestContext testContext) {
+        send(testContext, post("text/plain"), Buffer.buffer("query=x"), 200, "<none>");
+    }
+}
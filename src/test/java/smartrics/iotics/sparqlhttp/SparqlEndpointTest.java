@@ -2,6 +2,7 @@ package smartrics.iotics.sparqlhttp;
 
 import com.iotics.api.SparqlResultType;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.junit5.VertxExtension;
@@ -18,6 +19,7 @@ import org.mockito.ArgumentCaptor;
 import smartrics.iotics.sparqlhttp.integration.EnvFileLoader;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
@@ -88,13 +90,13 @@ class SparqlEndpointTest {
 
         ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
 
-        verify(routingContext).put(eq("token"), captor.capture());
+        verify(routingContext, timeout(10000)).put(eq("token"), captor.capture());
         String tokenString = captor.getValue();
         SimpleToken st = SimpleToken.parse(tokenString);
-        verify(routingContext).put("userDID", st.userDID());
-        verify(routingContext).put("agentDID", st.agentDID());
-        verify(routingContext).put("agentId", st.agentId());
-        verify(routingContext).put("acceptedResponseType", SparqlResultType.SPARQL_JSON);
+        verify(routingContext, timeout(10000)).put("userDID", st.userDID());
+        verify(routingContext, timeout(10000)).put("agentDID", st.agentDID());
+        verify(routingContext, timeout(10000)).put("agentId", st.agentId());
+        verify(routingContext, timeout(10000)).put("acceptedResponseType", SparqlResultType.SPARQL_JSON);
 
         testContext.completeNow();
     }
@@ -205,6 +207,25 @@ class SparqlEndpointTest {
         testContext.completeNow();
     }
 
+    @Test
+    void testQueryTimeoutIsTakenFromHeaderOrParamAndCapped() {
+        Duration defaultTimeout = Duration.ofMinutes(5);
+        Duration maxTimeout = Duration.ofMinutes(15);
+        HttpServerRequest request = mock(HttpServerRequest.class);
+        assertThat(SparqlEndpoint.getValidQueryTimeout(request, defaultTimeout, maxTimeout), equalTo(defaultTimeout));
+
+        when(request.getParam("timeout")).thenReturn("2500");
+        assertThat(SparqlEndpoint.getValidQueryTimeout(request, defaultTimeout, maxTimeout), equalTo(Duration.ofMillis(2500)));
+
+        when(request.getHeader(SparqlEndpoint.QUERY_TIMEOUT_HEADER)).thenReturn("3600000");
+        assertThat(SparqlEndpoint.getValidQueryTimeout(request, defaultTimeout, maxTimeout), equalTo(maxTimeout));
+
+        when(request.getHeader(SparqlEndpoint.QUERY_TIMEOUT_HEADER)).thenReturn("soon");
+        SparqlEndpoint.ValidationException e = assertThrows(SparqlEndpoint.ValidationException.class,
+                () -> SparqlEndpoint.getValidQueryTimeout(request, defaultTimeout, maxTimeout));
+        assertThat(e.getCode(), equalTo(400));
+    }
+
     @Test
     void testSettingOfAttributesWithBearer(VertxTestContext testContext) {
         RoutingContext routingContext = mock(RoutingContext.class, RETURNS_DEEP_STUBS);
@@ -218,13 +239,13 @@ class SparqlEndpointTest {
 
         ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
 
-        verify(routingContext).put(eq("token"), captor.capture());
+        verify(routingContext, timeout(10000)).put(eq("token"), captor.capture());
         String tokenString = captor.getValue();
         SimpleToken st = SimpleToken.parse(tokenString);
-        verify(routingContext).put("userDID", st.userDID());
-        verify(routingContext).put("agentDID", st.agentDID());
-        verify(routingContext).put("agentId", st.agentId());
-        verify(routingContext).put("acceptedResponseType", SparqlResultType.SPARQL_JSON);
+        verify(routingContext, timeout(10000)).put("userDID", st.userDID());
+        verify(routingContext, timeout(10000)).put("agentDID", st.agentDID());
+        verify(routingContext, timeout(10000)).put("agentId", st.agentId());
+        verify(routingContext, timeout(10000)).put("acceptedResponseType", SparqlResultType.SPARQL_JSON);
 
         testContext.completeNow();
     }
@@ -2,7 +2,12 @@ package smartrics.iotics.sparqlhttp;
 
 import com.google.protobuf.ByteString;
 import com.iotics.api.*;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -11,12 +16,14 @@ import org.mockito.*;
 import org.mockito.junit.jupiter.MockitoExtension;
 import smartrics.iotics.identity.Identity;
 
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.concurrent.*;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -28,7 +35,9 @@ class SparqlRunnerTest {
     @Mock
     private StreamObserver<String> outputStream;
 
-    @InjectMocks
+    @Mock
+    private ClientCallStreamObserver<SparqlQueryRequest> requestStream;
+
     private SparqlRunner sparqlRunner;
 
     @Captor
@@ -108,6 +117,160 @@ class SparqlRunnerTest {
 
     }
 
+    @Test
+    public void pullsResponsesOneAtATimeUntilPaused() {
+        doAnswer(invocation -> {
+            ClientResponseObserver<SparqlQueryRequest, SparqlQueryResponse> responseObserver = invocation.getArgument(1);
+            responseObserver.beforeStart(requestStream);
+            responseObserver.onNext(newResponse(0, false));
+            sparqlRunner.pause();
+            responseObserver.onNext(newResponse(1, false));
+            return null;
+        }).when(metaAPIStub).sparqlQuery(any(SparqlQueryRequest.class), any());
+        sparqlRunner.run("SELECT * WHERE { ?s ?p ?o }");
+
+        verify(requestStream).disableAutoRequestWithInitial(1);
+        verify(requestStream, times(1)).request(1);
+        verify(outputStream).onNext(eq("Result1"));
+
+        sparqlRunner.resume();
+        verify(requestStream, times(2)).request(1);
+
+        sparqlRunner.resume();
+        verify(requestStream, times(2)).request(1);
+    }
+
+    @Test
+    public void failsAndCancelsWhenReorderWindowOverflows() {
+        sparqlRunner = SparqlRunner.SparqlRunnerBuilder.newBuilder()
+                .withMetaAPIStub(metaAPIStub)
+                .withAgentIdentity(new Identity("k", "n", "did:iotics:agentDid"))
+                .withScope(Scope.LOCAL)
+                .withSparqlResultType(SparqlResultType.SPARQL_CSV)
+                .withOutputStream(outputStream)
+                .withReorderWindow(2)
+                .build();
+        doAnswer(invocation -> {
+            ClientResponseObserver<SparqlQueryRequest, SparqlQueryResponse> responseObserver = invocation.getArgument(1);
+            responseObserver.beforeStart(requestStream);
+            responseObserver.onNext(newResponse(1, false));
+            responseObserver.onNext(newResponse(2, false));
+            responseObserver.onNext(newResponse(0, false));
+            return null;
+        }).when(metaAPIStub).sparqlQuery(any(SparqlQueryRequest.class), any());
+        sparqlRunner.run("SELECT * WHERE { ?s ?p ?o }");
+
+        verify(outputStream).onError(throwableArgumentCaptor.capture());
+        Assertions.assertTrue(throwableArgumentCaptor.getValue().getMessage().contains("reorder window"));
+        verify(requestStream).cancel(anyString(), any(QueryExecutionException.class));
+        verify(outputStream, never()).onNext(anyString());
+    }
+
+    @Test
+    public void recordsQueryMetrics() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        sparqlRunner = SparqlRunner.SparqlRunnerBuilder.newBuilder()
+                .withMetaAPIStub(metaAPIStub)
+                .withAgentIdentity(new Identity("k", "n", "did:iotics:agentDid"))
+                .withScope(Scope.LOCAL)
+                .withSparqlResultType(SparqlResultType.SPARQL_CSV)
+                .withOutputStream(outputStream)
+                .withMeterRegistry(registry)
+                .build();
+
+        sendPayloads(1, 0, 2);
+
+        assertEquals(1, registry.get("sparql.query.first.chunk").tag("scope", "LOCAL").tag("type", "SPARQL_CSV").timer().count());
+        assertEquals(1, registry.get("sparql.query.duration").tag("outcome", "success").timer().count());
+        assertEquals(3, registry.get("sparql.query.chunks").summary().totalAmount());
+        assertEquals(21, registry.get("sparql.query.bytes").summary().totalAmount());
+        assertEquals(1, registry.get("sparql.query.reorder.buffered").summary().max());
+    }
+
+    @Test
+    public void runnersShareTheMetersRegisteredForTheirScopeAndType() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        SparqlRunner.Meters meters = new SparqlRunner.Meters(registry);
+        for (int i = 0; i < 2; i++) {
+            sparqlRunner = SparqlRunner.SparqlRunnerBuilder.newBuilder()
+                    .withMetaAPIStub(metaAPIStub)
+                    .withAgentIdentity(new Identity("k", "n", "did:iotics:agentDid"))
+                    .withScope(Scope.LOCAL)
+                    .withSparqlResultType(SparqlResultType.SPARQL_CSV)
+                    .withOutputStream(outputStream)
+                    .withMeters(meters)
+                    .build();
+            // registered with the first runner, before any query
+            assertEquals(i, registry.get("sparql.query.first.chunk").timer().count());
+            sendPayloads(0);
+        }
+
+        assertEquals(1, registry.find("sparql.query.first.chunk").timers().size());
+        assertEquals(2, registry.get("sparql.query.first.chunk").timer().count());
+        assertEquals(2, registry.get("sparql.query.duration").tag("outcome", "success").timer().count());
+    }
+
+    @Test
+    public void cancelStopsTheCallAndDropsWhatItStillDelivers() {
+        doAnswer(invocation -> {
+            ClientResponseObserver<SparqlQueryRequest, SparqlQueryResponse> responseObserver = invocation.getArgument(1);
+            responseObserver.beforeStart(requestStream);
+            sparqlRunner.cancel();
+            responseObserver.onNext(newResponse(0, false));
+            responseObserver.onError(Status.CANCELLED.asRuntimeException());
+            return null;
+        }).when(metaAPIStub).sparqlQuery(any(SparqlQueryRequest.class), any());
+        sparqlRunner.run("SELECT * WHERE { ?s ?p ?o }");
+
+        verify(requestStream).cancel(eq("query cancelled"), any());
+        verify(outputStream, never()).onNext(anyString());
+        verify(outputStream).onError(any(StatusRuntimeException.class));
+    }
+
+    @Test
+    public void doesNotStartWhenCancelledBeforeRunning() {
+        sparqlRunner.cancel();
+        sparqlRunner.run("SELECT * WHERE { ?s ?p ?o }");
+
+        verifyNoInteractions(metaAPIStub);
+    }
+
+    @Test
+    public void setsTheDeadlineOnTheCall() {
+        MetaAPIGrpc.MetaAPIStub deadlined = mock(MetaAPIGrpc.MetaAPIStub.class);
+        when(metaAPIStub.withDeadlineAfter(30000, TimeUnit.MILLISECONDS)).thenReturn(deadlined);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        sparqlRunner = SparqlRunner.SparqlRunnerBuilder.newBuilder()
+                .withMetaAPIStub(metaAPIStub)
+                .withAgentIdentity(new Identity("k", "n", "did:iotics:agentDid"))
+                .withScope(Scope.LOCAL)
+                .withSparqlResultType(SparqlResultType.SPARQL_CSV)
+                .withOutputStream(outputStream)
+                .withMeterRegistry(registry)
+                .withTimeout(Duration.ofSeconds(30))
+                .build();
+        doAnswer(invocation -> {
+            StreamObserver<SparqlQueryResponse> responseObserver = invocation.getArgument(1);
+            responseObserver.onError(Status.DEADLINE_EXCEEDED.asRuntimeException());
+            return null;
+        }).when(deadlined).sparqlQuery(any(SparqlQueryRequest.class), any());
+        sparqlRunner.run("SELECT * WHERE { ?s ?p ?o }");
+
+        verify(metaAPIStub, never()).sparqlQuery(any(), any());
+        verify(outputStream).onError(any(StatusRuntimeException.class));
+        assertEquals(1, registry.get("sparql.query.duration").tag("outcome", "timeout").timer().count());
+    }
+
+    private static SparqlQueryResponse newResponse(int seqNum, boolean last) {
+        return SparqlQueryResponse.newBuilder()
+                .setPayload(SparqlQueryResponse.Payload.newBuilder()
+                        .setResultChunk(ByteString.copyFromUtf8("Result" + seqNum))
+                        .setSeqNum(seqNum)
+                        .setLast(last)
+                        .build())
+                .build();
+    }
+
     private void sendPayloads(Integer... sequences) {
         Integer max = Collections.max(Arrays.asList(sequences));
         CountDownLatch l = new CountDownLatch(sequences.length);
@@ -0,0 +1,112 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenCacheTest {
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    };
+    private final AtomicInteger minted = new AtomicInteger();
+
+    @Test
+    void reusesTokenUntilRefreshIsDue() {
+        TokenCache cache = newCache(MoreExecutors.directExecutor());
+
+        String first = cache.get("did:user");
+        advance(Duration.ofMinutes(29));
+
+        assertEquals(first, cache.get("did:user"));
+        assertEquals(1, minted.get());
+    }
+
+    @Test
+    void mintsSeparateTokensPerUser() {
+        TokenCache cache = newCache(MoreExecutors.directExecutor());
+
+        assertNotEquals(cache.get("did:user1"), cache.get("did:user2"));
+        assertEquals(2, minted.get());
+    }
+
+    @Test
+    void refreshesInBackgroundAndServesCurrentTokenMeanwhile() {
+        List<Runnable> refreshes = new ArrayList<>();
+        TokenCache cache = newCache(refreshes::add);
+
+        String first = cache.get("did:user");
+        advance(Duration.ofMinutes(31));
+
+        assertEquals(first, cache.get("did:user"), "should not block on the refresh");
+        assertEquals(1, refreshes.size());
+
+        refreshes.forEach(Runnable::run);
+        String refreshed = cache.get("did:user");
+        assertNotEquals(first, refreshed);
+        assertEquals(2, minted.get());
+    }
+
+    @Test
+    void neverServesTokenPastItsSafeLifetime() {
+        List<Runnable> neverRun = new ArrayList<>();
+        TokenCache cache = newCache(neverRun::add);
+
+        String first = cache.get("did:user");
+        advance(Duration.ofMinutes(46));
+
+        assertNotEquals(first, cache.get("did:user"));
+    }
+
+    @Test
+    void getIfPresentRefreshesInBackgroundWithoutMinting() {
+        List<Runnable> refreshes = new ArrayList<>();
+        TokenCache cache = newCache(refreshes::add);
+
+        assertNull(cache.getIfPresent("did:user"));
+        String first = cache.get("did:user");
+        advance(Duration.ofMinutes(31));
+
+        assertEquals(first, cache.getIfPresent("did:user"));
+        assertEquals(1, refreshes.size());
+        assertEquals(1, minted.get());
+    }
+
+    @Test
+    void getIfPresentReportsAnExpiredTokenMissingWithoutMinting() {
+        List<Runnable> neverRun = new ArrayList<>();
+        TokenCache cache = newCache(neverRun::add);
+
+        cache.get("did:user");
+        advance(Duration.ofMinutes(46));
+
+        assertNull(cache.getIfPresent("did:user"));
+        assertEquals(1, minted.get());
+    }
+
+    @Test
+    void rejectsInvalidRefreshFraction() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenCache(Duration.ofHours(1), 1.0, did -> did, Runnable::run));
+    }
+
+    private TokenCache newCache(Executor executor) {
+        return new TokenCache(Duration.ofHours(1), 0.5, did -> did + "-token" + minted.incrementAndGet(), executor, ticker);
+    }
+
+    private void advance(Duration duration) {
+        nanos.addAndGet(duration.toNanos());
+    }
+}
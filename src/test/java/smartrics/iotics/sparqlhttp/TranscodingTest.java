@@ -0,0 +1,142 @@
+package smartrics.iotics.sparqlhttp;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class TranscodingTest {
+
+    private static final String SPARQL_JSON = """
+            {"head": {"vars": ["s", "label", "n"]},
+             "results": {"bindings": [
+               {"s": {"type": "uri", "value": "http://x/1"}, "label": {"type": "literal", "value": "tab\\there \\"q\\"", "xml:lang": "en"},
+                "n": {"type": "literal", "value": "3", "datatype": "http://www.w3.org/2001/XMLSchema#integer"}},
+               {"s": {"type": "bnode", "value": "b0"}}
+             ]}}""";
+
+    private static final String N_TRIPLES = """
+            <http://x/1> <http://x/p> "caf\\u00E9"@fr .
+            <http://x/1> <http://x/p> <http://x/2> .
+            <http://x/1> <http://x/q> "1"^^<http://www.w3.org/2001/XMLSchema#integer> .
+            # a comment
+
+            _:b0 <http://x/p> "line\\nbreak" .
+            <http://x/1> <http://x/p> _:b0 .
+            """;
+
+    /**
+     * Converts the input fed in chunks of the given size, so that chunk boundaries fall everywhere.
+     */
+    private static String convert(Transcoding transcoding, String input, int chunkSize) {
+        Transcoder transcoder = transcoding.newTranscoder();
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < input.length(); i += chunkSize) {
+            out.append(transcoder.next(input.substring(i, Math.min(input.length(), i + chunkSize))));
+        }
+        return out.append(transcoder.finish()).toString();
+    }
+
+    @Test
+    void sparqlJsonToTsv() {
+        String expected = "?s\t?label\t?n\n"
+                + "<http://x/1>\t\"tab\\there \\\"q\\\"\"@en\t\"3\"^^<http://www.w3.org/2001/XMLSchema#integer>\n"
+                + "_:b0\t\t\n";
+        for (int chunkSize : new int[]{1, 7, SPARQL_JSON.length()}) {
+            assertEquals(expected, convert(Transcoding.TSV, SPARQL_JSON, chunkSize));
+        }
+    }
+
+    @Test
+    void askResultToTsv() {
+        assertEquals("true\n", convert(Transcoding.TSV, "{\"head\": {}, \"boolean\": true}", 5));
+    }
+
+    @Test
+    void nTriplesAreNQuadsAsTheyAre() {
+        assertEquals(N_TRIPLES, convert(Transcoding.N_QUADS, N_TRIPLES, 10));
+    }
+
+    @Test
+    void nTriplesToJsonLd() {
+        for (int chunkSize : new int[]{1, 13, N_TRIPLES.length()}) {
+            JsonArray nodes = JsonParser.parseString(convert(Transcoding.JSON_LD, N_TRIPLES, chunkSize)).getAsJsonArray();
+
+            assertEquals(3, nodes.size(), "the subject's later triple starts a new node");
+            JsonObject first = nodes.get(0).getAsJsonObject();
+            assertEquals("http://x/1", first.get("@id").getAsString());
+            JsonArray p = first.getAsJsonArray("http://x/p");
+            assertEquals("café", p.get(0).getAsJsonObject().get("@value").getAsString());
+            assertEquals("fr", p.get(0).getAsJsonObject().get("@language").getAsString());
+            assertEquals("http://x/2", p.get(1).getAsJsonObject().get("@id").getAsString());
+            JsonObject one = first.getAsJsonArray("http://x/q").get(0).getAsJsonObject();
+            assertEquals("http://www.w3.org/2001/XMLSchema#integer", one.get("@type").getAsString());
+            JsonObject blank = nodes.get(1).getAsJsonObject();
+            assertEquals("_:b0", blank.get("@id").getAsString());
+            assertEquals("line\nbreak", blank.getAsJsonArray("http://x/p").get(0).getAsJsonObject().get("@value").getAsString());
+        }
+    }
+
+    @Test
+    void nTriplesToRdfJson() {
+        String rdfJson = convert(Transcoding.RDF_JSON, N_TRIPLES, 9);
+        JsonObject graph = JsonParser.parseString(rdfJson).getAsJsonObject();
+
+        // the subject's later triple joins its earlier ones, rather than repeating its key
+        assertEquals(1, rdfJson.split("\"http://x/1\":", -1).length - 1);
+        assertEquals(3, graph.getAsJsonObject("http://x/1").getAsJsonArray("http://x/p").size());
+        assertEquals("bnode", graph.getAsJsonObject("http://x/1").getAsJsonArray("http://x/p").get(2).getAsJsonObject().get("type").getAsString());
+
+        JsonObject subject = graph.getAsJsonObject("http://x/1");
+        JsonObject literal = subject.getAsJsonArray("http://x/p").get(0).getAsJsonObject();
+        assertEquals("literal", literal.get("type").getAsString());
+        assertEquals("café", literal.get("value").getAsString());
+        assertEquals("fr", literal.get("lang").getAsString());
+        assertEquals("uri", subject.getAsJsonArray("http://x/p").get(1).getAsJsonObject().get("type").getAsString());
+        assertEquals("http://www.w3.org/2001/XMLSchema#integer",
+                subject.getAsJsonArray("http://x/q").get(0).getAsJsonObject().get("datatype").getAsString());
+        assertTrue(graph.has("_:b0"));
+    }
+
+    @Test
+    void rdfJsonIsWrittenOnceTheGraphIsComplete() {
+        Transcoder transcoder = Transcoding.RDF_JSON.newTranscoder();
+
+        assertEquals("", transcoder.next(N_TRIPLES));
+        assertTrue(transcoder.finish().startsWith("{\"http://x/1\":{"));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = Transcoding.class, names = {"JSON_LD", "RDF_JSON"})
+    void emptyGraphs(Transcoding transcoding) {
+        String converted = convert(transcoding, "", 1);
+        assertEquals(transcoding == Transcoding.JSON_LD ? "[]" : "{}", converted);
+    }
+
+    @Test
+    void malformedInputFailsTheResponse() {
+        @SuppressWarnings("unchecked")
+        StreamObserver<String> delegate = mock(StreamObserver.class);
+        StreamObserver<String> observer = Transcoding.JSON_LD.transcoding(delegate);
+
+        observer.onNext("<http://x/1> <http://x/p> .\n");
+        observer.onNext("<http://x/1> <http://x/p> <http://x/2> .\n");
+        observer.onCompleted();
+
+        verify(delegate).onError(any(IllegalArgumentException.class));
+        verify(delegate, never()).onNext(any());
+        verify(delegate, never()).onCompleted();
+    }
+
+    @Test
+    void malformedJsonFailsTheConversion() {
+        assertThrows(IllegalArgumentException.class, () -> convert(Transcoding.TSV, "{\"head\": {\"vars\": [\"s\"]}, \"results\": {\"bindings\": [}", 4));
+    }
+}
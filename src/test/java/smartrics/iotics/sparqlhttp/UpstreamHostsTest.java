@@ -0,0 +1,154 @@
+package smartrics.iotics.sparqlhttp;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class UpstreamHostsTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private UpstreamHosts hosts(UpstreamHosts.Balancing balancing, String... names) {
+        return new UpstreamHosts(List.of(names), balancing, 2, Duration.ofSeconds(1), Duration.ofSeconds(30), clock::get);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void fail(UpstreamHosts.Lease lease) {
+        lease.observing(mock(StreamObserver.class)).onError(Status.UNAVAILABLE.asRuntimeException());
+    }
+
+    @Test
+    void parsesACommaSeparatedList() {
+        assertThat(UpstreamHosts.parse(" a.iotics.space, b.iotics.space ,,"), equalTo(List.of("a.iotics.space", "b.iotics.space")));
+        assertThat(UpstreamHosts.parse("a.iotics.space"), equalTo(List.of("a.iotics.space")));
+        assertThrows(IllegalArgumentException.class, () -> UpstreamHosts.parse(" , "));
+        assertThat(UpstreamHosts.balancing("round-robin"), equalTo(UpstreamHosts.Balancing.ROUND_ROBIN));
+        assertThat(UpstreamHosts.balancing("least-outstanding"), equalTo(UpstreamHosts.Balancing.LEAST_OUTSTANDING));
+    }
+
+    @Test
+    void roundRobinTakesTurns() {
+        UpstreamHosts hosts = hosts(UpstreamHosts.Balancing.ROUND_ROBIN, "a", "b", "c");
+
+        assertThat(hosts.acquire().host(), equalTo("a"));
+        assertThat(hosts.acquire().host(), equalTo("b"));
+        assertThat(hosts.acquire().host(), equalTo("c"));
+        assertThat(hosts.acquire().host(), equalTo("a"));
+    }
+
+    @Test
+    void leastOutstandingPicksTheLeastBusyHost() {
+        UpstreamHosts hosts = hosts(UpstreamHosts.Balancing.LEAST_OUTSTANDING, "a", "b");
+        hosts.acquire();
+        hosts.acquire();
+        UpstreamHosts.Lease a = hosts.acquire();
+        assertThat(a.host(), equalTo("a"));
+
+        // a has 2 outstanding, b has 1
+        assertThat(hosts.acquire().host(), equalTo("b"));
+        assertThat(hosts.acquire().host(), equalTo("a"));
+    }
+
+    @Test
+    void aCallIsOutstandingUntilItEndsOrIsCancelled() {
+        UpstreamHosts hosts = hosts(UpstreamHosts.Balancing.LEAST_OUTSTANDING, "a");
+        UpstreamHosts.Lease completed = hosts.acquire();
+        UpstreamHosts.Lease cancelled = hosts.acquire();
+        QueryRunner runner = mock(QueryRunner.class);
+        assertThat(hosts.stats().hosts().get(0).outstanding(), equalTo(2));
+
+        StreamObserver<String> observer = completed.observing(mock(StreamObserver.class));
+        observer.onNext("a");
+        assertThat(hosts.stats().hosts().get(0).outstanding(), equalTo(2));
+        observer.onCompleted();
+        cancelled.guarding(runner).cancel();
+        cancelled.guarding(runner).cancel();
+
+        assertThat(hosts.stats().hosts().get(0).outstanding(), equalTo(0));
+        verify(runner, times(2)).cancel();
+    }
+
+    @Test
+    void ejectsAHostFailingInARowUntilTheEjectionEnds() {
+        UpstreamHosts hosts = hosts(UpstreamHosts.Balancing.ROUND_ROBIN, "a", "b");
+        fail(hosts.acquire());
+        hosts.acquire();
+        fail(hosts.acquire());
+
+        assertTrue(hosts.stats().hosts().get(0).ejected());
+        for (int i = 0; i < 4; i++) {
+            assertThat(hosts.acquire().host(), equalTo("b"));
+        }
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        assertFalse(hosts.stats().hosts().get(0).ejected());
+        assertThat(hosts.stats().hosts().get(0).ejections(), equalTo(1L));
+    }
+
+    @Test
+    void aSuccessResetsTheFailuresInARow() {
+        UpstreamHosts hosts = hosts(UpstreamHosts.Balancing.ROUND_ROBIN, "a");
+        fail(hosts.acquire());
+        hosts.acquire().observing(mock(StreamObserver.class)).onCompleted();
+        fail(hosts.acquire());
+
+        assertFalse(hosts.stats().hosts().get(0).ejected());
+    }
+
+    @Test
+    void slowFirstChunksCountAsFailures() {
+        UpstreamHosts hosts = hosts(UpstreamHosts.Balancing.ROUND_ROBIN, "a", "b");
+        for (int i = 0; i < 2; i++) {
+            StreamObserver<String> observer = hosts.acquireHome().observing(mock(StreamObserver.class));
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+            observer.onNext("late");
+        }
+
+        assertTrue(hosts.stats().hosts().get(0).ejected());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void badQueriesDoNotEjectAHost() {
+        UpstreamHosts hosts = hosts(UpstreamHosts.Balancing.ROUND_ROBIN, "a", "b");
+        for (int i = 0; i < 10; i++) {
+            hosts.acquireHome().observing(mock(StreamObserver.class)).onError(new QueryExecutionException("syntax error at line 1"));
+            hosts.acquireHome().observing(mock(StreamObserver.class)).onError(Status.INVALID_ARGUMENT.asRuntimeException());
+        }
+
+        UpstreamHosts.HostStats home = hosts.stats().hosts().get(0);
+        assertFalse(home.ejected());
+        assertThat(home.ejections(), equalTo(0L));
+        assertThat(home.outstanding(), equalTo(0));
+    }
+
+    @Test
+    void usesEjectedHostsWhenAllAreEjected() {
+        UpstreamHosts hosts = hosts(UpstreamHosts.Balancing.LEAST_OUTSTANDING, "a");
+        fail(hosts.acquire());
+        fail(hosts.acquire());
+
+        assertTrue(hosts.stats().hosts().get(0).ejected());
+        assertThat(hosts.acquire().host(), equalTo("a"));
+    }
+
+    @Test
+    void homeIsTheFirstHost() {
+        UpstreamHosts hosts = hosts(UpstreamHosts.Balancing.ROUND_ROBIN, "a", "b");
+        fail(hosts.acquireHome());
+        fail(hosts.acquireHome());
+
+        assertThat(hosts.home(), equalTo("a"));
+        assertThat(hosts.acquireHome().host(), equalTo("a"));
+    }
+}